@@ -0,0 +1,154 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http11;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.coyote.ActionCode;
+import org.apache.tomcat.util.net.JIoEndpoint;
+import org.apache.tomcat.util.net.NioEndpoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Full request cycle through Http11Processor and Http11NioProcessor: parsing,
+ * request preparation (filters, keep-alive), a trivial adapter that drains
+ * the body and a small response written to a discarding socket.
+ *
+ * @author The Apache Software Foundation
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.apache.tomcat.util.net.NioSelectorShared=false")
+public class Http11ProcessorBenchmark {
+
+    @Param({"smallGet", "headerHeavy", "chunkedPost", "pipelined"})
+    public String fixture;
+
+    protected Http11Processor processor;
+    protected CannedSocket socket;
+
+    protected Http11NioProcessor nioProcessor;
+    protected RequestFixtures.CannedNioChannel channel;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        byte[] data = RequestFixtures.bytes(RequestFixtures.fixture(fixture));
+
+        JIoEndpoint endpoint = new JIoEndpoint();
+        processor = new Http11Processor(8192, endpoint);
+        processor.setAdapter(new RequestFixtures.BenchmarkAdapter());
+        processor.setMaxKeepAliveRequests(-1);
+        processor.action(ActionCode.ACTION_START, null);
+        socket = new CannedSocket(data);
+
+        NioEndpoint nioEndpoint = new NioEndpoint();
+        nioEndpoint.getSelectorPool().setEnabled(false);
+        nioProcessor = new Http11NioProcessor(8192, 8192, 8192, nioEndpoint);
+        nioProcessor.setAdapter(new RequestFixtures.BenchmarkAdapter());
+        nioProcessor.setMaxKeepAliveRequests(-1);
+        nioProcessor.setDisableUploadTimeout(true);
+        channel = new RequestFixtures.CannedNioChannel(nioEndpoint, data);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.close();
+    }
+
+
+    /**
+     * The blocking processor keeps reading until the canned stream is
+     * exhausted, so a single call handles every pipelined request.
+     */
+    @Benchmark
+    public void http11Processor() throws Exception {
+        socket.rewind();
+        processor.process(socket);
+    }
+
+
+    /**
+     * The NIO processor returns once no more data is available, leaving
+     * the processor associated with the connection like a long poll would.
+     */
+    @Benchmark
+    public Object http11NioProcessor() throws Exception {
+        channel.rewind();
+        Object state = nioProcessor.process(channel);
+        nioProcessor.recycle();
+        return state;
+    }
+
+
+    // ----------------------------------------------------------- Inner Classes
+
+
+    /**
+     * Unconnected socket reading from canned bytes and discarding writes.
+     */
+    protected static class CannedSocket extends Socket {
+
+        protected ByteArrayInputStream in;
+        protected OutputStream out = new OutputStream() {
+            public void write(int b) {
+            }
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        public CannedSocket(byte[] data) {
+            in = new ByteArrayInputStream(data);
+        }
+
+        public void rewind() {
+            in.reset();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return in;
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return out;
+        }
+
+        public void setSoTimeout(int timeout) throws SocketException {
+        }
+
+    }
+
+}
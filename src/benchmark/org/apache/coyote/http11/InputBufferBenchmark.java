@@ -0,0 +1,119 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http11;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.coyote.Request;
+import org.apache.tomcat.util.net.NioEndpoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Request line and header parsing of InternalInputBuffer (JIo) and
+ * InternalNioInputBuffer (NIO), without the processor around them. Only
+ * MimeHeaders, MessageBytes and ByteChunk work is measured here, the body
+ * of the chunked POST is left unread.
+ *
+ * @author The Apache Software Foundation
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.apache.tomcat.util.net.NioSelectorShared=false")
+public class InputBufferBenchmark {
+
+    @Param({"smallGet", "headerHeavy", "chunkedPost", "pipelined"})
+    public String fixture;
+
+    protected int requests;
+
+    protected Request request;
+    protected InternalInputBuffer inputBuffer;
+    protected ByteArrayInputStream stream;
+
+    protected Request nioRequest;
+    protected InternalNioInputBuffer nioInputBuffer;
+    protected RequestFixtures.CannedNioChannel channel;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        byte[] data = RequestFixtures.bytes(RequestFixtures.fixture(fixture));
+        requests = "pipelined".equals(fixture) ? RequestFixtures.PIPELINE_DEPTH : 1;
+
+        request = new Request();
+        inputBuffer = new InternalInputBuffer(request, 8192);
+        stream = new ByteArrayInputStream(data);
+
+        NioEndpoint endpoint = new NioEndpoint();
+        endpoint.getSelectorPool().setEnabled(false);
+        nioRequest = new Request();
+        nioInputBuffer = new InternalNioInputBuffer(nioRequest, 8192);
+        nioInputBuffer.setSelectorPool(endpoint.getSelectorPool());
+        channel = new RequestFixtures.CannedNioChannel(endpoint, data);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.close();
+    }
+
+
+    @Benchmark
+    public void internalInputBuffer(Blackhole bh) throws Exception {
+        stream.reset();
+        inputBuffer.setInputStream(stream);
+        for (int i = 0; i < requests; i++) {
+            inputBuffer.parseRequestLine();
+            inputBuffer.parseHeaders();
+            bh.consume(request.getMimeHeaders().size());
+            inputBuffer.nextRequest();
+        }
+        inputBuffer.recycle();
+    }
+
+
+    @Benchmark
+    public void internalNioInputBuffer(Blackhole bh) throws Exception {
+        channel.rewind();
+        nioInputBuffer.setSocket(channel);
+        for (int i = 0; i < requests; i++) {
+            if (!nioInputBuffer.parseRequestLine(i > 0)
+                    || !nioInputBuffer.parseHeaders()) {
+                throw new IllegalStateException("Incomplete request");
+            }
+            bh.consume(nioRequest.getMimeHeaders().size());
+            nioInputBuffer.nextRequest();
+        }
+        nioInputBuffer.recycle();
+    }
+
+}
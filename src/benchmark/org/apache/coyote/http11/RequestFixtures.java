@@ -0,0 +1,223 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http11;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.apache.coyote.Adapter;
+import org.apache.coyote.Request;
+import org.apache.coyote.Response;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.net.NioChannel;
+import org.apache.tomcat.util.net.NioEndpoint;
+import org.apache.tomcat.util.net.SocketStatus;
+import org.apache.tomcat.util.net.NioEndpoint.KeyAttachment;
+
+/**
+ * Canned HTTP/1.1 request byte streams and in-memory stand-ins for the
+ * network, shared by the request parsing benchmarks.
+ *
+ * @author The Apache Software Foundation
+ */
+public final class RequestFixtures {
+
+    /**
+     * Number of requests in the pipelined keep-alive fixture.
+     */
+    public static final int PIPELINE_DEPTH = 8;
+
+    public static final String SMALL_GET =
+        "GET /index.html HTTP/1.1\r\n" +
+        "Host: localhost:8080\r\n" +
+        "\r\n";
+
+    public static final String HEADER_HEAVY;
+
+    public static final String CHUNKED_POST =
+        "POST /app/upload?id=42 HTTP/1.1\r\n" +
+        "Host: localhost:8080\r\n" +
+        "Content-Type: application/x-www-form-urlencoded\r\n" +
+        "Transfer-Encoding: chunked\r\n" +
+        "\r\n" +
+        "1a\r\n" +
+        "name=tomcat&version=6.0.35\r\n" +
+        "10\r\n" +
+        "&lang=java&os=li\r\n" +
+        "2\r\n" +
+        "nx\r\n" +
+        "0\r\n" +
+        "\r\n";
+
+    public static final String PIPELINED;
+
+    static {
+        // What a browser behind a couple of proxies typically sends
+        StringBuffer sb = new StringBuffer();
+        sb.append("GET /app/catalog/item.jsp?id=12345&view=full HTTP/1.1\r\n");
+        sb.append("Host: www.example.com\r\n");
+        sb.append("User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/30.0 Safari/537.36\r\n");
+        sb.append("Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n");
+        sb.append("Accept-Language: en-US,en;q=0.8,de;q=0.6\r\n");
+        sb.append("Accept-Encoding: gzip,deflate,sdch\r\n");
+        sb.append("Accept-Charset: ISO-8859-1,utf-8;q=0.7,*;q=0.3\r\n");
+        sb.append("Cache-Control: max-age=0\r\n");
+        sb.append("Connection: keep-alive\r\n");
+        sb.append("Referer: http://www.example.com/app/catalog/index.jsp\r\n");
+        sb.append("Cookie: JSESSIONID=0123456789ABCDEF0123456789ABCDEF; tracking=abcdef0123456789; locale=en_US\r\n");
+        sb.append("If-Modified-Since: Tue, 15 Oct 2013 08:12:31 GMT\r\n");
+        sb.append("If-None-Match: W/\"1234-1381824751000\"\r\n");
+        sb.append("X-Forwarded-For: 10.0.0.1, 10.0.0.2, 192.168.1.17\r\n");
+        sb.append("X-Forwarded-Proto: http\r\n");
+        sb.append("X-Forwarded-Host: www.example.com\r\n");
+        sb.append("X-Request-Id: 5f2b7c9e-1d3a-4e8b-9c6d-0a1b2c3d4e5f\r\n");
+        for (int i = 0; i < 24; i++) {
+            sb.append("X-Custom-Header-").append(i).append(": value-").append(i).append("\r\n");
+        }
+        sb.append("\r\n");
+        HEADER_HEAVY = sb.toString();
+
+        sb = new StringBuffer();
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            sb.append("GET /static/img").append(i).append(".png HTTP/1.1\r\n");
+            sb.append("Host: localhost:8080\r\n");
+            sb.append("Connection: keep-alive\r\n");
+            sb.append("\r\n");
+        }
+        PIPELINED = sb.toString();
+    }
+
+
+    private RequestFixtures() {
+    }
+
+
+    public static byte[] bytes(String request) {
+        try {
+            return request.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+
+    public static String fixture(String name) {
+        if ("smallGet".equals(name)) {
+            return SMALL_GET;
+        } else if ("headerHeavy".equals(name)) {
+            return HEADER_HEAVY;
+        } else if ("chunkedPost".equals(name)) {
+            return CHUNKED_POST;
+        } else if ("pipelined".equals(name)) {
+            return PIPELINED;
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+
+    // ----------------------------------------------------------- Inner Classes
+
+
+    /**
+     * Adapter which drains the request body and writes a small fixed
+     * response, standing in for CoyoteAdapter and the container.
+     */
+    public static class BenchmarkAdapter implements Adapter {
+
+        protected ByteChunk body = new ByteChunk(8192);
+        protected ByteChunk content = new ByteChunk();
+        protected byte[] hello = bytes("Hello, World!");
+
+        public void service(Request req, Response res) throws Exception {
+            while (req.doRead(body) >= 0) {
+                // Drain
+            }
+            res.setStatus(200);
+            res.setContentType("text/plain");
+            res.setContentLength(hello.length);
+            content.setBytes(hello, 0, hello.length);
+            res.doWrite(content);
+            res.finish();
+        }
+
+        public boolean event(Request req, Response res, SocketStatus status)
+            throws Exception {
+            return false;
+        }
+
+        public void log(Request req, Response res, long time) {
+        }
+
+    }
+
+
+    /**
+     * NioChannel serving canned bytes the way a non blocking socket would:
+     * reads return what is left and 0 once everything has been consumed,
+     * writes are discarded.
+     */
+    public static class CannedNioChannel extends NioChannel {
+
+        protected byte[] data;
+        protected int pos = 0;
+        protected KeyAttachment attachment = new KeyAttachment();
+
+        public CannedNioChannel(NioEndpoint endpoint, byte[] data)
+            throws IOException {
+            super(SocketChannel.open(),
+                    endpoint.new NioBufferHandler(8192, 8192, false));
+            this.data = data;
+            setPoller(endpoint.new Poller());
+        }
+
+        public void rewind() throws IOException {
+            pos = 0;
+            reset();
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            int n = Math.min(dst.remaining(), data.length - pos);
+            dst.put(data, pos, n);
+            pos += n;
+            return n;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        public Object getAttachment(boolean remove) {
+            return attachment;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() throws IOException {
+            getIOChannel().close();
+            getPoller().getSelector().close();
+        }
+
+    }
+
+}
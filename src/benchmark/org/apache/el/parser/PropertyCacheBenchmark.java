@@ -0,0 +1,154 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.el.parser;
+
+import java.beans.FeatureDescriptor;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.el.ArrayELResolver;
+import javax.el.BeanELResolver;
+import javax.el.CompositeELResolver;
+import javax.el.ELContext;
+import javax.el.ELResolver;
+import javax.el.ListELResolver;
+import javax.el.MapELResolver;
+import javax.el.ResourceBundleELResolver;
+import javax.el.ValueExpression;
+
+import org.apache.el.ExpressionFactoryImpl;
+import org.apache.el.lang.StandardResolverChain;
+import org.apache.jasper.el.ELContextImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Evaluation of a chain of bean properties, read through the resolvers or
+ * through the inline caches of their read methods. JMH runs each value of
+ * the parameter in its own fork, so the system property which enables the
+ * caches is set before the EL parser classes are loaded.
+ *
+ * @author The Apache Software Foundation
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class PropertyCacheBenchmark {
+
+    @Param({"false", "true"})
+    public boolean cacheProperties;
+
+    protected ELContext context;
+    protected ValueExpression expression;
+
+
+    public static class Bean {
+        protected String name;
+        protected Bean child;
+        public Bean(String name, Bean child) {
+            this.name = name;
+            this.child = child;
+        }
+        public String getName() {
+            return name;
+        }
+        public Bean getChild() {
+            return child;
+        }
+    }
+
+
+    /**
+     * Standard resolver chain, with a single variable.
+     */
+    protected static class Resolver extends CompositeELResolver
+        implements StandardResolverChain {
+        protected Map<String, Object> variables = new HashMap<String, Object>();
+        public Resolver() {
+            add(new ELResolver() {
+                public Object getValue(ELContext context, Object base,
+                        Object property) {
+                    if (base == null) {
+                        context.setPropertyResolved(true);
+                        return variables.get(property);
+                    }
+                    return null;
+                }
+                public Class<?> getType(ELContext context, Object base,
+                        Object property) {
+                    return null;
+                }
+                public void setValue(ELContext context, Object base,
+                        Object property, Object value) {
+                }
+                public boolean isReadOnly(ELContext context, Object base,
+                        Object property) {
+                    return true;
+                }
+                public Iterator<FeatureDescriptor> getFeatureDescriptors(
+                        ELContext context, Object base) {
+                    return null;
+                }
+                public Class<?> getCommonPropertyType(ELContext context,
+                        Object base) {
+                    return null;
+                }
+            });
+            add(new MapELResolver());
+            add(new ResourceBundleELResolver());
+            add(new ListELResolver());
+            add(new ArrayELResolver());
+            add(new BeanELResolver());
+        }
+    }
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.setProperty("org.apache.el.parser.CACHE_PROPERTIES",
+                String.valueOf(cacheProperties));
+        if (AstValue.CACHE_PROPERTIES != cacheProperties) {
+            throw new IllegalStateException(
+                    "The EL parser was loaded before the benchmark set up");
+        }
+        Resolver resolver = new Resolver();
+        resolver.variables.put("bean", new Bean("a", new Bean("b",
+                new Bean("c", null))));
+        context = new ELContextImpl(resolver);
+        expression = new ExpressionFactoryImpl().createValueExpression(
+                context, "${bean.child.child.name}", String.class);
+    }
+
+
+    @Benchmark
+    public Object evaluate() {
+        return expression.getValue(context);
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.tomcat.util.http;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of the query string and of a form body by Parameters, of which
+ * only a few values are read, as most applications do. The values are
+ * converted to strings when they are first read.
+ *
+ * @author The Apache Software Foundation
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class ParametersBenchmark {
+
+    @Param({"200"})
+    public int queryParameters;
+
+    @Param({"500"})
+    public int bodyParameters;
+
+    /**
+     * Number of values read per request.
+     */
+    @Param({"10"})
+    public int read;
+
+    protected Parameters parameters = new Parameters();
+    protected MessageBytes query = MessageBytes.newInstance();
+    protected String queryString;
+    protected byte[] body;
+    protected byte[] copy;
+    protected String[] names;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        queryString = buildForm(queryParameters, 0);
+        body = buildForm(bodyParameters, 1).getBytes("ISO-8859-1");
+        copy = new byte[body.length];
+        names = new String[read];
+        int size = Math.max(queryParameters, bodyParameters);
+        for (int i = 0; i < read; i++) {
+            names[i] = "key" + ((i * 17) % size);
+        }
+    }
+
+
+    @Benchmark
+    public void parse(Blackhole bh) throws Exception {
+        query.setString(queryString);
+        parameters.setQuery(query);
+        // The body is decoded in place
+        System.arraycopy(body, 0, copy, 0, body.length);
+        parameters.handleQueryParameters();
+        parameters.processParameters(copy, 0, copy.length);
+        for (int i = 0; i < names.length; i++) {
+            bh.consume(parameters.getParameter(names[i]));
+        }
+        parameters.recycle();
+    }
+
+
+    protected static String buildForm(int size, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append('&');
+            }
+            sb.append("key").append(i).append("=value+").append(n);
+            sb.append("%2D").append(i);
+        }
+        return sb.toString();
+    }
+
+}
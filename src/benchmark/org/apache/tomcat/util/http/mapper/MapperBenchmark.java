@@ -0,0 +1,127 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.tomcat.util.http.mapper;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Host, context and wrapper mapping with the binary searches over sorted
+ * arrays and with the tries, for a growing number of hosts, contexts and
+ * servlet mappings. Each invocation maps a batch of URIs covering exact,
+ * prefix, extension and default servlet matches.
+ *
+ * @author The Apache Software Foundation
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class MapperBenchmark {
+
+    @Param({"false", "true"})
+    public boolean trie;
+
+    @Param({"10", "1000"})
+    public int contexts;
+
+    /**
+     * Exact and prefix servlet mappings per context.
+     */
+    @Param({"10", "100"})
+    public int wrappers;
+
+    protected Mapper mapper;
+    protected char[][] hosts;
+    protected char[][] uris;
+    protected MessageBytes hostMB = MessageBytes.newInstance();
+    protected MessageBytes uriMB = MessageBytes.newInstance();
+    protected MappingData mappingData = new MappingData();
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mapper = new Mapper();
+        mapper.setDefaultHostName("localhost");
+        mapper.addHost("localhost", new String[] {"www.example.com"}, "host");
+        for (int i = 0; i < 16; i++) {
+            mapper.addHost("vhost" + i + ".example.com", new String[0],
+                    "vhost" + i);
+        }
+        mapper.addContext("localhost", "", "ROOT", new String[0], null);
+        mapper.addWrapper("localhost", "", "/", "default");
+        for (int i = 0; i < contexts; i++) {
+            String path = "/app" + i;
+            mapper.addContext("localhost", path, path, new String[0], null);
+            mapper.addWrapper("localhost", path, "/", "default");
+            mapper.addWrapper("localhost", path, "*.jsp", "jsp");
+            mapper.addWrapper("localhost", path, "*.do", "action");
+            for (int j = 0; j < wrappers; j++) {
+                mapper.addWrapper("localhost", path, "/servlet/s" + j,
+                        "exact" + j);
+                mapper.addWrapper("localhost", path, "/api/v" + j + "/*",
+                        "prefix" + j);
+            }
+        }
+        mapper.setTrieMapping(trie);
+
+        hosts = new char[][] {
+            "localhost".toCharArray(), "WWW.Example.com".toCharArray(),
+            "localhost".toCharArray(), "unknown.example.org".toCharArray()
+        };
+        int last = contexts - 1;
+        int mid = contexts / 2;
+        uris = new char[][] {
+            ("/app" + last + "/servlet/s" + (wrappers - 1)).toCharArray(),
+            ("/app" + mid + "/api/v" + (wrappers / 2) + "/users/42").toCharArray(),
+            ("/app" + 0 + "/pages/index.jsp").toCharArray(),
+            ("/app" + mid + "/login.do").toCharArray(),
+            ("/app" + last + "/static/css/site.css").toCharArray(),
+            "/favicon.ico".toCharArray(),
+            ("/app" + mid + "x/missing").toCharArray(),
+            ("/app" + last + "/api/v0").toCharArray()
+        };
+    }
+
+
+    @Benchmark
+    public Object map() throws Exception {
+        Object result = null;
+        for (int i = 0; i < uris.length; i++) {
+            char[] host = hosts[i & 3];
+            hostMB.setChars(host, 0, host.length);
+            uriMB.setChars(uris[i], 0, uris[i].length);
+            mappingData.recycle();
+            mapper.map(hostMB, uriMB, mappingData);
+            result = mappingData.wrapper;
+        }
+        return result;
+    }
+
+}
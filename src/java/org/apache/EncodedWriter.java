@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache;
+
+import java.io.IOException;
+
+/**
+ * Character stream which may also be given text already encoded as bytes,
+ * so that static text is not converted again on each write.
+ *
+ * @version $Revision$
+ */
+public interface EncodedWriter {
+
+    /**
+     * Write bytes which encode text with the given character encoding, if
+     * this writer can output them directly, after anything written before.
+     *
+     * @param b Bytes of the encoded text
+     * @param off Offset of the first byte
+     * @param len Number of bytes
+     * @param encoding Character encoding of the text
+     *
+     * @return <code>false</code> if nothing was written, in which case the
+     *         text should be written as characters
+     */
+    public boolean writeEncoded(byte[] b, int off, int len, String encoding)
+        throws IOException;
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The AsyncContext interface, giving a servlet a way to let a request
+ * outlive the container thread which started processing it. It is obtained
+ * from the <code>startAsync</code> method of the request, which is only
+ * supported by the connectors which can resume Comet requests from any
+ * thread (NIO).
+ * <p>
+ * Once the servlet returns, the connection is kept open without holding a
+ * thread. Any thread may then write the response and call
+ * {@link #complete()}, or call {@link #dispatch()} to have the request
+ * processed again by the container on a container thread. If neither
+ * happens before the timeout expires, the listeners are notified, and the
+ * request is completed with an error if they did not complete or dispatch
+ * it themselves.
+ *
+ * @version $Revision$
+ */
+public interface AsyncContext {
+
+
+    /**
+     * Returns the request which started the asynchronous processing.
+     */
+    public HttpServletRequest getRequest();
+
+
+    /**
+     * Returns the response associated with the request.
+     */
+    public HttpServletResponse getResponse();
+
+
+    /**
+     * Process the request again through the container, on a container
+     * thread, as if it had just been received. The servlet can tell the
+     * dispatch apart from the original processing as the request then has
+     * the asynchronous context already.
+     *
+     * @throws IllegalStateException if the asynchronous processing was
+     *  already completed or dispatched
+     */
+    public void dispatch();
+
+
+    /**
+     * Forward the request to the given path of the context, on a container
+     * thread.
+     *
+     * @param path Context relative path, starting with a '/'
+     * @throws IllegalStateException if the asynchronous processing was
+     *  already completed or dispatched
+     */
+    public void dispatch(String path);
+
+
+    /**
+     * Complete the response, and make the connection available for the
+     * next request. The listeners are notified on a container thread.
+     *
+     * @throws IllegalStateException if the asynchronous processing was
+     *  already completed or dispatched
+     */
+    public void complete();
+
+
+    /**
+     * Set the timeout of the asynchronous processing.
+     *
+     * @param timeout Timeout in milliseconds
+     */
+    public void setTimeout(long timeout);
+
+
+    /**
+     * Returns the timeout of the asynchronous processing, in milliseconds.
+     */
+    public long getTimeout();
+
+
+    /**
+     * Register a listener, which will be notified of the completion,
+     * timeout or error of the current asynchronous processing.
+     */
+    public void addListener(AsyncListener listener);
+
+
+}
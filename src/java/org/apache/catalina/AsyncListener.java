@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina;
+
+import java.io.IOException;
+import java.util.EventListener;
+
+/**
+ * Listener notified of the outcome of an asynchronous processing started
+ * with <code>startAsync</code>. All the methods are called on a container
+ * thread.
+ *
+ * @version $Revision$
+ */
+public interface AsyncListener extends EventListener {
+
+
+    /**
+     * The asynchronous processing was completed.
+     */
+    public void onComplete(AsyncContext context) throws IOException;
+
+
+    /**
+     * The asynchronous processing timed out. The listener may complete or
+     * dispatch the request; otherwise it will be completed with an error.
+     */
+    public void onTimeout(AsyncContext context) throws IOException;
+
+
+    /**
+     * The connection failed, or was closed by the client, during the
+     * asynchronous processing.
+     */
+    public void onError(AsyncContext context, Throwable t) throws IOException;
+
+
+    /**
+     * A new asynchronous processing was started for the request, during a
+     * dispatch. The listener is dropped, and must be added again to the
+     * new asynchronous processing to be notified of its outcome.
+     */
+    public void onStartAsync(AsyncContext context) throws IOException;
+
+
+}
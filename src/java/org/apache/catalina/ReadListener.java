@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package org.apache.catalina;
+
+import java.io.IOException;
+import java.util.EventListener;
+
+/**
+ * Listener for reading the request body without blocking, during an
+ * asynchronous processing. It is registered with the
+ * <code>setReadListener</code> method of the request input stream, which
+ * then switches to non blocking reads. All the methods are called on a
+ * container thread.
+ *
+ * @version $Revision$
+ */
+public interface ReadListener extends EventListener {
+
+
+    /**
+     * Data can be read without blocking. The listener reads as long as
+     * <code>isReady</code> returns <code>true</code>; it is called again
+     * once more data arrives after <code>isReady</code> returned
+     * <code>false</code>.
+     */
+    public void onDataAvailable() throws IOException;
+
+
+    /**
+     * The whole request body has been read.
+     */
+    public void onAllDataRead() throws IOException;
+
+
+    /**
+     * Reading the request body failed, or the listener threw an exception.
+     */
+    public void onError(Throwable t);
+
+
+}
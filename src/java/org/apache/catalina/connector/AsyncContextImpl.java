@@ -0,0 +1,395 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.connector;
+
+import java.util.ArrayList;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.AsyncContext;
+import org.apache.catalina.AsyncListener;
+import org.apache.catalina.util.StringManager;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Implementation of the asynchronous context of a request, built on the
+ * Comet support of the connector.
+ * <p>
+ * A request with an asynchronous processing in progress is a Comet
+ * request for the connector, which keeps the connection registered with
+ * its poller. A dispatch or a completion requested outside of a container
+ * thread closes the Comet event, so that the connector calls the adapter
+ * back with an event on a container thread, where the adapter runs it. One
+ * requested on a container thread is run by the adapter before it returns.
+ *
+ * @version $Revision$
+ */
+public class AsyncContextImpl implements AsyncContext {
+
+
+    private static Log log = LogFactory.getLog(AsyncContextImpl.class);
+
+    /**
+     * The string manager for this package.
+     */
+    protected static StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    /**
+     * Nothing to do.
+     */
+    public static final int NONE = 0;
+
+    /**
+     * Process the request again through the container.
+     */
+    public static final int DISPATCH = 1;
+
+    /**
+     * Complete the request.
+     */
+    public static final int COMPLETE = 2;
+
+
+    /**
+     * Default timeout, in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+
+    public AsyncContextImpl(Request request, Response response) {
+        this.request = request;
+        this.response = response;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Associated request.
+     */
+    protected Request request = null;
+
+
+    /**
+     * Associated response.
+     */
+    protected Response response = null;
+
+
+    /**
+     * Registered listeners.
+     */
+    protected ArrayList<AsyncListener> listeners = new ArrayList<AsyncListener>();
+
+
+    /**
+     * Is an asynchronous processing started, and not yet dispatched or
+     * completed.
+     */
+    protected boolean started = false;
+
+
+    /**
+     * Action requested, to be run on a container thread.
+     */
+    protected int pending = NONE;
+
+
+    /**
+     * Path of the requested dispatch, <code>null</code> to process the
+     * request again.
+     */
+    protected String dispatchPath = null;
+
+
+    /**
+     * Is a container thread processing the request.
+     */
+    protected boolean inContainer = false;
+
+
+    /**
+     * Timeout in milliseconds.
+     */
+    protected long timeout = DEFAULT_TIMEOUT;
+
+
+    /**
+     * Is the completion waiting for the client to take the response data
+     * written without blocking.
+     */
+    protected boolean draining = false;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    public HttpServletRequest getRequest() {
+        return request.getRequest();
+    }
+
+
+    public HttpServletResponse getResponse() {
+        return response.getResponse();
+    }
+
+
+    public void dispatch() {
+        dispatch(null);
+    }
+
+
+    public void dispatch(String path) {
+        request(DISPATCH, path);
+    }
+
+
+    public void complete() {
+        request(COMPLETE, null);
+    }
+
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+        if (timeout > Integer.MAX_VALUE) {
+            timeout = Integer.MAX_VALUE;
+        }
+        // Picked up by the connector at the end of a container thread
+        request.setAttribute("org.apache.tomcat.comet.timeout",
+                new Integer((int) timeout));
+        // Applied right away outside of container threads
+        request.setCometTimeout(timeout);
+    }
+
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+
+    public synchronized void addListener(AsyncListener listener) {
+        listeners.add(listener);
+    }
+
+
+    /**
+     * Return <code>true</code> if an asynchronous processing is started,
+     * and not yet dispatched or completed.
+     */
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+
+    /**
+     * Return <code>true</code> if a dispatch or a completion is waiting to
+     * be run on a container thread.
+     */
+    public synchronized boolean hasPending() {
+        return pending != NONE;
+    }
+
+
+    /**
+     * Return <code>true</code> if the completion waits for the client to
+     * take the response data.
+     */
+    public synchronized boolean isDraining() {
+        return draining;
+    }
+
+
+    /**
+     * Return the path of the dispatch being run.
+     */
+    public String getDispatchPath() {
+        return dispatchPath;
+    }
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Start an asynchronous processing, on a container thread.
+     */
+    void start() {
+        AsyncListener[] previous = null;
+        synchronized (this) {
+            if (started || pending != NONE) {
+                throw new IllegalStateException
+                    (sm.getString("asyncContextImpl.alreadyStarted"));
+            }
+            started = true;
+            inContainer = true;
+            dispatchPath = null;
+            if (!listeners.isEmpty()) {
+                previous = listeners.toArray(new AsyncListener[listeners.size()]);
+                listeners.clear();
+            }
+        }
+        setTimeout(timeout);
+        if (previous != null) {
+            for (int i = 0; i < previous.length; i++) {
+                try {
+                    previous[i].onStartAsync(this);
+                } catch (Throwable t) {
+                    log.error(sm.getString("asyncContextImpl.listenerError"), t);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Record the requested action, and wake the connector up if no
+     * container thread is processing the request.
+     */
+    protected void request(int action, String path) {
+        boolean wakeUp = false;
+        synchronized (this) {
+            if (!started) {
+                throw new IllegalStateException
+                    (sm.getString("asyncContextImpl.notStarted"));
+            }
+            started = false;
+            pending = action;
+            dispatchPath = path;
+            wakeUp = !inContainer;
+        }
+        if (wakeUp) {
+            request.cometClose();
+        }
+    }
+
+
+    /**
+     * A container thread starts processing the request.
+     */
+    synchronized void enterContainer() {
+        inContainer = true;
+    }
+
+
+    /**
+     * A container thread is done with the request. Return the action it
+     * should run before leaving: the pending action, {@link #COMPLETE} if
+     * the asynchronous processing was not started again by a dispatch, or
+     * {@link #NONE}, in which case the request is left to other threads.
+     */
+    synchronized int leaveContainer() {
+        if (pending != NONE) {
+            int action = pending;
+            pending = NONE;
+            return action;
+        }
+        if (!started) {
+            return COMPLETE;
+        }
+        inContainer = false;
+        return NONE;
+    }
+
+
+    /**
+     * Put the completion back, to be run by the container thread which
+     * will be notified once the client has taken the response data. The
+     * current container thread leaves the request.
+     */
+    synchronized void deferComplete() {
+        pending = COMPLETE;
+        draining = true;
+        inContainer = false;
+    }
+
+
+    /**
+     * Complete the asynchronous processing on a container thread, for an
+     * error or a timeout no listener handled.
+     */
+    synchronized void abort() {
+        if (started) {
+            started = false;
+            pending = COMPLETE;
+        }
+    }
+
+
+    void fireOnComplete() {
+        AsyncListener[] current = getListeners();
+        for (int i = 0; i < current.length; i++) {
+            try {
+                current[i].onComplete(this);
+            } catch (Throwable t) {
+                log.error(sm.getString("asyncContextImpl.listenerError"), t);
+            }
+        }
+    }
+
+
+    void fireOnTimeout() {
+        AsyncListener[] current = getListeners();
+        for (int i = 0; i < current.length; i++) {
+            try {
+                current[i].onTimeout(this);
+            } catch (Throwable t) {
+                log.error(sm.getString("asyncContextImpl.listenerError"), t);
+            }
+        }
+    }
+
+
+    void fireOnError(Throwable error) {
+        AsyncListener[] current = getListeners();
+        for (int i = 0; i < current.length; i++) {
+            try {
+                current[i].onError(this, error);
+            } catch (Throwable t) {
+                log.error(sm.getString("asyncContextImpl.listenerError"), t);
+            }
+        }
+    }
+
+
+    protected synchronized AsyncListener[] getListeners() {
+        return listeners.toArray(new AsyncListener[listeners.size()]);
+    }
+
+
+    /**
+     * Release all object references, and initialize instance variables, in
+     * preparation for reuse of this object.
+     */
+    synchronized void recycle() {
+        listeners.clear();
+        started = false;
+        pending = NONE;
+        dispatchPath = null;
+        inContainer = false;
+        timeout = DEFAULT_TIMEOUT;
+        draining = false;
+    }
+
+
+}
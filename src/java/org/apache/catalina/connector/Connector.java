@@ -249,6 +249,11 @@ public class Connector
      */
     protected boolean useIPVHosts = false;
 
+    /**
+     * Flag to map requests using tries rather than binary searches.
+     */
+    protected boolean useTrieMapper = false;
+
     /**
      * The background thread.
      */
@@ -990,6 +995,27 @@ public class Connector
         return useIPVHosts;
     }
 
+    /**
+     * Enable mapping requests to hosts, contexts and wrappers using tries,
+     * which do not depend on the number of deployed applications and
+     * servlet mappings, rather than binary searches over sorted arrays.
+     *
+     * @param useTrieMapper <code>true</code> to map using tries
+     */
+    public void setUseTrieMapper(boolean useTrieMapper) {
+        this.useTrieMapper = useTrieMapper;
+        if (started) {
+            mapper.setTrieMapping(useTrieMapper);
+        }
+    }
+
+    /**
+     * Test if trie mapping is enabled.
+     */
+    public boolean getUseTrieMapper() {
+        return useTrieMapper;
+    }
+
 
     public String getExecutorName() {
         Object ex = IntrospectionUtils.getProperty(protocolHandler, "executor");
@@ -18,14 +18,20 @@
 
 package org.apache.catalina.connector;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
+import javax.servlet.RequestDispatcher;
+import javax.servlet.http.HttpServletResponse;
+
 import org.apache.catalina.CometEvent;
 import org.apache.catalina.Context;
 import org.apache.catalina.Globals;
 import org.apache.catalina.Host;
+import org.apache.catalina.ReadListener;
 import org.apache.catalina.Wrapper;
+import org.apache.catalina.WriteListener;
 import org.apache.catalina.util.StringManager;
 import org.apache.catalina.util.ServerInfo;
 import org.apache.catalina.util.URLEncoder;
@@ -138,6 +144,10 @@ public class CoyoteAdapter implements Adapter {
         Request request = (Request) req.getNote(ADAPTER_NOTES);
         Response response = (Response) res.getNote(ADAPTER_NOTES);
 
+        if (request.getAsyncContextInternal() != null && request.isComet()) {
+            return asyncEvent(req, res, request, response, status);
+        }
+
         if (request.getWrapper() != null) {
             
             boolean error = false;
@@ -245,6 +255,233 @@ public class CoyoteAdapter implements Adapter {
     }
     
 
+    /**
+     * Event method for a request with an asynchronous processing started,
+     * called when a dispatch or completion was requested outside of a
+     * container thread, when the asynchronous processing times out, or
+     * when something happens on the connection.
+     */
+    protected boolean asyncEvent(org.apache.coyote.Request req,
+            org.apache.coyote.Response res, Request request,
+            Response response, SocketStatus status) {
+
+        AsyncContextImpl async = request.getAsyncContextInternal();
+        async.enterContainer();
+        boolean error = false;
+        try {
+            req.getRequestProcessor().setWorkerThreadName(Thread.currentThread().getName());
+            if (status == SocketStatus.OPEN) {
+                if (async.hasPending()) {
+                    // Run below
+                } else if (request.inputBuffer.getReadListener() != null
+                        || response.outputBuffer.getWriteListener() != null) {
+                    error = !asyncIo(request, response, async);
+                } else {
+                    // Data was received, or the client closed the connection
+                    boolean read = false;
+                    try {
+                        read = request.read();
+                    } catch (IOException e) {
+                        // Handled as an end of stream
+                    }
+                    if (!read) {
+                        error = true;
+                        if (async.isStarted()) {
+                            async.fireOnError(new EOFException());
+                            async.abort();
+                        }
+                    }
+                }
+            } else if (status == SocketStatus.TIMEOUT) {
+                if (async.isStarted()) {
+                    async.fireOnTimeout();
+                    if (async.isStarted()) {
+                        // No listener completed or dispatched the request
+                        async.abort();
+                        if (!response.isCommitted()) {
+                            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                            // No error page is rendered here, the response
+                            // would otherwise stay suspended and be lost
+                            response.setSuspended(false);
+                        }
+                    }
+                } else if (async.isDraining()) {
+                    // The client did not take the response in time
+                    error = true;
+                }
+            } else {
+                // Connection error, or server shutdown
+                if (status != SocketStatus.STOP) {
+                    error = true;
+                }
+                if (async.isStarted()) {
+                    async.fireOnError(new IOException(status.toString()));
+                    async.abort();
+                }
+            }
+            if (error) {
+                response.outputBuffer.stopNonBlocking();
+            }
+            if (!asyncRun(request, response, !error)) {
+                res.action(ActionCode.ACTION_COMET_END, null);
+            }
+            return (!error);
+        } catch (Throwable t) {
+            if (!(t instanceof IOException)) {
+                log.error(sm.getString("coyoteAdapter.service"), t);
+            }
+            error = true;
+            return false;
+        } finally {
+            req.getRequestProcessor().setWorkerThreadName(null);
+            // Recycle the wrapper request and response
+            if (error || !request.isComet()) {
+                request.recycle();
+                response.recycle();
+            }
+        }
+
+    }
+
+
+    /**
+     * Run on the current container thread the dispatches and completion
+     * requested on the asynchronous context of the request, until either
+     * the request is completed or the container thread can leave it to
+     * other threads.
+     *
+     * @param finish Finish the response when the request is completed
+     * @return <code>true</code> if the processing is still asynchronous
+     */
+    protected boolean asyncRun(Request request, Response response,
+            boolean finish) throws Exception {
+
+        AsyncContextImpl async = request.getAsyncContextInternal();
+        while (true) {
+            int action = async.leaveContainer();
+            if (action == AsyncContextImpl.NONE) {
+                return true;
+            } else if (action == AsyncContextImpl.DISPATCH) {
+                request.setComet(false);
+                asyncDispatch(request, response, async.getDispatchPath());
+            } else {
+                if (!response.outputBuffer.drain()) {
+                    // Completed once the client has taken the response
+                    async.deferComplete();
+                    return true;
+                }
+                async.fireOnComplete();
+                request.setComet(false);
+                if (finish) {
+                    request.finishRequest();
+                    response.finishResponse();
+                }
+                return false;
+            }
+        }
+
+    }
+
+
+    /**
+     * Notify the non blocking I/O listeners of the request, on a container
+     * thread, that the input or the output they wait for is ready.
+     *
+     * @return <code>false</code> if the connection failed
+     */
+    protected boolean asyncIo(Request request, Response response,
+            AsyncContextImpl async) throws IOException {
+
+        InputBuffer inputBuffer = request.inputBuffer;
+        OutputBuffer outputBuffer = response.outputBuffer;
+        ReadListener readListener = inputBuffer.getReadListener();
+        WriteListener writeListener = outputBuffer.getWriteListener();
+        boolean reading = false;
+        try {
+            if (writeListener != null && outputBuffer.isWritePossible()) {
+                writeListener.onWritePossible();
+            }
+            if (readListener != null) {
+                reading = true;
+                if (inputBuffer.isDataAvailable()) {
+                    readListener.onDataAvailable();
+                }
+                if (inputBuffer.isAllDataRead()) {
+                    readListener.onAllDataRead();
+                }
+            } else if (inputBuffer.isReadable() && !request.read()) {
+                // The client closed the connection
+                if (async.isStarted()) {
+                    async.fireOnError(new EOFException());
+                    async.abort();
+                }
+                return false;
+            }
+            return true;
+        } catch (Throwable t) {
+            try {
+                if (reading) {
+                    readListener.onError(t);
+                } else if (writeListener != null) {
+                    writeListener.onError(t);
+                }
+            } catch (Throwable t2) {
+                log.error(sm.getString("coyoteAdapter.service"), t2);
+            }
+            if (!(t instanceof IOException)) {
+                log.error(sm.getString("coyoteAdapter.service"), t);
+            }
+            if (async.isStarted()) {
+                async.fireOnError(t);
+                async.abort();
+            }
+            if (t instanceof IOException) {
+                return false;
+            }
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            return true;
+        }
+
+    }
+
+
+    /**
+     * Process the request again through the container, or forward it to
+     * the given path of its context.
+     */
+    protected void asyncDispatch(Request request, Response response,
+            String path) throws Exception {
+
+        if (path == null) {
+            connector.getContainer().getPipeline().getFirst().invoke(request, response);
+            return;
+        }
+        Context context = request.getContext();
+        Thread currentThread = Thread.currentThread();
+        ClassLoader oldLoader = currentThread.getContextClassLoader();
+        if (context.getLoader() != null) {
+            currentThread.setContextClassLoader(context.getLoader().getClassLoader());
+        }
+        try {
+            RequestDispatcher dispatcher =
+                context.getServletContext().getRequestDispatcher(path);
+            if (dispatcher == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            } else {
+                dispatcher.forward(request.getRequest(), response.getResponse());
+            }
+            // The forward suspends the response, which the host valve would
+            // otherwise resume
+            response.setSuspended(false);
+        } finally {
+            currentThread.setContextClassLoader(oldLoader);
+        }
+
+    }
+
+
     /**
      * Service method.
      */
@@ -293,7 +530,15 @@ public class CoyoteAdapter implements Adapter {
                 // Calling the container
                 connector.getContainer().getPipeline().getFirst().invoke(request, response);
 
-                if (request.isComet()) {
+                if (request.getAsyncContextInternal() != null) {
+                    // Run what was requested during the processing, and keep
+                    // the connection open if the processing is still
+                    // asynchronous
+                    if (asyncRun(request, response, false)) {
+                        comet = true;
+                        res.action(ActionCode.ACTION_COMET_BEGIN, null);
+                    }
+                } else if (request.isComet()) {
                     if (!response.isClosed() && !response.isError()) {
                         if (request.getAvailable() || (request.getContentLength() > 0 && (!request.isParametersParsed()))) {
                             // Invoke a read event right away if there are available bytes
@@ -25,6 +25,7 @@ import java.security.PrivilegedExceptionAction;
 
 import javax.servlet.ServletInputStream;
 
+import org.apache.catalina.ReadListener;
 import org.apache.catalina.security.SecurityUtil;
 
 /**
@@ -200,6 +201,31 @@ public class CoyoteInputStream
     }
 
 
+    /**
+     * Return <code>true</code> if data can be read without blocking, in non
+     * blocking mode.
+     */
+    public boolean isReady() {
+        return ib.isReady();
+    }
+
+
+    /**
+     * Return <code>true</code> if the whole request body was read.
+     */
+    public boolean isFinished() {
+        return ib.isFinished();
+    }
+
+
+    /**
+     * Switch to non blocking reads, during an asynchronous processing.
+     */
+    public void setReadListener(ReadListener listener) {
+        ib.setReadListener(listener);
+    }
+
+
     /** 
      * Close the stream
      * Since we re-cycle, we can't allow the call to super.close()
@@ -22,6 +22,8 @@ import java.io.IOException;
 
 import javax.servlet.ServletOutputStream;
 
+import org.apache.catalina.WriteListener;
+
 /**
  * Coyote implementation of the servlet output stream.
  * 
@@ -105,5 +107,22 @@ public class CoyoteOutputStream
     }
 
 
+    /**
+     * Return <code>true</code> if more data can be written without
+     * blocking, in non blocking mode.
+     */
+    public boolean isReady() {
+        return ob.isReady();
+    }
+
+
+    /**
+     * Switch to non blocking writes, during an asynchronous processing.
+     */
+    public void setWriteListener(WriteListener listener) {
+        ob.setWriteListener(listener);
+    }
+
+
 }
 
@@ -21,13 +21,16 @@ package org.apache.catalina.connector;
 import java.io.IOException;
 import java.io.PrintWriter;
 
+import org.apache.EncodedWriter;
+
 /**
  * Coyote implementation of the servlet writer.
  * 
  * @author Remy Maucherat
  */
 public class CoyoteWriter
-    extends PrintWriter {
+    extends PrintWriter
+    implements EncodedWriter {
 
 
     // -------------------------------------------------------------- Constants
@@ -153,6 +156,28 @@ public class CoyoteWriter
     }
 
 
+    /**
+     * Write the bytes to the output buffer, if the characters are converted
+     * with the same encoding.
+     */
+    public boolean writeEncoded(byte b[], int off, int len, String encoding) {
+
+        if (error)
+            return true;
+
+        try {
+            if (!encoding.equalsIgnoreCase(ob.getEncoding())) {
+                return false;
+            }
+            ob.write(b, off, len);
+        } catch (IOException e) {
+            error = true;
+        }
+        return true;
+
+    }
+
+
     public void write(String s, int off, int len) {
 
         if (error)
@@ -23,7 +23,9 @@ import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.catalina.ReadListener;
 import org.apache.catalina.security.SecurityUtil;
 import org.apache.catalina.util.StringManager;
 import org.apache.coyote.ActionCode;
@@ -152,6 +154,36 @@ public class InputBuffer extends Reader
     private int size = -1;
 
 
+    /**
+     * Has the end of the request body been read.
+     */
+    private boolean eof = false;
+
+
+    /**
+     * Asynchronous context of the request, while one is started.
+     */
+    private AsyncContextImpl asyncContext = null;
+
+
+    /**
+     * Listener of the non blocking reads.
+     */
+    private ReadListener readListener = null;
+
+
+    /**
+     * Is the read listener to be notified once data arrives.
+     */
+    private boolean readInterest = false;
+
+
+    /**
+     * Was the read listener notified of the end of the request body.
+     */
+    private boolean allDataRead = false;
+
+
     // ----------------------------------------------------------- Constructors
 
 
@@ -233,6 +265,11 @@ public class InputBuffer extends Reader
         markPos = -1;
         bb.recycle(); 
         closed = false;
+        eof = false;
+        asyncContext = null;
+        readListener = null;
+        readInterest = false;
+        allDataRead = false;
         
         if (conv != null) {
             conv.recycle();
@@ -302,6 +339,9 @@ public class InputBuffer extends Reader
             state = BYTE_STATE;
 
         int result = coyoteRequest.doRead(bb);
+        if (result < 0) {
+            eof = true;
+        }
 
         return result;
 
@@ -313,6 +353,7 @@ public class InputBuffer extends Reader
 
         if (closed)
             throw new IOException(sm.getString("inputBuffer.streamClosed"));
+        checkNonBlockingRead();
 
         return bb.substract();
     }
@@ -323,11 +364,145 @@ public class InputBuffer extends Reader
 
         if (closed)
             throw new IOException(sm.getString("inputBuffer.streamClosed"));
+        checkNonBlockingRead();
 
         return bb.substract(b, off, len);
     }
 
 
+    // ----------------------------------------------------- Non Blocking Reads
+
+
+    /**
+     * Switch to non blocking reads, notifying the given listener when data
+     * can be read.
+     * 
+     * @throws IllegalStateException if no asynchronous processing is
+     *  started, or a listener was already set
+     */
+    public void setReadListener(ReadListener listener) {
+        if (listener == null) {
+            throw new NullPointerException();
+        }
+        if (asyncContext == null || !asyncContext.isStarted()) {
+            throw new IllegalStateException(sm.getString("inputBuffer.notAsync"));
+        }
+        if (readListener != null) {
+            throw new IllegalStateException(sm.getString("inputBuffer.listenerSet"));
+        }
+        readListener = listener;
+        readInterest = true;
+        // Have the listener notified on a container thread
+        coyoteRequest.action(ActionCode.ACTION_COMET_CLOSE, null);
+    }
+
+
+    public ReadListener getReadListener() {
+        return readListener;
+    }
+
+
+    /**
+     * Return <code>true</code> if data can be read without blocking.
+     * Otherwise, the read listener will be notified once data arrives,
+     * unless the whole request body was read.
+     * 
+     * @throws IllegalStateException if no read listener was set
+     */
+    public boolean isReady() {
+        if (readListener == null) {
+            throw new IllegalStateException(sm.getString("inputBuffer.notAsync"));
+        }
+        if (bb.getLength() > 0 || cb.getLength() > 0) {
+            return true;
+        }
+        if (isFinished()) {
+            return false;
+        }
+        AtomicBoolean isReady = new AtomicBoolean(true);
+        coyoteRequest.action(ActionCode.ACTION_NB_READ_INTEREST, isReady);
+        if (!isReady.get()) {
+            readInterest = true;
+        }
+        return isReady.get();
+    }
+
+
+    /**
+     * Return <code>true</code> if the whole request body was read.
+     */
+    public boolean isFinished() {
+        if (bb.getLength() > 0 || cb.getLength() > 0) {
+            return false;
+        }
+        if (eof) {
+            return true;
+        }
+        long contentLength = coyoteRequest.getContentLengthLong();
+        if (contentLength >= 0) {
+            return coyoteRequest.getBytesRead() >= contentLength;
+        }
+        // Without a chunked body, there is no body at all
+        return coyoteRequest.getMimeHeaders().getValue("transfer-encoding") == null;
+    }
+
+
+    void setAsyncContext(AsyncContextImpl asyncContext) {
+        this.asyncContext = asyncContext;
+    }
+
+
+    /**
+     * Return <code>true</code> if the read listener is to be notified, as it
+     * waits for data, and data arrived.
+     */
+    boolean isDataAvailable() {
+        if (readListener == null || !readInterest || !isReady()) {
+            return false;
+        }
+        readInterest = false;
+        return true;
+    }
+
+
+    /**
+     * Return <code>true</code> if the read listener is to be notified of the
+     * end of the request body.
+     */
+    boolean isAllDataRead() {
+        if (readListener == null || allDataRead || !isFinished()) {
+            return false;
+        }
+        allDataRead = true;
+        return true;
+    }
+
+
+    /**
+     * Return <code>true</code> if data, or the end of the stream, can be
+     * read without blocking, whether or not a read listener is set.
+     */
+    boolean isReadable() {
+        if (bb.getLength() > 0) {
+            return true;
+        }
+        AtomicBoolean isReady = new AtomicBoolean(true);
+        coyoteRequest.action(ActionCode.ACTION_NB_READ_INTEREST, isReady);
+        return isReady.get();
+    }
+
+
+    /**
+     * A read which would block is an error in non blocking mode.
+     */
+    protected void checkNonBlockingRead() {
+        if (readListener != null && bb.getLength() == 0 && !isFinished()
+                && !isReady()) {
+            throw new IllegalStateException(sm.getString("inputBuffer.notReady"));
+        }
+    }
+
+
     // ------------------------------------------------- Chars Handling Methods
 
 
@@ -155,6 +155,9 @@ public class MapperListener
                 registerWrapper(oi.getObjectName());
             }
 
+            // Build all the tries in one go, now that the mapper is filled
+            mapper.setTrieMapping(connector.getUseTrieMapper());
+
             onStr = "JMImplementation:type=MBeanServerDelegate";
             objectName = new ObjectName(onStr);
             mBeanServer.addNotificationListener(objectName, this, null, null);
@@ -24,10 +24,13 @@ import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.coyote.ActionCode;
 import org.apache.coyote.Response;
 import org.apache.catalina.Globals;
+import org.apache.catalina.WriteListener;
+import org.apache.catalina.util.StringManager;
 import org.apache.tomcat.util.buf.ByteChunk;
 import org.apache.tomcat.util.buf.C2BConverter;
 
@@ -44,6 +47,13 @@ public class OutputBuffer extends Writer
     implements ByteChunk.ByteOutputChannel {
 
 
+    /**
+     * The string manager for this package.
+     */
+    protected static StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
     // -------------------------------------------------------------- Constants
 
 
@@ -133,6 +143,32 @@ public class OutputBuffer extends Writer
     private boolean suspended = false;
 
 
+    /**
+     * Asynchronous context of the request, while one is started.
+     */
+    private AsyncContextImpl asyncContext = null;
+
+
+    /**
+     * Listener of the non blocking writes.
+     */
+    private WriteListener writeListener = null;
+
+
+    /**
+     * Is the write listener to be notified once the client has taken the
+     * data written so far.
+     */
+    private boolean writeInterest = false;
+
+
+    /**
+     * Did the client not take the data written so far, the last time it
+     * was checked. Writes are refused until it does.
+     */
+    private boolean notReady = false;
+
+
     // ----------------------------------------------------------- Constructors
 
 
@@ -236,6 +272,11 @@ public class OutputBuffer extends Writer
         
         gotEnc = false;
         enc = null;
+
+        asyncContext = null;
+        writeListener = null;
+        writeInterest = false;
+        notReady = false;
         
     }
 
@@ -246,6 +287,118 @@ public class OutputBuffer extends Writer
     public void clearEncoders() {
         encoders.clear();
     }
+
+
+    // ---------------------------------------------------- Non Blocking Writes
+
+
+    /**
+     * Switch to non blocking writes, notifying the given listener when the
+     * response can be written.
+     * 
+     * @throws IllegalStateException if no asynchronous processing is
+     *  started, or a listener was already set
+     */
+    public void setWriteListener(WriteListener listener) {
+        if (listener == null) {
+            throw new NullPointerException();
+        }
+        if (asyncContext == null || !asyncContext.isStarted()) {
+            throw new IllegalStateException(sm.getString("outputBuffer.notAsync"));
+        }
+        if (writeListener != null) {
+            throw new IllegalStateException(sm.getString("outputBuffer.listenerSet"));
+        }
+        coyoteResponse.action(ActionCode.ACTION_NB_OUTPUT, Boolean.TRUE);
+        writeListener = listener;
+        writeInterest = true;
+        // Have the listener notified on a container thread
+        coyoteResponse.action(ActionCode.ACTION_COMET_CLOSE, null);
+    }
+
+
+    public WriteListener getWriteListener() {
+        return writeListener;
+    }
+
+
+    /**
+     * Return <code>true</code> if the data written so far was sent to the
+     * client, so that more can be written. Otherwise, the write listener
+     * will be notified once the client has taken it.
+     * 
+     * @throws IllegalStateException if no write listener was set
+     */
+    public boolean isReady() {
+        if (writeListener == null) {
+            throw new IllegalStateException(sm.getString("outputBuffer.notAsync"));
+        }
+        AtomicBoolean isReady = new AtomicBoolean(true);
+        coyoteResponse.action(ActionCode.ACTION_NB_WRITE_INTEREST, isReady);
+        if (!isReady.get()) {
+            writeInterest = true;
+        }
+        notReady = !isReady.get();
+        return isReady.get();
+    }
+
+
+    /**
+     * A write while the client has not taken the data written so far is an
+     * error in non blocking mode, as the data would pile up without limit.
+     */
+    protected void checkNonBlockingWrite() {
+        if (writeListener != null && notReady) {
+            throw new IllegalStateException(sm.getString("outputBuffer.notReady"));
+        }
+    }
+
+
+    void setAsyncContext(AsyncContextImpl asyncContext) {
+        this.asyncContext = asyncContext;
+    }
+
+
+    /**
+     * Return <code>true</code> if the write listener is to be notified, as
+     * it waits for the output to be ready, and it is.
+     */
+    boolean isWritePossible() {
+        if (writeListener == null || !writeInterest || !isReady()) {
+            return false;
+        }
+        writeInterest = false;
+        return true;
+    }
+
+
+    /**
+     * Send the data written so far, without blocking in non blocking mode.
+     * 
+     * @return <code>true</code> if all of it was sent; otherwise the
+     *  Comet event is notified once the client has taken it
+     */
+    boolean drain()
+        throws IOException {
+        if (writeListener == null || !coyoteResponse.isCommitted()) {
+            // Either blocking, or small enough to be sent at once
+            return true;
+        }
+        doFlush(true);
+        AtomicBoolean isReady = new AtomicBoolean(true);
+        coyoteResponse.action(ActionCode.ACTION_NB_WRITE_INTEREST, isReady);
+        return isReady.get();
+    }
+
+
+    /**
+     * Give up the non blocking writes, as the connection is being closed.
+     */
+    void stopNonBlocking() {
+        writeListener = null;
+        writeInterest = false;
+        notReady = false;
+    }
     
     
     /**
@@ -368,6 +521,11 @@ public class OutputBuffer extends Writer
                 // so that it can be handled better by the error dispatcher.
                 throw new ClientAbortException(e);
             }
+            if (writeListener != null) {
+                // Have the listener called back if the client did not take
+                // all of it, and refuse more until then
+                isReady();
+            }
         }
 
     }
@@ -377,6 +535,7 @@ public class OutputBuffer extends Writer
 
         if (suspended)
             return;
+        checkNonBlockingWrite();
 
         writeBytes(b, off, len);
 
@@ -406,6 +565,7 @@ public class OutputBuffer extends Writer
 
         if (suspended)
             return;
+        checkNonBlockingWrite();
 
         bb.append((byte) b);
         bytesWritten++;
@@ -421,6 +581,7 @@ public class OutputBuffer extends Writer
 
         if (suspended)
             return;
+        checkNonBlockingWrite();
 
         conv.convert((char) c);
         conv.flushBuffer();
@@ -445,6 +606,7 @@ public class OutputBuffer extends Writer
 
         if (suspended)
             return;
+        checkNonBlockingWrite();
 
         conv.convert(c, off, len);
         conv.flushBuffer();
@@ -461,6 +623,7 @@ public class OutputBuffer extends Writer
 
         if (suspended)
             return;
+        checkNonBlockingWrite();
 
         charsWritten += len;
         if (s == null)
@@ -476,6 +639,7 @@ public class OutputBuffer extends Writer
 
         if (suspended)
             return;
+        checkNonBlockingWrite();
 
         if (s == null)
             s = "null";
@@ -499,6 +663,18 @@ public class OutputBuffer extends Writer
     }
 
 
+    /**
+     * Return the encoding used to convert the characters written.
+     */
+    public String getEncoding()
+        throws IOException {
+
+        checkConverter();
+        return enc;
+
+    }
+
+
     protected void setConverter() 
         throws IOException {
 
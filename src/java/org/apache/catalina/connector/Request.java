@@ -58,6 +58,7 @@ import org.apache.tomcat.util.http.mapper.MappingData;
 
 import org.apache.coyote.ActionCode;
 
+import org.apache.catalina.AsyncContext;
 import org.apache.catalina.Context;
 import org.apache.catalina.Globals;
 import org.apache.catalina.Host;
@@ -225,6 +226,12 @@ public class Request
      * Comet state
      */
     protected boolean comet = false;
+
+
+    /**
+     * Asynchronous processing context, created by startAsync.
+     */
+    protected AsyncContextImpl asyncContext = null;
     
     
     /**
@@ -426,6 +433,10 @@ public class Request
             event.clear();
             event = null;
         }
+        if (asyncContext != null) {
+            asyncContext.recycle();
+            asyncContext = null;
+        }
         
         authType = null;
         inputBuffer.recycle();
@@ -997,6 +1008,7 @@ public class Request
      * <li>org.apache.tomcat.sendfile.support</li>
      * <li>org.apache.tomcat.comet.support</li>
      * <li>org.apache.tomcat.comet.timeout.support</li>
+     * <li>org.apache.tomcat.async.support</li>
      * </ul>
      * Connector implementations may return some, all or none of these
      * attributes and may also support additional attributes.
@@ -2392,6 +2404,59 @@ public class Request
         return (inputBuffer.available() > 0);
     }
 
+    /**
+     * Start an asynchronous processing of this request: when the servlet
+     * returns, the connection stays open without holding a thread, until
+     * the returned context is completed or dispatched. May only be called
+     * on a container thread.
+     *
+     * @return the asynchronous context of the request
+     * @throws IllegalStateException if the connector cannot resume Comet
+     *  requests from another thread, or if an asynchronous processing is
+     *  already in progress
+     */
+    public AsyncContext startAsync() {
+        if (getAttribute("org.apache.tomcat.async.support") != Boolean.TRUE) {
+            throw new IllegalStateException
+                (sm.getString("coyoteRequest.asyncNotSupported"));
+        }
+        if (asyncContext == null) {
+            asyncContext = new AsyncContextImpl(this, response);
+        }
+        asyncContext.start();
+        comet = true;
+        inputBuffer.setAsyncContext(asyncContext);
+        response.outputBuffer.setAsyncContext(asyncContext);
+        return asyncContext;
+    }
+
+
+    /**
+     * Return true if an asynchronous processing was started, and was not
+     * dispatched or completed yet.
+     */
+    public boolean isAsyncStarted() {
+        return (asyncContext != null) && asyncContext.isStarted();
+    }
+
+
+    /**
+     * Return the asynchronous context of the request, or <code>null</code>
+     * if startAsync was never called.
+     */
+    public AsyncContext getAsyncContext() {
+        return asyncContext;
+    }
+
+
+    /**
+     * Return the asynchronous context implementation, for the adapter.
+     */
+    AsyncContextImpl getAsyncContextInternal() {
+        return asyncContext;
+    }
+
+
     public void cometClose() {
         coyoteRequest.action(ActionCode.ACTION_COMET_CLOSE,getEvent());
     }
@@ -32,6 +32,7 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
+import org.apache.catalina.AsyncContext;
 import org.apache.catalina.Globals;
 import org.apache.catalina.util.StringManager;
 
@@ -935,4 +936,41 @@ public class RequestFacade implements HttpServletRequest {
     public boolean getAllowTrace() {
         return request.getConnector().getAllowTrace();
     }
+
+
+    /**
+     * Start an asynchronous processing of the request.
+     * @see Request#startAsync()
+     */
+    public AsyncContext startAsync() {
+
+        if (request == null) {
+            throw new IllegalStateException(
+                            sm.getString("requestFacade.nullRequest"));
+        }
+
+        return request.startAsync();
+    }
+
+
+    public boolean isAsyncStarted() {
+
+        if (request == null) {
+            throw new IllegalStateException(
+                            sm.getString("requestFacade.nullRequest"));
+        }
+
+        return request.isAsyncStarted();
+    }
+
+
+    public AsyncContext getAsyncContext() {
+
+        if (request == null) {
+            throw new IllegalStateException(
+                            sm.getString("requestFacade.nullRequest"));
+        }
+
+        return request.getAsyncContext();
+    }
 }
@@ -693,6 +693,12 @@ key是uri,value是location
     protected int cacheObjectMaxSize = 512; // 512K
 
 
+    /**
+     * Class name of the resources cache implementation.
+     */
+    protected String cacheClassName = null;
+
+
     /**
      * Cache TTL in ms.
      */
@@ -936,6 +942,23 @@ key是uri,value是location
     }
 
 
+    /**
+     * Return the class name of the resources cache implementation.
+     */
+    public String getCacheClassName() {
+        return cacheClassName;
+    }
+
+
+    /**
+     * Set the class name of the resources cache implementation, for example
+     * <code>org.apache.naming.resources.TinyLfuResourceCache</code>.
+     */
+    public void setCacheClassName(String cacheClassName) {
+        this.cacheClassName = cacheClassName;
+    }
+
+
     /**
      * Return the "follow standard delegation model" flag used to configure
      * our ClassLoader.
@@ -2113,6 +2136,8 @@ key是uri,value是location
             ((BaseDirContext) resources).setCacheMaxSize(getCacheMaxSize());
             ((BaseDirContext) resources).setCacheObjectMaxSize(
                     getCacheObjectMaxSize());
+            ((BaseDirContext) resources).setCacheClassName(
+                    getCacheClassName());
         }
         if (resources instanceof FileDirContext) {
             filesystemBased = true;
@@ -4407,6 +4432,8 @@ key是uri,value是location
                 ((BaseDirContext) webappResources).setCacheTTL(getCacheTTL());
                 ((BaseDirContext) webappResources).setCacheMaxSize
                     (getCacheMaxSize());
+                ((BaseDirContext) webappResources).setCacheClassName
+                    (getCacheClassName());
                 ((BaseDirContext) webappResources).allocate();
             }
             // Register the cache in JMX
@@ -346,7 +346,7 @@ final class StandardWrapperValve
 
         // Release the filter chain (if any) for this request
         if (filterChain != null) {
-            if (request.isComet()) {
+            if (request.isComet() && request.getAsyncContext() == null) {
                 // If this is a Comet request, then the same chain will be used for the
                 // processing of all subsequent events.
                 filterChain.reuse();//说明这个是Comet请求,filter链条将要重新走一下
@@ -0,0 +1,409 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.Executor;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.util.LifecycleSupport;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Executor running each task on a new virtual thread, when the JVM supports
+ * them, so that tasks blocking on I/O do not hold a platform thread. It is
+ * configured in server.xml with
+ * <code>&lt;Executor className="org.apache.catalina.core.VirtualThreadExecutor" .../&gt;</code>.
+ * <p>
+ * The number of tasks running at the same time is bounded by maxThreads,
+ * using a semaphore: the tasks over the limit wait for a permit on their
+ * own virtual thread, and at most maxQueueSize of them may be waiting.
+ * On JVMs without virtual threads, the tasks run on a
+ * {@link StandardThreadExecutor} with its default sizes instead, maxThreads
+ * only lowering its maximum number of threads.
+ *
+ * @version $Revision$
+ */
+public class VirtualThreadExecutor implements Executor {
+
+    private static Log log = LogFactory.getLog(VirtualThreadExecutor.class);
+
+    // ---------------------------------------------- Properties
+    /**
+     * Default name prefix for the thread name
+     */
+    protected String namePrefix = "tomcat-virt-";
+
+    /**
+     * max number of tasks running at the same time
+     */
+    protected int maxThreads = 10000;
+
+    /**
+     * The maximum number of tasks that can wait for a permit before we
+     * reject them
+     */
+    protected int maxQueueSize = Integer.MAX_VALUE;
+
+    /**
+     * the name of this executor
+     */
+    protected String name;
+
+    /**
+     * Factory of virtual threads, <code>null</code> when not supported.
+     */
+    protected ThreadFactory virtualThreadFactory = null;
+
+    /**
+     * Platform thread pool used when virtual threads are not supported.
+     */
+    protected StandardThreadExecutor platformExecutor = null;
+
+    /**
+     * Permits to run a task.
+     */
+    protected Permits permits = null;
+
+    protected volatile boolean running = false;
+
+    /**
+     * Number of tasks started and not yet completed.
+     */
+    protected AtomicInteger poolSize = new AtomicInteger();
+
+    /**
+     * Number of tasks holding a permit.
+     */
+    protected AtomicInteger activeCount = new AtomicInteger();
+
+    /**
+     * Number of tasks admitted to wait for a permit.
+     */
+    protected AtomicInteger waitingCount = new AtomicInteger();
+
+    protected AtomicInteger largestPoolSize = new AtomicInteger();
+
+    protected AtomicLong completedTaskCount = new AtomicLong();
+
+    private LifecycleSupport lifecycle = new LifecycleSupport(this);
+    // ---------------------------------------------- Constructors
+    public VirtualThreadExecutor() {
+        //empty constructor for the digester
+    }
+
+
+
+    // ---------------------------------------------- Public Methods
+    public void start() throws LifecycleException {
+        lifecycle.fireLifecycleEvent(BEFORE_START_EVENT, null);
+        lifecycle.fireLifecycleEvent(START_EVENT, null);
+        permits = new Permits(maxThreads);
+        virtualThreadFactory = createVirtualThreadFactory(namePrefix);
+        if (virtualThreadFactory == null) {
+            log.warn("Virtual threads are not supported by this JVM, executor "
+                    + name + " will use platform threads");
+            platformExecutor = new StandardThreadExecutor();
+            platformExecutor.setName(name);
+            platformExecutor.setNamePrefix(namePrefix);
+            platformExecutor.setMaxQueueSize(maxQueueSize);
+            setPlatformMaxThreads(platformExecutor, maxThreads);
+            platformExecutor.start();
+        }
+        running = true;
+        lifecycle.fireLifecycleEvent(AFTER_START_EVENT, null);
+    }
+
+    public void stop() throws LifecycleException{
+        lifecycle.fireLifecycleEvent(BEFORE_STOP_EVENT, null);
+        lifecycle.fireLifecycleEvent(STOP_EVENT, null);
+        running = false;
+        if ( platformExecutor != null ) platformExecutor.stop();
+        platformExecutor = null;
+        virtualThreadFactory = null;
+        lifecycle.fireLifecycleEvent(AFTER_STOP_EVENT, null);
+    }
+
+    public void execute(Runnable command) {
+        if ( running ) {
+            ThreadFactory virtualThreadFactory = this.virtualThreadFactory;
+            Task task;
+            if (virtualThreadFactory != null) {
+                // Take a permit right away if there is one, otherwise
+                // reserve a place among the waiting tasks
+                if (permits.tryAcquire()) {
+                    task = new Task(command, permits, true);
+                } else {
+                    int waiting;
+                    do {
+                        waiting = waitingCount.get();
+                        if (waiting >= maxQueueSize) {
+                            throw new RejectedExecutionException("Work queue full.");
+                        }
+                    } while (!waitingCount.compareAndSet(waiting, waiting + 1));
+                    task = new Task(command, permits, false);
+                }
+            } else {
+                // The platform pool bounds its own queue
+                task = new Task(command, null, false);
+            }
+            int size = poolSize.incrementAndGet();
+            int largest = largestPoolSize.get();
+            while (size > largest && !largestPoolSize.compareAndSet(largest, size)) {
+                largest = largestPoolSize.get();
+            }
+            try {
+                if (virtualThreadFactory != null) {
+                    virtualThreadFactory.newThread(task).start();
+                } else {
+                    platformExecutor.execute(task);
+                }
+            } catch (RuntimeException x) {
+                poolSize.decrementAndGet();
+                task.cancel();
+                throw x;
+            }
+        } else throw new IllegalStateException("VirtualThreadExecutor not started.");
+    }
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        int delta = maxThreads - this.maxThreads;
+        this.maxThreads = maxThreads;
+        Permits permits = this.permits;
+        if (permits != null) {
+            if (delta > 0) {
+                permits.release(delta);
+            } else if (delta < 0) {
+                // Taken back as the running tasks complete
+                permits.reducePermits(-delta);
+            }
+        }
+        StandardThreadExecutor platformExecutor = this.platformExecutor;
+        if (platformExecutor != null) {
+            setPlatformMaxThreads(platformExecutor, maxThreads);
+        }
+    }
+
+    /**
+     * Size the platform thread pool: maxThreads is meant for virtual
+     * threads, so it may only lower the defaults of the pool.
+     */
+    protected static void setPlatformMaxThreads(
+            StandardThreadExecutor platformExecutor, int maxThreads) {
+        StandardThreadExecutor defaults = new StandardThreadExecutor();
+        int max = Math.min(maxThreads, defaults.getMaxThreads());
+        int minSpare = Math.min(max, defaults.getMinSpareThreads());
+        if (max >= platformExecutor.getMaxThreads()) {
+            platformExecutor.setMaxThreads(max);
+            platformExecutor.setMinSpareThreads(minSpare);
+        } else {
+            platformExecutor.setMinSpareThreads(minSpare);
+            platformExecutor.setMaxThreads(max);
+        }
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void setMaxQueueSize(int size) {
+        this.maxQueueSize = size;
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * Return <code>true</code> if the tasks run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtualThreadFactory != null;
+    }
+
+    /**
+     * Add a LifecycleEvent listener to this component.
+     *
+     * @param listener The listener to add
+     */
+    public void addLifecycleListener(LifecycleListener listener) {
+        lifecycle.addLifecycleListener(listener);
+    }
+
+
+    /**
+     * Get the lifecycle listeners associated with this lifecycle. If this
+     * Lifecycle has no listeners registered, a zero-length array is returned.
+     */
+    public LifecycleListener[] findLifecycleListeners() {
+        return lifecycle.findLifecycleListeners();
+    }
+
+
+    /**
+     * Remove a LifecycleEvent listener from this component.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeLifecycleListener(LifecycleListener listener) {
+        lifecycle.removeLifecycleListener(listener);
+    }
+
+    // Statistics, comparable to the ones of StandardThreadExecutor
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    public long getCompletedTaskCount() {
+        return completedTaskCount.get();
+    }
+
+    public int getLargestPoolSize() {
+        return largestPoolSize.get();
+    }
+
+    public int getPoolSize() {
+        return poolSize.get();
+    }
+
+    public int getQueueSize() {
+        StandardThreadExecutor platformExecutor = this.platformExecutor;
+        if (platformExecutor != null) {
+            return platformExecutor.getQueueSize();
+        }
+        return waitingCount.get();
+    }
+
+
+    /**
+     * Return a factory of virtual threads, looked up by reflection as they
+     * only exist in recent JVMs, or <code>null</code> if not supported.
+     */
+    protected static ThreadFactory createVirtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual", new Class<?>[0])
+                .invoke(null, new Object[0]);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method nameMethod = builderClass.getMethod("name",
+                    new Class<?>[] {String.class, long.class});
+            builder = nameMethod.invoke(builder, new Object[] {namePrefix, Long.valueOf(1)});
+            return (ThreadFactory) builderClass.getMethod("factory", new Class<?>[0])
+                .invoke(builder, new Object[0]);
+        } catch (Throwable t) {
+            if (log.isDebugEnabled()) {
+                log.debug("Virtual threads are not available", t);
+            }
+            return null;
+        }
+    }
+
+
+    // ---------------------------------------------- Task Inner Class
+    class Task implements Runnable {
+        final Runnable command;
+
+        /**
+         * Permits bounding the running tasks, <code>null</code> on platform
+         * threads.
+         */
+        final Semaphore permits;
+
+        /**
+         * Was the permit of the task acquired when it was submitted?
+         */
+        final boolean acquired;
+
+        Task(Runnable command, Semaphore permits, boolean acquired) {
+            this.command = command;
+            this.permits = permits;
+            this.acquired = acquired;
+        }
+
+        /**
+         * Give back what the task was admitted with, when it could not be
+         * started.
+         */
+        void cancel() {
+            if (permits == null) {
+                return;
+            }
+            if (acquired) {
+                permits.release();
+            } else {
+                waitingCount.decrementAndGet();
+            }
+        }
+
+        public void run() {
+            try {
+                if (permits != null && !acquired) {
+                    permits.acquireUninterruptibly();
+                    waitingCount.decrementAndGet();
+                }
+                try {
+                    activeCount.incrementAndGet();
+                    command.run();
+                } finally {
+                    activeCount.decrementAndGet();
+                    if (permits != null) permits.release();
+                }
+            } finally {
+                poolSize.decrementAndGet();
+                completedTaskCount.incrementAndGet();
+            }
+        }
+    }
+
+    // ---------------------------------------------- Permits Inner Class
+    static class Permits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits);
+        }
+
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+
+}
@@ -33,9 +33,13 @@ import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Enumeration;
 import java.util.StringTokenizer;
+import java.util.zip.GZIPOutputStream;
 
 import javax.naming.InitialContext;
 import javax.naming.NameClassPair;
@@ -62,6 +66,7 @@ import org.apache.catalina.util.ServerInfo;
 import org.apache.catalina.util.StringManager;
 import org.apache.catalina.util.URLEncoder;
 import org.apache.naming.resources.CacheEntry;
+import org.apache.naming.resources.MappedContentCache;
 import org.apache.naming.resources.ProxyDirContext;
 import org.apache.naming.resources.Resource;
 import org.apache.naming.resources.ResourceAttributes;
@@ -200,6 +205,38 @@ public class DefaultServlet
      */
     protected boolean useAcceptRanges = true;
 
+    /**
+     * Off-heap cache of the content of the resources which are too large
+     * to be cached in the heap, or <code>null</code> if disabled.
+     */
+    protected MappedContentCache mappedCache = null;
+
+    /**
+     * Should a sibling <code>.gz</code> file be served instead of the
+     * resource to clients accepting gzip?
+     */
+    protected boolean gzip = false;
+
+    /**
+     * Should resources without a <code>.gz</code> sibling be compressed once
+     * and the compressed variant kept next to the cache entry?
+     */
+    protected boolean gzipCache = false;
+
+    /**
+     * Mime types compressed when <code>gzipCache</code> is enabled.
+     */
+    protected String[] gzipMimeTypes = { "text/html", "text/xml",
+        "text/plain", "text/css", "text/javascript", "application/javascript",
+        "application/x-javascript", "application/json", "application/xml",
+        "image/svg+xml" };
+
+    /**
+     * Minimum size in bytes of the resources compressed when
+     * <code>gzipCache</code> is enabled.
+     */
+    protected int gzipMinSize = 1024;
+
     /**
      * Full range marker.
      */
@@ -254,6 +291,9 @@ public class DefaultServlet
      * Finalize this servlet.
      */
     public void destroy() {
+        if (mappedCache != null) {
+            mappedCache.clear();
+        }
     }
 
 
@@ -290,6 +330,29 @@ public class DefaultServlet
         if (getServletConfig().getInitParameter("useAcceptRanges") != null)
             useAcceptRanges = Boolean.parseBoolean(getServletConfig().getInitParameter("useAcceptRanges"));
 
+        if (getServletConfig().getInitParameter("gzip") != null)
+            gzip = Boolean.parseBoolean(getServletConfig().getInitParameter("gzip"));
+
+        if (getServletConfig().getInitParameter("gzipCache") != null)
+            gzipCache = Boolean.parseBoolean(getServletConfig().getInitParameter("gzipCache"));
+
+        if (getServletConfig().getInitParameter("gzipMimeTypes") != null) {
+            StringTokenizer tokenizer = new StringTokenizer
+                (getServletConfig().getInitParameter("gzipMimeTypes"), ",");
+            gzipMimeTypes = new String[tokenizer.countTokens()];
+            for (int i = 0; i < gzipMimeTypes.length; i++)
+                gzipMimeTypes[i] = tokenizer.nextToken().trim();
+        }
+
+        long mappedCacheSize = 0;
+        if (getServletConfig().getInitParameter("mappedCacheSize") != null)
+            mappedCacheSize = 1024L *
+                Long.parseLong(getServletConfig().getInitParameter("mappedCacheSize"));
+        long mappedCacheObjectMinSize = 16 * 1024;
+        if (getServletConfig().getInitParameter("mappedCacheObjectMinSize") != null)
+            mappedCacheObjectMinSize = 1024L *
+                Long.parseLong(getServletConfig().getInitParameter("mappedCacheObjectMinSize"));
+
         // Sanity check on the specified buffer sizes
         if (input < 256)
             input = 256;
@@ -319,6 +382,12 @@ public class DefaultServlet
             throw new UnavailableException("No resources");
         }
 
+        // The mapped files are checked as often as the resources
+        // revalidate their cache entries
+        if (mappedCacheSize > 0)
+            mappedCache = new MappedContentCache(mappedCacheSize,
+                    mappedCacheObjectMinSize, resources.getCacheTTL());
+
     }
 
 
@@ -786,13 +855,30 @@ public class DefaultServlet
             isError = status.intValue() >= HttpServletResponse.SC_BAD_REQUEST;
         }
 
+        boolean included =
+            (request.getAttribute(Globals.INCLUDE_CONTEXT_PATH_ATTR) != null);
+
+        // Serve the gzip compressed variant of the resource, if there is
+        // one and the client accepts it. An include cannot set the content
+        // encoding, so it always gets the original content.
+        CacheEntry originalEntry = cacheEntry;
+        if ((gzip || gzipCache) && (cacheEntry.context == null) && !isError
+                && !included) {
+            CacheEntry gzipEntry = getGzipVariant(path, cacheEntry);
+            if (gzipEntry != null) {
+                response.addHeader("Vary", "Accept-Encoding");
+                if (acceptsGzip(request)) {
+                    response.setHeader("Content-Encoding", "gzip");
+                    cacheEntry = gzipEntry;
+                }
+            }
+        }
+
         // Check if the conditions specified in the optional If headers are
         // satisfied.
         if (cacheEntry.context == null) {
 
             // Checking If headers
-            boolean included =
-                (request.getAttribute(Globals.INCLUDE_CONTEXT_PATH_ATTR) != null);
             if (!included && !isError &&
                     !checkIfHeaders(request, response, cacheEntry.attributes)) {
                 return;
@@ -801,10 +887,10 @@ public class DefaultServlet
         }
 
         // Find content type.
-        String contentType = cacheEntry.attributes.getMimeType();
+        String contentType = originalEntry.attributes.getMimeType();
         if (contentType == null) {
-            contentType = getServletContext().getMimeType(cacheEntry.name);
-            cacheEntry.attributes.setMimeType(contentType);
+            contentType = getServletContext().getMimeType(originalEntry.name);
+            originalEntry.attributes.setMimeType(contentType);
         }
 
         ArrayList ranges = null;
@@ -979,8 +1065,9 @@ public class DefaultServlet
                         // Silent catch
                     }
                     if (ostream != null) {
-                        copy(cacheEntry, ostream, ranges.iterator(),
-                             contentType);
+                        if (!checkSendfile(request, response, cacheEntry, ranges, contentType))
+                            copy(cacheEntry, ostream, ranges.iterator(),
+                                 contentType);
                     } else {
                         copy(cacheEntry, writer, ranges.iterator(),
                              contentType);
@@ -1619,6 +1706,16 @@ public class DefaultServlet
                 request.setAttribute("org.apache.tomcat.sendfile.start", new Long(range.start));
                 request.setAttribute("org.apache.tomcat.sendfile.end", new Long(range.end + 1));
             }
+            // Connectors which support it write the mapped content
+            // directly, without opening the file again
+            ByteBuffer content = getMappedContent(entry);
+            if (content != null) {
+                if (range != null) {
+                    content.limit((int) range.end + 1);
+                    content.position((int) range.start);
+                }
+                request.setAttribute("org.apache.tomcat.sendfile.buffer", content);
+            }
             return true;
         } else {
             return false;
@@ -1626,6 +1723,239 @@ public class DefaultServlet
     }
     
     
+    /**
+     * Return the gzip compressed variant of the given resource: its
+     * <code>.gz</code> sibling if there is one, else, if enabled, the
+     * variant compressed once and kept with the cache entry.
+     *
+     * @return the variant, or <code>null</code> if there is none
+     */
+    protected CacheEntry getGzipVariant(String path, CacheEntry entry) {
+
+        if ((entry.resource == null) || path.endsWith(".gz")) {
+            return null;
+        }
+
+        if (gzip) {
+            CacheEntry sibling = resources.lookupCache(path + ".gz");
+            if (sibling.exists && (sibling.context == null)
+                && (sibling.resource != null)) {
+                return sibling;
+            }
+        }
+
+        if (!gzipCache) {
+            return null;
+        }
+        CacheEntry variant = entry.gzipVariant;
+        if (variant == null) {
+            byte[] content = entry.resource.getContent();
+            if ((content == null) || (content.length < gzipMinSize)
+                || !isGzipMimeType(getServletContext().getMimeType(path))) {
+                return null;
+            }
+            variant = compress(entry, content);
+            entry.gzipVariant = variant;
+        }
+        return variant.exists ? variant : null;
+
+    }
+
+
+    /**
+     * Compress the given content into a variant of the given entry. If
+     * compression does not save anything, the variant returned is marked
+     * as not existing so that it is not attempted again.
+     */
+    protected CacheEntry compress(CacheEntry entry, byte[] content) {
+
+        CacheEntry variant = new CacheEntry();
+        variant.name = entry.name + ".gz";
+        try {
+            ByteArrayOutputStream baos =
+                new ByteArrayOutputStream(content.length / 2);
+            GZIPOutputStream gzos = new GZIPOutputStream(baos);
+            gzos.write(content, 0, content.length);
+            gzos.close();
+            if (baos.size() >= content.length) {
+                variant.exists = false;
+                return variant;
+            }
+            byte[] compressed = baos.toByteArray();
+            variant.resource = new Resource(compressed);
+            ResourceAttributes attributes = new ResourceAttributes();
+            attributes.setContentLength(compressed.length);
+            attributes.setLastModified(entry.attributes.getLastModified());
+            String eTag = entry.attributes.getETag();
+            if (eTag != null) {
+                if (eTag.endsWith("\"")) {
+                    eTag = eTag.substring(0, eTag.length() - 1) + "-gzip\"";
+                }
+                attributes.setETag(eTag);
+            }
+            variant.attributes = attributes;
+        } catch (IOException e) {
+            variant.exists = false;
+        }
+        return variant;
+
+    }
+
+
+    /**
+     * Is the given mime type one of the types compressed on the fly?
+     */
+    protected boolean isGzipMimeType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        if (semicolon >= 0) {
+            contentType = contentType.substring(0, semicolon).trim();
+        }
+        for (int i = 0; i < gzipMimeTypes.length; i++) {
+            if (gzipMimeTypes[i].equalsIgnoreCase(contentType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Does the client accept gzip content encoding? An explicit gzip entry
+     * takes precedence over the <code>*</code> wildcard, whatever their
+     * order.
+     */
+    protected boolean acceptsGzip(HttpServletRequest request) {
+        double gzipQuality = -1;
+        double anyQuality = -1;
+        @SuppressWarnings("unchecked")
+        Enumeration<String> headers = request.getHeaders("Accept-Encoding");
+        while (headers.hasMoreElements()) {
+            StringTokenizer tokenizer =
+                new StringTokenizer(headers.nextElement(), ",");
+            while (tokenizer.hasMoreTokens()) {
+                String token = tokenizer.nextToken().trim();
+                String coding = token;
+                double quality = 1;
+                int semicolon = token.indexOf(';');
+                if (semicolon >= 0) {
+                    coding = token.substring(0, semicolon).trim();
+                    int q = token.indexOf("q=", semicolon);
+                    if (q >= 0) {
+                        try {
+                            quality = Double.parseDouble(
+                                    token.substring(q + 2).trim());
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+                if (coding.equalsIgnoreCase("gzip")
+                    || coding.equalsIgnoreCase("x-gzip")) {
+                    gzipQuality = Math.max(gzipQuality, quality);
+                } else if (coding.equals("*")) {
+                    anyQuality = Math.max(anyQuality, quality);
+                }
+            }
+        }
+        if (gzipQuality >= 0) {
+            return gzipQuality > 0;
+        }
+        return anyQuality > 0;
+    }
+
+
+    /**
+     * Check if sendfile can be used for a multi-range response, and if so
+     * give the connector the ranges of the file to send along with the
+     * MIME boundaries which separate them.
+     */
+    protected boolean checkSendfile(HttpServletRequest request,
+                                  HttpServletResponse response,
+                                  CacheEntry entry,
+                                  ArrayList ranges, String contentType) {
+        if ((sendfileSize <= 0)
+            || (entry.resource == null)
+            || (entry.attributes.getCanonicalPath() == null)
+            || (Boolean.TRUE != request.getAttribute("org.apache.tomcat.sendfile.support"))
+            || (Boolean.TRUE != request.getAttribute("org.apache.tomcat.sendfile.ranges.support"))
+            || !(request.getClass().getName().equals("org.apache.catalina.connector.RequestFacade"))
+            || !(response.getClass().getName().equals("org.apache.catalina.connector.ResponseFacade"))) {
+            return false;
+        }
+
+        long[] sendfileRanges = new long[2 * ranges.size()];
+        byte[][] boundaries = new byte[ranges.size() + 1][];
+        long length = 0;
+        long contentLength = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            Range range = (Range) ranges.get(i);
+            sendfileRanges[2 * i] = range.start;
+            sendfileRanges[2 * i + 1] = range.end + 1;
+            length += range.end - range.start + 1;
+            StringBuffer boundary = new StringBuffer("\r\n--");
+            boundary.append(mimeSeparation).append("\r\n");
+            if (contentType != null)
+                boundary.append("Content-Type: ").append(contentType)
+                    .append("\r\n");
+            boundary.append("Content-Range: bytes ").append(range.start)
+                .append('-').append(range.end).append('/')
+                .append(range.length).append("\r\n\r\n");
+            boundaries[i] = getBytes(boundary.toString());
+            contentLength += boundaries[i].length;
+        }
+        boundaries[ranges.size()] = getBytes("\r\n--" + mimeSeparation + "--");
+        contentLength += boundaries[ranges.size()].length + length;
+        if ((length <= sendfileSize) && (entry.resource.getContent() != null)) {
+            return false;
+        }
+
+        // The connector does not delimit the body it sends from the file
+        if (contentLength < Integer.MAX_VALUE) {
+            response.setContentLength((int) contentLength);
+        } else {
+            response.setHeader("content-length", "" + contentLength);
+        }
+        request.setAttribute("org.apache.tomcat.sendfile.filename", entry.attributes.getCanonicalPath());
+        request.setAttribute("org.apache.tomcat.sendfile.start", new Long(sendfileRanges[0]));
+        request.setAttribute("org.apache.tomcat.sendfile.end", new Long(sendfileRanges[1]));
+        request.setAttribute("org.apache.tomcat.sendfile.ranges", sendfileRanges);
+        request.setAttribute("org.apache.tomcat.sendfile.boundaries", boundaries);
+        return true;
+    }
+
+
+    private static byte[] getBytes(String s) {
+        try {
+            return s.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            // Can't happen
+            return s.getBytes();
+        }
+    }
+
+
+    /**
+     * Return the content of the given entry from the off-heap cache, if the
+     * entry content is not cached in the heap.
+     *
+     * @return a buffer positioned at the beginning of the content, or
+     *  <code>null</code>
+     */
+    protected ByteBuffer getMappedContent(CacheEntry entry) {
+        if ((mappedCache == null) || (entry.resource == null)
+            || (entry.resource.getContent() != null)
+            || (entry.attributes == null)) {
+            return null;
+        }
+        return mappedCache.get(entry.attributes.getCanonicalPath(),
+                entry.attributes.getLastModified(),
+                entry.attributes.getContentLength());
+    }
+
+
     /**
      * Check if the if-match condition is satisfied.
      *
@@ -1828,6 +2158,14 @@ public class DefaultServlet
                 ostream.write(buffer, 0, buffer.length);
                 return;
             }
+            ByteBuffer content = getMappedContent(cacheEntry);
+            if (content != null) {
+                exception = copyRange(content,
+                        cacheEntry.attributes.getCanonicalPath(), ostream);
+                if (exception != null)
+                    throw exception;
+                return;
+            }
             resourceInputStream = cacheEntry.resource.streamContent();
         } else {
             resourceInputStream = is;
@@ -1908,6 +2246,17 @@ public class DefaultServlet
 
         IOException exception = null;
 
+        ByteBuffer content = getMappedContent(cacheEntry);
+        if (content != null) {
+            content.limit((int) range.end + 1);
+            content.position((int) range.start);
+            exception = copyRange(content,
+                    cacheEntry.attributes.getCanonicalPath(), ostream);
+            if (exception != null)
+                throw exception;
+            return;
+        }
+
         InputStream resourceInputStream = cacheEntry.resource.streamContent();
         InputStream istream =
             new BufferedInputStream(resourceInputStream, input);
@@ -2106,6 +2455,47 @@ public class DefaultServlet
     }
 
 
+    /**
+     * Copy the remaining content of the specified buffer to the specified
+     * output stream.
+     *
+     * @param content The buffer to read from
+     * @param canonicalPath Canonical path of the mapped file
+     * @param ostream The output stream to write to
+     * @return Exception which occurred during processing
+     */
+    protected IOException copyRange(ByteBuffer content, String canonicalPath,
+                                  ServletOutputStream ostream) {
+
+        byte buffer[] = new byte[Math.min(output, content.remaining())];
+        while (content.hasRemaining()) {
+            int len = Math.min(buffer.length, content.remaining());
+            try {
+                content.get(buffer, 0, len);
+            } catch (InternalError e) {
+                // Accessing the mapping of a file truncated since it was
+                // last checked faults: report it as an I/O failure, and
+                // rethrow any other error
+                if (new File(canonicalPath).length() >= content.limit()) {
+                    throw e;
+                }
+                mappedCache.remove(canonicalPath);
+                IOException ioe = new IOException
+                    (sm.getString("defaultServlet.mappedContent"));
+                ioe.initCause(e);
+                return ioe;
+            }
+            try {
+                ostream.write(buffer, 0, len);
+            } catch (IOException e) {
+                return e;
+            }
+        }
+        return null;
+
+    }
+
+
     /**
      * Copy the contents of the specified input stream to the specified
      * output stream, and ensure that both streams are closed before returning
@@ -208,6 +208,35 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      */
     protected Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
 
+
+    /**
+     * Number of shards of the session map. When greater than zero, sessions
+     * are kept in a {@link ShardedSessionMap} and session ids are generated
+     * by a {@link SessionIdGenerator} instead of the synchronized generator
+     * of this manager.
+     */
+    protected int sessionShards = 0;
+
+
+    /**
+     * Concurrent session id generator, used when the session map is sharded.
+     */
+    protected volatile SessionIdGenerator sessionIdGenerator = null;
+
+
+    /**
+     * Expiry index of the active sessions, if enabled. When present, the
+     * background expiration only checks the sessions whose deadline has
+     * been reached instead of every active session.
+     */
+    protected volatile SessionExpiryWheel sessionExpiryWheel = null;
+
+
+    /**
+     * Duration of a tick of the expiry wheel, in milliseconds.
+     */
+    protected static final long EXPIRY_WHEEL_TICK = 1000L;
+
     // Number of sessions created by this manager创建session的次数
     protected int sessionCounter=0;
 
@@ -292,6 +321,7 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
 
         String oldAlgorithm = this.algorithm;
         this.algorithm = algorithm;
+        sessionIdGenerator = null;
         support.firePropertyChange("algorithm", oldAlgorithm, this.algorithm);
 
     }
@@ -444,6 +474,7 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
 
         String oldEntropy = entropy;
         this.entropy = entropy;
+        sessionIdGenerator = null;
         support.firePropertyChange("entropy", oldEntropy, this.entropy);
 
     }
@@ -512,6 +543,7 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
 
         int oldSessionIdLength = this.sessionIdLength;
         this.sessionIdLength = idLength;
+        sessionIdGenerator = null;
         support.firePropertyChange("sessionIdLength",
                                    new Integer(oldSessionIdLength),
                                    new Integer(this.sessionIdLength));
@@ -660,12 +692,115 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
 
         String oldRandomClass = this.randomClass;
         this.randomClass = randomClass;
+        sessionIdGenerator = null;
         support.firePropertyChange("randomClass", oldRandomClass,
                                    this.randomClass);
 
     }
 
 
+    /**
+     * Return the number of shards of the session map, 0 if sessions are
+     * kept in a single map.
+     */
+    public int getSessionShards() {
+
+        return (this.sessionShards);
+
+    }
+
+
+    /**
+     * Set the number of shards of the session map. A value greater than
+     * zero, rounded up to a power of two, selects the sharded session map
+     * and the concurrent session id generator; the <code>randomFile</code>
+     * is not used for session ids in that case.
+     *
+     * @param sessionShards The new number of shards
+     */
+    public void setSessionShards(int sessionShards) {
+
+        int oldSessionShards = this.sessionShards;
+        this.sessionShards = sessionShards;
+        Map<String, Session> newSessions = null;
+        if (sessionShards > 0) {
+            newSessions = new ShardedSessionMap(sessionShards);
+        } else if (sessions instanceof ShardedSessionMap) {
+            newSessions = new ConcurrentHashMap<String, Session>();
+        }
+        if (newSessions != null) {
+            newSessions.putAll(sessions);
+            sessions = newSessions;
+        }
+        sessionIdGenerator = null;
+        support.firePropertyChange("sessionShards",
+                                   new Integer(oldSessionShards),
+                                   new Integer(this.sessionShards));
+
+    }
+
+
+    /**
+     * Return <code>true</code> if sessions are expired through the expiry
+     * wheel rather than by checking every active session.
+     */
+    public boolean getExpiryWheel() {
+
+        return (this.sessionExpiryWheel != null);
+
+    }
+
+
+    /**
+     * Enable or disable the expiry wheel.
+     *
+     * @param expiryWheel The new expiry wheel flag
+     */
+    public void setExpiryWheel(boolean expiryWheel) {
+
+        boolean oldExpiryWheel = (this.sessionExpiryWheel != null);
+        if (expiryWheel && !oldExpiryWheel) {
+            SessionExpiryWheel wheel = new SessionExpiryWheel(EXPIRY_WHEEL_TICK);
+            sessionExpiryWheel = wheel;
+            Iterator<Session> active = sessions.values().iterator();
+            while (active.hasNext()) {
+                wheel.schedule(active.next());
+            }
+        } else if (!expiryWheel) {
+            sessionExpiryWheel = null;
+        }
+        support.firePropertyChange("expiryWheel",
+                                   Boolean.valueOf(oldExpiryWheel),
+                                   Boolean.valueOf(expiryWheel));
+
+    }
+
+
+    /**
+     * Return the number of sessions indexed by the expiry wheel, or -1 if
+     * the expiry wheel is not enabled.
+     */
+    public int getExpiryWheelDepth() {
+
+        SessionExpiryWheel wheel = sessionExpiryWheel;
+        return (wheel == null) ? -1 : wheel.getSize();
+
+    }
+
+
+    /**
+     * Return how far behind the current time the expiry wheel is, in
+     * milliseconds, or -1 if the expiry wheel is not enabled. This is the
+     * longest time a session may have been expired without being removed.
+     */
+    public long getExpiryWheelLag() {
+
+        SessionExpiryWheel wheel = sessionExpiryWheel;
+        return (wheel == null) ? -1 : wheel.getLag(System.currentTimeMillis());
+
+    }
+
+
     /**
      * Gets the number of sessions that have expired.
      *
@@ -739,14 +874,35 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     public void processExpires() {
 
         long timeNow = System.currentTimeMillis();
-        Session sessions[] = findSessions();
         int expireHere = 0 ;
         
-        if(log.isDebugEnabled())
-            log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + sessions.length);
-        for (int i = 0; i < sessions.length; i++) {
-            if (sessions[i]!=null && !sessions[i].isValid()) {
-                expireHere++;
+        if (sessionExpiryWheel != null) {
+            if(log.isDebugEnabled())
+                log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + getExpiryWheelDepth());
+            expireHere = processExpiryWheel(timeNow);
+        } else if (sessions instanceof ShardedSessionMap) {
+            // Walk the shards in place, expiring removes from the shard
+            // being iterated, which its iterator tolerates
+            ShardedSessionMap shardedSessions = (ShardedSessionMap) sessions;
+            if(log.isDebugEnabled())
+                log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + shardedSessions.size());
+            for (int i = 0; i < shardedSessions.getShardCount(); i++) {
+                Iterator<Session> shard =
+                    shardedSessions.getShard(i).values().iterator();
+                while (shard.hasNext()) {
+                    if (!shard.next().isValid()) {
+                        expireHere++;
+                    }
+                }
+            }
+        } else {
+            Session sessions[] = findSessions();
+            if(log.isDebugEnabled())
+                log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + sessions.length);
+            for (int i = 0; i < sessions.length; i++) {
+                if (sessions[i]!=null && !sessions[i].isValid()) {
+                    expireHere++;
+                }
             }
         }
         long timeEnd = System.currentTimeMillis();
@@ -823,6 +979,10 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     public void add(Session session) {
 
         sessions.put(session.getIdInternal(), session);
+        SessionExpiryWheel wheel = sessionExpiryWheel;
+        if (wheel != null) {
+            wheel.schedule(session);
+        }
         int size = sessions.size();
         if( size > maxActive ) {
             synchronized(maxActiveUpdateLock) {
@@ -978,6 +1138,10 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     public void remove(Session session) {
 
         sessions.remove(session.getIdInternal());
+        SessionExpiryWheel wheel = sessionExpiryWheel;
+        if (wheel != null) {
+            wheel.cancel(session);
+        }
 
     }
 
@@ -1015,6 +1179,65 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     // ------------------------------------------------------ Protected Methods
 
 
+    /**
+     * Check the sessions whose deadline was reached in the expiry wheel,
+     * putting back the ones which were accessed in the meantime.
+     *
+     * @param timeNow The current time
+     * @return the number of sessions which expired
+     */
+    protected int processExpiryWheel(long timeNow) {
+
+        SessionExpiryWheel wheel = sessionExpiryWheel;
+        if (wheel == null) {
+            return 0;
+        }
+        int expireHere = 0;
+        List<Session> due = wheel.advance(timeNow);
+        for (int i = 0; i < due.size(); i++) {
+            Session session = due.get(i);
+            if (!session.isValid()) {
+                expireHere++;
+            } else if (sessions.get(session.getIdInternal()) == session) {
+                wheel.schedule(session);
+            }
+        }
+        return expireHere;
+
+    }
+
+
+    /**
+     * Remove every session from the active sessions of this manager, and
+     * from the expiry wheel, without expiring them.
+     */
+    protected void clearSessions() {
+
+        sessions.clear();
+        SessionExpiryWheel wheel = sessionExpiryWheel;
+        if (wheel != null) {
+            wheel.clear();
+        }
+
+    }
+
+
+    /**
+     * Notification from a session of this manager that it was accessed or
+     * that its maximum inactive interval changed.
+     *
+     * @param session The session
+     */
+    protected void sessionAccessed(Session session) {
+
+        SessionExpiryWheel wheel = sessionExpiryWheel;
+        if (wheel != null) {
+            wheel.touch(session);
+        }
+
+    }
+
+
     /**
      * Get new session class to be used in the doLoad() method.
      */
@@ -1057,7 +1280,23 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      * Generate and return a new session identifier.
      * 产生一个sessionId
      */
-    protected synchronized String generateSessionId() {
+    protected String generateSessionId() {
+
+        if (sessionShards > 0) {
+            return generateConcurrentSessionId();
+        }
+        synchronized (this) {
+            return generateSynchronizedSessionId();
+        }
+
+    }
+
+
+    /**
+     * Generate a new session identifier through the shared random source
+     * and digest of this manager. Callers must hold the manager monitor.
+     */
+    private String generateSynchronizedSessionId() {
 
         byte random[] = new byte[16];
         String jvmRoute = getJvmRoute();
@@ -1101,6 +1340,31 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     }
 
 
+    /**
+     * Generate a new session identifier through the pooled generators,
+     * without taking the manager monitor.
+     */
+    private String generateConcurrentSessionId() {
+
+        SessionIdGenerator generator = sessionIdGenerator;
+        if (generator == null) {
+            generator = new SessionIdGenerator(randomClass, algorithm,
+                    getEntropy(), sessionIdLength);
+            sessionIdGenerator = generator;
+        }
+        String jvmRoute = getJvmRoute();
+        String result = generator.generateSessionId(jvmRoute);
+        while (sessions.containsKey(result)) {
+            synchronized (this) {
+                duplicates++;
+            }
+            result = generator.generateSessionId(jvmRoute);
+        }
+        return (result);
+
+    }
+
+
     // ------------------------------------------------------ Protected Methods
 
 
@@ -547,14 +547,21 @@ public abstract class PersistentManagerBase
 	public void processExpires() {
 		
         long timeNow = System.currentTimeMillis();
-        Session sessions[] = findSessions();
         int expireHere = 0 ;
-        if(log.isDebugEnabled())
-             log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + sessions.length);
-        for (int i = 0; i < sessions.length; i++) {
-            if (!sessions[i].isValid()) {
-                expiredSessions++;
-                expireHere++;
+        if (sessionExpiryWheel != null) {
+            if(log.isDebugEnabled())
+                 log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + getExpiryWheelDepth());
+            expireHere = processExpiryWheel(timeNow);
+            expiredSessions += expireHere;
+        } else {
+            Session sessions[] = findSessions();
+            if(log.isDebugEnabled())
+                 log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + sessions.length);
+            for (int i = 0; i < sessions.length; i++) {
+                if (!sessions[i].isValid()) {
+                    expiredSessions++;
+                    expireHere++;
+                }
             }
         }
         processPersistenceChecks();
@@ -648,7 +655,7 @@ public abstract class PersistentManagerBase
     public void load() {
 
         // Initialize our internal data structures
-        sessions.clear();
+        clearSessions();
 
         if (store == null)
             return;
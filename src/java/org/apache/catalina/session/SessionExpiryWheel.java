@@ -0,0 +1,372 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.catalina.Session;
+
+
+/**
+ * Hierarchical timing wheel indexing sessions by the time at which they
+ * may expire, so that the background expiration only looks at sessions
+ * whose deadline has passed instead of at every active session.
+ * <p>
+ * The wheel has {@link #LEVELS} levels of {@link #SLOTS} slots. A slot of
+ * the first level covers one tick, a slot of the next level covers all the
+ * slots of the level below, and so on; entries are moved (cascaded) to a
+ * lower level when the wheel reaches the part of time they belong to.
+ * Deadlines beyond the last level are parked in the slot of that level
+ * which will be reached last, and placed again when it is.
+ * <p>
+ * Deadlines are only pushed back lazily: an access does not move the
+ * session in the wheel, it is re-checked when its old deadline is reached
+ * and rescheduled if it is still valid. A session is therefore looked at
+ * at most once per inactive interval. Deadlines which move earlier, because
+ * the maximum inactive interval was lowered, are applied immediately.
+ *
+ * @version $Id$
+ */
+
+public class SessionExpiryWheel {
+
+
+    /**
+     * Number of bits of a slot index.
+     */
+    protected static final int SLOT_BITS = 6;
+
+
+    /**
+     * Number of slots per level.
+     */
+    public static final int SLOTS = 1 << SLOT_BITS;
+
+
+    protected static final int SLOT_MASK = SLOTS - 1;
+
+
+    /**
+     * Number of levels of the wheel.
+     */
+    public static final int LEVELS = 4;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param tick Duration of a tick of the first level, in milliseconds
+     */
+    public SessionExpiryWheel(long tick) {
+        this.tick = tick;
+        this.currentTick = System.currentTimeMillis() / tick;
+        this.lastAdvance = currentTick * tick;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Duration of a tick, in milliseconds.
+     */
+    protected final long tick;
+
+
+    /**
+     * Heads of the slot lists, indexed by level then slot.
+     */
+    protected final Node[][] slots = new Node[LEVELS][SLOTS];
+
+
+    /**
+     * Nodes of the sessions currently in the wheel. Lookups are lock free
+     * so that accesses to already scheduled sessions do not contend.
+     */
+    protected final ConcurrentHashMap<Session, Node> scheduled =
+        new ConcurrentHashMap<Session, Node>();
+
+
+    /**
+     * Last tick processed by {@link #advance(long)}.
+     */
+    protected long currentTick;
+
+
+    /**
+     * Time up to which the wheel was last advanced.
+     */
+    protected volatile long lastAdvance;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the number of sessions in the wheel.
+     */
+    public int getSize() {
+        return scheduled.size();
+    }
+
+
+    /**
+     * Return how far behind the given time the wheel is, in milliseconds,
+     * that is how late a session may be expired at worst if the wheel is
+     * advanced now.
+     */
+    public long getLag(long now) {
+        long lag = now - lastAdvance;
+        return (lag < 0) ? 0 : lag;
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Record an access to, or a change of the maximum inactive interval of,
+     * the given session. Only moves the session when its deadline moved
+     * earlier, and does nothing for sessions which are not in the wheel.
+     */
+    public void touch(Session session) {
+        Node node = scheduled.get(session);
+        if (node == null || deadlineTick(session) >= node.deadline) {
+            return;
+        }
+        synchronized (this) {
+            if (scheduled.get(session) == node) {
+                schedule(session);
+            }
+        }
+    }
+
+
+    /**
+     * Put the given session in the wheel at its current deadline, moving it
+     * if it was already scheduled. Sessions which never expire are removed.
+     */
+    public synchronized void schedule(Session session) {
+        long deadline = deadlineTick(session);
+        Node node = scheduled.get(session);
+        if (node != null) {
+            unlink(node);
+        }
+        if (deadline < 0) {
+            if (node != null) {
+                scheduled.remove(session);
+            }
+            return;
+        }
+        if (node == null) {
+            node = new Node(session);
+            scheduled.put(session, node);
+        }
+        // Already due sessions are looked at on the next advance
+        node.deadline = Math.max(deadline, currentTick + 1);
+        link(node);
+    }
+
+
+    /**
+     * Remove the given session from the wheel.
+     */
+    public synchronized void cancel(Session session) {
+        Node node = scheduled.remove(session);
+        if (node != null) {
+            unlink(node);
+        }
+    }
+
+
+    /**
+     * Remove every session from the wheel.
+     */
+    public synchronized void clear() {
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                slots[level][slot] = null;
+            }
+        }
+        scheduled.clear();
+    }
+
+
+    /**
+     * Advance the wheel up to the given time and return the sessions whose
+     * deadline was reached. Those sessions are no longer in the wheel: the
+     * caller is expected to check them, and to {@link #schedule(Session)}
+     * again the ones which turn out to be still valid. This is done outside
+     * of the wheel lock, as expiring a session calls back into the manager.
+     *
+     * @param now The current time
+     */
+    public synchronized List<Session> advance(long now) {
+        List<Session> due = new ArrayList<Session>();
+        long target = now / tick;
+        if (target - currentTick >= SLOTS * SLOTS) {
+            // The wheel has not been advanced for a long time: rebuild it
+            // rather than stepping through every missed tick
+            currentTick = target;
+            List<Node> nodes = new ArrayList<Node>(scheduled.values());
+            for (int level = 0; level < LEVELS; level++) {
+                for (int slot = 0; slot < SLOTS; slot++) {
+                    slots[level][slot] = null;
+                }
+            }
+            for (int i = 0; i < nodes.size(); i++) {
+                place(nodes.get(i), due);
+            }
+        }
+        while (currentTick < target) {
+            currentTick++;
+            // Cascade the higher levels whose slot starts at this tick
+            for (int level = LEVELS - 1; level > 0; level--) {
+                long mask = (1L << (SLOT_BITS * level)) - 1;
+                if ((currentTick & mask) == 0) {
+                    int slot = (int) ((currentTick >> (SLOT_BITS * level)) & SLOT_MASK);
+                    Node node = slots[level][slot];
+                    slots[level][slot] = null;
+                    while (node != null) {
+                        Node next = node.next;
+                        node.prev = node.next = null;
+                        place(node, due);
+                        node = next;
+                    }
+                }
+            }
+            int slot = (int) (currentTick & SLOT_MASK);
+            Node node = slots[0][slot];
+            slots[0][slot] = null;
+            while (node != null) {
+                Node next = node.next;
+                node.prev = node.next = null;
+                node.level = -1;
+                scheduled.remove(node.session);
+                due.add(node.session);
+                node = next;
+            }
+        }
+        lastAdvance = now;
+        return due;
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Return the tick at which the given session may expire, or -1 if it
+     * never expires.
+     */
+    protected long deadlineTick(Session session) {
+        int maxInactiveInterval = session.getMaxInactiveInterval();
+        if (maxInactiveInterval < 0) {
+            return -1;
+        }
+        long accessed;
+        if (session instanceof StandardSession) {
+            accessed = ((StandardSession) session).getThisAccessedTimeInternal();
+        } else {
+            accessed = session.getLastAccessedTimeInternal();
+        }
+        return (accessed + maxInactiveInterval * 1000L) / tick;
+    }
+
+
+    /**
+     * Link the given node in the slot matching its deadline, or add its
+     * session to the due list if the deadline has already been reached.
+     */
+    protected void place(Node node, List<Session> due) {
+        if (node.deadline <= currentTick) {
+            node.level = -1;
+            scheduled.remove(node.session);
+            due.add(node.session);
+        } else {
+            link(node);
+        }
+    }
+
+
+    protected void link(Node node) {
+        long delta = node.deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot;
+        if (delta >= (1L << (SLOT_BITS * LEVELS))) {
+            // Beyond the wheel: park in the slot visited last
+            slot = (int) (((currentTick >> (SLOT_BITS * level)) - 1) & SLOT_MASK);
+        } else {
+            slot = (int) ((node.deadline >> (SLOT_BITS * level)) & SLOT_MASK);
+        }
+        node.level = level;
+        node.slot = slot;
+        node.prev = null;
+        node.next = slots[level][slot];
+        if (node.next != null) {
+            node.next.prev = node;
+        }
+        slots[level][slot] = node;
+    }
+
+
+    protected void unlink(Node node) {
+        if (node.level < 0) {
+            return;
+        }
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            slots[node.level][node.slot] = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        }
+        node.prev = node.next = null;
+        node.level = -1;
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    protected static class Node {
+
+        protected final Session session;
+        protected volatile long deadline;
+        protected int level = -1;
+        protected int slot;
+        protected Node prev;
+        protected Node next;
+
+        protected Node(Session session) {
+            this.session = session;
+        }
+
+    }
+
+
+}
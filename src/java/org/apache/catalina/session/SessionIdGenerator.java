@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.catalina.util.StringManager;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+
+/**
+ * Session id generator which does not serialize callers. Instead of one
+ * random number generator and one message digest guarded by the manager
+ * monitor, it keeps a pool of generator/digest pairs: a thread borrows a
+ * pair for the duration of one id and hands it back afterwards, so under
+ * load each busy thread ends up with a pair of its own. Pairs are kept in
+ * a queue rather than in thread locals, so that nothing is pinned to the
+ * connector threads once the web application is stopped.
+ *
+ * @version $Id$
+ */
+
+public class SessionIdGenerator {
+
+
+    private static Log log = LogFactory.getLog(SessionIdGenerator.class);
+
+
+    /**
+     * The string manager for this package.
+     */
+    protected static StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param randomClass Class name of the random number generator
+     * @param algorithm Message digest algorithm
+     * @param entropy String mixed into the generator seeds
+     * @param sessionIdLength Length of the session ids, in bytes
+     */
+    public SessionIdGenerator(String randomClass, String algorithm,
+            String entropy, int sessionIdLength) {
+        this.randomClass = randomClass;
+        this.algorithm = algorithm;
+        this.entropy = (entropy == null) ? "" : entropy;
+        this.sessionIdLength = sessionIdLength;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    protected final String randomClass;
+    protected final String algorithm;
+    protected final String entropy;
+    protected final int sessionIdLength;
+
+
+    /**
+     * Idle generator/digest pairs.
+     */
+    protected final ConcurrentLinkedQueue<Generator> generators =
+        new ConcurrentLinkedQueue<Generator>();
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Generate a new session id, rendered as upper case hexadecimal digits
+     * and followed by the given route if there is one.
+     *
+     * @param jvmRoute The route to append, may be <code>null</code>
+     */
+    public String generateSessionId(String jvmRoute) {
+
+        Generator generator = generators.poll();
+        if (generator == null) {
+            generator = createGenerator();
+        }
+
+        StringBuffer buffer = new StringBuffer(2 * sessionIdLength
+                + ((jvmRoute == null) ? 0 : jvmRoute.length() + 1));
+        try {
+            byte[] random = generator.bytes;
+            int resultLenBytes = 0;
+            while (resultLenBytes < sessionIdLength) {
+                generator.random.nextBytes(random);
+                byte[] digest = (generator.digest == null) ? random
+                        : generator.digest.digest(random);
+                for (int j = 0;
+                j < digest.length && resultLenBytes < sessionIdLength;
+                j++) {
+                    byte b1 = (byte) ((digest[j] & 0xf0) >> 4);
+                    byte b2 = (byte) (digest[j] & 0x0f);
+                    if (b1 < 10)
+                        buffer.append((char) ('0' + b1));
+                    else
+                        buffer.append((char) ('A' + (b1 - 10)));
+                    if (b2 < 10)
+                        buffer.append((char) ('0' + b2));
+                    else
+                        buffer.append((char) ('A' + (b2 - 10)));
+                    resultLenBytes++;
+                }
+            }
+        } finally {
+            generators.offer(generator);
+        }
+        if (jvmRoute != null) {
+            buffer.append('.').append(jvmRoute);
+        }
+        return buffer.toString();
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Create and seed a new generator/digest pair, following the same rules
+     * as ManagerBase.getRandom() and ManagerBase.getDigest().
+     */
+    protected Generator createGenerator() {
+
+        long seed = System.currentTimeMillis() ^ System.nanoTime();
+        char entropy[] = this.entropy.toCharArray();
+        for (int i = 0; i < entropy.length; i++) {
+            long update = ((long) entropy[i]) << ((i % 8) * 8);
+            seed ^= update;
+        }
+        Random random = null;
+        try {
+            Class<?> clazz = Class.forName(randomClass);
+            random = (Random) clazz.newInstance();
+        } catch (Exception e) {
+            log.error(sm.getString("managerBase.random", randomClass), e);
+            random = new java.util.Random();
+        }
+        random.setSeed(seed);
+
+        MessageDigest digest = null;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            log.error(sm.getString("managerBase.digest", algorithm), e);
+            try {
+                digest = MessageDigest.getInstance(ManagerBase.DEFAULT_ALGORITHM);
+            } catch (NoSuchAlgorithmException f) {
+                log.error(sm.getString("managerBase.digest",
+                        ManagerBase.DEFAULT_ALGORITHM), f);
+            }
+        }
+
+        return new Generator(random, digest);
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    protected static class Generator {
+
+        protected final Random random;
+        protected final MessageDigest digest;
+        protected final byte[] bytes = new byte[16];
+
+        protected Generator(Random random, MessageDigest digest) {
+            this.random = random;
+            this.digest = digest;
+        }
+
+    }
+
+
+}
@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.catalina.Session;
+
+
+/**
+ * Session map split into a fixed, power of two number of independent
+ * shards, each one a <code>ConcurrentHashMap</code>. A session id always
+ * lives in the same shard, so lookups, insertions and removals only touch
+ * one shard, and the background expiration can walk the shards one after
+ * the other through their weakly consistent iterators instead of copying
+ * every active session into an array.
+ * <p>
+ * Iterators and views over the whole map are weakly consistent as well:
+ * they never throw <code>ConcurrentModificationException</code> and may or
+ * may not reflect updates made after their creation.
+ *
+ * @version $Id$
+ */
+
+public class ShardedSessionMap extends AbstractMap<String, Session>
+    implements ConcurrentMap<String, Session> {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Create a map using the given number of shards, rounded up to the next
+     * power of two.
+     *
+     * @param shardCount The requested number of shards
+     */
+    public ShardedSessionMap(int shardCount) {
+        int count = 1;
+        while (count < shardCount) {
+            count <<= 1;
+        }
+        @SuppressWarnings("unchecked")
+        ConcurrentHashMap<String, Session>[] shards =
+            (ConcurrentHashMap<String, Session>[]) new ConcurrentHashMap<?, ?>[count];
+        this.shards = shards;
+        this.mask = count - 1;
+        for (int i = 0; i < count; i++) {
+            shards[i] = new ConcurrentHashMap<String, Session>();
+        }
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The shards.
+     */
+    protected final ConcurrentHashMap<String, Session>[] shards;
+
+
+    /**
+     * Mask used to select a shard from the hash of a session id.
+     */
+    protected final int mask;
+
+
+    /**
+     * The entry set view, created on first use.
+     */
+    protected Set<Map.Entry<String, Session>> entrySet = null;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the number of shards of this map.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+
+    /**
+     * Return the shard with the given index, for incremental traversal.
+     *
+     * @param index Index of the shard, between 0 and getShardCount() - 1
+     */
+    public ConcurrentMap<String, Session> getShard(int index) {
+        return shards[index];
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    public Session get(Object key) {
+        return shardFor(key).get(key);
+    }
+
+
+    public boolean containsKey(Object key) {
+        return shardFor(key).containsKey(key);
+    }
+
+
+    public Session put(String key, Session value) {
+        return shardFor(key).put(key, value);
+    }
+
+
+    public Session putIfAbsent(String key, Session value) {
+        return shardFor(key).putIfAbsent(key, value);
+    }
+
+
+    public Session remove(Object key) {
+        return shardFor(key).remove(key);
+    }
+
+
+    public boolean remove(Object key, Object value) {
+        return shardFor(key).remove(key, value);
+    }
+
+
+    public Session replace(String key, Session value) {
+        return shardFor(key).replace(key, value);
+    }
+
+
+    public boolean replace(String key, Session oldValue, Session newValue) {
+        return shardFor(key).replace(key, oldValue, newValue);
+    }
+
+
+    public int size() {
+        long size = 0;
+        for (int i = 0; i < shards.length; i++) {
+            size += shards[i].size();
+        }
+        return (size > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) size;
+    }
+
+
+    public boolean isEmpty() {
+        for (int i = 0; i < shards.length; i++) {
+            if (!shards[i].isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    public void clear() {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].clear();
+        }
+    }
+
+
+    public Set<Map.Entry<String, Session>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Return the shard holding the given session id. Session ids are random,
+     * but the hash is spread anyway so that ids sharing a suffix such as the
+     * jvmRoute do not pile up in a few shards.
+     */
+    protected ConcurrentHashMap<String, Session> shardFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return shards[h & mask];
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * Entry set chaining the entry sets of all the shards.
+     */
+    protected class EntrySet extends AbstractSet<Map.Entry<String, Session>> {
+
+        public Iterator<Map.Entry<String, Session>> iterator() {
+            return new ShardIterator();
+        }
+
+        public int size() {
+            return ShardedSessionMap.this.size();
+        }
+
+        public void clear() {
+            ShardedSessionMap.this.clear();
+        }
+
+    }
+
+
+    /**
+     * Iterator walking the shards one after the other.
+     */
+    protected class ShardIterator implements Iterator<Map.Entry<String, Session>> {
+
+        protected int index = 0;
+        protected Iterator<Map.Entry<String, Session>> current =
+            shards[0].entrySet().iterator();
+        protected Iterator<Map.Entry<String, Session>> last = null;
+
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (++index >= shards.length) {
+                    index = shards.length - 1;
+                    return false;
+                }
+                current = shards[index].entrySet().iterator();
+            }
+            return true;
+        }
+
+        public Map.Entry<String, Session> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = current;
+            return current.next();
+        }
+
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            last.remove();
+            last = null;
+        }
+
+    }
+
+
+}
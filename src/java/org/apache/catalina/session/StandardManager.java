@@ -339,7 +339,7 @@ public class StandardManager
             log.debug("Start: Loading persisted sessions");
 
         // Initialize our internal data structures
-        sessions.clear();
+        clearSessions();
 
         // Open an input stream to the specified pathname, if any
         File file = file();
@@ -395,7 +395,7 @@ public class StandardManager
                     StandardSession session = getNewSession();
                     session.readObjectData(ois);
                     session.setManager(this);
-                    sessions.put(session.getIdInternal(), session);
+                    add(session);
                     session.activate();
                     if (!session.isValidInternal()) {
                         // If session is already invalid,
@@ -456,6 +456,15 @@ public class StandardSession
         return (this.lastAccessedTime);
     }
 
+    /**
+     * Return the time of the current, or of the last, request associated
+     * with this session, without invalidation check. This is the time the
+     * session idle time is computed from.
+     */
+    public long getThisAccessedTimeInternal() {
+        return (this.thisAccessedTime);
+    }
+
     /**
      * Return the Manager within which this Session is valid.
      */
@@ -503,6 +512,8 @@ public class StandardSession
         this.maxInactiveInterval = interval;
         if (isValid && interval == 0) {
             expire();
+        } else if (manager instanceof ManagerBase) {
+            ((ManagerBase) manager).sessionAccessed(this);
         }
 
     }
@@ -630,6 +641,10 @@ public class StandardSession
             accessCount.incrementAndGet();
         }
 
+        if (manager instanceof ManagerBase) {
+            ((ManagerBase) manager).sessionAccessed(this);
+        }
+
     }
 
 
@@ -645,6 +660,10 @@ public class StandardSession
             accessCount.decrementAndGet();
         }
 
+        if (manager instanceof ManagerBase) {
+            ((ManagerBase) manager).sessionAccessed(this);
+        }
+
     }
 
 
@@ -19,14 +19,18 @@
 package org.apache.catalina.valves;
 
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -51,6 +55,9 @@ import org.apache.coyote.RequestInfo;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.buf.B2CConverter;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.MimeHeaders;
 
 
 /**
@@ -249,12 +256,23 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
 
 
     /**
-     * The PrintWriter to which we are currently logging, if any.
+     * The writer to which we are currently logging, if any.
      * 当前写日志的输出对象
+     *
+     * @deprecated The lines are written as bytes to the log file; this
+     *  writer is only kept for subclasses. It writes to the same file,
+     *  in order with the lines of the valve unless asynchronous logging
+     *  is active.
      */
     protected PrintWriter writer = null;
 
 
+    /**
+     * The stream to which we are currently logging, if any.
+     */
+    private OutputStream stream = null;
+
+
     /**
      * A date formatter to format a Date into a date in the format
      * "yyyy-MM-dd".
@@ -294,6 +312,7 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
     private static class AccessDateStruct {
         private Date currentDate = new Date();//此时此刻的时间,固定值,但是是Date对象,因此可以通过setTime方法更改内部的时间,但是对象永远只有一个
         private String currentDateString = null;
+        private byte[] currentDateBytes = null;
         private SimpleDateFormat dayFormatter = new SimpleDateFormat("dd");//获取天
         private SimpleDateFormat monthFormatter = new SimpleDateFormat("MM");//获取月
         private SimpleDateFormat yearFormatter = new SimpleDateFormat("yyyy");//获取年
@@ -318,6 +337,16 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
             return new AccessDateStruct();
         }
     };
+
+    /**
+     * Per thread buffers log lines are formatted into, in synchronous mode.
+     */
+    private static final ThreadLocal<ByteChunk> lineBuffers =
+            new ThreadLocal<ByteChunk>() {
+        protected ByteChunk initialValue() {
+            return new ByteChunk(128);
+        }
+    };
     /**
      * Resolve hosts.
      */
@@ -364,6 +393,65 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
      */
     protected AccessLogElement[] logElements = null;
 
+
+    /**
+     * The elements of the pattern as elements formatting bytes, or
+     * <code>null</code> if one of them can only format characters.
+     */
+    protected ByteAccessLogElement[] byteElements = null;
+
+
+    /**
+     * Is the character set of the log file a superset of US-ASCII, so that
+     * the byte formatting elements can be used?
+     */
+    protected boolean asciiCharset = false;
+
+
+    /**
+     * Hand the log lines to a dedicated writer thread instead of writing
+     * them on the request threads.
+     */
+    protected boolean asyncLogging = false;
+
+
+    /**
+     * Number of lines which can wait for the writer thread.
+     */
+    protected int asyncQueueSize = 8192;
+
+
+    /**
+     * What to do with a line when the writer thread is too far behind: one
+     * of <code>block</code>, <code>drop</code> or <code>sync</code>.
+     */
+    protected String asyncOverflowPolicy = AsyncAccessLogWriter.OVERFLOW_BLOCK;
+
+
+    /**
+     * The writer thread, when asynchronous logging is active.
+     */
+    protected volatile AsyncAccessLogWriter asyncWriter = null;
+
+
+    /**
+     * The channel to the current log file, used instead of the
+     * buffered stream when asynchronous logging is active.
+     */
+    protected FileChannel channel = null;
+
+
+    /**
+     * Character set of the current log file.
+     */
+    protected Charset charset = null;
+
+
+    /**
+     * The line separator, encoded in the character set of the log file.
+     */
+    protected byte[] lineSeparator = null;
+
     // ------------------------------------------------------------- Properties
 
     /**
@@ -428,7 +516,9 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
         if (pattern.equals(Constants.AccessLog.COMBINED_ALIAS))
             pattern = Constants.AccessLog.COMBINED_PATTERN;
         this.pattern = pattern;
-        logElements = createLogElements();
+        AccessLogElement[] logElements = createLogElements();
+        byteElements = createByteElements(logElements);
+        this.logElements = logElements;
     }
 
 
@@ -602,6 +692,90 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
         }
     }
 
+    /**
+     * Is asynchronous logging enabled?
+     */
+    public boolean getAsyncLogging() {
+        return asyncLogging;
+    }
+
+
+    /**
+     * Enable asynchronous logging: lines are queued and written in batches
+     * by a dedicated thread. Takes effect on the next start.
+     *
+     * @param asyncLogging The new value
+     */
+    public void setAsyncLogging(boolean asyncLogging) {
+        this.asyncLogging = asyncLogging;
+    }
+
+
+    /**
+     * Return the number of lines which can wait for the writer thread.
+     */
+    public int getAsyncQueueSize() {
+        return asyncQueueSize;
+    }
+
+
+    /**
+     * Set the number of lines which can wait for the writer thread, rounded
+     * up to the next power of two. Takes effect on the next start.
+     *
+     * @param asyncQueueSize The new value
+     */
+    public void setAsyncQueueSize(int asyncQueueSize) {
+        this.asyncQueueSize = asyncQueueSize;
+    }
+
+
+    /**
+     * Return the policy applied when the asynchronous queue is full.
+     */
+    public String getAsyncOverflowPolicy() {
+        return asyncOverflowPolicy;
+    }
+
+
+    /**
+     * Set the policy applied when the asynchronous queue is full:
+     * <code>block</code> waits for the writer thread, <code>drop</code>
+     * discards the line and counts it, <code>sync</code> writes the line on
+     * the request thread. Takes effect on the next start.
+     *
+     * @param asyncOverflowPolicy The new value
+     */
+    public void setAsyncOverflowPolicy(String asyncOverflowPolicy) {
+        if (AsyncAccessLogWriter.OVERFLOW_DROP.equalsIgnoreCase(asyncOverflowPolicy)) {
+            this.asyncOverflowPolicy = AsyncAccessLogWriter.OVERFLOW_DROP;
+        } else if (AsyncAccessLogWriter.OVERFLOW_SYNC.equalsIgnoreCase(asyncOverflowPolicy)) {
+            this.asyncOverflowPolicy = AsyncAccessLogWriter.OVERFLOW_SYNC;
+        } else {
+            this.asyncOverflowPolicy = AsyncAccessLogWriter.OVERFLOW_BLOCK;
+        }
+    }
+
+
+    /**
+     * Return the number of lines waiting for the writer thread.
+     */
+    public int getAsyncQueueDepth() {
+        AsyncAccessLogWriter asyncWriter = this.asyncWriter;
+        return (asyncWriter == null) ? 0 : asyncWriter.getQueueDepth();
+    }
+
+
+    /**
+     * Return the number of lines discarded because the asynchronous queue
+     * was full, since the valve was started.
+     */
+    public long getDroppedLines() {
+        AsyncAccessLogWriter asyncWriter = this.asyncWriter;
+        return (asyncWriter == null) ? 0 : asyncWriter.getDroppedLines();
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -610,8 +784,17 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
      * throwables will be caught and logged.
      */
     public void backgroundProcess() {
-        if (started && getEnabled() && writer != null && buffered) {
-            writer.flush();
+        if (started && getEnabled() && buffered) {
+            synchronized (this) {
+                if (stream != null) {
+                    try {
+                        stream.flush();
+                    } catch (IOException e) {
+                        log.error(sm.getString("accessLogValve.writeFail",
+                                currentLogFile), e);
+                    }
+                }
+            }
         }
     }    
 
@@ -657,13 +840,36 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
 
         //说明此时request.getRequest().getAttribute(condition) == null,因此可以记录日志
         Date date = getDate();//计算当前时间
-        StringBuffer result = new StringBuffer(128);//用于存储日志结果
+        AsyncAccessLogWriter asyncWriter = this.asyncWriter;
+
+        ByteAccessLogElement[] byteElements = this.byteElements;
+        if (byteElements != null && asciiCharset) {
+            ByteChunk line;
+            if (asyncWriter != null) {
+                line = asyncWriter.getByteChunk();
+            } else {
+                line = lineBuffers.get();
+                line.recycle();
+            }
+            for (int i = 0; i < byteElements.length; i++) {
+                byteElements[i].addElement(line, date, request, response, time);
+            }
+            log(line);
+            return;
+        }
+
+        StringBuffer result = (asyncWriter == null) ? new StringBuffer(128)
+                : asyncWriter.getBuffer();//用于存储日志结果
 
         for (int i = 0; i < logElements.length; i++) {//循环每一种匹配模式
             logElements[i].addElement(result, date, request, response, time);
         }
 
-        log(result.toString());
+        if (asyncWriter != null) {
+            asyncWriter.log(result);
+        } else {
+            log(result.toString());
+        }
     }
 
 
@@ -708,12 +914,26 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
      * Close the currently open log file (if any)
      */
     private synchronized void close() {
-        if (writer == null) {
+        if (stream == null && channel == null) {
             return;
         }
-        writer.flush();
-        writer.close();
         writer = null;
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                log.info(sm.getString("accessLogValve.closeFail"), e);
+            }
+            stream = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.info(sm.getString("accessLogValve.closeFail"), e);
+            }
+            channel = null;
+        }
         dateStamp = "";
         currentLogFile = null;
     }
@@ -727,6 +947,46 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
      * 多线程访问该方法
      */
     public void log(String message) {
+        AsyncAccessLogWriter asyncWriter = this.asyncWriter;
+        if (asyncWriter != null) {
+            asyncWriter.log(message);
+            return;
+        }
+
+        rotateIfNeeded();
+
+        // Log this message
+        writeLine(message);
+
+    }
+
+
+    /**
+     * Log the specified message, already encoded in the character set of
+     * the log file, switching files if the date has changed since the
+     * previous log call.
+     *
+     * @param message Message to be logged
+     */
+    protected void log(ByteChunk message) {
+        AsyncAccessLogWriter asyncWriter = this.asyncWriter;
+        if (asyncWriter != null) {
+            asyncWriter.log(message);
+            return;
+        }
+
+        rotateIfNeeded();
+
+        writeLine(message);
+    }
+
+
+    /**
+     * Switch log files if the date has changed since the previous check, or
+     * if the current log file was removed. Called by the thread which writes
+     * the log lines.
+     */
+    protected void rotateIfNeeded() {
         if (rotatable) {//是否会切换文件
             // Only do a logfile switch check once a second, max.
             long systime = System.currentTimeMillis();
@@ -768,17 +1028,146 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 }
             }
         }
+    }
 
-        // Log this message
-        synchronized(this) {
-            if (writer != null) {
-                writer.println(message);
+
+    /**
+     * Write the given message and a line separator to the current log file,
+     * on the calling thread.
+     *
+     * @param message Message to be logged
+     */
+    protected synchronized void writeLine(String message) {
+        if (stream != null || channel != null) {
+            ByteBuffer bytes = charset.encode(message);
+            writeLine(bytes.array(), bytes.arrayOffset() + bytes.position(),
+                    bytes.remaining());
+        }
+    }
+
+
+    /**
+     * Write the given encoded message and a line separator to the current
+     * log file, on the calling thread.
+     *
+     * @param message Message to be logged
+     */
+    protected synchronized void writeLine(ByteChunk message) {
+        writeLine(message.getBuffer(), message.getStart(), message.getLength());
+    }
+
+
+    private void writeLine(byte[] b, int off, int len) {
+        if (stream != null) {
+            try {
+                stream.write(b, off, len);
+                stream.write(lineSeparator);
                 if (!buffered) {//是否缓存,即是否每一次都flush到磁盘上,true表示缓存
-                    writer.flush();
+                    stream.flush();
                 }
+            } catch (IOException e) {
+                log.error(sm.getString("accessLogValve.writeFail",
+                        currentLogFile), e);
             }
+        } else if (channel != null) {
+            writeFully(ByteBuffer.wrap(b, off, len));
+            writeFully(ByteBuffer.wrap(lineSeparator));
         }
+    }
+
 
+    /**
+     * Write the given bytes, which are not a whole line, to the current log
+     * file.
+     */
+    private synchronized void write(byte[] b, int off, int len) {
+        if (stream != null) {
+            try {
+                stream.write(b, off, len);
+            } catch (IOException e) {
+                log.error(sm.getString("accessLogValve.writeFail",
+                        currentLogFile), e);
+            }
+        } else if (channel != null) {
+            writeFully(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+
+    private synchronized void flush() {
+        if (stream != null) {
+            try {
+                stream.flush();
+            } catch (IOException e) {
+                log.error(sm.getString("accessLogValve.writeFail",
+                        currentLogFile), e);
+            }
+        }
+    }
+
+
+    /**
+     * Writer of the deprecated <code>writer</code> field, encoding the
+     * characters and writing them right away to the current log file, so
+     * that they keep their order with the lines of the valve.
+     */
+    private class LogFileWriter extends Writer {
+
+        public void write(char[] cbuf, int off, int len) {
+            ByteBuffer bytes = charset.encode(CharBuffer.wrap(cbuf, off, len));
+            AccessLogValve.this.write(bytes.array(),
+                    bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        }
+
+        public void flush() {
+            AccessLogValve.this.flush();
+        }
+
+        public void close() {
+            // The log file is closed by the valve
+        }
+
+    }
+
+
+    /**
+     * Write the content of the given buffer, up to its position, to the
+     * channel of the current log file, and clear the buffer.
+     *
+     * @param buffer Encoded log lines
+     */
+    protected synchronized void write(ByteBuffer buffer) {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+
+    private void writeFully(ByteBuffer buffer) {
+        try {
+            while (channel != null && buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            log.error(sm.getString("accessLogValve.writeFail", currentLogFile), e);
+        }
+    }
+
+
+    /**
+     * Return the line separator, encoded in the character set of the
+     * current log file.
+     */
+    protected byte[] getLineSeparator() {
+        return lineSeparator;
+    }
+
+
+    /**
+     * Return the character set of the current log file.
+     */
+    protected Charset getCharset() {
+        return (charset == null) ? Charset.defaultCharset() : charset;
     }
 
 
@@ -843,15 +1232,26 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
         if (charset == null) {
             charset = Charset.defaultCharset();
         }
+        this.charset = charset;
+        ByteBuffer bytes = charset.encode(AsyncAccessLogWriter.LINE_SEPARATOR);
+        lineSeparator = new byte[bytes.remaining()];
+        bytes.get(lineSeparator);
+        asciiCharset = isAsciiCompatible(charset);
 
         try {
-            writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(pathname, true), charset), 128000),
-                    false);
+            if (asyncLogging) {
+                channel = new FileOutputStream(pathname, true).getChannel();
+            } else {
+                stream = new BufferedOutputStream(
+                        new FileOutputStream(pathname, true), 128000);
+            }
 
+            writer = new PrintWriter(new LogFileWriter());
             currentLogFile = pathname;
         } catch (IOException e) {
             writer = null;
+            stream = null;
+            channel = null;
             currentLogFile = null;
             log.error(sm.getString("accessLogValve.openFail", pathname), e);
         }
@@ -874,6 +1274,7 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
         if ((systime - struct.currentDate.getTime()) > 1000) {//1s内时间是不变化的
             struct.currentDate.setTime(systime);//重新设置新的时间
             struct.currentDateString = null;
+            struct.currentDateBytes = null;
         }
         return struct.currentDate;
     }
@@ -973,6 +1374,13 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
         fileDateFormatter.setTimeZone(timezone);
         dateStamp = fileDateFormatter.format(currentDateStruct.get().currentDate);
         open();
+
+        if (asyncLogging) {
+            AsyncAccessLogWriter asyncWriter = new AsyncAccessLogWriter(this,
+                    asyncQueueSize, asyncOverflowPolicy);
+            asyncWriter.start();
+            this.asyncWriter = asyncWriter;
+        }
     }
 
 
@@ -992,7 +1400,13 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                     .getString("accessLogValve.notStarted"));
         lifecycle.fireLifecycleEvent(STOP_EVENT, null);
         started = false;
-        
+
+        AsyncAccessLogWriter asyncWriter = this.asyncWriter;
+        if (asyncWriter != null) {
+            // Lines logged from now on are written directly
+            this.asyncWriter = null;
+            asyncWriter.stop();
+        }
         close();
     }
     
@@ -1012,12 +1426,157 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 Response response, long time);
 
     }
+
+    /**
+     * AccessLogElement which can also write its part of the message as
+     * bytes, in the character set of the log file, without creating any
+     * String or boxing any number in the common cases. Patterns made only
+     * of such elements are formatted into a reusable ByteChunk.
+     */
+    protected interface ByteAccessLogElement extends AccessLogElement {
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time);
+
+    }
+
+    /**
+     * Append the given string, encoded in the character set of the log
+     * file, which is a superset of US-ASCII.
+     */
+    protected void appendString(ByteChunk buf, String s) {
+        if (s == null) {
+            s = "null";
+        }
+        try {
+            int length = s.length();
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    ByteBuffer bytes = charset.encode(CharBuffer.wrap(s, i, length));
+                    buf.append(bytes.array(), bytes.arrayOffset()
+                            + bytes.position(), bytes.remaining());
+                    return;
+                }
+                buf.append((byte) c);
+            }
+        } catch (IOException e) {
+            // Can't happen, the buffer has no limit
+        }
+    }
+
+    /**
+     * Append the given US-ASCII character.
+     */
+    protected static void appendChar(ByteChunk buf, char c) {
+        try {
+            buf.append((byte) c);
+        } catch (IOException e) {
+            // Can't happen, the buffer has no limit
+        }
+    }
+
+    /**
+     * Append the decimal representation of the given number.
+     */
+    protected void appendLong(ByteChunk buf, long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                appendString(buf, String.valueOf(value));
+                return;
+            }
+            appendChar(buf, '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = 0; i < digits; i++) {
+            appendChar(buf, '0');
+        }
+        byte[] b = buf.getBuffer();
+        int pos = buf.getEnd() - 1;
+        do {
+            b[pos--] = (byte) ('0' + (int) (value % 10));
+            value /= 10;
+        } while (value > 0);
+    }
+
+    /**
+     * Append the values of the headers with the given name, separated by
+     * commas, or '-' if there is none. Values received as US-ASCII bytes
+     * are copied as they are.
+     */
+    protected void appendHeaders(ByteChunk buf, MimeHeaders headers,
+            String name) {
+        boolean found = false;
+        int size = headers.size();
+        for (int i = 0; i < size; i++) {
+            if (!headers.getName(i).equalsIgnoreCase(name)) {
+                continue;
+            }
+            if (found) {
+                appendChar(buf, ',');
+            }
+            found = true;
+            MessageBytes value = headers.getValue(i);
+            if (value.getType() == MessageBytes.T_BYTES
+                    && isAscii(value.getByteChunk())) {
+                try {
+                    buf.append(value.getByteChunk());
+                } catch (IOException e) {
+                    // Can't happen, the buffer has no limit
+                }
+            } else {
+                appendString(buf, value.toString());
+            }
+        }
+        if (!found) {
+            appendChar(buf, '-');
+        }
+    }
+
+    private static boolean isAscii(ByteChunk bc) {
+        byte[] b = bc.getBuffer();
+        int end = bc.getEnd();
+        for (int i = bc.getStart(); i < end; i++) {
+            if (b[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Is the given character set a superset of US-ASCII?
+     */
+    protected static boolean isAsciiCompatible(Charset charset) {
+        char[] ascii = new char[0x80];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (char) i;
+        }
+        try {
+            ByteBuffer bytes = charset.newEncoder().encode(CharBuffer.wrap(ascii));
+            if (bytes.remaining() != ascii.length) {
+                return false;
+            }
+            for (int i = 0; i < ascii.length; i++) {
+                if (bytes.get() != i) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
     
     /**
      * write thread name - %I
      * 获取写入日志的线程name,默认是"_",代码实现:request.getCoyoteRequest().getRequestProcessor().getWorkerThreadName()
      */
-    protected class ThreadNameElement implements AccessLogElement {
+    protected class ThreadNameElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             RequestInfo info = request.getCoyoteRequest().getRequestProcessor();
@@ -1027,15 +1586,26 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 buf.append("-");
             }
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            RequestInfo info = request.getCoyoteRequest().getRequestProcessor();
+            if(info != null) {
+                appendString(buf, info.getWorkerThreadName());
+            } else {
+                appendChar(buf, '-');
+            }
+        }
     }
     
     /**
      * write local IP address - %A
      * %A 获取tomcat所在服务器节点,用于多台tomcat服务器的时候,知道日志是从哪台机器上打印出来的---InetAddress.getLocalHost().getHostAddress();
      */
-    protected static class LocalAddrElement implements AccessLogElement {
+    protected static class LocalAddrElement implements ByteAccessLogElement {
         
         private static final String LOCAL_ADDR_VALUE;
+        private static final byte[] LOCAL_ADDR_BYTES;
 
         static {
             String init;
@@ -1045,63 +1615,93 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 init = "127.0.0.1";
             }
             LOCAL_ADDR_VALUE = init;
+            LOCAL_ADDR_BYTES = ByteChunk.convertToBytes(init);
         }
         
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             buf.append(LOCAL_ADDR_VALUE);
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            try {
+                buf.append(LOCAL_ADDR_BYTES, 0, LOCAL_ADDR_BYTES.length);
+            } catch (IOException e) {
+                // Can't happen, the buffer has no limit
+            }
+        }
     }
     
     /**
      * write remote IP address - %a
      * 获取远程请求人的IP,此时可能是代理服务器或者nginx的ip,因为实现是request.getRemoteAddr()
      */
-    protected class RemoteAddrElement implements AccessLogElement {
+    protected class RemoteAddrElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             buf.append(request.getRemoteAddr());
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            appendString(buf, request.getRemoteAddr());
+        }
     }
     
     /**
      * write remote host name - %h
      * 获取远程请求人的host,此时可能是代理服务器或者nginx的host,因为实现是request.getRemoteHost()
      */
-    protected class HostElement implements AccessLogElement {
+    protected class HostElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             buf.append(request.getRemoteHost());
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            appendString(buf, request.getRemoteHost());
+        }
     }
     
     /**
      * write remote logical username from identd (always returns '-') - %l
      * 暂时未实现,总是返回-
      */
-    protected class LogicalUserNameElement implements AccessLogElement {
+    protected class LogicalUserNameElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             buf.append('-');
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            appendChar(buf, '-');
+        }
     }
     
     /**
      * write request protocol - %H
      * 获取远程请求的协议,比如http,因为实现是request.getProtocol()
      */
-    protected class ProtocolElement implements AccessLogElement {
+    protected class ProtocolElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             buf.append(request.getProtocol());
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            appendString(buf, request.getProtocol());
+        }
     }
 
     /**
      * write remote user that was authenticated (if any), else '-' - %u
      * 获取远程请求user,获取不到,则显示"-",因为实现是request.getRemoteUser()
      */
-    protected class UserElement implements AccessLogElement {
+    protected class UserElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             if (request != null) {
@@ -1115,17 +1715,33 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 buf.append('-');
             }
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            String value = null;
+            if (request != null) {
+                value = request.getRemoteUser();
+            }
+            if (value != null) {
+                appendString(buf, value);
+            } else {
+                appendChar(buf, '-');
+            }
+        }
     }
 
     /**
      * write date and time, in Common Log Format - %t
      * 打印日志输出时候此时的系统时间,格式[dd/MM/YYYY:HH:mm:ss 时区]
      */
-    protected class DateAndTimeElement implements AccessLogElement {
+    protected class DateAndTimeElement implements ByteAccessLogElement {
 
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
-            AccessDateStruct struct = currentDateStruct.get();
+            buf.append(getDateString(currentDateStruct.get(), date));
+        }
+
+        private String getDateString(AccessDateStruct struct, Date date) {
             if (struct.currentDateString == null) {
                 StringBuffer current = new StringBuffer(32);
                 current.append('[');
@@ -1141,7 +1757,22 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 current.append(']');
                 struct.currentDateString = current.toString();
             }
-            buf.append(struct.currentDateString);
+            return struct.currentDateString;
+        }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            AccessDateStruct struct = currentDateStruct.get();
+            if (struct.currentDateBytes == null) {
+                struct.currentDateBytes =
+                    ByteChunk.convertToBytes(getDateString(struct, date));
+            }
+            try {
+                buf.append(struct.currentDateBytes, 0,
+                        struct.currentDateBytes.length);
+            } catch (IOException e) {
+                // Can't happen, the buffer has no limit
+            }
         }
     }
 
@@ -1149,7 +1780,7 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
      * write first line of the request (method and request URI) - %r
      * 打印请求头第一行信息,默认输出- - ,真实输出是request.getMethod()+" "+request.getRequestURI()+"?"+request.getQueryString()+" "+request.getProtocol()
      */
-    protected class RequestElement implements AccessLogElement {
+    protected class RequestElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             if (request != null) {
@@ -1166,13 +1797,31 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 buf.append("- - ");
             }
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (request != null) {
+                appendString(buf, request.getMethod());
+                appendChar(buf, ' ');
+                appendString(buf, request.getRequestURI());
+                String query = request.getQueryString();
+                if (query != null) {
+                    appendChar(buf, '?');
+                    appendString(buf, query);
+                }
+                appendChar(buf, ' ');
+                appendString(buf, request.getProtocol());
+            } else {
+                appendString(buf, "- - ");
+            }
+        }
     }
 
     /**
      * write HTTP status code of the response - %s
      * 打印http的状态码 response.getStatus(),默认是-
      */
-    protected class HttpStatusCodeElement implements AccessLogElement {
+    protected class HttpStatusCodeElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             if (response != null) {
@@ -1181,24 +1830,38 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 buf.append('-');
             }
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (response != null) {
+                appendLong(buf, response.getStatus());
+            } else {
+                appendChar(buf, '-');
+            }
+        }
     }
 
     /**
      * write local port on which this request was received - %p
      * 打印本地tomcat服务接收的端口,实现是request.getServerPort()
      */
-    protected class LocalPortElement implements AccessLogElement {
+    protected class LocalPortElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             buf.append(request.getServerPort());
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            appendLong(buf, request.getServerPort());
+        }
     }
 
     /**
      * write bytes sent, excluding HTTP headers - %b, %B
      * 打印发送的字节长度 ,代码 response.getContentCountLong(),如果没有该字段,则返回"-"
      */
-    protected class ByteSentElement implements AccessLogElement {
+    protected class ByteSentElement implements ByteAccessLogElement {
         private boolean conversion;
 
         /**
@@ -1217,26 +1880,43 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 buf.append(length);
             }
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            long length = response.getContentCountLong() ;
+            if (length <= 0 && conversion) {
+                appendChar(buf, '-');
+            } else {
+                appendLong(buf, length);
+            }
+        }
     }
 
     /**
      * write request method (GET, POST, etc.) - %m
      * 输出http的请求头 request.getMethod()
      */
-    protected class MethodElement implements AccessLogElement {
+    protected class MethodElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             if (request != null) {
                 buf.append(request.getMethod());
             }
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (request != null) {
+                appendString(buf, request.getMethod());
+            }
+        }
     }
 
     /**
      * write time taken to process the request - %D, %T
      * 打印请求到response的处理时间
      */
-    protected class ElapsedTimeElement implements AccessLogElement {
+    protected class ElapsedTimeElement implements ByteAccessLogElement {
         private boolean millis;
 
         /**
@@ -1262,13 +1942,29 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 buf.append(remains % 10);
             }
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (millis) {
+                appendLong(buf, time);
+            } else {
+                // second
+                appendLong(buf, time / 1000);
+                appendChar(buf, '.');
+                int remains = (int) (time % 1000);
+                appendChar(buf, (char) ('0' + remains / 100));
+                remains = remains % 100;
+                appendChar(buf, (char) ('0' + remains / 10));
+                appendChar(buf, (char) ('0' + remains % 10));
+            }
+        }
     }
     
     /**
      * write Query string (prepended with a '?' if it exists) - %q
      * 返回请求的参数部分信息,输出 ?request.getQueryString()
      */
-    protected class QueryElement implements AccessLogElement {
+    protected class QueryElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             String query = null;
@@ -1279,13 +1975,24 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 buf.append(query);
             }
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            String query = null;
+            if (request != null)
+                query = request.getQueryString();
+            if (query != null) {
+                appendChar(buf, '?');
+                appendString(buf, query);
+            }
+        }
     }
 
     /**
      * write user session ID - %S
      * 获取user对应的sessionId,默认输出"-",代码实现request.getSessionInternal(false).getIdInternal()
      */
-    protected class SessionIdElement implements AccessLogElement {
+    protected class SessionIdElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             if (request != null) {
@@ -1299,13 +2006,23 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 buf.append('-');
             }
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (request != null && request.getSession(false) != null) {
+                appendString(buf, request.getSessionInternal(false)
+                        .getIdInternal());
+            } else {
+                appendChar(buf, '-');
+            }
+        }
     }
 
     /**
      * write requested URL path - %U
      * 输出 request.getRequestURI(),默认是"-"
      */
-    protected class RequestURIElement implements AccessLogElement {
+    protected class RequestURIElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             if (request != null) {
@@ -1314,24 +2031,38 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 buf.append('-');
             }
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (request != null) {
+                appendString(buf, request.getRequestURI());
+            } else {
+                appendChar(buf, '-');
+            }
+        }
     }
 
     /**
      * write local server name - %v
      * 打印本地的服务name,代码request.getServerName()
      */
-    protected class LocalServerNameElement implements AccessLogElement {
+    protected class LocalServerNameElement implements ByteAccessLogElement {
         public void addElement(StringBuffer buf, Date date, Request request,
                 Response response, long time) {
             buf.append(request.getServerName());
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            appendString(buf, request.getServerName());
+        }
     }
     
     /**
      * write any string
      * 写入任何字符串
      */
-    protected class StringElement implements AccessLogElement {
+    protected class StringElement implements ByteAccessLogElement {
         private String str;
 
         public StringElement(String str) {
@@ -1342,13 +2073,18 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 Response response, long time) {
             buf.append(str);
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            appendString(buf, str);
+        }
     }
 
     /**
      * write incoming headers - %{xxx}i
      * 从Headers中获取key对应的值,默认"-",代码是request.getHeaders(header),将得到的数组用逗号连接成字符串
      */
-    protected class HeaderElement implements AccessLogElement {
+    protected class HeaderElement implements ByteAccessLogElement {
         private String header;
 
         public HeaderElement(String header) {
@@ -1367,13 +2103,19 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
             }
             buf.append('-');
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            appendHeaders(buf, request.getCoyoteRequest().getMimeHeaders(),
+                    header);
+        }
     }
 
     /**
      * write a specific cookie - %{xxx}c
      * 从cookie中获取key对应的值,默认"-",代码是request.getCookies(),将得到的数组查找符合参数key对应的value
      */
-    protected class CookieElement implements AccessLogElement {
+    protected class CookieElement implements ByteAccessLogElement {
         private String header;
 
         public CookieElement(String header) {
@@ -1394,13 +2136,28 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
             }
             buf.append(value);
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            String value = "-";
+            Cookie[] c = request.getCookies();
+            if (c != null) {
+                for (int i = 0; i < c.length; i++) {
+                    if (header.equals(c[i].getName())) {
+                        value = c[i].getValue();
+                        break;
+                    }
+                }
+            }
+            appendString(buf, value);
+        }
     }
 
     /**
      * write a specific response header - %{xxx}o
      * 从response中获取key对应的值,默认"-",代码是response.getHeaderValues(header),将得到的数组用逗号连接成字符串
      */
-    protected class ResponseHeaderElement implements AccessLogElement {
+    protected class ResponseHeaderElement implements ByteAccessLogElement {
         private String header;
 
         public ResponseHeaderElement(String header) {
@@ -1423,13 +2180,23 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
             }
             buf.append("-");
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (null != response) {
+                appendHeaders(buf, response.getCoyoteResponse().getMimeHeaders(),
+                        header);
+            } else {
+                appendChar(buf, '-');
+            }
+        }
     }
     
     /**
      * write an attribute in the ServletRequest - %{xxx}r
      * 从request中获取key对应的值,默认"-",如果没有request,则输出??,代码是request.getAttribute(header)
      */
-    protected class RequestAttributeElement implements AccessLogElement {
+    protected class RequestAttributeElement implements ByteAccessLogElement {
         private String header;
 
         public RequestAttributeElement(String header) {
@@ -1454,13 +2221,28 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 buf.append('-');
             }
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            Object value = null;
+            if (request != null) {
+                value = request.getAttribute(header);
+            } else {
+                value = "??";
+            }
+            if (value != null) {
+                appendString(buf, value.toString());
+            } else {
+                appendChar(buf, '-');
+            }
+        }
     }
 
     /**
      * write an attribute in the HttpSession - %{xxx}s
      * 从session中获取key对应的值,默认"-",如果没有request,则输出??,代码是request.getSession(false).getAttribute(key)
      */
-    protected class SessionAttributeElement implements AccessLogElement {
+    protected class SessionAttributeElement implements ByteAccessLogElement {
         private String header;
 
         public SessionAttributeElement(String header) {
@@ -1487,6 +2269,23 @@ public class AccessLogValve extends ValveBase implements AccessLog, Lifecycle {
                 buf.append('-');
             }
         }
+
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            Object value = null;
+            if (null != request) {
+                HttpSession sess = request.getSession(false);
+                if (null != sess)
+                    value = sess.getAttribute(header);
+            } else {
+                value = "??";
+            }
+            if (value != null) {
+                appendString(buf, value.toString());
+            } else {
+                appendChar(buf, '-');
+            }
+        }
     }
 
 
@@ -1547,6 +2346,22 @@ c.正常非%开头的正常输出,比如空格,或者任意字符串
         return list.toArray(new AccessLogElement[0]);
     }
 
+    /**
+     * Return the given elements as byte formatting elements, or
+     * <code>null</code> if one of them only formats characters.
+     */
+    protected ByteAccessLogElement[] createByteElements(
+            AccessLogElement[] elements) {
+        ByteAccessLogElement[] result = new ByteAccessLogElement[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            if (!(elements[i] instanceof ByteAccessLogElement)) {
+                return null;
+            }
+            result[i] = (ByteAccessLogElement) elements[i];
+        }
+        return result;
+    }
+
     /**
      * create an AccessLogElement implementation which needs header string
      */
@@ -0,0 +1,443 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+
+/**
+ * Writer thread of an {@link AccessLogValve} in asynchronous mode.
+ * <p>
+ * Request threads format their line into a buffer of their own and copy its
+ * bytes into a slot of a bounded ring buffer, claimed with a compare and set
+ * on the tail sequence, so that logging never takes the valve lock. A single
+ * thread drains the ring, gathers the lines into a large buffer and writes
+ * it to the log file channel in one call per batch; it also checks for
+ * date based rotation, which therefore no longer happens on request
+ * threads.
+ * <p>
+ * When the ring is full, the overflow policy decides what happens to a
+ * line: <code>block</code> waits for the writer to free a slot,
+ * <code>drop</code> counts and discards it, and <code>sync</code> writes it
+ * directly on the request thread, as the synchronous mode does.
+ *
+ * @version $Id$
+ */
+
+public class AsyncAccessLogWriter implements Runnable {
+
+
+    private static Log log = LogFactory.getLog(AsyncAccessLogWriter.class);
+
+
+    /**
+     * Wait for a free slot when the ring is full.
+     */
+    public static final String OVERFLOW_BLOCK = "block";
+
+
+    /**
+     * Discard lines, counting them, when the ring is full.
+     */
+    public static final String OVERFLOW_DROP = "drop";
+
+
+    /**
+     * Write lines on the request thread when the ring is full.
+     */
+    public static final String OVERFLOW_SYNC = "sync";
+
+
+    /**
+     * Size of the buffer lines are gathered into before being written.
+     */
+    protected static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+
+    /**
+     * How long the writer sleeps when there is nothing to write, so that
+     * rotation is still checked on idle servers.
+     */
+    protected static final long IDLE_NANOS = 1000L * 1000L * 1000L;
+
+
+    /**
+     * How long a blocked request thread waits before checking the ring
+     * again.
+     */
+    protected static final long BLOCK_NANOS = 100L * 1000L;
+
+
+    protected static final String LINE_SEPARATOR =
+        System.getProperty("line.separator");
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param valve The valve owning the log file
+     * @param queueSize Number of slots of the ring, rounded up to the next
+     *  power of two
+     * @param overflowPolicy One of the OVERFLOW_ constants
+     */
+    public AsyncAccessLogWriter(AccessLogValve valve, int queueSize,
+            String overflowPolicy) {
+        int capacity = 2;
+        while (capacity < queueSize) {
+            capacity <<= 1;
+        }
+        this.valve = valve;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.slots = new ByteChunk[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new ByteChunk(128);
+            sequences.set(i, i);
+        }
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    protected final AccessLogValve valve;
+    protected final int capacity;
+    protected final int mask;
+    protected final String overflowPolicy;
+
+
+    /**
+     * Slot buffers, reused for the lifetime of the writer.
+     */
+    protected final ByteChunk[] slots;
+
+
+    /**
+     * Sequence of each slot: equal to the sequence of the next line to be
+     * stored in the slot when it is free, and to that sequence plus one once
+     * the line is stored and can be written.
+     */
+    protected final AtomicLongArray sequences;
+
+
+    /**
+     * Sequence of the next line to be stored. Its sign bit is set once the
+     * writer is closed, after which no slot can be claimed any more.
+     */
+    protected final AtomicLong tail = new AtomicLong();
+
+
+    /**
+     * Sequence of the next line to be written, only updated by the writer.
+     */
+    protected volatile long head = 0;
+
+
+    protected final AtomicLong droppedLines = new AtomicLong();
+
+
+    /**
+     * Per thread formatting buffers.
+     */
+    protected final ThreadLocal<StringBuffer> buffers =
+        new ThreadLocal<StringBuffer>() {
+        protected StringBuffer initialValue() {
+            return new StringBuffer(128);
+        }
+    };
+
+
+    /**
+     * Per thread byte formatting buffers.
+     */
+    protected final ThreadLocal<ByteChunk> byteBuffers =
+        new ThreadLocal<ByteChunk>() {
+        protected ByteChunk initialValue() {
+            return new ByteChunk(128);
+        }
+    };
+
+
+    protected volatile boolean running = false;
+    protected volatile boolean waiting = false;
+    protected volatile Thread thread = null;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the number of lines waiting to be written.
+     */
+    public int getQueueDepth() {
+        long depth = (tail.get() & Long.MAX_VALUE) - head;
+        return (depth < 0) ? 0 : (int) Math.min(depth, capacity);
+    }
+
+
+    /**
+     * Return the number of lines discarded because the ring was full.
+     */
+    public long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+
+    /**
+     * Return an empty formatting buffer for the current thread.
+     */
+    public StringBuffer getBuffer() {
+        StringBuffer buffer = buffers.get();
+        buffer.setLength(0);
+        return buffer;
+    }
+
+
+    /**
+     * Return an empty byte formatting buffer for the current thread.
+     */
+    public ByteChunk getByteChunk() {
+        ByteChunk buffer = byteBuffers.get();
+        buffer.recycle();
+        return buffer;
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Start the writer thread.
+     */
+    public void start() {
+        running = true;
+        thread = new Thread(this, "AccessLogWriter[" + valve.getPrefix() + "]");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Stop the writer thread, once every queued line has been written. The
+     * lines logged once the final lines were taken are written on the
+     * logging thread.
+     */
+    public void stop() {
+        running = false;
+        Thread t = thread;
+        if (t == null) {
+            return;
+        }
+        LockSupport.unpark(t);
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+
+    /**
+     * Queue the given line, applying the overflow policy if the ring is
+     * full.
+     *
+     * @param line The line, without line separator
+     */
+    public void log(CharSequence line) {
+        while (!offer(line)) {
+            if (!running || OVERFLOW_SYNC.equals(overflowPolicy)) {
+                valve.writeLine(line.toString());
+                return;
+            } else if (OVERFLOW_DROP.equals(overflowPolicy)) {
+                droppedLines.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(BLOCK_NANOS);
+        }
+    }
+
+
+    /**
+     * Queue the given line, already encoded in the character set of the
+     * log file, applying the overflow policy if the ring is full.
+     *
+     * @param line The line, without line separator
+     */
+    public void log(ByteChunk line) {
+        while (!offer(line)) {
+            if (!running || OVERFLOW_SYNC.equals(overflowPolicy)) {
+                valve.writeLine(line);
+                return;
+            } else if (OVERFLOW_DROP.equals(overflowPolicy)) {
+                droppedLines.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(BLOCK_NANOS);
+        }
+    }
+
+
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        byte[] separator = valve.getLineSeparator();
+
+        while (true) {
+            boolean stopping = !running;
+            // When stopping, no more lines are queued past the end, and the
+            // ones queued before it are all written
+            long end = stopping ? close() : -1;
+            try {
+                valve.rotateIfNeeded();
+            } catch (Throwable t) {
+                log.error(valve.sm.getString("accessLogValve.rotateFail"), t);
+            }
+            int count = 0;
+            while (true) {
+                long h = head;
+                int index = (int) (h & mask);
+                if (sequences.get(index) != h + 1) {
+                    if (h < end) {
+                        // Claimed, still being copied
+                        Thread.yield();
+                        continue;
+                    }
+                    break;
+                }
+                ByteChunk slot = slots[index];
+                put(slot.getBuffer(), slot.getStart(), slot.getLength(), buffer);
+                put(separator, 0, separator.length, buffer);
+                sequences.set(index, h + capacity);
+                head = h + 1;
+                count++;
+            }
+            if (buffer.position() > 0) {
+                valve.write(buffer);
+            }
+            if (stopping) {
+                break;
+            }
+            if (count == 0) {
+                waiting = true;
+                if (sequences.get((int) (head & mask)) != head + 1) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+                waiting = false;
+            }
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Close the ring, so that no more slots can be claimed.
+     *
+     * @return the sequence of the first line which was not queued
+     */
+    protected long close() {
+        while (true) {
+            long t = tail.get();
+            if (t < 0 || tail.compareAndSet(t, t | Long.MIN_VALUE)) {
+                return t & Long.MAX_VALUE;
+            }
+        }
+    }
+
+
+    /**
+     * Copy the given line into a free slot of the ring.
+     *
+     * @return <code>false</code> if the ring is full, or if the writer is
+     *  closed
+     */
+    protected boolean offer(Object line) {
+        long t;
+        int index;
+        while (true) {
+            t = tail.get();
+            if (t < 0) {
+                return false;
+            }
+            index = (int) (t & mask);
+            long diff = sequences.get(index) - t;
+            if (diff == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+        ByteChunk slot = slots[index];
+        slot.recycle();
+        try {
+            if (line instanceof ByteChunk) {
+                slot.append((ByteChunk) line);
+            } else {
+                ByteBuffer bytes = valve.getCharset().encode
+                    (CharBuffer.wrap((CharSequence) line));
+                slot.append(bytes.array(), bytes.arrayOffset()
+                        + bytes.position(), bytes.remaining());
+            }
+        } catch (IOException e) {
+            // Can't happen, the slot buffers have no limit
+        }
+        sequences.set(index, t + 1);
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+
+    /**
+     * Copy the given bytes into the buffer, writing the buffer to the log
+     * file whenever it is full.
+     */
+    protected void put(byte[] b, int off, int len, ByteBuffer buffer) {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                valve.write(buffer);
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+
+}
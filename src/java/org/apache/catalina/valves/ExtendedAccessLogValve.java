@@ -217,9 +217,9 @@ public class ExtendedAccessLogValve
     protected synchronized void open() {
         super.open();
         if (currentLogFile.length()==0) {//文件头写入若干行内容
-            writer.println("#Fields: " + pattern);
-            writer.println("#Version: 2.0");
-            writer.println("#Software: " + ServerInfo.getServerInfo());
+            writeLine("#Fields: " + pattern);
+            writeLine("#Version: 2.0");
+            writeLine("#Software: " + ServerInfo.getServerInfo());
         }
     }
 
@@ -161,6 +161,29 @@ public final class ActionCode {
      * Callback for setting the timeout asynchronously
      */
     public static final ActionCode ACTION_COMET_SETTIMEOUT = new ActionCode(25);
+
+    /**
+     * Callback for checking whether request body data can be read without
+     * blocking. The parameter is an AtomicBoolean set to the result; when
+     * false, the connector notifies the Comet event once data arrives.
+     * Connectors without non blocking I/O leave it unchanged.
+     */
+    public static final ActionCode ACTION_NB_READ_INTEREST = new ActionCode(26);
+
+    /**
+     * Callback for checking whether the response data written so far has
+     * been sent without blocking. The parameter is an AtomicBoolean set to
+     * the result; when false, the connector notifies the Comet event once
+     * the client can take more data. Connectors without non blocking I/O
+     * leave it unchanged.
+     */
+    public static final ActionCode ACTION_NB_WRITE_INTEREST = new ActionCode(27);
+
+    /**
+     * Callback for switching the writes of the response to non blocking
+     * mode, with a Boolean parameter.
+     */
+    public static final ActionCode ACTION_NB_OUTPUT = new ActionCode(28);
     
     // ----------------------------------------------------------- Constructors
     int code;
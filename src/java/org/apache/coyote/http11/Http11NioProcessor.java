@@ -20,8 +20,12 @@ package org.apache.coyote.http11;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.util.StringTokenizer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -214,6 +218,47 @@ public class Http11NioProcessor implements ActionHook {
     protected int maxKeepAliveRequests = -1;
 
 
+    /**
+     * Maximum number of responses to pipelined requests written together,
+     * 1 or less to write each response as it completes.
+     */
+    protected int pipelineBatchSize = 0;
+
+
+    /**
+     * Maximum time in milliseconds a complete response waits for the
+     * responses of the next pipelined requests.
+     */
+    protected long pipelineBatchDelay = 10;
+
+
+    /**
+     * Are responses to pipelined requests batched for the requests being
+     * processed.
+     */
+    protected boolean pipelineBatching = false;
+
+
+    /**
+     * Timer writing the batches of responses which waited
+     * pipelineBatchDelay, while the next pipelined request is processed.
+     */
+    protected ScheduledExecutorService batchTimer = null;
+
+
+    /**
+     * May a request switch the connection to HTTP/2, with the connection
+     * preface of a client with prior knowledge or an h2c upgrade.
+     */
+    protected boolean http2 = false;
+
+
+    /**
+     * Did the last request switch the connection to HTTP/2.
+     */
+    protected boolean upgraded = false;
+
+
     /**
      * SSL enabled ?
      */
@@ -650,6 +695,75 @@ public class Http11NioProcessor implements ActionHook {
     }
 
 
+    /**
+     * Set the maximum number of responses to pipelined requests written
+     * together.
+     */
+    public void setPipelineBatchSize(int pipelineBatchSize) {
+        this.pipelineBatchSize = pipelineBatchSize;
+    }
+
+
+    public int getPipelineBatchSize() {
+        return pipelineBatchSize;
+    }
+
+
+    /**
+     * Set the maximum time in milliseconds a complete response waits for
+     * the responses of the next pipelined requests.
+     */
+    public void setPipelineBatchDelay(long pipelineBatchDelay) {
+        this.pipelineBatchDelay = pipelineBatchDelay;
+    }
+
+
+    public long getPipelineBatchDelay() {
+        return pipelineBatchDelay;
+    }
+
+
+    /**
+     * Set the timer writing the batches of responses which waited
+     * pipelineBatchDelay. Without it, a batch is only written between two
+     * requests.
+     */
+    public void setBatchTimer(ScheduledExecutorService batchTimer) {
+        this.batchTimer = batchTimer;
+    }
+
+
+    /**
+     * Allow requests to switch the connection to HTTP/2.
+     */
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+    }
+
+
+    public boolean getHttp2() {
+        return http2;
+    }
+
+
+    /**
+     * Return true if the last request is the HTTP/2 connection preface
+     * rather than an h2c upgrade request.
+     */
+    public boolean isHttp2Preface() {
+        return request.method().equals("PRI");
+    }
+
+
+    /**
+     * Move the bytes read past the request which switched the connection
+     * to HTTP/2 into the given buffer.
+     */
+    public void transferLeftover(ByteBuffer dst) {
+        inputBuffer.transferLeftover(dst);
+    }
+
+
     /**
      * Set the maximum size of a POST which will be buffered in SSL mode.
      */
@@ -750,9 +864,15 @@ public class Http11NioProcessor implements ActionHook {
 
         try {
             rp.setStage(org.apache.coyote.Constants.STAGE_SERVICE);
+            NioEndpoint.KeyAttachment attach = (NioEndpoint.KeyAttachment) socket.getAttachment(false);
+            if (attach != null) {
+                // Write interest is registered again only if the adapter
+                // is still waiting to write
+                attach.setCometOps(attach.getCometOps() & (~SelectionKey.OP_WRITE));
+            }
             error = !adapter.event(request, response, status);
             if ( !error ) {
-                NioEndpoint.KeyAttachment attach = (NioEndpoint.KeyAttachment)socket.getAttachment(false);
+                attach = (NioEndpoint.KeyAttachment)socket.getAttachment(false);
                 if (attach != null) {
                     attach.setComet(comet);
                     if (comet) {
@@ -821,6 +941,7 @@ public class Http11NioProcessor implements ActionHook {
         boolean keptAlive = false;
         boolean openSocket = false;
         boolean recycle = true;
+        pipelineBatching = (pipelineBatchSize > 1);
         while (!error && keepAlive && !comet) {
 
             // Parsing the request header
@@ -845,6 +966,12 @@ public class Http11NioProcessor implements ActionHook {
                     recycle = false;
                     break;
                 }
+                if (http2 && isHttp2Upgrade()) {
+                    // The protocol goes on with HTTP/2 from this request
+                    upgraded = true;
+                    openSocket = true;
+                    break;
+                }
                 request.setStartTime(System.currentTimeMillis());
                 if (!disableUploadTimeout) { //only for body, not for request headers
                     socket.getIOChannel().socket().setSoTimeout((int)timeout);
@@ -962,6 +1089,19 @@ public class Http11NioProcessor implements ActionHook {
 
         rp.setStage(org.apache.coyote.Constants.STAGE_ENDED);
 
+        // Write the responses still waiting for the next pipelined requests
+        pipelineBatching = false;
+        try {
+            outputBuffer.flushBatch();
+        } catch (IOException e) {
+            error = true;
+            openSocket = false;
+        }
+
+        if (upgraded && !error) {
+            return SocketState.UPGRADED;
+        }
+
         if (comet) {
             if (error) {
                 recycle();
@@ -1011,6 +1151,7 @@ public class Http11NioProcessor implements ActionHook {
         this.socket = null;
         this.cometClose = false;
         this.comet = false;
+        this.upgraded = false;
         remoteAddr = null;
         remoteHost = null;
         localAddr = null;
@@ -1095,12 +1236,31 @@ public class Http11NioProcessor implements ActionHook {
                 }
             }
 
+            outputBuffer.setDeferFlush(isBatchable());
             try {
                 outputBuffer.endRequest();
             } catch (IOException e) {
                 // Set error flag
                 error = true;
             }
+            if (batchTimer != null && outputBuffer.getBatched() == 1) {
+                // Write the batch once its first response waited the delay,
+                // even if the next requests take longer to process
+                final InternalNioOutputBuffer buffer = outputBuffer;
+                final int batch = outputBuffer.getBatch();
+                batchTimer.schedule(new Runnable() {
+                    public void run() {
+                        try {
+                            buffer.flushBatch(batch);
+                        } catch (IOException e) {
+                            // The next write of the processor fails as well
+                            if (log.isDebugEnabled()) {
+                                log.debug(sm.getString("http11processor.batch.flush"), e);
+                            }
+                        }
+                    }
+                }, pipelineBatchDelay, TimeUnit.MILLISECONDS);
+            }
 
         } else if (actionCode == ActionCode.ACTION_RESET) {
 
@@ -1256,11 +1416,52 @@ public class Http11NioProcessor implements ActionHook {
             RequestInfo rp = request.getRequestProcessor();
             if ( rp.getStage() != org.apache.coyote.Constants.STAGE_SERVICE ) //async handling
                 attach.setTimeout(timeout);
+        } else if (actionCode == ActionCode.ACTION_NB_READ_INTEREST) {
+            AtomicBoolean isReady = (AtomicBoolean) param;
+            try {
+                isReady.set(inputBuffer.isReadable());
+            } catch (IOException e) {
+                // The next read reports the error
+                isReady.set(true);
+            }
+            if (!isReady.get()) {
+                registerInterest(SelectionKey.OP_READ);
+            }
+        } else if (actionCode == ActionCode.ACTION_NB_WRITE_INTEREST) {
+            AtomicBoolean isReady = (AtomicBoolean) param;
+            try {
+                isReady.set(outputBuffer.flushNonBlocking());
+            } catch (IOException e) {
+                // The next write reports the error
+                isReady.set(true);
+            }
+            if (!isReady.get()) {
+                registerInterest(SelectionKey.OP_WRITE);
+            }
+        } else if (actionCode == ActionCode.ACTION_NB_OUTPUT) {
+            outputBuffer.setNonBlocking(((Boolean) param).booleanValue());
         }
 
     }
 
 
+    /**
+     * Have the poller notify the Comet event when the socket is ready for
+     * the given operations.
+     */
+    protected void registerInterest(int ops) {
+        if (socket == null || socket.getAttachment(false) == null) return;
+        NioEndpoint.KeyAttachment attach = (NioEndpoint.KeyAttachment) socket.getAttachment(false);
+        attach.setCometOps(attach.getCometOps() | ops);
+        RequestInfo rp = request.getRequestProcessor();
+        if (rp.getStage() != org.apache.coyote.Constants.STAGE_SERVICE) {
+            // Not on a container thread, which registers the Comet ops
+            // when it is done
+            socket.getPoller().add(socket, ops);
+        }
+    }
+
+
     // ------------------------------------------------------ Connector Methods
 
 
@@ -1293,6 +1494,48 @@ public class Http11NioProcessor implements ActionHook {
     // ------------------------------------------------------ Protected Methods
 
 
+    /**
+     * Return true if the request switches the connection to HTTP/2: the
+     * connection preface, or an h2c upgrade request without a body.
+     */
+    protected boolean isHttp2Upgrade() {
+        if (request.method().equals("PRI")) {
+            return request.protocol().equals("HTTP/2.0")
+                && request.requestURI().equals("*");
+        }
+        MimeHeaders headers = request.getMimeHeaders();
+        MessageBytes upgradeMB = headers.getValue("upgrade");
+        if (upgradeMB == null || headers.getValue("http2-settings") == null
+                || !request.protocol().equals(Constants.HTTP_11)
+                || upgradeMB.indexOfIgnoreCase("h2c", 0) == -1) {
+            return false;
+        }
+        // Requests with a body are processed with HTTP/1.1
+        return request.getContentLengthLong() <= 0
+            && headers.getValue("transfer-encoding") == null;
+    }
+
+
+    /**
+     * Return true if the response being completed can wait to be written
+     * with the responses of the next pipelined requests, which are already
+     * buffered, within the batch limits.
+     */
+    protected boolean isBatchable() {
+        if (!pipelineBatching || error || !keepAlive || sendfileData != null
+                || !inputBuffer.hasPipelinedData()) {
+            return false;
+        }
+        int batched = outputBuffer.getBatched();
+        if (batched + 1 >= pipelineBatchSize) {
+            return false;
+        }
+        return (batched == 0) || (System.currentTimeMillis()
+                - outputBuffer.getBatchStart() < pipelineBatchDelay);
+    }
+
+
+
     /**
      * After reading the request headers, we have to setup the request filters.
      */
@@ -1465,12 +1708,17 @@ public class Http11NioProcessor implements ActionHook {
         }
 
         // Advertise sendfile support through a request attribute
-        if (endpoint.getUseSendfile()) 
+        if (endpoint.getUseSendfile()) {
             request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+            request.setAttribute("org.apache.tomcat.sendfile.ranges.support", Boolean.TRUE);
+        }
         // Advertise comet support through a request attribute
         request.setAttribute("org.apache.tomcat.comet.support", Boolean.TRUE);
         // Advertise comet timeout support
         request.setAttribute("org.apache.tomcat.comet.timeout.support", Boolean.TRUE);
+        // Advertise that comet requests can be closed from any thread,
+        // which asynchronous processing relies on
+        request.setAttribute("org.apache.tomcat.async.support", Boolean.TRUE);
 
         if (error) {
             adapter.log(request, response, 0);
@@ -1664,6 +1912,23 @@ public class Http11NioProcessor implements ActionHook {
                 sendfileData.fileName = fileName;
                 sendfileData.pos = ((Long) request.getAttribute("org.apache.tomcat.sendfile.start")).longValue();
                 sendfileData.length = ((Long) request.getAttribute("org.apache.tomcat.sendfile.end")).longValue() - sendfileData.pos;
+                ByteBuffer buffer = (ByteBuffer) request.getAttribute("org.apache.tomcat.sendfile.buffer");
+                long[] ranges = (long[]) request.getAttribute("org.apache.tomcat.sendfile.ranges");
+                byte[][] boundaries = (byte[][]) request.getAttribute("org.apache.tomcat.sendfile.boundaries");
+                if (ranges != null && boundaries != null
+                        && boundaries.length == ranges.length / 2 + 1) {
+                    // Multi-range: the ranges of the file, each preceded by
+                    // its boundary, and the closing boundary
+                    sendfileData.ranges = ranges;
+                    sendfileData.boundaries = new ByteBuffer[boundaries.length];
+                    for (int i = 0; i < boundaries.length; i++) {
+                        sendfileData.boundaries[i] = ByteBuffer.wrap(boundaries[i]);
+                    }
+                    sendfileData.pos = ranges[0];
+                    sendfileData.length = ranges[1] - ranges[0];
+                } else if (buffer != null && buffer.remaining() == sendfileData.length) {
+                    sendfileData.buffer = buffer;
+                }
             }
         }
 
@@ -19,11 +19,14 @@ package org.apache.coyote.http11;
 
 import java.net.InetAddress;
 import java.net.URLEncoder;
+import java.nio.channels.SelectionKey;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.management.MBeanRegistration;
 import javax.management.MBeanServer;
@@ -164,6 +167,16 @@ public class Http11NioProtocol extends AbstractProtocol implements MBeanRegistra
                 ( cHandler.global, rgOname, null );
         }
 
+        if (pipelineBatchSize > 1) {
+            batchTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, getName() + "-BatchFlusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
         try {
             ep.start();
         } catch (Exception ex) {
@@ -200,6 +213,10 @@ public class Http11NioProtocol extends AbstractProtocol implements MBeanRegistra
         if(log.isInfoEnabled())
             log.info(sm.getString("http11protocol.stop", getName()));
         ep.destroy();
+        if (batchTimer != null) {
+            batchTimer.shutdownNow();
+            batchTimer = null;
+        }
         if( tpOname!=null )
             Registry.getRegistry(null, null).unregisterComponent(tpOname);
         if( rgOname != null )
@@ -218,6 +235,9 @@ public class Http11NioProtocol extends AbstractProtocol implements MBeanRegistra
     protected Hashtable attributes = new Hashtable();
 
     private int maxKeepAliveRequests=100; // as in Apache HTTPD server
+    private int pipelineBatchSize = 0;
+    private long pipelineBatchDelay = 10;
+    private ScheduledThreadPoolExecutor batchTimer = null;
     private int timeout = 300000;   // 5 minutes as in Apache HTTPD server
     private int maxSavePostSize = 4 * 1024;
     private int maxHttpHeaderSize = 8 * 1024;
@@ -227,7 +247,7 @@ public class Http11NioProtocol extends AbstractProtocol implements MBeanRegistra
     private int socketBuffer = 9000;
     
     private Adapter adapter;
-    private Http11ConnectionHandler cHandler;
+    protected Http11ConnectionHandler cHandler;
 
     /**
      * Compression value.
@@ -492,6 +512,30 @@ public class Http11NioProtocol extends AbstractProtocol implements MBeanRegistra
         setAttribute("maxKeepAliveRequests", "" + mkar);
     }
 
+    public int getPipelineBatchSize() {
+        return pipelineBatchSize;
+    }
+
+    /** Set the maximum number of responses to pipelined requests which are
+     *  written together, 1 or less to write each one as it completes.
+     */
+    public void setPipelineBatchSize(int pipelineBatchSize) {
+        this.pipelineBatchSize = pipelineBatchSize;
+        setAttribute("pipelineBatchSize", "" + pipelineBatchSize);
+    }
+
+    public long getPipelineBatchDelay() {
+        return pipelineBatchDelay;
+    }
+
+    /** Set the maximum time in milliseconds a complete response waits for
+     *  the responses of the next pipelined requests.
+     */
+    public void setPipelineBatchDelay(long pipelineBatchDelay) {
+        this.pipelineBatchDelay = pipelineBatchDelay;
+        setAttribute("pipelineBatchDelay", "" + pipelineBatchDelay);
+    }
+
     /**
      * Return the Keep-Alive policy for the connection.
      */
@@ -604,7 +648,7 @@ public class Http11NioProtocol extends AbstractProtocol implements MBeanRegistra
 
     // --------------------  Connection handler --------------------
 
-    static class Http11ConnectionHandler implements Handler {
+    protected static class Http11ConnectionHandler implements Handler {
 
         protected Http11NioProtocol proto;
         protected static int count = 0;
@@ -647,7 +691,7 @@ public class Http11NioProtocol extends AbstractProtocol implements MBeanRegistra
             }
         };
 
-        Http11ConnectionHandler(Http11NioProtocol proto) {
+        protected Http11ConnectionHandler(Http11NioProtocol proto) {
             this.proto = proto;
         }
         
@@ -708,6 +752,7 @@ public class Http11NioProtocol extends AbstractProtocol implements MBeanRegistra
                     if (state != SocketState.LONG) {
                         release(socket, result);
                         if (state == SocketState.OPEN) {
+                            socket.releaseBuffers();
                             socket.getPoller().add(socket);
                         }
                     } else {
@@ -752,12 +797,25 @@ public class Http11NioProtocol extends AbstractProtocol implements MBeanRegistra
                     // In the middle of processing a request/response. Keep the
                     // socket associated with the processor.
                     connections.put(socket, processor);
-                    socket.getPoller().add(socket);
+                    // Including the interest registered by non blocking I/O
+                    NioEndpoint.KeyAttachment att = (NioEndpoint.KeyAttachment)socket.getAttachment(false);
+                    socket.getPoller().add(socket, att != null ? att.getCometOps() : SelectionKey.OP_READ);
                 } else if (state == SocketState.OPEN) {
                     // In keep-alive but between requests. OK to recycle
                     // processor. Continue to poll for the next request.
                     release(socket, processor);
+                    socket.releaseBuffers();
                     socket.getPoller().add(socket);
+                } else if (state == SocketState.UPGRADED) {
+                    // The connection switched protocols, which takes what
+                    // it needs from the processor before it is recycled
+                    state = upgrade(socket, processor);
+                    release(socket, processor);
+                    if (state == SocketState.LONG) {
+                        socket.releaseBuffers();
+                        NioEndpoint.KeyAttachment att = (NioEndpoint.KeyAttachment)socket.getAttachment(false);
+                        socket.getPoller().add(socket, att != null ? att.getCometOps() : SelectionKey.OP_READ);
+                    }
                 } else {
                     // Connection closed. OK to recycle the processor.
                     release(socket, processor);
@@ -789,6 +847,17 @@ public class Http11NioProtocol extends AbstractProtocol implements MBeanRegistra
             return SocketState.CLOSED;
         }
 
+        /**
+         * Go on with the protocol the last request of the processor
+         * switched the connection to.
+         *
+         * @return the state of the connection after the switch
+         */
+        protected SocketState upgrade(NioChannel socket,
+                Http11NioProcessor processor) throws java.io.IOException {
+            return SocketState.CLOSED;
+        }
+
         public Http11NioProcessor createProcessor() {
             Http11NioProcessor processor = new Http11NioProcessor(
               proto.ep.getSocketProperties().getRxBufSize(),
@@ -797,6 +866,9 @@ public class Http11NioProtocol extends AbstractProtocol implements MBeanRegistra
               proto.ep);
             processor.setAdapter(proto.adapter);
             processor.setMaxKeepAliveRequests(proto.maxKeepAliveRequests);
+            processor.setPipelineBatchSize(proto.pipelineBatchSize);
+            processor.setPipelineBatchDelay(proto.pipelineBatchDelay);
+            processor.setBatchTimer(proto.batchTimer);
             processor.setTimeout(proto.timeout);
             processor.setDisableUploadTimeout(proto.disableUploadTimeout);
             processor.setCompressionMinSize(proto.compressionMinSize);
@@ -20,10 +20,13 @@ package org.apache.coyote.http11;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
 
 import org.apache.coyote.InputBuffer;
 import org.apache.coyote.Request;
+import org.apache.coyote.http11.filters.IdentityInputFilter;
+import org.apache.coyote.http11.filters.VoidInputFilter;
 import org.apache.tomcat.util.buf.ByteChunk;
 import org.apache.tomcat.util.buf.MessageBytes;
 import org.apache.tomcat.util.http.MimeHeaders;
@@ -321,6 +324,33 @@ public class InternalNioInputBuffer implements InputBuffer {
         return (pos < lastValid) || (nbRead()>0);
     }
     
+    /**
+     * Returns true if bytes of the next pipelined request are already
+     * buffered, which is only known when the body of the current request
+     * is empty or fully read.
+     */
+    public boolean hasPipelinedData() {
+        if (parsingHeader || pos >= lastValid || lastActiveFilter == -1) {
+            return false;
+        }
+        InputFilter filter = activeFilters[lastActiveFilter];
+        return (filter instanceof VoidInputFilter)
+            || ((filter instanceof IdentityInputFilter)
+                    && ((IdentityInputFilter) filter).getRemaining() == 0);
+    }
+
+    /**
+     * Move the bytes read past the current request into the given buffer,
+     * as much as it holds.
+     */
+    public void transferLeftover(ByteBuffer dst) {
+        int n = Math.min(lastValid - pos, dst.remaining());
+        if (n > 0) {
+            dst.put(buf, pos, n);
+            pos += n;
+        }
+    }
+
     /**
      * Issues a non blocking read
      * @return int
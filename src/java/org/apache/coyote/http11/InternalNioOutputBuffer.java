@@ -188,6 +188,48 @@ public class InternalNioOutputBuffer
      * Index of the last active filter.
      */
     protected int lastActiveFilter;
+
+
+    /**
+     * Non blocking mode: writes never wait for the client, and the data the
+     * socket does not take right away is kept until it does.
+     */
+    protected boolean nonBlocking = false;
+
+
+    /**
+     * Data waiting to be written in non blocking mode, once the socket
+     * write buffer is full.
+     */
+    protected ByteChunk pending = null;
+
+
+    /**
+     * Is the flush at the end of the current response deferred, to write
+     * it together with the responses of the next pipelined requests.
+     */
+    protected boolean deferFlush = false;
+
+
+    /**
+     * Number of complete responses in the socket write buffer, waiting for
+     * the batch to be written.
+     */
+    protected int batched = 0;
+
+
+    /**
+     * Time at which the first response of the batch was completed.
+     */
+    protected long batchStart = 0;
+
+
+    /**
+     * Number of the current batch, changed each time a batch is written or
+     * dropped, so that a delayed flush only writes the batch it was
+     * scheduled for.
+     */
+    protected volatile int batch = 0;
     
     // ------------------------------------------------------------- Properties
 
@@ -213,6 +255,51 @@ public class InternalNioOutputBuffer
     public NioSelectorPool getSelectorPool() {
         return pool;
     }    
+
+    /**
+     * Set the non blocking mode of the writes.
+     */
+    public synchronized void setNonBlocking(boolean nonBlocking) {
+        if (nonBlocking && pending == null) {
+            pending = new ByteChunk();
+            pending.allocate(1024, -1);
+        }
+        this.nonBlocking = nonBlocking;
+    }
+
+    public boolean isNonBlocking() {
+        return nonBlocking;
+    }
+
+    /**
+     * Defer the flush at the end of the current response.
+     */
+    public void setDeferFlush(boolean deferFlush) {
+        this.deferFlush = deferFlush;
+    }
+
+    /**
+     * Return the number of complete responses waiting to be written.
+     */
+    public int getBatched() {
+        return batched;
+    }
+
+    /**
+     * Return the time at which the first response waiting to be written
+     * was completed.
+     */
+    public long getBatchStart() {
+        return batchStart;
+    }
+
+    /**
+     * Return the number of the current batch.
+     */
+    public int getBatch() {
+        return batch;
+    }
+
     /**
      * Set the socket buffer size.
      */
@@ -348,14 +435,23 @@ public class InternalNioOutputBuffer
 
         // Recycle Request object
         response.recycle();
-        if (socket != null) {
-            socket.getBufHandler().getWriteBuffer().clear();
-            socket = null;
+        synchronized (this) {
+            if (socket != null) {
+                socket.getBufHandler().getWriteBuffer().clear();
+                socket = null;
+            }
+            batched = 0;
+            batch++;
         }
         pos = 0;
         lastActiveFilter = -1;
         committed = false;
         finished = false;
+        nonBlocking = false;
+        deferFlush = false;
+        if (pending != null) {
+            pending.recycle();
+        }
         lastWrite.set(1);
 
     }
@@ -382,6 +478,11 @@ public class InternalNioOutputBuffer
         lastActiveFilter = -1;
         committed = false;
         finished = false;
+        nonBlocking = false;
+        deferFlush = false;
+        if (pending != null) {
+            pending.recycle();
+        }
 
     }
 
@@ -409,6 +510,28 @@ public class InternalNioOutputBuffer
         if (lastActiveFilter != -1)
             activeFilters[lastActiveFilter].end();
 
+        if (deferFlush && !nonBlocking) {
+            // Written with the responses of the next pipelined requests
+            deferFlush = false;
+            synchronized (this) {
+                if (batched++ == 0) {
+                    batchStart = System.currentTimeMillis();
+                }
+            }
+            finished = true;
+            return;
+        }
+
+        if (nonBlocking) {
+            // The request is done: write out whatever the client did not
+            // take yet, blocking
+            setNonBlocking(false);
+            flushBuffer();
+            if (pending.getLength() > 0) {
+                addToBB(pending.getBuffer(), pending.getStart(), pending.getLength());
+                pending.recycle();
+            }
+        }
         flushBuffer();
 
         finished = true;
@@ -424,7 +547,7 @@ public class InternalNioOutputBuffer
     /** 
      * Send an acknoledgement.
      */
-    public void sendAck()
+    public synchronized void sendAck()
         throws IOException {
 
         if (!committed) {
@@ -636,12 +759,21 @@ public class InternalNioOutputBuffer
 
     int total = 0;
     private synchronized void addToBB(byte[] buf, int offset, int length) throws IOException {
+        if (nonBlocking && pending.getLength() > 0) {
+            // Queue behind the data the socket did not take yet
+            pending.append(buf, offset, length);
+            length = 0;
+        }
         while (length > 0) {
             int thisTime = length;
             if (socket.getBufHandler().getWriteBuffer().position() ==
                     socket.getBufHandler().getWriteBuffer().capacity()
                     || socket.getBufHandler().getWriteBuffer().remaining()==0) {
                 flushBuffer();
+                if (nonBlocking && socket.getBufHandler().getWriteBuffer().remaining() == 0) {
+                    pending.append(buf, offset, length);
+                    break;
+                }
             }
             if (thisTime > socket.getBufHandler().getWriteBuffer().remaining()) {
                 thisTime = socket.getBufHandler().getWriteBuffer().remaining();
@@ -784,7 +916,7 @@ public class InternalNioOutputBuffer
     /**
      * Callback to write data from the buffer.
      */
-    protected void flushBuffer()
+    protected synchronized void flushBuffer()
         throws IOException {
 
         //prevent timeout for async,
@@ -794,6 +926,16 @@ public class InternalNioOutputBuffer
             attach.access();
         }
 
+        if (nonBlocking) {
+            flushNonBlocking();
+            return;
+        }
+
+        if (batched > 0) {
+            batched = 0;
+            batch++;
+        }
+
         //write to the socket, if there is anything to write
         if (socket.getBufHandler().getWriteBuffer().position() > 0) {
             socket.getBufHandler().getWriteBuffer().flip();
@@ -802,6 +944,94 @@ public class InternalNioOutputBuffer
     }
 
 
+    /**
+     * Write the responses waiting in the socket write buffer, if any.
+     */
+    public void flushBatch()
+        throws IOException {
+        if (batched > 0) {
+            flushBuffer();
+        }
+    }
+
+
+    /**
+     * Write the given batch of responses if it is still waiting, as far as
+     * the socket takes it without blocking. This is called once the batch
+     * delay expired, by another thread than the one processing the
+     * requests, which writes whatever is left at its next flush.
+     * 
+     * @param batch the number of the batch to write
+     * @return <code>true</code> if the batch was written
+     */
+    public boolean flushBatch(int batch)
+        throws IOException {
+
+        if (batch != this.batch) {
+            return false;
+        }
+        synchronized (this) {
+            if (batch != this.batch || batched == 0 || socket == null
+                    || nonBlocking) {
+                return false;
+            }
+            ByteBuffer writeBuffer = socket.getBufHandler().getWriteBuffer();
+            writeBuffer.flip();
+            try {
+                socket.write(writeBuffer);
+            } finally {
+                writeBuffer.compact();
+            }
+            if (!socket.flush(false, null, 0, lastWrite)
+                    || writeBuffer.position() > 0) {
+                return false;
+            }
+            batched = 0;
+            this.batch++;
+            return true;
+        }
+
+    }
+
+
+    /**
+     * Write as much of the buffered data as the socket takes, without
+     * blocking.
+     * 
+     * @return <code>true</code> if all the data was written
+     */
+    public synchronized boolean flushNonBlocking()
+        throws IOException {
+
+        ByteBuffer writeBuffer = socket.getBufHandler().getWriteBuffer();
+        while (true) {
+            if (writeBuffer.position() > 0) {
+                writeBuffer.flip();
+                try {
+                    socket.write(writeBuffer);
+                } finally {
+                    writeBuffer.compact();
+                }
+                if (!socket.flush(false, null, 0, lastWrite)
+                        || writeBuffer.position() > 0) {
+                    return false;
+                }
+            }
+            if (pending == null || pending.getLength() == 0) {
+                return true;
+            }
+            int n = Math.min(writeBuffer.remaining(), pending.getLength());
+            writeBuffer.put(pending.getBuffer(), pending.getStart(), n);
+            if (n == pending.getLength()) {
+                pending.recycle();
+            } else {
+                pending.setOffset(pending.getStart() + n);
+            }
+        }
+
+    }
+
+
     // ----------------------------------- OutputStreamOutputBuffer Inner Class
 
 
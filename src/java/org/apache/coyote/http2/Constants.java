@@ -0,0 +1,113 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http2;
+
+
+/**
+ * Constants of the HTTP/2 protocol (RFC 7540).
+ *
+ * @version $Revision$ $Date$
+ */
+public final class Constants {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Package name.
+     */
+    public static final String Package = "org.apache.coyote.http2";
+
+    public static final String PROTOCOL = "HTTP/2.0";
+
+    /**
+     * Client connection preface.
+     */
+    public static final byte[] PREFACE =
+        "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+
+    /**
+     * Part of the client connection preface which follows the request line
+     * and the empty line, left once the HTTP/1.1 parser read them.
+     */
+    public static final int PREFACE_BODY = 18;
+
+    /**
+     * Response to an h2c upgrade request.
+     */
+    public static final byte[] SWITCHING_PROTOCOLS =
+        ("HTTP/1.1 101 Switching Protocols\r\n"
+         + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes();
+
+    /**
+     * Size of a frame header.
+     */
+    public static final int FRAME_HEADER_SIZE = 9;
+
+
+    // Frame types
+    public static final int FRAME_DATA          = 0x0;
+    public static final int FRAME_HEADERS       = 0x1;
+    public static final int FRAME_PRIORITY      = 0x2;
+    public static final int FRAME_RST_STREAM    = 0x3;
+    public static final int FRAME_SETTINGS      = 0x4;
+    public static final int FRAME_PUSH_PROMISE  = 0x5;
+    public static final int FRAME_PING          = 0x6;
+    public static final int FRAME_GOAWAY        = 0x7;
+    public static final int FRAME_WINDOW_UPDATE = 0x8;
+    public static final int FRAME_CONTINUATION  = 0x9;
+
+    // Frame flags
+    public static final int FLAG_END_STREAM     = 0x1;
+    public static final int FLAG_ACK            = 0x1;
+    public static final int FLAG_END_HEADERS    = 0x4;
+    public static final int FLAG_PADDED         = 0x8;
+    public static final int FLAG_PRIORITY       = 0x20;
+
+    // Settings
+    public static final int SETTINGS_HEADER_TABLE_SIZE      = 0x1;
+    public static final int SETTINGS_ENABLE_PUSH            = 0x2;
+    public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    public static final int SETTINGS_INITIAL_WINDOW_SIZE    = 0x4;
+    public static final int SETTINGS_MAX_FRAME_SIZE         = 0x5;
+    public static final int SETTINGS_MAX_HEADER_LIST_SIZE   = 0x6;
+
+    // Error codes
+    public static final int NO_ERROR            = 0x0;
+    public static final int PROTOCOL_ERROR      = 0x1;
+    public static final int INTERNAL_ERROR      = 0x2;
+    public static final int FLOW_CONTROL_ERROR  = 0x3;
+    public static final int SETTINGS_TIMEOUT    = 0x4;
+    public static final int STREAM_CLOSED       = 0x5;
+    public static final int FRAME_SIZE_ERROR    = 0x6;
+    public static final int REFUSED_STREAM      = 0x7;
+    public static final int CANCEL              = 0x8;
+    public static final int COMPRESSION_ERROR   = 0x9;
+    public static final int ENHANCE_YOUR_CALM   = 0xb;
+
+    // Defaults
+    public static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+    public static final int DEFAULT_WINDOW_SIZE = 65535;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    public static final int MAX_FRAME_SIZE_LIMIT = (1 << 24) - 1;
+    public static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+    public static final int DEFAULT_MAX_HEADER_SIZE = 8 * 1024;
+
+}
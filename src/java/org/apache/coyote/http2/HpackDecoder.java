@@ -0,0 +1,257 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http2;
+
+import java.io.IOException;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.res.StringManager;
+
+
+/**
+ * Decoder of the header blocks received on a connection (RFC 7541). The
+ * decoded names and values are appended to a byte buffer provided with
+ * each block, which the headers of the request can point to.
+ *
+ * @version $Revision$
+ */
+public class HpackDecoder {
+
+
+    /**
+     * The string manager for this package.
+     */
+    protected static StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    /**
+     * Receiver of the decoded header fields.
+     */
+    public interface HeaderEmitter {
+
+        /**
+         * A header field was decoded: its name and value are in the given
+         * array, which remains valid while the header block is used.
+         */
+        public void emitHeader(byte[] b, int nameStart, int nameLength,
+                               int valueStart, int valueLength)
+            throws IOException;
+
+    }
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    public HpackDecoder(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        table = new HpackTable(maxTableSize);
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Dynamic table of the header blocks received.
+     */
+    protected HpackTable table;
+
+
+    /**
+     * Table size advertised in the settings, the limit of the size updates
+     * of the peer.
+     */
+    protected int maxTableSize;
+
+
+    /**
+     * Header block being decoded.
+     */
+    protected byte[] buf;
+    protected int pos;
+    protected int end;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Decode a complete header block.
+     *
+     * @param b the header block
+     * @param off offset of the block
+     * @param len length of the block
+     * @param storage buffer the decoded names and values are appended to
+     * @param emitter receiver of the header fields
+     * @throws HpackException if the header block is invalid
+     */
+    public void decode(byte[] b, int off, int len, ByteChunk storage,
+                       HeaderEmitter emitter)
+        throws IOException {
+        buf = b;
+        pos = off;
+        end = off + len;
+        boolean first = true;
+        try {
+            while (pos < end) {
+                int octet = buf[pos] & 0xff;
+                if ((octet & 0x80) != 0) {
+                    // Indexed header field
+                    HpackTable.Entry entry = table.get(readInt(7));
+                    if (entry == null) {
+                        throw new HpackException(sm.getString("hpack.index"));
+                    }
+                    int nameStart = storage.getEnd();
+                    storage.append(entry.getName(), 0, entry.getNameLength());
+                    int valueStart = storage.getEnd();
+                    storage.append(entry.getValue(), 0, entry.getValueLength());
+                    emitter.emitHeader(storage.getBuffer(), nameStart,
+                            entry.getNameLength(), valueStart,
+                            entry.getValueLength());
+                } else if ((octet & 0x40) != 0) {
+                    // Literal with incremental indexing
+                    literal(6, true, storage, emitter);
+                } else if ((octet & 0x20) != 0) {
+                    // Dynamic table size update, only before the fields
+                    int size = readInt(5);
+                    if (!first || size > maxTableSize) {
+                        throw new HpackException(
+                                sm.getString("hpack.sizeUpdate", new Integer(size)));
+                    }
+                    table.setMaxSize(size);
+                    continue;
+                } else {
+                    // Literal without indexing, or never indexed
+                    literal(4, false, storage, emitter);
+                }
+                first = false;
+            }
+        } finally {
+            buf = null;
+        }
+    }
+
+
+    /**
+     * Set the table size advertised in the settings.
+     */
+    public void setMaxTableSize(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        if (table.getMaxSize() > maxTableSize) {
+            table.setMaxSize(maxTableSize);
+        }
+    }
+
+
+    public HpackTable getTable() {
+        return table;
+    }
+
+
+    /**
+     * Forget the dynamic table, for use on another connection.
+     */
+    public void recycle() {
+        table.recycle(maxTableSize);
+        buf = null;
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Decode a literal header field, its name indexed or literal.
+     */
+    protected void literal(int prefix, boolean index, ByteChunk storage,
+                           HeaderEmitter emitter)
+        throws IOException {
+        int nameIndex = readInt(prefix);
+        int nameStart = storage.getEnd();
+        if (nameIndex == 0) {
+            readString(storage);
+        } else {
+            HpackTable.Entry entry = table.get(nameIndex);
+            if (entry == null) {
+                throw new HpackException(sm.getString("hpack.index"));
+            }
+            storage.append(entry.getName(), 0, entry.getNameLength());
+        }
+        int valueStart = storage.getEnd();
+        readString(storage);
+        int valueEnd = storage.getEnd();
+        // The storage may have grown while reading the value
+        byte[] b = storage.getBuffer();
+        if (index) {
+            table.add(b, nameStart, valueStart - nameStart,
+                      b, valueStart, valueEnd - valueStart);
+        }
+        emitter.emitHeader(b, nameStart, valueStart - nameStart,
+                           valueStart, valueEnd - valueStart);
+    }
+
+
+    /**
+     * Read an integer with the given prefix length (RFC 7541, 5.1).
+     */
+    protected int readInt(int prefix)
+        throws HpackException {
+        int mask = (1 << prefix) - 1;
+        int value = buf[pos++] & mask;
+        if (value < mask) {
+            return value;
+        }
+        int shift = 0;
+        int octet;
+        do {
+            if (pos >= end || shift > 21) {
+                throw new HpackException(sm.getString("hpack.integer"));
+            }
+            octet = buf[pos++] & 0xff;
+            value += (octet & 0x7f) << shift;
+            shift += 7;
+        } while ((octet & 0x80) != 0);
+        return value;
+    }
+
+
+    /**
+     * Read a string literal (RFC 7541, 5.2), appending its decoded bytes.
+     */
+    protected void readString(ByteChunk storage)
+        throws IOException {
+        if (pos >= end) {
+            throw new HpackException(sm.getString("hpack.string"));
+        }
+        boolean huffman = (buf[pos] & 0x80) != 0;
+        int len = readInt(7);
+        if (len > end - pos) {
+            throw new HpackException(sm.getString("hpack.string"));
+        }
+        if (huffman) {
+            HpackHuffman.decode(buf, pos, len, storage);
+        } else {
+            storage.append(buf, pos, len);
+        }
+        pos += len;
+    }
+
+
+}
@@ -0,0 +1,215 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http2;
+
+import java.io.IOException;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+
+
+/**
+ * Encoder of the header blocks sent on a connection (RFC 7541). Header
+ * fields which repeat from a response to the next are added to the dynamic
+ * table, so that they are then sent as a single index; the fields which
+ * change with each response, or should not be kept, are sent as literals.
+ * String literals are Huffman encoded when it makes them shorter.
+ *
+ * @version $Revision$
+ */
+public class HpackEncoder {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Names of the header fields which are not added to the table.
+     */
+    protected static final String[] NOT_INDEXED = {
+        "content-length", "date", "etag", "last-modified", "expires", "age",
+        "content-range", "location", "set-cookie", "authorization"
+    };
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    public HpackEncoder(int maxTableSize) {
+        table = new HpackTable(maxTableSize);
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Dynamic table of the header blocks sent.
+     */
+    protected HpackTable table;
+
+
+    /**
+     * Smallest table size set since the last header block, or -1 if the
+     * size did not change.
+     */
+    protected int minSizeUpdate = -1;
+
+
+    /**
+     * Scratch buffer of the bytes of a string literal.
+     */
+    protected byte[] scratch = new byte[128];
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Set the maximum size of the dynamic table, which the next header
+     * block signals to the peer.
+     */
+    public void setMaxTableSize(int maxTableSize) {
+        if (maxTableSize == table.getMaxSize() && minSizeUpdate == -1) {
+            return;
+        }
+        if (minSizeUpdate == -1 || maxTableSize < minSizeUpdate) {
+            minSizeUpdate = maxTableSize;
+        }
+        table.setMaxSize(maxTableSize);
+    }
+
+
+    /**
+     * Start a header block.
+     */
+    public void begin(ByteChunk out)
+        throws IOException {
+        if (minSizeUpdate != -1) {
+            // The smallest size first, so that the peer evicts the same
+            // entries
+            writeInt(out, 0x20, 5, minSizeUpdate);
+            if (minSizeUpdate != table.getMaxSize()) {
+                writeInt(out, 0x20, 5, table.getMaxSize());
+            }
+            minSizeUpdate = -1;
+        }
+    }
+
+
+    /**
+     * Encode the status pseudo header field.
+     */
+    public void encodeStatus(int status, ByteChunk out)
+        throws IOException {
+        encodeHeader(":status", String.valueOf(status), out);
+    }
+
+
+    /**
+     * Encode a header field, its name in lower case.
+     */
+    public void encodeHeader(String name, String value, ByteChunk out)
+        throws IOException {
+        int index = table.find(name, value);
+        if (index > 0) {
+            writeInt(out, 0x80, 7, index);
+            return;
+        }
+        boolean indexed = true;
+        for (int i = 0; i < NOT_INDEXED.length; i++) {
+            if (NOT_INDEXED[i].equals(name)) {
+                indexed = false;
+                break;
+            }
+        }
+        if (indexed) {
+            writeInt(out, 0x40, 6, -index);
+        } else if (name.equals("set-cookie") || name.equals("authorization")) {
+            // Never indexed by intermediaries either
+            writeInt(out, 0x10, 4, -index);
+        } else {
+            writeInt(out, 0x00, 4, -index);
+        }
+        if (index == 0) {
+            writeString(out, name);
+        }
+        writeString(out, value);
+        if (indexed) {
+            table.add(name, value);
+        }
+    }
+
+
+    /**
+     * Forget the dynamic table, for use on another connection.
+     */
+    public void recycle(int maxTableSize) {
+        table.recycle(maxTableSize);
+        minSizeUpdate = -1;
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Write an integer with the given prefix length (RFC 7541, 5.1), the
+     * bits above the prefix of the first octet set to the given flags.
+     */
+    protected static void writeInt(ByteChunk out, int flags, int prefix,
+                                   int value)
+        throws IOException {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.append((byte) (flags | value));
+            return;
+        }
+        out.append((byte) (flags | mask));
+        value -= mask;
+        while (value >= 0x80) {
+            out.append((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.append((byte) value);
+    }
+
+
+    /**
+     * Write a string literal (RFC 7541, 5.2).
+     */
+    protected void writeString(ByteChunk out, String s)
+        throws IOException {
+        int len = s.length();
+        if (scratch.length < len) {
+            scratch = new byte[len];
+        }
+        for (int i = 0; i < len; i++) {
+            scratch[i] = (byte) s.charAt(i);
+        }
+        int huffmanLength = HpackHuffman.encodedLength(scratch, 0, len);
+        if (huffmanLength < len) {
+            writeInt(out, 0x80, 7, huffmanLength);
+            HpackHuffman.encode(scratch, 0, len, out);
+        } else {
+            writeInt(out, 0x00, 7, len);
+            out.append(scratch, 0, len);
+        }
+    }
+
+
+}
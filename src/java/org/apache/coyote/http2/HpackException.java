@@ -0,0 +1,40 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http2;
+
+import java.io.IOException;
+
+
+/**
+ * Invalid header block. The decoding context of the connection is lost, so
+ * the connection ends with a COMPRESSION_ERROR.
+ *
+ * @version $Revision$
+ */
+public class HpackException extends IOException {
+
+
+    private static final long serialVersionUID = 1L;
+
+
+    public HpackException(String message) {
+        super(message);
+    }
+
+
+}
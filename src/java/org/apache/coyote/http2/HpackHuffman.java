@@ -0,0 +1,193 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http2;
+
+import java.io.IOException;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+
+
+/**
+ * Huffman code of HPACK string literals (RFC 7541, Appendix B). The code
+ * is canonical, so it is built from the code length of each symbol.
+ *
+ * @version $Revision$
+ */
+public final class HpackHuffman {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Symbol of the end of string.
+     */
+    protected static final int EOS = 256;
+
+
+    /**
+     * Code length of each symbol, the 256 octets then EOS.
+     */
+    protected static final int[] LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+
+
+    /**
+     * Code of each symbol, right aligned.
+     */
+    protected static final int[] CODES = new int[LENGTHS.length];
+
+
+    /**
+     * Decoding tree. The children of node n are at 2n and 2n + 1: a
+     * positive value is the index of the child node, a negative value -s - 1
+     * a leaf for symbol s.
+     */
+    protected static final int[] TREE = new int[2 * LENGTHS.length];
+
+
+    static {
+        // Canonical code: codes are assigned by increasing length, then by
+        // increasing symbol
+        int code = 0;
+        int length = 0;
+        for (int l = 1; l <= 30; l++) {
+            for (int s = 0; s < LENGTHS.length; s++) {
+                if (LENGTHS[s] == l) {
+                    code <<= (l - length);
+                    length = l;
+                    CODES[s] = code++;
+                }
+            }
+        }
+        int nodes = 1;
+        for (int s = 0; s < LENGTHS.length; s++) {
+            int node = 0;
+            for (int bit = LENGTHS[s] - 1; bit > 0; bit--) {
+                int child = 2 * node + ((CODES[s] >>> bit) & 1);
+                if (TREE[child] == 0) {
+                    TREE[child] = nodes++;
+                }
+                node = TREE[child];
+            }
+            TREE[2 * node + (CODES[s] & 1)] = -s - 1;
+        }
+    }
+
+
+    private HpackHuffman() {
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the length of the Huffman encoding of the given bytes.
+     */
+    public static int encodedLength(byte[] b, int off, int len) {
+        long bits = 0;
+        for (int i = off; i < off + len; i++) {
+            bits += LENGTHS[b[i] & 0xff];
+        }
+        return (int) ((bits + 7) >> 3);
+    }
+
+
+    /**
+     * Append the Huffman encoding of the given bytes, padded with the most
+     * significant bits of EOS.
+     */
+    public static void encode(byte[] b, int off, int len, ByteChunk out)
+        throws IOException {
+        long current = 0;
+        int bits = 0;
+        for (int i = off; i < off + len; i++) {
+            int s = b[i] & 0xff;
+            current = (current << LENGTHS[s]) | CODES[s];
+            bits += LENGTHS[s];
+            while (bits >= 8) {
+                bits -= 8;
+                out.append((byte) (current >>> bits));
+            }
+        }
+        if (bits > 0) {
+            out.append((byte) ((current << (8 - bits)) | (0xff >>> bits)));
+        }
+    }
+
+
+    /**
+     * Decode the Huffman encoded bytes, appending the decoded bytes.
+     *
+     * @throws HpackException if the encoding is invalid
+     */
+    public static void decode(byte[] b, int off, int len, ByteChunk out)
+        throws IOException {
+        int node = 0;
+        // Bits read since the last symbol, all ones so far
+        int pending = 0;
+        boolean ones = true;
+        for (int i = off; i < off + len; i++) {
+            int octet = b[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int value = (octet >>> bit) & 1;
+                int child = TREE[2 * node + value];
+                pending++;
+                ones = ones && (value == 1);
+                if (child < 0) {
+                    int s = -child - 1;
+                    if (s == EOS) {
+                        throw new HpackException(
+                                HpackDecoder.sm.getString("hpack.huffman.eos"));
+                    }
+                    out.append((byte) s);
+                    node = 0;
+                    pending = 0;
+                    ones = true;
+                } else {
+                    node = child;
+                }
+            }
+        }
+        // The padding is at most 7 bits of the EOS code
+        if (pending > 7 || !ones) {
+            throw new HpackException(
+                    HpackDecoder.sm.getString("hpack.huffman.padding"));
+        }
+    }
+
+
+}
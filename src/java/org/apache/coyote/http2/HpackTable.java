@@ -0,0 +1,413 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http2;
+
+
+/**
+ * HPACK header table (RFC 7541, section 2.3): the static table followed by
+ * the dynamic table of one direction of a connection. The dynamic table is
+ * a ring of entries whose byte arrays are reused as entries are evicted and
+ * added, and across connections once the table is recycled.
+ *
+ * @version $Revision$
+ */
+public class HpackTable {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Overhead of an entry, added to the length of its name and value.
+     */
+    public static final int ENTRY_OVERHEAD = 32;
+
+
+    protected static final String[][] STATIC = {
+        { ":authority", "" },
+        { ":method", "GET" },
+        { ":method", "POST" },
+        { ":path", "/" },
+        { ":path", "/index.html" },
+        { ":scheme", "http" },
+        { ":scheme", "https" },
+        { ":status", "200" },
+        { ":status", "204" },
+        { ":status", "206" },
+        { ":status", "304" },
+        { ":status", "400" },
+        { ":status", "404" },
+        { ":status", "500" },
+        { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" },
+        { "accept-ranges", "" },
+        { "accept", "" },
+        { "access-control-allow-origin", "" },
+        { "age", "" },
+        { "allow", "" },
+        { "authorization", "" },
+        { "cache-control", "" },
+        { "content-disposition", "" },
+        { "content-encoding", "" },
+        { "content-language", "" },
+        { "content-length", "" },
+        { "content-location", "" },
+        { "content-range", "" },
+        { "content-type", "" },
+        { "cookie", "" },
+        { "date", "" },
+        { "etag", "" },
+        { "expect", "" },
+        { "expires", "" },
+        { "from", "" },
+        { "host", "" },
+        { "if-match", "" },
+        { "if-modified-since", "" },
+        { "if-none-match", "" },
+        { "if-range", "" },
+        { "if-unmodified-since", "" },
+        { "last-modified", "" },
+        { "link", "" },
+        { "location", "" },
+        { "max-forwards", "" },
+        { "proxy-authenticate", "" },
+        { "proxy-authorization", "" },
+        { "range", "" },
+        { "referer", "" },
+        { "refresh", "" },
+        { "retry-after", "" },
+        { "server", "" },
+        { "set-cookie", "" },
+        { "strict-transport-security", "" },
+        { "transfer-encoding", "" },
+        { "user-agent", "" },
+        { "vary", "" },
+        { "via", "" },
+        { "www-authenticate", "" }
+    };
+
+
+    /**
+     * Number of entries of the static table.
+     */
+    public static final int STATIC_LENGTH = STATIC.length;
+
+
+    protected static final Entry[] STATIC_ENTRIES = new Entry[STATIC_LENGTH];
+
+
+    static {
+        for (int i = 0; i < STATIC_LENGTH; i++) {
+            Entry entry = new Entry();
+            entry.set(STATIC[i][0], STATIC[i][1]);
+            STATIC_ENTRIES[i] = entry;
+        }
+    }
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    public HpackTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Ring of the dynamic entries, its length is a power of two.
+     */
+    protected Entry[] entries = new Entry[16];
+
+
+    /**
+     * Position of the newest dynamic entry in the ring.
+     */
+    protected int head = 0;
+
+
+    /**
+     * Number of dynamic entries.
+     */
+    protected int count = 0;
+
+
+    /**
+     * Size of the dynamic table, as defined by HPACK.
+     */
+    protected int size = 0;
+
+
+    /**
+     * Maximum size of the dynamic table.
+     */
+    protected int maxSize;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+
+    /**
+     * Set the maximum size of the dynamic table, evicting the oldest entries
+     * which do not fit any more.
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict(0);
+    }
+
+
+    public int getSize() {
+        return size;
+    }
+
+
+    /**
+     * Return the number of entries, static and dynamic.
+     */
+    public int length() {
+        return STATIC_LENGTH + count;
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the entry with the given HPACK index, starting at 1, or
+     * <code>null</code> if there is no such entry.
+     */
+    public Entry get(int index) {
+        if (index < 1) {
+            return null;
+        } else if (index <= STATIC_LENGTH) {
+            return STATIC_ENTRIES[index - 1];
+        }
+        int i = index - STATIC_LENGTH - 1;
+        if (i >= count) {
+            return null;
+        }
+        return entries[(head - i) & (entries.length - 1)];
+    }
+
+
+    /**
+     * Add an entry to the dynamic table. An entry larger than the table
+     * empties it.
+     */
+    public void add(byte[] name, int nameOff, int nameLen,
+                    byte[] value, int valueOff, int valueLen) {
+        Entry entry = next(nameLen + valueLen + ENTRY_OVERHEAD);
+        if (entry != null) {
+            entry.set(name, nameOff, nameLen, value, valueOff, valueLen);
+        }
+    }
+
+
+    /**
+     * Add an entry to the dynamic table. An entry larger than the table
+     * empties it.
+     */
+    public void add(String name, String value) {
+        Entry entry = next(name.length() + value.length() + ENTRY_OVERHEAD);
+        if (entry != null) {
+            entry.set(name, value);
+        }
+    }
+
+
+    /**
+     * Find the entry with the given name and value.
+     *
+     * @return the index of an entry with the same name and value, minus the
+     *  index of an entry with the same name, or 0 if none has the same name
+     */
+    public int find(String name, String value) {
+        int nameIndex = 0;
+        for (int i = 0; i < STATIC_LENGTH; i++) {
+            Entry entry = STATIC_ENTRIES[i];
+            if (entry.nameEquals(name)) {
+                if (entry.valueEquals(value)) {
+                    return i + 1;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = i + 1;
+                }
+            }
+        }
+        int mask = entries.length - 1;
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries[(head - i) & mask];
+            if (entry.nameEquals(name)) {
+                if (entry.valueEquals(value)) {
+                    return STATIC_LENGTH + i + 1;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = STATIC_LENGTH + i + 1;
+                }
+            }
+        }
+        return -nameIndex;
+    }
+
+
+    /**
+     * Empty the dynamic table and restore its maximum size, keeping its
+     * entries for reuse.
+     */
+    public void recycle(int maxSize) {
+        count = 0;
+        size = 0;
+        this.maxSize = maxSize;
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Evict the oldest entries until an entry of the given size fits.
+     */
+    protected void evict(int entrySize) {
+        while (count > 0 && size + entrySize > maxSize) {
+            Entry oldest = entries[(head - count + 1) & (entries.length - 1)];
+            size -= oldest.size();
+            count--;
+        }
+    }
+
+
+    /**
+     * Make room for a new entry of the given size and return the entry to
+     * set, or <code>null</code> if it is larger than the table.
+     */
+    protected Entry next(int entrySize) {
+        if (entrySize > maxSize) {
+            count = 0;
+            size = 0;
+            return null;
+        }
+        evict(entrySize);
+        if (count == entries.length) {
+            Entry[] grown = new Entry[entries.length * 2];
+            for (int i = 0; i < count; i++) {
+                grown[count - 1 - i] = entries[(head - i) & (entries.length - 1)];
+            }
+            entries = grown;
+            head = count - 1;
+        }
+        head = (head + 1) & (entries.length - 1);
+        Entry entry = entries[head];
+        if (entry == null) {
+            entry = new Entry();
+            entries[head] = entry;
+        }
+        count++;
+        size += entrySize;
+        return entry;
+    }
+
+
+    // ---------------------------------------------------------- Entry Class
+
+
+    /**
+     * A header field of the table. Its byte arrays are reused when the
+     * entry is set again.
+     */
+    public static class Entry {
+
+        protected byte[] name = new byte[32];
+        protected int nameLength = 0;
+        protected byte[] value = new byte[64];
+        protected int valueLength = 0;
+
+        public byte[] getName() { return name; }
+        public int getNameLength() { return nameLength; }
+        public byte[] getValue() { return value; }
+        public int getValueLength() { return valueLength; }
+
+        public int size() {
+            return nameLength + valueLength + ENTRY_OVERHEAD;
+        }
+
+        protected void set(byte[] n, int nOff, int nLen,
+                           byte[] v, int vOff, int vLen) {
+            if (name.length < nLen) {
+                name = new byte[nLen];
+            }
+            System.arraycopy(n, nOff, name, 0, nLen);
+            nameLength = nLen;
+            if (value.length < vLen) {
+                value = new byte[vLen];
+            }
+            System.arraycopy(v, vOff, value, 0, vLen);
+            valueLength = vLen;
+        }
+
+        protected void set(String n, String v) {
+            int nLen = n.length();
+            if (name.length < nLen) {
+                name = new byte[nLen];
+            }
+            for (int i = 0; i < nLen; i++) {
+                name[i] = (byte) n.charAt(i);
+            }
+            nameLength = nLen;
+            int vLen = v.length();
+            if (value.length < vLen) {
+                value = new byte[vLen];
+            }
+            for (int i = 0; i < vLen; i++) {
+                value[i] = (byte) v.charAt(i);
+            }
+            valueLength = vLen;
+        }
+
+        protected boolean nameEquals(String s) {
+            return equals(name, nameLength, s);
+        }
+
+        protected boolean valueEquals(String s) {
+            return equals(value, valueLength, s);
+        }
+
+        protected static boolean equals(byte[] b, int len, String s) {
+            if (s.length() != len) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                if (b[i] != (byte) s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+
+}
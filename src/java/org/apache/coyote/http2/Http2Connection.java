@@ -0,0 +1,1277 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http2;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.coyote.Adapter;
+import org.apache.coyote.http11.Http11NioProcessor;
+import org.apache.tomcat.util.MutableInteger;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.apache.tomcat.util.net.NioChannel;
+import org.apache.tomcat.util.net.NioEndpoint;
+import org.apache.tomcat.util.net.SocketStatus;
+import org.apache.tomcat.util.net.NioEndpoint.Handler.SocketState;
+import org.apache.tomcat.util.res.StringManager;
+
+
+/**
+ * An HTTP/2 connection (RFC 7540). Frames are read without blocking when
+ * the poller reports the socket readable, and the streams they open are
+ * processed on the executor. Frames are written with blocking writes, one
+ * frame at a time, by the stream threads and the reading thread. The header
+ * blocks are encoded while the frames are written, which keeps the HPACK
+ * contexts of both ends in step.
+ *
+ * @version $Revision$
+ */
+public class Http2Connection {
+
+
+    /**
+     * Logger.
+     */
+    protected static org.apache.juli.logging.Log log
+        = org.apache.juli.logging.LogFactory.getLog(Http2Connection.class);
+
+    /**
+     * The string manager for this package.
+     */
+    protected static StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    public Http2Connection(Http2NioProtocol.Http2ConnectionHandler handler,
+                           Http2NioProtocol proto) {
+        this.handler = handler;
+        this.proto = proto;
+        this.endpoint = proto.getNioEndpoint();
+        readBuffer = ByteBuffer.allocate(Constants.FRAME_HEADER_SIZE
+                + proto.getMaxFrameSize());
+        writeBuffer = ByteBuffer.allocate(Constants.FRAME_HEADER_SIZE
+                + Constants.DEFAULT_MAX_FRAME_SIZE);
+        decoder = new HpackDecoder(proto.getHeaderTableSize());
+        encoder = new HpackEncoder(Constants.DEFAULT_HEADER_TABLE_SIZE);
+        headerBlock.allocate(1024, -1);
+        headerOut.allocate(1024, -1);
+        ignoredHeaders.allocate(256, -1);
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    protected Http2NioProtocol.Http2ConnectionHandler handler;
+    protected Http2NioProtocol proto;
+    protected NioEndpoint endpoint;
+
+
+    /**
+     * Socket of the connection, and its channel when the connection
+     * started: once the socket is closed, the endpoint reuses it.
+     */
+    protected NioChannel socket = null;
+    protected SocketChannel ioChannel = null;
+
+
+    /**
+     * Bytes read and not processed yet, in fill mode between reads.
+     */
+    protected ByteBuffer readBuffer;
+
+
+    /**
+     * Number of bytes of the client connection preface already read.
+     */
+    protected int prefaceRead = 0;
+
+
+    /**
+     * Decoder of the header blocks received, and encoder of the header
+     * blocks sent.
+     */
+    protected HpackDecoder decoder;
+    protected HpackEncoder encoder;
+
+
+    /**
+     * Header block being received, which continues in CONTINUATION frames.
+     */
+    protected ByteChunk headerBlock = new ByteChunk();
+    protected int headerBlockStream = 0;
+    protected int headerBlockFlags = 0;
+    protected Http2Stream headerBlockTarget = null;
+
+
+    /**
+     * Storage of the header fields which are not used.
+     */
+    protected ByteChunk ignoredHeaders = new ByteChunk();
+
+
+    /**
+     * Stream of the header fields being ignored.
+     */
+    protected int ignoredStream = 0;
+
+
+    /**
+     * Receiver of the header fields which are decoded but not used: the
+     * trailers, and the requests of refused streams. Their size is limited
+     * like the size of the headers of the streams.
+     */
+    protected final HpackDecoder.HeaderEmitter ignore =
+        new HpackDecoder.HeaderEmitter() {
+            public void emitHeader(byte[] b, int nameStart, int nameLength,
+                                   int valueStart, int valueLength)
+                throws IOException {
+                if (ignoredHeaders.getLength() > getMaxHeaderSize()) {
+                    // Indexed fields expand without bound: the connection ends
+                    throw new Http2Exception(0, Constants.ENHANCE_YOUR_CALM,
+                            sm.getString("http2stream.headerSize",
+                                    new Integer(ignoredStream)));
+                }
+            }
+        };
+
+
+    /**
+     * Open streams, guarded by the connection.
+     */
+    protected HashMap<Integer, Http2Stream> streams =
+        new HashMap<Integer, Http2Stream>();
+
+
+    /**
+     * Highest stream identifier opened by the client.
+     */
+    protected int lastStreamId = 0;
+
+
+    /**
+     * Number of streams being processed, guarded by the connection.
+     */
+    protected int activeStreams = 0;
+
+
+    /**
+     * Did either end send GOAWAY.
+     */
+    protected volatile boolean goAway = false;
+
+
+    /**
+     * Is the connection closed.
+     */
+    protected volatile boolean closed = false;
+
+
+    /**
+     * Settings of the client.
+     */
+    protected int remoteInitialWindowSize = Constants.DEFAULT_WINDOW_SIZE;
+    protected int remoteMaxFrameSize = Constants.DEFAULT_MAX_FRAME_SIZE;
+
+
+    /**
+     * Number of bytes which may be sent on the connection, guarded by the
+     * connection.
+     */
+    protected int sendWindow = Constants.DEFAULT_WINDOW_SIZE;
+
+
+    /**
+     * Lock of the writes, and of the HPACK encoder.
+     */
+    protected Object writeLock = new Object();
+
+
+    /**
+     * Frame being written.
+     */
+    protected ByteBuffer writeBuffer;
+
+
+    /**
+     * Header block being written.
+     */
+    protected ByteChunk headerOut = new ByteChunk();
+
+
+    protected MutableInteger lastWrite = new MutableInteger(1);
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    public NioChannel getSocket() {
+        return socket;
+    }
+
+
+    public Adapter getAdapter() {
+        return proto.getAdapter();
+    }
+
+
+    /**
+     * Return the read and write timeout of the streams.
+     */
+    public long getTimeout() {
+        return endpoint.getSoTimeout();
+    }
+
+
+    public int getMaxHeaderSize() {
+        return proto.getMaxHttpHeaderSize();
+    }
+
+
+    public synchronized int getActiveStreams() {
+        return activeStreams;
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Start the connection on a socket, which the given processor switched
+     * to HTTP/2: write the settings and go on with what was read past the
+     * request of the processor.
+     */
+    public SocketState start(NioChannel socket, Http11NioProcessor processor)
+        throws IOException {
+        this.socket = socket;
+        this.ioChannel = socket.getIOChannel();
+        Http2Stream upgradeStream = null;
+        if (processor.isHttp2Preface()) {
+            // The request line and the empty line of the preface are read
+            prefaceRead = Constants.PREFACE_BODY;
+        } else {
+            prefaceRead = 0;
+            writeRaw(Constants.SWITCHING_PROTOCOLS);
+            MessageBytes settingsMB = processor.getRequest().getMimeHeaders()
+                .getValue("http2-settings");
+            byte[] settings = decodeBase64Url(settingsMB.toString());
+            if (settings == null) {
+                return SocketState.CLOSED;
+            }
+            writeSettings();
+            try {
+                applySettings(settings, 0, settings.length);
+            } catch (Http2Exception e) {
+                goAway(e.getError());
+                return SocketState.CLOSED;
+            }
+            // The request is stream 1, half closed
+            lastStreamId = 1;
+            upgradeStream = openStream(1);
+            upgradeStream.setUpgradeRequest(processor.getRequest());
+            upgradeStream.endInput();
+        }
+        if (upgradeStream == null) {
+            writeSettings();
+        }
+        processor.transferLeftover(readBuffer);
+        if (upgradeStream != null) {
+            dispatch(upgradeStream);
+        }
+        return read(false);
+    }
+
+
+    /**
+     * Process an event of the socket.
+     */
+    public SocketState event(SocketStatus status) {
+        if (status == SocketStatus.OPEN) {
+            return read(true);
+        } else if (status == SocketStatus.TIMEOUT && !closed
+                && getActiveStreams() > 0) {
+            // Idle while the streams are processed
+            return SocketState.LONG;
+        } else if (status == SocketStatus.TIMEOUT) {
+            goAway(Constants.NO_ERROR);
+        }
+        close();
+        return SocketState.CLOSED;
+    }
+
+
+    /**
+     * Close the connection, resetting the open streams.
+     */
+    public void close() {
+        ArrayList<Http2Stream> open = null;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            open = new ArrayList<Http2Stream>(streams.values());
+            notifyAll();
+        }
+        for (int i = 0; i < open.size(); i++) {
+            open.get(i).receiveReset();
+        }
+    }
+
+
+    /**
+     * Recycle the connection, once it is closed and its streams ended.
+     *
+     * @return true if it can be used for another socket
+     */
+    public boolean recycle() {
+        synchronized (this) {
+            if (!closed || activeStreams > 0) {
+                return false;
+            }
+            streams.clear();
+            activeStreams = 0;
+            lastStreamId = 0;
+            sendWindow = Constants.DEFAULT_WINDOW_SIZE;
+            goAway = false;
+            closed = false;
+        }
+        socket = null;
+        ioChannel = null;
+        readBuffer.clear();
+        prefaceRead = 0;
+        decoder.recycle();
+        encoder.recycle(Constants.DEFAULT_HEADER_TABLE_SIZE);
+        headerBlock.recycle();
+        headerBlockStream = 0;
+        headerBlockTarget = null;
+        remoteInitialWindowSize = Constants.DEFAULT_WINDOW_SIZE;
+        remoteMaxFrameSize = Constants.DEFAULT_MAX_FRAME_SIZE;
+        return true;
+    }
+
+
+    /**
+     * Write the headers of a response.
+     *
+     * @param status status of the response
+     * @param headers header fields, or <code>null</code> for none
+     * @param endStream true if the response has no body
+     */
+    public void writeHeaders(Http2Stream stream, int status,
+                             MimeHeaders headers, boolean endStream)
+        throws IOException {
+        synchronized (writeLock) {
+            checkWritable(stream);
+            headerOut.recycle();
+            encoder.begin(headerOut);
+            encoder.encodeStatus(status, headerOut);
+            if (headers != null) {
+                if (proto.getServer() != null) {
+                    headers.setValue("Server").setString(proto.getServer());
+                }
+                int size = headers.size();
+                for (int i = 0; i < size; i++) {
+                    String name = headers.getName(i).toString().toLowerCase();
+                    if (name.equals("connection") || name.equals("keep-alive")
+                            || name.equals("transfer-encoding")
+                            || name.equals("upgrade")
+                            || name.equals("proxy-connection")) {
+                        continue;
+                    }
+                    encoder.encodeHeader(name, headers.getValue(i).toString(),
+                            headerOut);
+                }
+                encoder.encodeHeader("date",
+                        org.apache.tomcat.util.http.FastHttpDateFormat.getCurrentDate(),
+                        headerOut);
+            }
+            byte[] b = headerOut.getBuffer();
+            int len = headerOut.getLength();
+            int max = maxPayload();
+            int n = Math.min(len, max);
+            int flags = (endStream ? Constants.FLAG_END_STREAM : 0)
+                | (n == len ? Constants.FLAG_END_HEADERS : 0);
+            writeFrame(Constants.FRAME_HEADERS, flags, stream.getId(), b, 0, n);
+            for (int off = n; off < len; off += n) {
+                n = Math.min(len - off, max);
+                flags = (off + n == len) ? Constants.FLAG_END_HEADERS : 0;
+                writeFrame(Constants.FRAME_CONTINUATION, flags, stream.getId(),
+                        b, off, n);
+            }
+        }
+    }
+
+
+    /**
+     * Write response data, as the flow control windows allow.
+     *
+     * @param b the data, or <code>null</code> if there is none
+     * @param endStream true if the data ends the response
+     */
+    public void writeData(Http2Stream stream, byte[] b, int off, int len,
+                          boolean endStream)
+        throws IOException {
+        do {
+            int n = 0;
+            synchronized (this) {
+                long timeout = getTimeout();
+                long start = System.currentTimeMillis();
+                while (true) {
+                    if (closed || stream.isReset()) {
+                        throw new IOException(sm.getString(
+                                "http2stream.reset", new Integer(stream.getId())));
+                    }
+                    n = Math.min(Math.min(len, maxPayload()),
+                                 Math.min(sendWindow, stream.sendWindow));
+                    if (n > 0 || len == 0) {
+                        break;
+                    }
+                    long wait = timeout - (System.currentTimeMillis() - start);
+                    if (timeout > 0 && wait <= 0) {
+                        throw new SocketTimeoutException();
+                    }
+                    try {
+                        wait(timeout > 0 ? wait : 0);
+                    } catch (InterruptedException e) {
+                        throw new java.io.InterruptedIOException();
+                    }
+                }
+                sendWindow -= n;
+                stream.sendWindow -= n;
+            }
+            boolean last = endStream && (n == len);
+            synchronized (writeLock) {
+                checkWritable(stream);
+                writeFrame(Constants.FRAME_DATA,
+                        last ? Constants.FLAG_END_STREAM : 0,
+                        stream.getId(), b, off, n);
+            }
+            off += n;
+            len -= n;
+        } while (len > 0);
+    }
+
+
+    /**
+     * Allow the client to send more data on a stream.
+     */
+    public void writeWindowUpdate(int streamId, int increment)
+        throws IOException {
+        if (closed || increment <= 0) {
+            return;
+        }
+        synchronized (writeLock) {
+            writeFrame(Constants.FRAME_WINDOW_UPDATE, 0, streamId,
+                    intBytes(increment), 0, 4);
+        }
+    }
+
+
+    /**
+     * The processing of a stream ended: reset it if the exchange is not
+     * complete, and recycle it.
+     */
+    public void streamEnded(Http2Stream stream, boolean error) {
+        int id = stream.getId();
+        if (!stream.isReset() && !closed) {
+            try {
+                if (!stream.isOutputEnded() || error) {
+                    writeReset(id, Constants.INTERNAL_ERROR);
+                } else if (!stream.isInputEnded()) {
+                    // The response is complete, the rest of the request is
+                    // not needed
+                    writeReset(id, Constants.NO_ERROR);
+                }
+            } catch (IOException e) {
+                // Ignore, the connection is closing
+            }
+        }
+        synchronized (this) {
+            streams.remove(new Integer(id));
+        }
+        handler.recycleStream(stream);
+        // Last, as the connection may be recycled once no stream is active
+        synchronized (this) {
+            activeStreams--;
+        }
+        if (closed) {
+            handler.recycleConnection(this);
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Read and process the frames available.
+     *
+     * @param socketRead true if the socket is known to be readable
+     */
+    protected SocketState read(boolean socketRead) {
+        try {
+            while (!closed) {
+                int n = socket.read(readBuffer);
+                if (n < 0) {
+                    close();
+                    return SocketState.CLOSED;
+                }
+                process();
+                if (n == 0) {
+                    break;
+                }
+            }
+        } catch (Http2Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("http2connection.error",
+                        new Integer(e.getError())), e);
+            }
+            goAway(e.getError());
+            close();
+            return SocketState.CLOSED;
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("http2connection.ioerror"), e);
+            }
+            close();
+            return SocketState.CLOSED;
+        }
+        return closed ? SocketState.CLOSED : SocketState.LONG;
+    }
+
+
+    /**
+     * Process the complete frames of the read buffer.
+     */
+    protected void process()
+        throws IOException {
+        readBuffer.flip();
+        try {
+            byte[] b = readBuffer.array();
+            while (prefaceRead < Constants.PREFACE.length
+                   && readBuffer.hasRemaining()) {
+                if (readBuffer.get() != Constants.PREFACE[prefaceRead++]) {
+                    throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                            sm.getString("http2connection.preface"));
+                }
+            }
+            while (readBuffer.remaining() >= Constants.FRAME_HEADER_SIZE) {
+                int pos = readBuffer.arrayOffset() + readBuffer.position();
+                int len = ((b[pos] & 0xff) << 16) | ((b[pos + 1] & 0xff) << 8)
+                    | (b[pos + 2] & 0xff);
+                int type = b[pos + 3] & 0xff;
+                int flags = b[pos + 4] & 0xff;
+                int streamId = readInt(b, pos + 5) & 0x7fffffff;
+                if (len > readBuffer.capacity() - Constants.FRAME_HEADER_SIZE) {
+                    throw new Http2Exception(0, Constants.FRAME_SIZE_ERROR,
+                            sm.getString("http2connection.frameSize",
+                                    new Integer(len)));
+                }
+                if (readBuffer.remaining() < Constants.FRAME_HEADER_SIZE + len) {
+                    break;
+                }
+                readBuffer.position(readBuffer.position()
+                        + Constants.FRAME_HEADER_SIZE + len);
+                try {
+                    processFrame(type, flags, streamId, b,
+                            pos + Constants.FRAME_HEADER_SIZE, len);
+                } catch (Http2Exception e) {
+                    if (e.getStreamId() == 0) {
+                        throw e;
+                    }
+                    resetStream(e.getStreamId(), e.getError());
+                }
+            }
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+
+    /**
+     * Process a frame.
+     */
+    protected void processFrame(int type, int flags, int streamId,
+                                byte[] b, int off, int len)
+        throws IOException {
+        if (headerBlockStream != 0 && (type != Constants.FRAME_CONTINUATION
+                || streamId != headerBlockStream)) {
+            throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                    sm.getString("http2connection.continuation"));
+        }
+        switch (type) {
+        case Constants.FRAME_DATA:
+            processData(flags, streamId, b, off, len);
+            break;
+        case Constants.FRAME_HEADERS:
+            processHeaders(flags, streamId, b, off, len);
+            break;
+        case Constants.FRAME_PRIORITY:
+            if (len != 5) {
+                throw new Http2Exception(streamId, Constants.FRAME_SIZE_ERROR,
+                        sm.getString("http2connection.frameSize", new Integer(len)));
+            }
+            break;
+        case Constants.FRAME_RST_STREAM:
+            processReset(streamId, len);
+            break;
+        case Constants.FRAME_SETTINGS:
+            processSettings(flags, streamId, b, off, len);
+            break;
+        case Constants.FRAME_PING:
+            if (streamId != 0) {
+                throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                        sm.getString("http2connection.stream", new Integer(type)));
+            }
+            if (len != 8) {
+                throw new Http2Exception(0, Constants.FRAME_SIZE_ERROR,
+                        sm.getString("http2connection.frameSize", new Integer(len)));
+            }
+            if ((flags & Constants.FLAG_ACK) == 0) {
+                synchronized (writeLock) {
+                    writeFrame(Constants.FRAME_PING, Constants.FLAG_ACK, 0,
+                            b, off, len);
+                }
+            }
+            break;
+        case Constants.FRAME_GOAWAY:
+            if (streamId != 0) {
+                throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                        sm.getString("http2connection.stream", new Integer(type)));
+            }
+            // The streams already opened are processed
+            goAway = true;
+            break;
+        case Constants.FRAME_WINDOW_UPDATE:
+            processWindowUpdate(streamId, b, off, len);
+            break;
+        case Constants.FRAME_CONTINUATION:
+            if (headerBlockStream == 0) {
+                throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                        sm.getString("http2connection.continuation"));
+            }
+            appendHeaderBlock(b, off, len);
+            if ((flags & Constants.FLAG_END_HEADERS) != 0) {
+                headersEnd();
+            }
+            break;
+        case Constants.FRAME_PUSH_PROMISE:
+            throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                    sm.getString("http2connection.push"));
+        default:
+            // Unknown frame types are ignored
+        }
+    }
+
+
+    /**
+     * Process a DATA frame.
+     */
+    protected void processData(int flags, int streamId, byte[] b, int off,
+                               int len)
+        throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                    sm.getString("http2connection.stream",
+                            new Integer(Constants.FRAME_DATA)));
+        }
+        // The connection window is given back right away, the stream
+        // windows as the data is read
+        writeWindowUpdate(0, len);
+        int padding = 0;
+        if ((flags & Constants.FLAG_PADDED) != 0) {
+            if (len < 1 || (padding = b[off] & 0xff) >= len) {
+                throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                        sm.getString("http2connection.padding"));
+            }
+            off++;
+            len--;
+        }
+        Http2Stream stream = getStream(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                        sm.getString("http2connection.idle", new Integer(streamId)));
+            }
+            // Closed or reset stream
+            return;
+        }
+        if (stream.isInputEnded()) {
+            throw new Http2Exception(streamId, Constants.STREAM_CLOSED,
+                    sm.getString("http2connection.closed", new Integer(streamId)));
+        }
+        stream.receiveData(b, off, len - padding,
+                (flags & Constants.FLAG_END_STREAM) != 0);
+        if (padding > 0 && !stream.isInputEnded()) {
+            writeWindowUpdate(streamId, padding + 1);
+        }
+    }
+
+
+    /**
+     * Process a HEADERS frame.
+     */
+    protected void processHeaders(int flags, int streamId, byte[] b, int off,
+                                  int len)
+        throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                    sm.getString("http2connection.stream",
+                            new Integer(Constants.FRAME_HEADERS)));
+        }
+        int padding = 0;
+        if ((flags & Constants.FLAG_PADDED) != 0) {
+            if (len < 1) {
+                throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                        sm.getString("http2connection.padding"));
+            }
+            padding = b[off] & 0xff;
+            off++;
+            len--;
+        }
+        if ((flags & Constants.FLAG_PRIORITY) != 0) {
+            if (len < 5) {
+                throw new Http2Exception(0, Constants.FRAME_SIZE_ERROR,
+                        sm.getString("http2connection.frameSize", new Integer(len)));
+            }
+            off += 5;
+            len -= 5;
+        }
+        if (padding > len) {
+            throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                    sm.getString("http2connection.padding"));
+        }
+        len -= padding;
+
+        Http2Stream stream = getStream(streamId);
+        if (stream != null) {
+            // Trailers, which are decoded but not used
+            if ((flags & Constants.FLAG_END_STREAM) == 0) {
+                throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                        sm.getString("http2connection.trailers"));
+            }
+            headerBlockTarget = null;
+        } else if (streamId <= lastStreamId) {
+            throw new Http2Exception(0, Constants.STREAM_CLOSED,
+                    sm.getString("http2connection.closed", new Integer(streamId)));
+        } else {
+            lastStreamId = streamId;
+            if (goAway || getActiveStreams() >= proto.getMaxConcurrentStreams()) {
+                // Decoded to keep the context, then refused
+                headerBlockTarget = null;
+            } else {
+                headerBlockTarget = openStream(streamId);
+            }
+        }
+        headerBlockStream = streamId;
+        headerBlockFlags = flags;
+        headerBlock.recycle();
+        appendHeaderBlock(b, off, len);
+        if ((flags & Constants.FLAG_END_HEADERS) != 0) {
+            headersEnd();
+        }
+    }
+
+
+    /**
+     * Add a fragment to the header block being received.
+     */
+    protected void appendHeaderBlock(byte[] b, int off, int len)
+        throws IOException {
+        if (headerBlock.getLength() + len > getMaxHeaderSize()) {
+            throw new Http2Exception(0, Constants.ENHANCE_YOUR_CALM,
+                    sm.getString("http2stream.headerSize",
+                            new Integer(headerBlockStream)));
+        }
+        headerBlock.append(b, off, len);
+    }
+
+
+    /**
+     * The header block being received is complete: decode it, and process
+     * the request it opens.
+     */
+    protected void headersEnd()
+        throws IOException {
+        int streamId = headerBlockStream;
+        Http2Stream stream = headerBlockTarget;
+        boolean endStream = (headerBlockFlags & Constants.FLAG_END_STREAM) != 0;
+        headerBlockStream = 0;
+        headerBlockTarget = null;
+        byte[] b = headerBlock.getBuffer();
+        int len = headerBlock.getLength();
+        try {
+            if (stream == null) {
+                ignoredHeaders.recycle();
+                ignoredStream = streamId;
+                decoder.decode(b, 0, len, ignoredHeaders, ignore);
+                Http2Stream open = getStream(streamId);
+                if (open != null) {
+                    // Trailers end the request
+                    open.endInput();
+                } else {
+                    writeReset(streamId, Constants.REFUSED_STREAM);
+                }
+                return;
+            }
+            stream.decodeHeaders(decoder, b, 0, len);
+        } catch (Http2Exception e) {
+            throw e;
+        } catch (IOException e) {
+            throw new Http2Exception(0, Constants.COMPRESSION_ERROR,
+                    e.getMessage());
+        }
+        if (!stream.headersEnd()) {
+            throw new Http2Exception(streamId, Constants.PROTOCOL_ERROR,
+                    sm.getString("http2stream.malformed", new Integer(streamId)));
+        }
+        if (endStream) {
+            stream.endInput();
+        }
+        dispatch(stream);
+    }
+
+
+    /**
+     * Process a RST_STREAM frame.
+     */
+    protected void processReset(int streamId, int len)
+        throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                    sm.getString("http2connection.stream",
+                            new Integer(Constants.FRAME_RST_STREAM)));
+        }
+        if (len != 4) {
+            throw new Http2Exception(0, Constants.FRAME_SIZE_ERROR,
+                    sm.getString("http2connection.frameSize", new Integer(len)));
+        }
+        Http2Stream stream = getStream(streamId);
+        if (stream != null) {
+            stream.receiveReset();
+            synchronized (this) {
+                notifyAll();
+            }
+        } else if (streamId > lastStreamId) {
+            throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                    sm.getString("http2connection.idle", new Integer(streamId)));
+        }
+    }
+
+
+    /**
+     * Process a SETTINGS frame.
+     */
+    protected void processSettings(int flags, int streamId, byte[] b, int off,
+                                   int len)
+        throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                    sm.getString("http2connection.stream",
+                            new Integer(Constants.FRAME_SETTINGS)));
+        }
+        if ((flags & Constants.FLAG_ACK) != 0) {
+            if (len != 0) {
+                throw new Http2Exception(0, Constants.FRAME_SIZE_ERROR,
+                        sm.getString("http2connection.frameSize", new Integer(len)));
+            }
+            return;
+        }
+        applySettings(b, off, len);
+        synchronized (writeLock) {
+            writeFrame(Constants.FRAME_SETTINGS, Constants.FLAG_ACK, 0,
+                    null, 0, 0);
+        }
+    }
+
+
+    /**
+     * Apply the settings of the client.
+     */
+    protected void applySettings(byte[] b, int off, int len)
+        throws IOException {
+        if (len % 6 != 0) {
+            throw new Http2Exception(0, Constants.FRAME_SIZE_ERROR,
+                    sm.getString("http2connection.frameSize", new Integer(len)));
+        }
+        for (int i = off; i < off + len; i += 6) {
+            int id = ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+            int value = readInt(b, i + 2);
+            switch (id) {
+            case Constants.SETTINGS_HEADER_TABLE_SIZE:
+                synchronized (writeLock) {
+                    encoder.setMaxTableSize(Math.min(value & 0x7fffffff,
+                            Constants.DEFAULT_HEADER_TABLE_SIZE));
+                }
+                break;
+            case Constants.SETTINGS_ENABLE_PUSH:
+                if (value != 0 && value != 1) {
+                    throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                            sm.getString("http2connection.setting",
+                                    new Integer(id), new Integer(value)));
+                }
+                break;
+            case Constants.SETTINGS_INITIAL_WINDOW_SIZE:
+                if (value < 0) {
+                    throw new Http2Exception(0, Constants.FLOW_CONTROL_ERROR,
+                            sm.getString("http2connection.setting",
+                                    new Integer(id), new Integer(value)));
+                }
+                synchronized (this) {
+                    // The windows of the open streams change by the
+                    // difference
+                    int delta = value - remoteInitialWindowSize;
+                    java.util.Iterator<Http2Stream> it = streams.values().iterator();
+                    while (delta > 0 && it.hasNext()) {
+                        if (it.next().sendWindow > Constants.MAX_WINDOW_SIZE - delta) {
+                            throw new Http2Exception(0, Constants.FLOW_CONTROL_ERROR,
+                                    sm.getString("http2connection.window"));
+                        }
+                    }
+                    remoteInitialWindowSize = value;
+                    it = streams.values().iterator();
+                    while (it.hasNext()) {
+                        it.next().sendWindow += delta;
+                    }
+                    notifyAll();
+                }
+                break;
+            case Constants.SETTINGS_MAX_FRAME_SIZE:
+                if (value < Constants.DEFAULT_MAX_FRAME_SIZE
+                        || value > Constants.MAX_FRAME_SIZE_LIMIT) {
+                    throw new Http2Exception(0, Constants.PROTOCOL_ERROR,
+                            sm.getString("http2connection.setting",
+                                    new Integer(id), new Integer(value)));
+                }
+                remoteMaxFrameSize = value;
+                break;
+            default:
+                // The other settings do not constrain what the server sends
+            }
+        }
+    }
+
+
+    /**
+     * Process a WINDOW_UPDATE frame.
+     */
+    protected void processWindowUpdate(int streamId, byte[] b, int off, int len)
+        throws IOException {
+        if (len != 4) {
+            throw new Http2Exception(0, Constants.FRAME_SIZE_ERROR,
+                    sm.getString("http2connection.frameSize", new Integer(len)));
+        }
+        int increment = readInt(b, off) & 0x7fffffff;
+        if (increment == 0) {
+            throw new Http2Exception(streamId, Constants.PROTOCOL_ERROR,
+                    sm.getString("http2connection.increment"));
+        }
+        synchronized (this) {
+            if (streamId == 0) {
+                if (sendWindow > Constants.MAX_WINDOW_SIZE - increment) {
+                    throw new Http2Exception(0, Constants.FLOW_CONTROL_ERROR,
+                            sm.getString("http2connection.window"));
+                }
+                sendWindow += increment;
+            } else {
+                Http2Stream stream = streams.get(new Integer(streamId));
+                if (stream == null) {
+                    return;
+                }
+                if (stream.sendWindow > Constants.MAX_WINDOW_SIZE - increment) {
+                    throw new Http2Exception(streamId, Constants.FLOW_CONTROL_ERROR,
+                            sm.getString("http2connection.window"));
+                }
+                stream.sendWindow += increment;
+            }
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Open a stream of the connection.
+     */
+    protected Http2Stream openStream(int streamId) {
+        Http2Stream stream = handler.createStream();
+        stream.init(this, streamId, proto.getInitialWindowSize(),
+                remoteInitialWindowSize);
+        synchronized (this) {
+            streams.put(new Integer(streamId), stream);
+            activeStreams++;
+        }
+        return stream;
+    }
+
+
+    /**
+     * Process the request of a stream on the executor.
+     */
+    protected void dispatch(Http2Stream stream)
+        throws IOException {
+        try {
+            proto.getStreamExecutor().execute(stream);
+        } catch (RejectedExecutionException e) {
+            log.warn(sm.getString("http2connection.rejected",
+                    new Integer(stream.getId())));
+            stream.receiveReset();
+            writeReset(stream.getId(), Constants.REFUSED_STREAM);
+            streamEnded(stream, false);
+        }
+    }
+
+
+    protected synchronized Http2Stream getStream(int streamId) {
+        return streams.get(new Integer(streamId));
+    }
+
+
+    /**
+     * Reset a stream after an error.
+     */
+    protected void resetStream(int streamId, int error)
+        throws IOException {
+        Http2Stream stream = getStream(streamId);
+        if (stream != null) {
+            stream.receiveReset();
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        writeReset(streamId, error);
+    }
+
+
+    protected void writeReset(int streamId, int error)
+        throws IOException {
+        synchronized (writeLock) {
+            writeFrame(Constants.FRAME_RST_STREAM, 0, streamId,
+                    intBytes(error), 0, 4);
+        }
+    }
+
+
+    /**
+     * Send GOAWAY, ignoring errors as the connection is closing.
+     */
+    protected void goAway(int error) {
+        goAway = true;
+        if (closed) {
+            return;
+        }
+        byte[] payload = new byte[8];
+        System.arraycopy(intBytes(lastStreamId), 0, payload, 0, 4);
+        System.arraycopy(intBytes(error), 0, payload, 4, 4);
+        try {
+            synchronized (writeLock) {
+                writeFrame(Constants.FRAME_GOAWAY, 0, 0, payload, 0, 8);
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+
+    /**
+     * Write the settings of the server.
+     */
+    protected void writeSettings()
+        throws IOException {
+        byte[] settings = new byte[18];
+        int n = 0;
+        n = putSetting(settings, n, Constants.SETTINGS_MAX_CONCURRENT_STREAMS,
+                proto.getMaxConcurrentStreams());
+        n = putSetting(settings, n, Constants.SETTINGS_INITIAL_WINDOW_SIZE,
+                proto.getInitialWindowSize());
+        if (proto.getMaxFrameSize() != Constants.DEFAULT_MAX_FRAME_SIZE) {
+            n = putSetting(settings, n, Constants.SETTINGS_MAX_FRAME_SIZE,
+                    proto.getMaxFrameSize());
+        }
+        synchronized (writeLock) {
+            writeFrame(Constants.FRAME_SETTINGS, 0, 0, settings, 0, n);
+        }
+        if (proto.getHeaderTableSize() != Constants.DEFAULT_HEADER_TABLE_SIZE) {
+            // The new size applies once acknowledged, the client may use
+            // the default one until then
+            decoder.setMaxTableSize(Math.max(proto.getHeaderTableSize(),
+                    Constants.DEFAULT_HEADER_TABLE_SIZE));
+        }
+    }
+
+
+    protected static int putSetting(byte[] b, int off, int id, int value) {
+        b[off] = (byte) (id >>> 8);
+        b[off + 1] = (byte) id;
+        System.arraycopy(intBytes(value), 0, b, off + 2, 4);
+        return off + 6;
+    }
+
+
+    /**
+     * Return the largest payload of the frames written.
+     */
+    protected int maxPayload() {
+        return Math.min(remoteMaxFrameSize,
+                writeBuffer.capacity() - Constants.FRAME_HEADER_SIZE);
+    }
+
+
+    /**
+     * Check that a frame of the stream can be written, with the write lock
+     * held.
+     */
+    protected void checkWritable(Http2Stream stream)
+        throws IOException {
+        if (closed || stream.isReset()) {
+            throw new IOException(sm.getString("http2stream.reset",
+                    new Integer(stream.getId())));
+        }
+    }
+
+
+    /**
+     * Write a frame, with the write lock held.
+     */
+    protected void writeFrame(int type, int flags, int streamId, byte[] b,
+                              int off, int len)
+        throws IOException {
+        writeBuffer.clear();
+        writeBuffer.put((byte) (len >>> 16));
+        writeBuffer.put((byte) (len >>> 8));
+        writeBuffer.put((byte) len);
+        writeBuffer.put((byte) type);
+        writeBuffer.put((byte) flags);
+        writeBuffer.putInt(streamId);
+        if (len > 0) {
+            writeBuffer.put(b, off, len);
+        }
+        writeBuffer.flip();
+        write(writeBuffer);
+    }
+
+
+    /**
+     * Write bytes which are not a frame.
+     */
+    protected void writeRaw(byte[] b)
+        throws IOException {
+        synchronized (writeLock) {
+            write(ByteBuffer.wrap(b));
+        }
+    }
+
+
+    /**
+     * Write a buffer to the socket, blocking.
+     */
+    protected void write(ByteBuffer buffer)
+        throws IOException {
+        if (closed || socket.getIOChannel() != ioChannel) {
+            throw new IOException(sm.getString("http2connection.closedWrite"));
+        }
+        Selector selector = null;
+        try {
+            selector = endpoint.getSelectorPool().get();
+        } catch (IOException x) {
+            // Ignore
+        }
+        try {
+            endpoint.getSelectorPool().write(buffer, socket, selector,
+                    getTimeout(), true, lastWrite);
+            while (!socket.flush(true, selector, getTimeout(), lastWrite)) {
+                // Flush until done
+            }
+        } finally {
+            if (selector != null) {
+                endpoint.getSelectorPool().put(selector);
+            }
+        }
+    }
+
+
+    protected static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+            | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+
+    protected static byte[] intBytes(int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16),
+                            (byte) (value >>> 8), (byte) value };
+    }
+
+
+    /**
+     * Decode the base64url encoding of the HTTP2-Settings header, without
+     * padding.
+     *
+     * @return the decoded bytes, or <code>null</code> if the encoding is
+     *  invalid
+     */
+    protected static byte[] decodeBase64Url(String s) {
+        int len = s.length();
+        while (len > 0 && s.charAt(len - 1) == '=') {
+            len--;
+        }
+        if (len % 4 == 1) {
+            return null;
+        }
+        byte[] result = new byte[len * 3 / 4];
+        int bits = 0;
+        int value = 0;
+        int n = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            int digit;
+            if (c >= 'A' && c <= 'Z') {
+                digit = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                digit = c - 'a' + 26;
+            } else if (c >= '0' && c <= '9') {
+                digit = c - '0' + 52;
+            } else if (c == '-' || c == '+') {
+                digit = 62;
+            } else if (c == '_' || c == '/') {
+                digit = 63;
+            } else {
+                return null;
+            }
+            value = (value << 6) | digit;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                result[n++] = (byte) (value >>> bits);
+            }
+        }
+        return result;
+    }
+
+
+}
@@ -0,0 +1,62 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http2;
+
+import java.io.IOException;
+
+
+/**
+ * Protocol error of the peer. An error of stream 0 ends the connection,
+ * the other ones reset their stream.
+ *
+ * @version $Revision$
+ */
+public class Http2Exception extends IOException {
+
+
+    private static final long serialVersionUID = 1L;
+
+
+    public Http2Exception(int streamId, int error, String message) {
+        super(message);
+        this.streamId = streamId;
+        this.error = error;
+    }
+
+
+    protected int streamId;
+    protected int error;
+
+
+    /**
+     * Return the stream the error applies to, 0 for the connection.
+     */
+    public int getStreamId() {
+        return streamId;
+    }
+
+
+    /**
+     * Return the error code sent to the peer.
+     */
+    public int getError() {
+        return error;
+    }
+
+
+}
@@ -0,0 +1,296 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http2;
+
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.coyote.http11.Http11NioProcessor;
+import org.apache.coyote.http11.Http11NioProtocol;
+import org.apache.tomcat.util.net.NioChannel;
+import org.apache.tomcat.util.net.NioEndpoint;
+import org.apache.tomcat.util.net.SocketStatus;
+import org.apache.tomcat.util.net.NioEndpoint.Handler.SocketState;
+import org.apache.tomcat.util.res.StringManager;
+
+
+/**
+ * HTTP/2 protocol handler on the NIO endpoint, for cleartext connections
+ * (h2c). Connections start as HTTP/1.1, and switch to HTTP/2 when they
+ * begin with the connection preface of the HTTP/2 clients which know the
+ * server supports it, or when a request asks for the upgrade to h2c. Other
+ * connections remain HTTP/1.1.
+ *
+ * @version $Revision$
+ */
+public class Http2NioProtocol extends Http11NioProtocol {
+
+
+    /**
+     * The string manager for this package.
+     */
+    protected static StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    public Http2NioProtocol() {
+        super();
+        cHandler = new Http2ConnectionHandler(this);
+    }
+
+
+    // -------------------- Properties--------------------
+
+
+    /**
+     * Maximum number of streams a client may open concurrently on a
+     * connection.
+     */
+    protected int maxConcurrentStreams = Constants.DEFAULT_MAX_CONCURRENT_STREAMS;
+    public int getMaxConcurrentStreams() { return maxConcurrentStreams; }
+    public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        setAttribute("maxConcurrentStreams", "" + maxConcurrentStreams);
+    }
+
+
+    /**
+     * Initial flow control window of the streams, the number of bytes of a
+     * request body the client may send before it is read.
+     */
+    protected int initialWindowSize = Constants.DEFAULT_WINDOW_SIZE;
+    public int getInitialWindowSize() { return initialWindowSize; }
+    public void setInitialWindowSize(int initialWindowSize) {
+        this.initialWindowSize = initialWindowSize;
+        setAttribute("initialWindowSize", "" + initialWindowSize);
+    }
+
+
+    /**
+     * Largest frame the client may send.
+     */
+    protected int maxFrameSize = Constants.DEFAULT_MAX_FRAME_SIZE;
+    public int getMaxFrameSize() { return maxFrameSize; }
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = Math.max(Constants.DEFAULT_MAX_FRAME_SIZE,
+                Math.min(maxFrameSize, Constants.MAX_FRAME_SIZE_LIMIT));
+        setAttribute("maxFrameSize", "" + maxFrameSize);
+    }
+
+
+    /**
+     * Size of the HPACK dynamic table of the header blocks received.
+     */
+    protected int headerTableSize = Constants.DEFAULT_HEADER_TABLE_SIZE;
+    public int getHeaderTableSize() { return headerTableSize; }
+    public void setHeaderTableSize(int headerTableSize) {
+        this.headerTableSize = headerTableSize;
+        setAttribute("headerTableSize", "" + headerTableSize);
+    }
+
+
+    /**
+     * Executor of the streams, when the endpoint does not use one.
+     */
+    protected ExecutorService streamExecutor = null;
+
+
+    protected NioEndpoint getNioEndpoint() {
+        return ep;
+    }
+
+
+    /**
+     * Return the executor processing the streams: the executor of the
+     * endpoint, or else a pool of the protocol, as the workers of the
+     * endpoint only process sockets.
+     */
+    protected synchronized Executor getStreamExecutor() {
+        if (ep.getExecutor() != null) {
+            return ep.getExecutor();
+        }
+        if (streamExecutor == null) {
+            final String name = getName() + "-h2-";
+            streamExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                protected AtomicInteger count = new AtomicInteger(0);
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name + count.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(getThreadPriority());
+                    return t;
+                }
+            });
+        }
+        return streamExecutor;
+    }
+
+
+    public void destroy() throws Exception {
+        super.destroy();
+        synchronized (this) {
+            if (streamExecutor != null) {
+                streamExecutor.shutdown();
+                streamExecutor = null;
+            }
+        }
+    }
+
+
+    // --------------------  Connection handler --------------------
+
+
+    protected static class Http2ConnectionHandler
+        extends Http11ConnectionHandler {
+
+        protected Http2NioProtocol h2proto;
+
+        protected ConcurrentHashMap<NioChannel, Http2Connection> h2connections =
+            new ConcurrentHashMap<NioChannel, Http2Connection>();
+
+        protected ConcurrentLinkedQueue<Http2Connection> recycledConnections =
+            new ConcurrentLinkedQueue<Http2Connection>();
+        protected AtomicInteger recycledConnectionCount = new AtomicInteger(0);
+
+        protected ConcurrentLinkedQueue<Http2Stream> recycledStreams =
+            new ConcurrentLinkedQueue<Http2Stream>();
+        protected AtomicInteger recycledStreamCount = new AtomicInteger(0);
+
+        protected Http2ConnectionHandler(Http2NioProtocol proto) {
+            super(proto);
+            this.h2proto = proto;
+        }
+
+        public Http11NioProcessor createProcessor() {
+            Http11NioProcessor processor = super.createProcessor();
+            processor.setHttp2(true);
+            return processor;
+        }
+
+        public void releaseCaches() {
+            super.releaseCaches();
+            recycledConnections.clear();
+            recycledConnectionCount.set(0);
+            recycledStreams.clear();
+            recycledStreamCount.set(0);
+        }
+
+        public void release(NioChannel socket) {
+            Http2Connection connection = h2connections.remove(socket);
+            if (connection != null) {
+                connection.close();
+                recycleConnection(connection);
+            } else {
+                super.release(socket);
+            }
+        }
+
+        protected SocketState upgrade(NioChannel socket,
+                Http11NioProcessor processor) throws java.io.IOException {
+            Http2Connection connection = recycledConnections.poll();
+            if (connection != null) {
+                recycledConnectionCount.decrementAndGet();
+            } else {
+                connection = new Http2Connection(this, h2proto);
+            }
+            h2connections.put(socket, connection);
+            SocketState state = SocketState.CLOSED;
+            try {
+                state = connection.start(socket, processor);
+            } finally {
+                state = afterEvent(socket, connection, state);
+            }
+            return state;
+        }
+
+        public SocketState event(NioChannel socket, SocketStatus status) {
+            Http2Connection connection = h2connections.get(socket);
+            if (connection == null) {
+                return super.event(socket, status);
+            }
+            SocketState state = connection.event(status);
+            state = afterEvent(socket, connection, state);
+            if (state == SocketState.LONG) {
+                socket.getPoller().add(socket, SelectionKey.OP_READ);
+            }
+            return state;
+        }
+
+        /**
+         * Keep the socket in the poller while the connection is open, its
+         * events handled as those of a long request.
+         */
+        protected SocketState afterEvent(NioChannel socket,
+                Http2Connection connection, SocketState state) {
+            if (state == SocketState.CLOSED) {
+                h2connections.remove(socket);
+                connection.close();
+                recycleConnection(connection);
+                return state;
+            }
+            NioEndpoint.KeyAttachment att =
+                (NioEndpoint.KeyAttachment) socket.getAttachment(false);
+            if (att != null) {
+                att.setComet(true);
+                att.setCometOps(SelectionKey.OP_READ);
+            }
+            return SocketState.LONG;
+        }
+
+        protected Http2Stream createStream() {
+            Http2Stream stream = recycledStreams.poll();
+            if (stream != null) {
+                recycledStreamCount.decrementAndGet();
+                return stream;
+            }
+            return new Http2Stream();
+        }
+
+        protected void recycleStream(Http2Stream stream) {
+            stream.recycle();
+            if (h2proto.processorCache == -1
+                || recycledStreamCount.get() < h2proto.processorCache) {
+                recycledStreamCount.incrementAndGet();
+                recycledStreams.offer(stream);
+            }
+        }
+
+        /**
+         * Keep a closed connection for another socket, once the processing
+         * of its streams ended.
+         */
+        protected void recycleConnection(Http2Connection connection) {
+            if (!connection.recycle()) {
+                return;
+            }
+            if (h2proto.processorCache == -1
+                || recycledConnectionCount.get() < h2proto.processorCache) {
+                recycledConnectionCount.incrementAndGet();
+                recycledConnections.offer(connection);
+            }
+        }
+
+    }
+
+
+}
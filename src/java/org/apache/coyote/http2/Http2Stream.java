@@ -0,0 +1,892 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+
+import org.apache.coyote.ActionCode;
+import org.apache.coyote.ActionHook;
+import org.apache.coyote.Adapter;
+import org.apache.coyote.InputBuffer;
+import org.apache.coyote.OutputBuffer;
+import org.apache.coyote.Request;
+import org.apache.coyote.RequestInfo;
+import org.apache.coyote.Response;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.HexUtils;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.apache.tomcat.util.res.StringManager;
+
+
+/**
+ * A stream of an HTTP/2 connection, mapped onto a request and its response.
+ * The request is processed by the adapter on a thread of the executor,
+ * reading the DATA frames the connection queues and writing its response
+ * through the connection, within the flow control windows. Streams are
+ * recycled with their request and response.
+ *
+ * @version $Revision$
+ */
+public class Http2Stream implements ActionHook, Runnable,
+        HpackDecoder.HeaderEmitter {
+
+
+    /**
+     * Logger.
+     */
+    protected static org.apache.juli.logging.Log log
+        = org.apache.juli.logging.LogFactory.getLog(Http2Stream.class);
+
+    /**
+     * The string manager for this package.
+     */
+    protected static StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    public Http2Stream() {
+
+        request = new Request();
+        request.setInputBuffer(new StreamInputBuffer());
+
+        response = new Response();
+        response.setHook(this);
+        response.setOutputBuffer(new StreamOutputBuffer());
+        request.setResponse(response);
+
+        headerStorage.allocate(256, -1);
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Connection of the stream.
+     */
+    protected Http2Connection connection = null;
+
+
+    /**
+     * Stream identifier.
+     */
+    protected int id = 0;
+
+
+    /**
+     * Request associated with the stream.
+     */
+    protected Request request = null;
+
+
+    /**
+     * Response associated with the stream.
+     */
+    protected Response response = null;
+
+
+    /**
+     * Decoded header names and values, which the request headers point to.
+     */
+    protected ByteChunk headerStorage = new ByteChunk();
+
+
+    /**
+     * Are the pseudo header fields done, a regular field having been seen.
+     */
+    protected boolean pseudoDone = false;
+
+
+    /**
+     * Was the header block invalid.
+     */
+    protected boolean malformed = false;
+
+
+    /**
+     * Authority pseudo header field, used as the host header when there is
+     * none.
+     */
+    protected int authorityStart = -1;
+    protected int authorityLength = 0;
+
+
+    /**
+     * Data received and not read yet.
+     */
+    protected LinkedList<byte[]> input = new LinkedList<byte[]>();
+
+
+    /**
+     * Number of bytes received and not read yet.
+     */
+    protected int queued = 0;
+
+
+    /**
+     * Was the end of the request received.
+     */
+    protected boolean inputEnded = false;
+
+
+    /**
+     * Number of bytes the client may send.
+     */
+    protected int recvWindow = 0;
+
+
+    /**
+     * Number of bytes which may be sent, guarded by the connection.
+     */
+    protected int sendWindow = 0;
+
+
+    /**
+     * Was the end of the response sent.
+     */
+    protected volatile boolean outputEnded = false;
+
+
+    /**
+     * Number of body bytes written.
+     */
+    protected long written = 0;
+
+
+    /**
+     * Was the stream reset by either end, or its connection closed.
+     */
+    protected volatile boolean reset = false;
+
+
+    /**
+     * Is the response complete.
+     */
+    protected boolean finished = false;
+
+
+    /**
+     * Error flag.
+     */
+    protected boolean error = false;
+
+
+    /**
+     * Host name of the request.
+     */
+    protected char[] hostNameC = new char[0];
+
+
+    protected String remoteAddr = null;
+    protected String remoteHost = null;
+    protected String localAddr = null;
+    protected String localName = null;
+    protected int remotePort = -1;
+    protected int localPort = -1;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    public int getId() {
+        return id;
+    }
+
+
+    public Request getRequest() {
+        return request;
+    }
+
+
+    public boolean isInputEnded() {
+        return inputEnded;
+    }
+
+
+    public boolean isOutputEnded() {
+        return outputEnded;
+    }
+
+
+    public boolean isReset() {
+        return reset;
+    }
+
+
+    public ByteChunk getHeaderStorage() {
+        return headerStorage;
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Start the stream with the given identifier on a connection.
+     */
+    public void init(Http2Connection connection, int id, int recvWindow,
+                     int sendWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.recvWindow = recvWindow;
+        this.sendWindow = sendWindow;
+        request.getRequestProcessor().setStage(
+                org.apache.coyote.Constants.STAGE_PARSE);
+    }
+
+
+    /**
+     * Add a decoded header field to the request.
+     */
+    public void emitHeader(byte[] b, int nameStart, int nameLength,
+                           int valueStart, int valueLength)
+        throws IOException {
+        if (headerStorage.getLength() > connection.getMaxHeaderSize()) {
+            // Indexed fields expand without bound: the connection ends
+            throw new Http2Exception(0, Constants.ENHANCE_YOUR_CALM,
+                    sm.getString("http2stream.headerSize", new Integer(id)));
+        }
+        if (nameLength > 0 && b[nameStart] == ':') {
+            if (pseudoDone) {
+                malformed = true;
+                return;
+            }
+            MessageBytes target = null;
+            if (matches(b, nameStart, nameLength, ":method")) {
+                target = request.method();
+            } else if (matches(b, nameStart, nameLength, ":scheme")) {
+                target = request.scheme();
+            } else if (matches(b, nameStart, nameLength, ":path")) {
+                int query = -1;
+                for (int i = valueStart; i < valueStart + valueLength; i++) {
+                    if (b[i] == '?') {
+                        query = i;
+                        break;
+                    }
+                }
+                request.unparsedURI().setBytes(b, valueStart, valueLength);
+                if (query == -1) {
+                    request.requestURI().setBytes(b, valueStart, valueLength);
+                } else {
+                    request.requestURI().setBytes(b, valueStart, query - valueStart);
+                    request.queryString().setBytes(b, query + 1,
+                            valueStart + valueLength - query - 1);
+                }
+                return;
+            } else if (matches(b, nameStart, nameLength, ":authority")) {
+                authorityStart = valueStart;
+                authorityLength = valueLength;
+                return;
+            } else {
+                malformed = true;
+                return;
+            }
+            if (!target.isNull()) {
+                malformed = true;
+            }
+            target.setBytes(b, valueStart, valueLength);
+            return;
+        }
+        pseudoDone = true;
+        for (int i = nameStart; i < nameStart + nameLength; i++) {
+            if (b[i] >= 'A' && b[i] <= 'Z') {
+                malformed = true;
+            }
+        }
+        if (matches(b, nameStart, nameLength, "connection")) {
+            malformed = true;
+        }
+        request.getMimeHeaders().addValue(b, nameStart, nameLength)
+            .setBytes(b, valueStart, valueLength);
+    }
+
+
+    /**
+     * The header block of the request was decoded.
+     *
+     * @return true if the request is valid
+     */
+    public boolean headersEnd() {
+        if (malformed || request.method().isNull()
+                || request.scheme().isNull() || request.requestURI().isNull()) {
+            return false;
+        }
+        request.protocol().setString(Constants.PROTOCOL);
+        MimeHeaders headers = request.getMimeHeaders();
+        if (headers.getValue("host") == null && authorityStart != -1) {
+            headers.addValue("host").setBytes(authorityBytes, authorityStart,
+                    authorityLength);
+        }
+        request.setStartTime(System.currentTimeMillis());
+        return true;
+    }
+
+
+    /**
+     * Array holding the authority, set when the header block is decoded.
+     */
+    protected byte[] authorityBytes = null;
+
+
+    /**
+     * Decode the header block of the request.
+     */
+    public void decodeHeaders(HpackDecoder decoder, byte[] b, int off, int len)
+        throws IOException {
+        decoder.decode(b, off, len, headerStorage, this);
+        if (authorityStart != -1) {
+            // Growing the storage keeps the offsets of the decoded bytes
+            authorityBytes = headerStorage.getBuffer();
+        }
+    }
+
+
+    /**
+     * Copy the request which upgraded an HTTP/1.1 connection, which is
+     * stream 1 of the connection.
+     */
+    public void setUpgradeRequest(Request upgrade) {
+        request.method().setString(upgrade.method().toString());
+        request.scheme().setString("http");
+        request.requestURI().setString(upgrade.requestURI().toString());
+        request.unparsedURI().setString(upgrade.unparsedURI().toString());
+        if (!upgrade.queryString().isNull()) {
+            request.queryString().setString(upgrade.queryString().toString());
+        }
+        request.protocol().setString(Constants.PROTOCOL);
+        MimeHeaders from = upgrade.getMimeHeaders();
+        MimeHeaders to = request.getMimeHeaders();
+        for (int i = 0; i < from.size(); i++) {
+            String name = from.getName(i).toString();
+            if (name.equalsIgnoreCase("connection")
+                    || name.equalsIgnoreCase("upgrade")
+                    || name.equalsIgnoreCase("http2-settings")
+                    || name.equalsIgnoreCase("keep-alive")) {
+                continue;
+            }
+            to.addValue(name).setString(from.getValue(i).toString());
+        }
+        request.setStartTime(System.currentTimeMillis());
+    }
+
+
+    /**
+     * Queue DATA received for the request.
+     */
+    public void receiveData(byte[] b, int off, int len, boolean endStream)
+        throws Http2Exception {
+        synchronized (this) {
+            if (len > recvWindow) {
+                throw new Http2Exception(id, Constants.FLOW_CONTROL_ERROR,
+                        sm.getString("http2stream.window", new Integer(id)));
+            }
+            recvWindow -= len;
+            if (len > 0) {
+                byte[] data = new byte[len];
+                System.arraycopy(b, off, data, 0, len);
+                input.add(data);
+                queued += len;
+            }
+            if (endStream) {
+                inputEnded = true;
+            }
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * The request has no more data.
+     */
+    public synchronized void endInput() {
+        inputEnded = true;
+        notifyAll();
+    }
+
+
+    /**
+     * The stream was reset, or its connection closed.
+     */
+    public void receiveReset() {
+        reset = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Process the request.
+     */
+    public void run() {
+        RequestInfo rp = request.getRequestProcessor();
+        Adapter adapter = connection.getAdapter();
+        if (!error) {
+            parseHost(request.getMimeHeaders().getValue("host"));
+        }
+        if (!error) {
+            try {
+                rp.setStage(org.apache.coyote.Constants.STAGE_SERVICE);
+                adapter.service(request, response);
+            } catch (InterruptedIOException e) {
+                error = true;
+            } catch (Throwable t) {
+                log.error(sm.getString("http2stream.process"), t);
+                // 500 - Internal Server Error
+                response.setStatus(500);
+                adapter.log(request, response, 0);
+                error = true;
+            }
+        } else {
+            adapter.log(request, response, 0);
+        }
+
+        rp.setStage(org.apache.coyote.Constants.STAGE_ENDINPUT);
+        try {
+            finish();
+        } catch (IOException e) {
+            error = true;
+        } catch (Throwable t) {
+            log.error(sm.getString("http2stream.finish"), t);
+            error = true;
+        }
+        if (error) {
+            response.setStatus(500);
+        }
+        request.updateCounters();
+
+        rp.setStage(org.apache.coyote.Constants.STAGE_ENDED);
+        connection.streamEnded(this, error);
+    }
+
+
+    /**
+     * Recycle the stream, with its request and response.
+     */
+    public void recycle() {
+        request.recycle();
+        response.recycle();
+        headerStorage.recycle();
+        connection = null;
+        id = 0;
+        pseudoDone = false;
+        malformed = false;
+        authorityStart = -1;
+        authorityLength = 0;
+        authorityBytes = null;
+        input.clear();
+        queued = 0;
+        inputEnded = false;
+        outputEnded = false;
+        written = 0;
+        reset = false;
+        finished = false;
+        error = false;
+        remoteAddr = null;
+        remoteHost = null;
+        localAddr = null;
+        localName = null;
+        remotePort = -1;
+        localPort = -1;
+    }
+
+
+    // ----------------------------------------------------- ActionHook Methods
+
+
+    /**
+     * Send an action to the connector.
+     *
+     * @param actionCode Type of the action
+     * @param param Action parameter
+     */
+    public void action(ActionCode actionCode, Object param) {
+
+        if (actionCode == ActionCode.ACTION_COMMIT) {
+
+            if (response.isCommitted())
+                return;
+
+            // Validate and write response headers
+            try {
+                commit(false);
+            } catch (IOException e) {
+                // Set error flag
+                error = true;
+            }
+
+        } else if (actionCode == ActionCode.ACTION_ACK) {
+
+            // Acknowledge the request: 100-continue
+            if (response.isCommitted() || inputEnded)
+                return;
+            MessageBytes expectMB = request.getMimeHeaders().getValue("expect");
+            if (expectMB != null
+                    && expectMB.indexOfIgnoreCase("100-continue", 0) != -1) {
+                try {
+                    connection.writeHeaders(this, 100, null, false);
+                } catch (IOException e) {
+                    // Set error flag
+                    error = true;
+                }
+            }
+
+        } else if (actionCode == ActionCode.ACTION_CLIENT_FLUSH) {
+
+            // DATA frames are written as they come
+            if (!response.isCommitted()) {
+                try {
+                    commit(false);
+                } catch (IOException e) {
+                    // Set error flag
+                    error = true;
+                }
+            }
+
+        } else if (actionCode == ActionCode.ACTION_CLOSE) {
+
+            // End the response
+            try {
+                finish();
+            } catch (IOException e) {
+                // Set error flag
+                error = true;
+            }
+
+        } else if (actionCode == ActionCode.ACTION_RESET) {
+
+            // Reset response
+            // Note: This must be called before the response is committed
+
+        } else if (actionCode == ActionCode.ACTION_AVAILABLE) {
+
+            synchronized (this) {
+                request.setAvailable(queued);
+            }
+
+        } else if (actionCode == ActionCode.ACTION_REQ_HOST_ADDR_ATTRIBUTE) {
+
+            // Get remote host address
+            if (remoteAddr == null) {
+                InetAddress inetAddr = connection.getSocket().getIOChannel()
+                    .socket().getInetAddress();
+                if (inetAddr != null) {
+                    remoteAddr = inetAddr.getHostAddress();
+                }
+            }
+            request.remoteAddr().setString(remoteAddr);
+
+        } else if (actionCode == ActionCode.ACTION_REQ_LOCAL_NAME_ATTRIBUTE) {
+
+            // Get local host name
+            if (localName == null) {
+                InetAddress inetAddr = connection.getSocket().getIOChannel()
+                    .socket().getLocalAddress();
+                if (inetAddr != null) {
+                    localName = inetAddr.getHostName();
+                }
+            }
+            request.localName().setString(localName);
+
+        } else if (actionCode == ActionCode.ACTION_REQ_HOST_ATTRIBUTE) {
+
+            // Get remote host name
+            if (remoteHost == null) {
+                InetAddress inetAddr = connection.getSocket().getIOChannel()
+                    .socket().getInetAddress();
+                if (inetAddr != null) {
+                    remoteHost = inetAddr.getHostName();
+                }
+                if (remoteHost == null) {
+                    remoteHost = remoteAddr;
+                }
+            }
+            request.remoteHost().setString(remoteHost);
+
+        } else if (actionCode == ActionCode.ACTION_REQ_LOCAL_ADDR_ATTRIBUTE) {
+
+            if (localAddr == null) {
+                localAddr = connection.getSocket().getIOChannel().socket()
+                    .getLocalAddress().getHostAddress();
+            }
+            request.localAddr().setString(localAddr);
+
+        } else if (actionCode == ActionCode.ACTION_REQ_REMOTEPORT_ATTRIBUTE) {
+
+            if (remotePort == -1) {
+                remotePort = connection.getSocket().getIOChannel().socket().getPort();
+            }
+            request.setRemotePort(remotePort);
+
+        } else if (actionCode == ActionCode.ACTION_REQ_LOCALPORT_ATTRIBUTE) {
+
+            if (localPort == -1) {
+                localPort = connection.getSocket().getIOChannel().socket().getLocalPort();
+            }
+            request.setLocalPort(localPort);
+
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Write the response headers.
+     *
+     * @param endStream true if the response has no body
+     */
+    protected void commit(boolean endStream)
+        throws IOException {
+        response.setCommitted(true);
+
+        int status = response.getStatus();
+        boolean entityBody = (status != 204) && (status != 205)
+            && (status != 304);
+        boolean head = request.method().equals("HEAD");
+
+        MimeHeaders headers = response.getMimeHeaders();
+        long contentLength = response.getContentLengthLong();
+        if (entityBody) {
+            String contentType = response.getContentType();
+            if (contentType != null) {
+                headers.setValue("Content-Type").setString(contentType);
+            }
+            String contentLanguage = response.getContentLanguage();
+            if (contentLanguage != null) {
+                headers.setValue("Content-Language").setString(contentLanguage);
+            }
+            if (contentLength != -1) {
+                headers.setValue("Content-Length").setLong(contentLength);
+            } else if (endStream && !head) {
+                headers.setValue("Content-Length").setLong(0);
+            }
+        }
+        if (!entityBody || head || contentLength == 0) {
+            endStream = true;
+        }
+
+        connection.writeHeaders(this, status, headers, endStream);
+        if (endStream) {
+            outputEnded = true;
+        }
+    }
+
+
+    /**
+     * End the response, and the stream if no END_STREAM was sent.
+     */
+    protected void finish()
+        throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (!response.isCommitted()) {
+            // No body was written
+            commit(true);
+        } else if (!outputEnded && !reset) {
+            outputEnded = true;
+            connection.writeData(this, null, 0, 0, true);
+        }
+    }
+
+
+    /**
+     * Parse the host header, setting the server name and port.
+     */
+    protected void parseHost(MessageBytes valueMB) {
+
+        if (valueMB == null || valueMB.isNull()) {
+            request.setServerPort(connection.getSocket().getIOChannel()
+                    .socket().getLocalPort());
+            return;
+        }
+
+        ByteChunk valueBC = valueMB.getByteChunk();
+        byte[] valueB = valueBC.getBytes();
+        int valueL = valueBC.getLength();
+        int valueS = valueBC.getStart();
+        int colonPos = -1;
+        if (hostNameC.length < valueL) {
+            hostNameC = new char[valueL];
+        }
+
+        boolean ipv6 = (valueL > 0 && valueB[valueS] == '[');
+        boolean bracketClosed = false;
+        for (int i = 0; i < valueL; i++) {
+            char b = (char) valueB[i + valueS];
+            hostNameC[i] = b;
+            if (b == ']') {
+                bracketClosed = true;
+            } else if (b == ':') {
+                if (!ipv6 || bracketClosed) {
+                    colonPos = i;
+                    break;
+                }
+            }
+        }
+
+        if (colonPos < 0) {
+            if (request.scheme().equals("https")) {
+                // 443 - Default HTTPS port
+                request.setServerPort(443);
+            } else {
+                // 80 - Default HTTP port
+                request.setServerPort(80);
+            }
+            request.serverName().setChars(hostNameC, 0, valueL);
+        } else {
+
+            request.serverName().setChars(hostNameC, 0, colonPos);
+
+            int port = 0;
+            int mult = 1;
+            for (int i = valueL - 1; i > colonPos; i--) {
+                int charValue = HexUtils.getDec(valueB[i + valueS]);
+                if (charValue == -1) {
+                    // Invalid character
+                    error = true;
+                    // 400 - Bad request
+                    response.setStatus(400);
+                    break;
+                }
+                port = port + (charValue * mult);
+                mult = 10 * mult;
+            }
+            request.setServerPort(port);
+
+        }
+
+    }
+
+
+    /**
+     * Return true if the given bytes are the given lower case name.
+     */
+    protected static boolean matches(byte[] b, int start, int length,
+                                     String name) {
+        if (length != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (b[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    // ----------------------------------- StreamInputBuffer Inner Class
+
+
+    /**
+     * Input of the request: the DATA frames queued by the connection.
+     */
+    protected class StreamInputBuffer implements InputBuffer {
+
+        public int doRead(ByteChunk chunk, Request req)
+            throws IOException {
+            byte[] data = null;
+            synchronized (Http2Stream.this) {
+                long timeout = connection.getTimeout();
+                long start = System.currentTimeMillis();
+                while (input.isEmpty()) {
+                    if (reset) {
+                        throw new IOException(sm.getString(
+                                "http2stream.reset", new Integer(id)));
+                    }
+                    if (inputEnded) {
+                        return -1;
+                    }
+                    long wait = timeout - (System.currentTimeMillis() - start);
+                    if (timeout > 0 && wait <= 0) {
+                        throw new SocketTimeoutException();
+                    }
+                    try {
+                        Http2Stream.this.wait(timeout > 0 ? wait : 0);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                data = input.removeFirst();
+                queued -= data.length;
+                recvWindow += data.length;
+            }
+            chunk.setBytes(data, 0, data.length);
+            if (!inputEnded) {
+                // The client may send as much again
+                connection.writeWindowUpdate(id, data.length);
+            }
+            return data.length;
+        }
+
+    }
+
+
+    // ---------------------------------- StreamOutputBuffer Inner Class
+
+
+    /**
+     * Output of the response: DATA frames written by the connection.
+     */
+    protected class StreamOutputBuffer implements OutputBuffer {
+
+        public int doWrite(ByteChunk chunk, Response res)
+            throws IOException {
+            if (!res.isCommitted()) {
+                // Send the headers
+                res.action(ActionCode.ACTION_COMMIT, null);
+            }
+            int len = chunk.getLength();
+            if (outputEnded) {
+                // No body, or the content length was reached
+                return len;
+            }
+            long contentLength = res.getContentLengthLong();
+            int n = len;
+            boolean last = false;
+            if (contentLength != -1 && written + n >= contentLength) {
+                n = (int) (contentLength - written);
+                last = true;
+            }
+            written += n;
+            if (last) {
+                outputEnded = true;
+            }
+            connection.writeData(Http2Stream.this, chunk.getBytes(),
+                    chunk.getStart(), n, last);
+            return len;
+        }
+
+    }
+
+
+}
@@ -0,0 +1,30 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.el.lang;
+
+/**
+ * Marks an <code>ELResolver</code> which resolves the properties of any
+ * base object other than a <code>Map</code>, a <code>ResourceBundle</code>,
+ * a <code>List</code> or an array with a standard
+ * <code>BeanELResolver</code>. Expressions may then read these properties
+ * by calling their read method, without the resolver.
+ *
+ * @version $Revision$
+ */
+public interface StandardResolverChain {
+}
@@ -28,6 +28,7 @@ import javax.el.PropertyNotFoundException;
 
 import org.apache.el.lang.ELSupport;
 import org.apache.el.lang.EvaluationContext;
+import org.apache.el.lang.StandardResolverChain;
 import org.apache.el.util.MessageFactory;
 import org.apache.el.util.ReflectionUtil;
 
@@ -42,12 +43,25 @@ public final class AstValue extends SimpleNode {
         Boolean.valueOf(System.getProperty(
                 "org.apache.el.parser.COERCE_TO_ZERO", "true")).booleanValue();
     
+    /**
+     * Read the bean properties named in the expression through inline
+     * caches of their read methods, when the resolver allows it.
+     */
+    protected static final boolean CACHE_PROPERTIES =
+        Boolean.valueOf(System.getProperty(
+                "org.apache.el.parser.CACHE_PROPERTIES", "false")).booleanValue();
+    
     protected static class Target {
         protected Object base;
 
         protected Object property;
     }
 
+    /**
+     * Caches of the suffixes naming a property, by index of child.
+     */
+    private volatile PropertyCache[] propertyCaches;
+
     public AstValue(int id) {
         super(id);
     }
@@ -114,13 +128,25 @@ public final class AstValue extends SimpleNode {
         int i = 1;
         Object property = null;
         ELResolver resolver = ctx.getELResolver();
+        PropertyCache[] caches = null;
+        if (CACHE_PROPERTIES && resolver instanceof StandardResolverChain) {
+            caches = getPropertyCaches();
+        }
         while (base != null && i < propCount) {
-            property = this.children[i].getValue(ctx);
-            if (property == null) {
-                return null;
+            PropertyCache cache = (caches != null) ? caches[i] : null;
+            Method read = (cache != null) ? cache.getReadMethod(base) : null;
+            if (read != null) {
+                property = cache.getName();
+                ctx.setPropertyResolved(true);
+                base = cache.invoke(read, base);
             } else {
-                ctx.setPropertyResolved(false);
-                base = resolver.getValue(ctx, base, property);
+                property = this.children[i].getValue(ctx);
+                if (property == null) {
+                    return null;
+                } else {
+                    ctx.setPropertyResolved(false);
+                    base = resolver.getValue(ctx, base, property);
+                }
             }
             i++;
         }
@@ -131,6 +157,28 @@ public final class AstValue extends SimpleNode {
         return base;
     }
 
+    private PropertyCache[] getPropertyCaches() {
+        PropertyCache[] caches = this.propertyCaches;
+        if (caches == null) {
+            caches = new PropertyCache[this.jjtGetNumChildren()];
+            for (int i = 1; i < caches.length; i++) {
+                Node suffix = this.children[i];
+                String name = null;
+                if (suffix instanceof AstDotSuffix) {
+                    name = suffix.getImage();
+                } else if (suffix instanceof AstBracketSuffix
+                        && suffix.jjtGetChild(0) instanceof AstString) {
+                    name = ((AstString) suffix.jjtGetChild(0)).getString();
+                }
+                if (name != null) {
+                    caches[i] = new PropertyCache(name);
+                }
+            }
+            this.propertyCaches = caches;
+        }
+        return caches;
+    }
+
     public boolean isReadOnly(EvaluationContext ctx) throws ELException {
         Target t = getTarget(ctx);
         ctx.setPropertyResolved(false);
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.el.parser;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+import javax.el.ELException;
+
+import org.apache.el.util.MessageFactory;
+
+/**
+ * Inline cache of the read method of a bean property of an expression, for
+ * the class of the last base object. Once the class changed too often, the
+ * property is always resolved by the <code>ELResolver</code>.
+ * <p>
+ * Parsed expressions are shared by all the applications, so the class and
+ * the method are only weakly referenced, and do not keep the class loader
+ * of an application from being collected once it is stopped.
+ *
+ * @version $Revision$
+ */
+final class PropertyCache {
+
+    /**
+     * Most classes the cache is filled for.
+     */
+    protected static final int MAX_MISSES = 8;
+
+    private static final class Entry {
+        private final WeakReference<Class<?>> type;
+        private final WeakReference<Method> read;
+        private Entry(Class<?> type, Method read) {
+            this.type = new WeakReference<Class<?>>(type);
+            this.read = (read == null) ? null : new WeakReference<Method>(read);
+        }
+    }
+
+    private final String name;
+
+    private volatile Entry entry;
+
+    private int misses = 0;
+
+
+    PropertyCache(String name) {
+        this.name = name;
+    }
+
+
+    String getName() {
+        return this.name;
+    }
+
+    /**
+     * Return the read method of the property for the given base, or null if
+     * the property should be resolved by the <code>ELResolver</code>.
+     */
+    Method getReadMethod(Object base) {
+        Class<?> type = base.getClass();
+        Entry e = this.entry;
+        if (e != null && e.type.get() == type) {
+            if (e.read == null) {
+                return null;
+            }
+            Method read = e.read.get();
+            if (read != null) {
+                return read;
+            }
+            // The method alone was collected, which is not a miss
+        } else if (++this.misses > MAX_MISSES) {
+            this.entry = null;
+            return null;
+        }
+        Method read = findReadMethod(type);
+        this.entry = new Entry(type, read);
+        return read;
+    }
+
+    /**
+     * Read the property as the <code>BeanELResolver</code> does.
+     */
+    Object invoke(Method read, Object base) throws ELException {
+        try {
+            return read.invoke(base, (Object[]) null);
+        } catch (IllegalAccessException e) {
+            throw new ELException(e);
+        } catch (InvocationTargetException e) {
+            throw new ELException(MessageFactory.get("error.property.read",
+                    base.getClass().getName(), this.name), e.getCause());
+        } catch (Exception e) {
+            throw new ELException(e);
+        }
+    }
+
+
+    private Method findReadMethod(Class<?> type) {
+        if (type.isArray() || Map.class.isAssignableFrom(type)
+                || ResourceBundle.class.isAssignableFrom(type)
+                || List.class.isAssignableFrom(type)) {
+            // Resolved before the BeanELResolver
+            return null;
+        }
+        try {
+            PropertyDescriptor[] pds =
+                Introspector.getBeanInfo(type).getPropertyDescriptors();
+            for (int i = 0; i < pds.length; i++) {
+                if (this.name.equals(pds[i].getName())) {
+                    return getMethod(type, pds[i].getReadMethod());
+                }
+            }
+        } catch (IntrospectionException e) {
+            // Let the resolver report it
+        }
+        return null;
+    }
+
+    /**
+     * Return the method the <code>BeanELResolver</code> calls: the given
+     * method, or the same method of a public interface or superclass.
+     */
+    private static Method getMethod(Class<?> type, Method m) {
+        if (m == null || Modifier.isPublic(type.getModifiers())) {
+            return m;
+        }
+        Class<?>[] inf = type.getInterfaces();
+        Method mp = null;
+        for (int i = 0; i < inf.length; i++) {
+            try {
+                mp = inf[i].getMethod(m.getName(), m.getParameterTypes());
+                mp = getMethod(mp.getDeclaringClass(), mp);
+                if (mp != null) {
+                    return mp;
+                }
+            } catch (NoSuchMethodException e) {
+            }
+        }
+        Class<?> sup = type.getSuperclass();
+        if (sup != null) {
+            try {
+                mp = sup.getMethod(m.getName(), m.getParameterTypes());
+                mp = getMethod(mp.getDeclaringClass(), mp);
+                if (mp != null) {
+                    return mp;
+                }
+            } catch (NoSuchMethodException e) {
+            }
+        }
+        return null;
+    }
+
+}
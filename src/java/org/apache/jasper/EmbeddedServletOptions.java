@@ -102,6 +102,11 @@ public final class EmbeddedServletOptions implements Options {
      */
     private boolean genStringAsCharArray = false;
     
+    /**
+     * Are Text strings to be generated as byte arrays?
+     */
+    private boolean genStringAsByteArray = false;
+    
     private boolean errorOnUseBeanInvalidClassAttribute = true;
     
     /**
@@ -173,6 +178,11 @@ public final class EmbeddedServletOptions implements Options {
      */
     private boolean recompileOnFail = false;
     
+    /**
+     * Are JSPs checked for modification by the background thread?
+     */
+    private boolean backgroundModificationTest = false;
+    
     /**
      * Is generation of X-Powered-By response header enabled/disabled?
      */
@@ -257,6 +267,13 @@ public final class EmbeddedServletOptions implements Options {
         return recompileOnFail;
     }
     
+    /**
+     * Check modifications in the background.
+     */
+    public boolean getBackgroundModificationTest() {
+        return backgroundModificationTest;
+    }
+    
     /**
      * Is Jasper being used in development mode?
      */
@@ -285,6 +302,13 @@ public final class EmbeddedServletOptions implements Options {
         return this.genStringAsCharArray;
     }
     
+    /**
+     * Are Text strings to be generated as byte arrays?
+     */
+    public boolean genStringAsByteArray() {
+        return this.genStringAsByteArray;
+    }
+    
     /**
      * Class ID for use in the plugin tag when the browser is IE. 
      */
@@ -509,6 +533,20 @@ public final class EmbeddedServletOptions implements Options {
                 }
             }
         }
+        
+        String backgroundModificationTest =
+            config.getInitParameter("backgroundModificationTest"); 
+        if (backgroundModificationTest != null) {
+            if (backgroundModificationTest.equalsIgnoreCase("true")) {
+                this.backgroundModificationTest = true;
+            } else if (backgroundModificationTest.equalsIgnoreCase("false")) {
+                this.backgroundModificationTest = false;
+            } else {
+                if (log.isWarnEnabled()) {
+                    log.warn(Localizer.getMessage("jsp.warning.backgroundModificationTest"));
+                }
+            }
+        }
         String development = config.getInitParameter("development");
         if (development != null) {
             if (development.equalsIgnoreCase("true")) {
@@ -561,6 +599,19 @@ public final class EmbeddedServletOptions implements Options {
             }
         }
         
+        String genByteArray = config.getInitParameter("genStrAsByteArray");
+        if (genByteArray != null) {
+            if (genByteArray.equalsIgnoreCase("true")) {
+                genStringAsByteArray = true;
+            } else if (genByteArray.equalsIgnoreCase("false")) {
+                genStringAsByteArray = false;
+            } else {
+                if (log.isWarnEnabled()) {
+                    log.warn(Localizer.getMessage("jsp.warning.genbytearray"));
+                }
+            }
+        }
+        
         String errBeanClass =
             config.getInitParameter("errorOnUseBeanInvalidClassAttribute");
         if (errBeanClass != null) {
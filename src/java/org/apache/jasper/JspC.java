@@ -34,6 +34,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -41,7 +42,16 @@ import java.util.HashMap;
 import java.util.Stack;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.servlet.jsp.tagext.TagLibraryInfo;
+
+import org.apache.jasper.compiler.CompileCache;
 import org.apache.jasper.compiler.Compiler;
 import org.apache.jasper.compiler.JspConfig;
 import org.apache.jasper.compiler.JspRuntimeContext;
@@ -123,6 +133,8 @@ public class JspC extends Task implements Options {
     protected static final String SWITCH_ENCODING = "-javaEncoding";
     protected static final String SWITCH_SMAP = "-smap";
     protected static final String SWITCH_DUMP_SMAP = "-dumpsmap";
+    protected static final String SWITCH_THREAD_COUNT = "-threadCount";
+    protected static final String SWITCH_COMPILE_CACHE = "-compileCache";
 
     protected static final String SHOW_SUCCESS ="-s";
     protected static final String LIST_ERRORS = "-l";
@@ -143,6 +155,7 @@ public class JspC extends Task implements Options {
     protected URLClassLoader loader = null;
     protected boolean trimSpaces = false;
     protected boolean genStringAsCharArray = false;
+    protected boolean genStringAsByteArray = false;
     protected boolean xpoweredBy;
     protected boolean mappedFile = false;
     protected boolean poolingEnabled = true;
@@ -158,7 +171,8 @@ public class JspC extends Task implements Options {
     protected boolean smapSuppressed = true;
     protected boolean smapDumped = false;
     protected boolean caching = true;
-    protected Map cache = new HashMap();
+    protected Map<String, TagLibraryInfo> cache =
+        Collections.synchronizedMap(new HashMap<String, TagLibraryInfo>());
 
     protected String compiler = null;
 
@@ -173,6 +187,29 @@ public class JspC extends Task implements Options {
      */
     protected boolean failOnError = true;
 
+    /**
+     * Number of threads generating the servlets. With more than one thread,
+     * the classes of the servlets are compiled in batches.
+     */
+    protected int threadCount = 1;
+
+    /**
+     * Number of servlets compiled together.
+     */
+    protected static final int BATCH_SIZE = 100;
+
+    /**
+     * Servlets generated by the threads, which classes remain to be compiled.
+     */
+    protected List<PendingPage> pendingPages = new ArrayList<PendingPage>();
+
+    /**
+     * Directory of the cache of the generated files, keyed by the contents of
+     * the JSP pages.
+     */
+    protected String compileCacheDir = null;
+    protected CompileCache compileCache = null;
+
     /**
      * The file extensions to be handled as JSP files.
      * Default list is .jsp and .jspx.
@@ -351,6 +388,15 @@ public class JspC extends Task implements Options {
                 smapSuppressed = false;
             } else if (tok.equals(SWITCH_DUMP_SMAP)) {
                 smapDumped = true;
+            } else if (tok.equals(SWITCH_THREAD_COUNT)) {
+                tok = nextArg();
+                try {
+                    setThreadCount(Integer.parseInt(tok));
+                } catch (NumberFormatException nfe) {
+                    throw new JasperException("Invalid thread count: " + tok);
+                }
+            } else if (tok.equals(SWITCH_COMPILE_CACHE)) {
+                setCompileCache(nextArg());
             } else {
                 if (tok.startsWith("-")) {
                     throw new JasperException("Unrecognized option: " + tok +
@@ -544,6 +590,15 @@ public class JspC extends Task implements Options {
     }
     
     
+    /**
+     * In JspC this always returns <code>false</code>.
+     * {@inheritDoc}
+     */
+    public boolean getBackgroundModificationTest() {
+        return false;
+    }
+    
+    
     /**
      * In JspC this always returns <code>false</code>.
      * {@inheritDoc}
@@ -601,6 +656,24 @@ public class JspC extends Task implements Options {
         return genStringAsCharArray;
     }
 
+    /**
+     * Determines whether text strings are to be generated as byte arrays,
+     * encoded with the character encoding of the page.
+     *
+     * @param genStringAsByteArray true if text strings are to be generated as
+     * byte arrays, false otherwise
+     */
+    public void setGenStringAsByteArray(boolean genStringAsByteArray) {
+        this.genStringAsByteArray = genStringAsByteArray;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean genStringAsByteArray() {
+        return genStringAsByteArray;
+    }
+
     /**
      * Sets the class-id value to be sent to Internet Explorer when using
      * &lt;jsp:plugin&gt; tags.
@@ -927,6 +1000,29 @@ public class JspC extends Task implements Options {
         return failOnError;
     }
 
+    /**
+     * Sets the number of threads generating the servlets.
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Sets the directory of the cache of the generated files: the files of
+     * the JSP pages which did not change are restored from it.
+     */
+    public void setCompileCache(String dir) {
+        compileCacheDir = dir;
+    }
+
+    public String getCompileCache() {
+        return compileCacheDir;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -951,7 +1047,7 @@ public class JspC extends Task implements Options {
      * @param clctxt
      *            Compilation context of the servlet
      */
-    public void generateWebMapping( String file, JspCompilationContext clctxt )
+    public synchronized void generateWebMapping( String file, JspCompilationContext clctxt )
         throws IOException
     {
         if (log.isDebugEnabled()) {
@@ -1131,15 +1227,18 @@ public class JspC extends Task implements Options {
         }
 
         ClassLoader originalClassLoader = null;
+        PendingPage pending = null;
 
         try {
-            // set up a scratch/output dir if none is provided
-            if (scratchDir == null) {
-                String temp = System.getProperty("java.io.tmpdir");
-                if (temp == null) {
-                    temp = "";
+            synchronized (this) {
+                // set up a scratch/output dir if none is provided
+                if (scratchDir == null) {
+                    String temp = System.getProperty("java.io.tmpdir");
+                    if (temp == null) {
+                        temp = "";
+                    }
+                    scratchDir = new File(new File(temp).getAbsolutePath());
                 }
-                scratchDir = new File(new File(temp).getAbsolutePath());
             }
 
             String jspUri=file.replace('\\','/');
@@ -1156,8 +1255,10 @@ public class JspC extends Task implements Options {
             }
 
             originalClassLoader = Thread.currentThread().getContextClassLoader();
-            if( loader==null ) {
-                initClassLoader( clctxt );
+            synchronized (this) {
+                if( loader==null ) {
+                    initClassLoader( clctxt );
+                }
             }
             Thread.currentThread().setContextClassLoader(loader);
 
@@ -1175,34 +1276,32 @@ public class JspC extends Task implements Options {
                     log.debug(jspUri + " is out dated, compiling...");
                 }
 
-                clc.compile(compile, true);
+                if (compileCache != null && compileCache.restore(clctxt)) {
+                    if (log.isDebugEnabled()) {
+                        log.debug(jspUri + " restored from the compile cache");
+                    }
+                } else if (compile && threadCount > 1) {
+                    // The class is compiled with those of other pages
+                    clc.generateJava(true);
+                    pending = new PendingPage(file, clctxt, clc);
+                } else {
+                    clc.compile(compile, true);
+                    if (compileCache != null) {
+                        compileCache.store(clctxt, clc.getDependants());
+                    }
+                }
             }
 
-            // Generate mapping
-            generateWebMapping( file, clctxt );
-            if ( showSuccess ) {
-                log.info( "Built File: " + file );
+            if (pending == null) {
+                // Generate mapping
+                generateWebMapping( file, clctxt );
+                if ( showSuccess ) {
+                    log.info( "Built File: " + file );
+                }
             }
 
         } catch (JasperException je) {
-            Throwable rootCause = je;
-            while (rootCause instanceof JasperException
-                    && ((JasperException) rootCause).getRootCause() != null) {
-                rootCause = ((JasperException) rootCause).getRootCause();
-            }
-            if (rootCause != je) {
-                log.error(Localizer.getMessage("jspc.error.generalException",
-                                               file),
-                          rootCause);
-            }
-
-            // Bugzilla 35114.
-            if(getFailOnError()) {
-                throw je;
-            } else {
-                log.error(je.getMessage());
-            }
-
+            processError(file, je);
         } catch (Exception e) {
             if ((e instanceof FileNotFoundException) && log.isWarnEnabled()) {
                 log.warn(Localizer.getMessage("jspc.error.fileDoesNotExist",
@@ -1214,6 +1313,199 @@ public class JspC extends Task implements Options {
                 Thread.currentThread().setContextClassLoader(originalClassLoader);
             }
         }
+
+        if (pending != null) {
+            addPendingPage(pending);
+        }
+    }
+
+    /**
+     * Log the error of a JSP page, and throw it if the compilation must
+     * fail.
+     */
+    protected void processError(String file, JasperException je)
+        throws JasperException {
+        Throwable rootCause = je;
+        while (rootCause instanceof JasperException
+                && ((JasperException) rootCause).getRootCause() != null) {
+            rootCause = ((JasperException) rootCause).getRootCause();
+        }
+        if (rootCause != je) {
+            log.error(Localizer.getMessage("jspc.error.generalException",
+                                           file),
+                      rootCause);
+        }
+
+        // Bugzilla 35114.
+        if(getFailOnError()) {
+            throw je;
+        } else {
+            log.error(je.getMessage());
+        }
+    }
+
+    /**
+     * Process JSP pages with several threads, their classes being compiled
+     * in batches.
+     */
+    protected void processFiles(List<String> files) throws JasperException {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Object>> futures =
+                new ArrayList<Future<Object>>(files.size());
+            for (final String file : files) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        processFile(file);
+                        return null;
+                    }
+                }));
+            }
+
+            JasperException error = null;
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (CancellationException e) {
+                    // Cancelled after an error
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        Throwable cause = e.getCause();
+                        error = (cause instanceof JasperException)
+                            ? (JasperException) cause : new JasperException(cause);
+                        // Stop as the sequential compilation would
+                        for (Future<Object> f : futures) {
+                            f.cancel(false);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    throw new JasperException(e);
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+
+            List<PendingPage> batch;
+            synchronized (pendingPages) {
+                batch = new ArrayList<PendingPage>(pendingPages);
+                pendingPages.clear();
+            }
+            if (!batch.isEmpty()) {
+                compilePendingPages(batch);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Add a page which servlet was generated, compiling the classes of the
+     * pending pages once there are enough of them.
+     */
+    protected void addPendingPage(PendingPage page) throws JasperException {
+        List<PendingPage> batch = null;
+        synchronized (pendingPages) {
+            pendingPages.add(page);
+            if (pendingPages.size() >= BATCH_SIZE) {
+                batch = new ArrayList<PendingPage>(pendingPages);
+                pendingPages.clear();
+            }
+        }
+        if (batch != null) {
+            compilePendingPages(batch);
+        }
+    }
+
+    /**
+     * Compile the classes of generated servlets together.
+     */
+    protected void compilePendingPages(List<PendingPage> batch)
+        throws JasperException {
+        Compiler[] compilers = new Compiler[batch.size()];
+        for (int i = 0; i < compilers.length; i++) {
+            compilers[i] = batch.get(i).compiler;
+        }
+
+        ClassLoader originalClassLoader =
+            Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(loader);
+        try {
+            JasperException[] errors = Compiler.generateClasses(compilers);
+            JasperException error = null;
+            for (int i = 0; i < compilers.length; i++) {
+                PendingPage page = batch.get(i);
+                try {
+                    if (errors[i] != null) {
+                        processError(page.file, errors[i]);
+                        continue;
+                    }
+                    if (compileCache != null) {
+                        compileCache.store(page.ctxt, page.compiler.getDependants());
+                    }
+                    generateWebMapping(page.file, page.ctxt);
+                    if ( showSuccess ) {
+                        log.info( "Built File: " + page.file );
+                    }
+                } catch (JasperException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = new JasperException(e);
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            Thread.currentThread().setContextClassLoader(originalClassLoader);
+        }
+    }
+
+    /**
+     * Options the generated files depend on, for the compile cache.
+     */
+    protected String getCompileCacheFingerprint() {
+        StringBuffer sb = new StringBuffer();
+        sb.append(compile).append(',');
+        sb.append(targetPackage).append(',');
+        sb.append(targetClassName).append(',');
+        sb.append(compiler).append(',');
+        sb.append(compilerSourceVM).append(',');
+        sb.append(compilerTargetVM).append(',');
+        sb.append(classDebugInfo).append(',');
+        sb.append(javaEncoding).append(',');
+        sb.append(trimSpaces).append(',');
+        sb.append(genStringAsCharArray).append(',');
+        sb.append(genStringAsByteArray).append(',');
+        sb.append(xpoweredBy).append(',');
+        sb.append(mappedFile).append(',');
+        sb.append(poolingEnabled).append(',');
+        sb.append(smapSuppressed).append(',');
+        sb.append(smapDumped).append(',');
+        sb.append(ieClassId).append(',');
+        sb.append(errorOnUseBeanInvalidClassAttribute);
+        return sb.toString();
+    }
+
+    /**
+     * A page which servlet was generated, and which class remains to be
+     * compiled.
+     */
+    protected static class PendingPage {
+        protected final String file;
+        protected final JspCompilationContext ctxt;
+        protected final Compiler compiler;
+
+        protected PendingPage(String file, JspCompilationContext ctxt,
+                Compiler compiler) {
+            this.file = file;
+            this.ctxt = ctxt;
+            this.compiler = compiler;
+        }
     }
 
     /**
@@ -1303,6 +1595,12 @@ public class JspC extends Task implements Options {
 
             initWebXml();
 
+            if (compileCacheDir != null) {
+                compileCache = new CompileCache(new File(compileCacheDir),
+                        getCompileCacheFingerprint());
+            }
+
+            List<String> files = new ArrayList<String>();
             Iterator iter = pages.iterator();
             while (iter.hasNext()) {
                 String nextjsp = iter.next().toString();
@@ -1325,7 +1623,14 @@ public class JspC extends Task implements Options {
                 if (nextjsp.startsWith("." + File.separatorChar)) {
                     nextjsp = nextjsp.substring(2);
                 }
-                processFile(nextjsp);
+                if (threadCount > 1) {
+                    files.add(nextjsp);
+                } else {
+                    processFile(nextjsp);
+                }
+            }
+            if (!files.isEmpty()) {
+                processFiles(files);
             }
 
             completeWebXml();
@@ -671,6 +671,12 @@ public class JspCompilationContext {
             // Append servlet or tag handler path to scratch dir
             try {
                 File base = options.getScratchDir();
+                // The URL of the scratch directory only ends with a slash,
+                // which makes the loader read it as a directory rather than
+                // a JAR, if the directory exists
+                synchronized (outputDirLock) {
+                    base.mkdirs();
+                }
                 baseUrl = base.toURI().toURL();
                 outputDir = base.getAbsolutePath() + File.separator + path + 
                     File.separator;
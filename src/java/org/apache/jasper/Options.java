@@ -197,6 +197,15 @@ public interface Options {
      */
     public boolean genStringAsCharArray();
     
+    /**
+     * Indicates whether text strings are to be generated encoded as byte
+     * arrays, with the character encoding of the page.
+     * 
+     * @return <code>true</code> if text strings are to be generated as byte
+     *         arrays, <code>false</code> otherwise
+     */
+    public boolean genStringAsByteArray();
+    
     /**
      * Modification test interval.
      */
@@ -207,6 +216,12 @@ public interface Options {
      * Re-compile on failure.
      */
     public boolean getRecompileOnFail();
+
+    /**
+     * Are JSPs checked for modification in the background, rather than when
+     * they are accessed (used in development mode).
+     */
+    public boolean getBackgroundModificationTest();
     
     /**
      * Is caching enabled (used for precompilation).
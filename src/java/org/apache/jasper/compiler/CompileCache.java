@@ -0,0 +1,444 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.compiler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jasper.JspCompilationContext;
+import org.apache.jasper.servlet.JspServletWrapper;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Cache of the files generated for the JSP pages, keyed by the contents of
+ * the pages and of the files they depend on.
+ * <p>
+ * For each page the cache keeps an index, with the list of the dependants
+ * of the page and the digest of the contents of the page, of its dependants
+ * and of the deployment descriptor. Under that digest it keeps the generated
+ * .java and .class files of the page and of its tag files. A page which contents and
+ * dependants did not change is restored from the cache instead of being
+ * generated again, even when the output directory was wiped.
+ *
+ * @version $Revision$
+ */
+public class CompileCache {
+
+    private static final Log log = LogFactory.getLog(CompileCache.class);
+
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private static final String UTF8 = "UTF-8";
+
+    private static final String WEB_XML = "/WEB-INF/web.xml";
+
+    private final File directory;
+
+    private final String fingerprint;
+
+    /**
+     * Digests of the resources, read once by the run.
+     */
+    private final ConcurrentHashMap<String, String> resourceDigests =
+        new ConcurrentHashMap<String, String>();
+
+
+    /**
+     * Creates a cache.
+     *
+     * @param directory Directory of the cache
+     * @param fingerprint Options the generated files depend on, entries of
+     *                    other options being ignored
+     */
+    public CompileCache(File directory, String fingerprint) {
+        this.directory = directory;
+        this.fingerprint = fingerprint;
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Restore the generated files of a page into the output directory, if
+     * the page and its dependants did not change since they were cached.
+     *
+     * @return true if the files were restored
+     */
+    public boolean restore(JspCompilationContext ctxt) {
+        File index = getIndexFile(ctxt);
+        if (!index.isFile()) {
+            return false;
+        }
+        try {
+            List<String> lines = readLines(index);
+            if (lines.size() == 0) {
+                return false;
+            }
+            String digest = digest(ctxt, lines.subList(1, lines.size()));
+            if (digest == null || !digest.equals(lines.get(0))) {
+                return false;
+            }
+            File entry = new File(directory, digest);
+            if (!entry.isDirectory()) {
+                return false;
+            }
+            copyTree(entry, ctxt.getOptions().getScratchDir());
+            if (log.isDebugEnabled()) {
+                log.debug("Restored " + ctxt.getJspFile() + " from " + entry);
+            }
+            return true;
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Problem restoring " + ctxt.getJspFile(), e);
+            }
+            return false;
+        }
+    }
+
+
+    /**
+     * Store the generated files of a page, and of the tag files it uses.
+     *
+     * @param ctxt Compilation context of the page
+     * @param dependants Files the page depends on
+     */
+    public void store(JspCompilationContext ctxt, List<String> dependants) {
+        List<String> depends = new ArrayList<String>();
+        if (dependants != null) {
+            depends.addAll(dependants);
+        }
+        try {
+            String digest = digest(ctxt, depends);
+            if (digest == null) {
+                return;
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()
+                    && !directory.isDirectory()) {
+                throw new IOException(directory.getPath());
+            }
+            File outputDir = ctxt.getOptions().getScratchDir();
+            File entry = new File(directory, digest);
+            if (!entry.isDirectory()) {
+                File tmp = new File(directory, digest + ".tmp"
+                        + Thread.currentThread().getId());
+                try {
+                    addFiles(ctxt, outputDir, tmp);
+                    for (int i = 0; i < depends.size(); i++) {
+                        JspServletWrapper wrapper =
+                            getTagFileWrapper(ctxt, depends.get(i));
+                        if (wrapper != null) {
+                            addFiles(wrapper.getJspEngineContext(), outputDir, tmp);
+                        }
+                    }
+                } catch (IOException e) {
+                    delete(tmp);
+                    throw e;
+                }
+                if (!tmp.renameTo(entry)) {
+                    // Stored by another thread
+                    delete(tmp);
+                }
+            }
+
+            File index = getIndexFile(ctxt);
+            String previous = null;
+            if (index.isFile()) {
+                List<String> lines = readLines(index);
+                if (lines.size() > 0) {
+                    previous = lines.get(0);
+                }
+            }
+            File tmp = new File(index.getPath() + ".tmp"
+                    + Thread.currentThread().getId());
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmp), UTF8));
+            try {
+                writer.println(digest);
+                for (int i = 0; i < depends.size(); i++) {
+                    writer.println(depends.get(i));
+                }
+            } finally {
+                writer.close();
+            }
+            if (!tmp.renameTo(index)) {
+                index.delete();
+                if (!tmp.renameTo(index)) {
+                    tmp.delete();
+                }
+            }
+            // The files of the previous version of the page are not used
+            // any more
+            if (previous != null && !previous.equals(digest)
+                    && previous.length() > 0 && previous.indexOf('.') == -1) {
+                delete(new File(directory, previous));
+            }
+        } catch (IOException e) {
+            log.warn(Localizer.getMessage("jsp.warning.compileCache.store",
+                    ctxt.getJspFile()), e);
+        }
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    private File getIndexFile(JspCompilationContext ctxt) {
+        return new File(directory, toHex(md5(ctxt.getJspFile())) + INDEX_SUFFIX);
+    }
+
+
+    /**
+     * Digest of the options, the page and its dependants, or null if one of
+     * them can't be read.
+     */
+    private String digest(JspCompilationContext ctxt, List<String> depends)
+        throws IOException {
+        MessageDigest md = newDigest();
+        md.update(fingerprint.getBytes(UTF8));
+        md.update((byte) 0);
+        md.update(ctxt.getJspFile().getBytes(UTF8));
+        md.update((byte) 0);
+        String pageDigest = getResourceDigest(ctxt, ctxt.getJspFile());
+        if (pageDigest == null) {
+            return null;
+        }
+        md.update(pageDigest.getBytes(UTF8));
+        // The deployment descriptor holds the JSP configuration
+        String webXmlDigest = getResourceDigest(ctxt, WEB_XML);
+        if (webXmlDigest != null) {
+            md.update(webXmlDigest.getBytes(UTF8));
+        }
+        for (int i = 0; i < depends.size(); i++) {
+            String resourceDigest = getResourceDigest(ctxt, depends.get(i));
+            if (resourceDigest == null) {
+                return null;
+            }
+            md.update((byte) 0);
+            md.update(depends.get(i).getBytes(UTF8));
+            md.update(resourceDigest.getBytes(UTF8));
+        }
+        return toHex(md.digest());
+    }
+
+
+    private String getResourceDigest(JspCompilationContext ctxt, String path) {
+        String digest = resourceDigests.get(path);
+        if (digest != null) {
+            return digest;
+        }
+        InputStream is = null;
+        try {
+            URL url;
+            if (path.startsWith("/")) {
+                url = ctxt.getResource(path);
+            } else {
+                url = new URL(path);
+            }
+            if (url == null) {
+                return null;
+            }
+            is = url.openStream();
+            MessageDigest md = newDigest();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+            digest = toHex(md.digest());
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Problem reading " + path, e);
+            }
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        resourceDigests.put(path, digest);
+        return digest;
+    }
+
+
+    /**
+     * Return the wrapper of a dependant which is a tag file compiled by this
+     * run. The dependants of the tags in JARs are named after the entries of
+     * the JARs, with one slash less than their wrappers.
+     */
+    private JspServletWrapper getTagFileWrapper(JspCompilationContext ctxt,
+            String path) {
+        if (!path.endsWith(".tag") && !path.endsWith(".tagx")) {
+            return null;
+        }
+        JspServletWrapper wrapper = ctxt.getRuntimeContext().getWrapper(path);
+        if (wrapper == null && path.startsWith("jar:")) {
+            int bang = path.indexOf("!/");
+            if (bang > 0) {
+                wrapper = ctxt.getRuntimeContext().getWrapper(
+                        path.substring(0, bang + 1) + "/" + path.substring(bang + 1));
+            }
+        }
+        return wrapper;
+    }
+
+
+    /**
+     * Copy the .java and .class files of a page or a tag file, with the
+     * classes nested in its class, to an entry of the cache.
+     */
+    private void addFiles(JspCompilationContext ctxt, File outputDir, File entry)
+        throws IOException {
+        String[] names = { ctxt.getServletJavaFileName(), ctxt.getClassFileName() };
+        String base = outputDir.getAbsolutePath();
+        for (int i = 0; i < names.length; i++) {
+            File file = new File(names[i]);
+            String path = file.getAbsolutePath();
+            if (!path.startsWith(base)) {
+                continue;
+            }
+            String relative = path.substring(base.length());
+            if (file.isFile()) {
+                copy(file, new File(entry, relative));
+            }
+            if (i == 1) {
+                // Nested classes
+                String prefix = file.getName().substring(
+                        0, file.getName().length() - ".class".length()) + "$";
+                File[] files = file.getParentFile().listFiles();
+                for (int j = 0; (files != null) && j < files.length; j++) {
+                    if (files[j].getName().startsWith(prefix)) {
+                        copy(files[j], new File(new File(entry, relative)
+                                .getParentFile(), files[j].getName()));
+                    }
+                }
+            }
+        }
+    }
+
+
+    private static void copyTree(File from, File to) throws IOException {
+        File[] files = from.listFiles();
+        for (int i = 0; (files != null) && i < files.length; i++) {
+            File target = new File(to, files[i].getName());
+            if (files[i].isDirectory()) {
+                copyTree(files[i], target);
+            } else {
+                copy(files[i], target);
+            }
+        }
+    }
+
+
+    private static void copy(File from, File to) throws IOException {
+        File parent = to.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException(parent.getPath());
+        }
+        InputStream is = new FileInputStream(from);
+        try {
+            OutputStream os = new FileOutputStream(to);
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = is.read(buf)) > 0) {
+                    os.write(buf, 0, n);
+                }
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && i < files.length; i++) {
+            delete(files[i]);
+        }
+        file.delete();
+    }
+
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Not possible. All JVMs must support MD5
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+
+    private static byte[] md5(String s) {
+        try {
+            return newDigest().digest(s.getBytes(UTF8));
+        } catch (IOException e) {
+            // Not possible. All JVMs must support UTF-8
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+
+    private static String toHex(byte[] bytes) {
+        StringBuffer sb = new StringBuffer(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++) {
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+}
@@ -20,12 +20,14 @@ package org.apache.jasper.compiler;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -65,6 +67,17 @@ public abstract class Compiler {
 
     protected Node.Nodes pageNodes;
 
+    /**
+     * Smap of the page which .java file was generated by
+     * {@link #generateJava(boolean)}, until its class is compiled.
+     */
+    protected String[] smap;
+
+    /**
+     * Files the page depends on, once it is generated.
+     */
+    protected List<String> dependants;
+
     // ------------------------------------------------------------ Constructor
 
     public void init(JspCompilationContext ctxt, JspServletWrapper jsw) {
@@ -354,27 +367,117 @@ public abstract class Compiler {
             String[] smap = generateJava();
             if (compileClass) {
                 generateClass(smap);
-                // Fix for bugzilla 41606
-                // Set JspServletWrapper.servletClassLastModifiedTime after successful compile
-                String targetFileName = ctxt.getClassFileName();
-                if (targetFileName != null) {
-                    File targetFile = new File(targetFileName);
-                    if (targetFile.exists() && jsw != null) {
-                        jsw.setServletClassLastModifiedTime(targetFile.lastModified());
-                    }
-                }
+                classGenerated();
             }
         } finally {
-            if (tfp != null && ctxt.isPrototypeMode()) {
-                tfp.removeProtoTypeFiles(null);
+            release(true);
+        }
+    }
+
+    /**
+     * Generate the .java file of the jsp file only, keeping what the
+     * compilation of its class needs: the class is compiled later by
+     * {@link #generateClasses(Compiler[])}, together with the classes of
+     * other pages. As an side- effect, tag files that are referenced by this
+     * page are compiled.
+     *
+     * @param jspcMode
+     *            true if invoked from JspC, false otherwise
+     */
+    public void generateJava(boolean jspcMode)
+            throws FileNotFoundException, JasperException, Exception {
+        if (errDispatcher == null) {
+            this.errDispatcher = new ErrorDispatcher(jspcMode);
+        }
+
+        boolean success = false;
+        try {
+            smap = generateJava();
+            success = true;
+        } finally {
+            release(!success);
+        }
+    }
+
+    /**
+     * Compile the classes of pages which .java files were generated by
+     * {@link #generateJava(boolean)}, with a single compilation when their
+     * compiler supports it.
+     *
+     * @return the error of the compilation of each page, null for the pages
+     *         which compiled
+     */
+    public static JasperException[] generateClasses(Compiler[] compilers) {
+        JasperException[] errors = new JasperException[compilers.length];
+        boolean batch = true;
+        for (int i = 0; i < compilers.length; i++) {
+            if (!(compilers[i] instanceof JDTCompiler)) {
+                batch = false;
+            }
+        }
+        if (batch) {
+            JDTCompiler[] jdtCompilers = new JDTCompiler[compilers.length];
+            System.arraycopy(compilers, 0, jdtCompilers, 0, compilers.length);
+            JDTCompiler.generateClasses(jdtCompilers, errors);
+        }
+        for (int i = 0; i < compilers.length; i++) {
+            Compiler compiler = compilers[i];
+            try {
+                if (!batch) {
+                    compiler.generateClass(compiler.smap);
+                }
+                if (errors[i] == null) {
+                    compiler.classGenerated();
+                }
+            } catch (JasperException e) {
+                errors[i] = e;
+            } catch (Exception e) {
+                errors[i] = new JasperException(e);
+            } finally {
+                compiler.smap = null;
+                compiler.release(true);
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Fix for bugzilla 41606: set
+     * JspServletWrapper.servletClassLastModifiedTime after successful compile.
+     */
+    private void classGenerated() {
+        String targetFileName = ctxt.getClassFileName();
+        if (targetFileName != null) {
+            File targetFile = new File(targetFileName);
+            if (targetFile.exists() && jsw != null) {
+                jsw.setServletClassLastModifiedTime(targetFile.lastModified());
+            }
+        }
+    }
+
+    /**
+     * Make sure these object which are only used during the generation and
+     * compilation of the JSP page get dereferenced so that they can be GC'd
+     * and reduce the memory footprint.
+     *
+     * @param compiled
+     *            false when the class of the page remains to be compiled
+     */
+    private void release(boolean compiled) {
+        if (tfp != null && ctxt.isPrototypeMode()) {
+            tfp.removeProtoTypeFiles(null);
+        }
+        tfp = null;
+        if (pageInfo != null) {
+            dependants = new ArrayList<String>();
+            for (Object dependant : pageInfo.getDependants()) {
+                dependants.add((String) dependant);
             }
-            // Make sure these object which are only used during the
-            // generation and compilation of the JSP page get
-            // dereferenced so that they can be GC'd and reduce the
-            // memory footprint.
-            tfp = null;
+        }
+        pageInfo = null;
+
+        if (compiled) {
             errDispatcher = null;
-            pageInfo = null;
 
             // Only get rid of the pageNodes if in production.
             // In development mode, they are used for detailed
@@ -383,11 +486,15 @@ public abstract class Compiler {
             if (!this.options.getDevelopment()) {
                 pageNodes = null;
             }
+        }
 
-            if (ctxt.getWriter() != null) {
+        if (ctxt.getWriter() != null) {
+            try {
                 ctxt.getWriter().close();
-                ctxt.setWriter(null);
+            } catch (IOException e) {
+                // Ignore
             }
+            ctxt.setWriter(null);
         }
     }
 
@@ -534,6 +641,14 @@ public abstract class Compiler {
         return ctxt;
     }
 
+    /**
+     * Gets the files the page depends on, once it is generated: included
+     * files, tag files and TLDs.
+     */
+    public List<String> getDependants() {
+        return dependants;
+    }
+
     /**
      * Remove generated files
      */
@@ -23,6 +23,8 @@ import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -117,6 +119,11 @@ class Generator {
 
     private GenBuffer charArrayBuffer;
 
+    /**
+     * Encoding of the text strings generated as byte arrays, if any.
+     */
+    private String textEncoding;
+
     /**
      * @param s
      *            the input string
@@ -178,6 +185,44 @@ class Generator {
         return b.toString();
     }
 
+    /**
+     * Return the charset of a content type, the default charset of the
+     * response if it is not given, or null if the template text cannot be
+     * encoded for it block by block. Only UTF-8 and the single byte
+     * charsets are used: the others may add a byte order mark to every
+     * block, as UTF-16 does, or depend on a shift state carried from one
+     * block to the next, as the ISO-2022 ones do.
+     */
+    static String getCharset(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int start = contentType.indexOf("charset=");
+        if (start < 0) {
+            return "ISO-8859-1";
+        }
+        start += 8;
+        int end = contentType.indexOf(';', start);
+        if (end < 0) {
+            end = contentType.length();
+        }
+        String charset = contentType.substring(start, end).trim();
+        try {
+            if (Charset.isSupported(charset)) {
+                Charset cs = Charset.forName(charset);
+                if (cs.name().equals("UTF-8")
+                        || cs.newEncoder().maxBytesPerChar() == 1.0f) {
+                    return charset;
+                }
+            }
+        } catch (IllegalCharsetNameException e) {
+            // Ignore
+        } catch (UnsupportedOperationException e) {
+            // The charset cannot encode
+        }
+        return null;
+    }
+
     private String createJspId() throws JasperException {
         if (this.jspIdPrefix == null) {
             StringBuffer sb = new StringBuffer(32);
@@ -781,6 +826,8 @@ class Generator {
 
         private HashMap<String,String> textMap;
 
+        private HashMap<String,String> encodedTextMap;
+
         /**
          * Constructor.
          */
@@ -799,6 +846,7 @@ class Generator {
             handlerInfos = new Hashtable();
             tagVarNumbers = new Hashtable();
             textMap = new HashMap<String,String>();
+            encodedTextMap = new HashMap<String,String>();
         }
 
         /**
@@ -1944,8 +1992,13 @@ class Generator {
                 return;
             }
 
-            if (ctxt.getOptions().genStringAsCharArray()) {
-                // Generate Strings as char arrays, for performance
+            // Encoded text is only written as bytes when the JspWriter
+            // does not buffer it
+            boolean encoded = (textEncoding != null)
+                && (pageInfo.getBuffer() == 0
+                        || textSize >= pageInfo.getBuffer());
+            if (encoded || ctxt.getOptions().genStringAsCharArray()) {
+                // Generate Strings as char or byte arrays, for performance
                 ServletWriter caOut;
                 if (charArrayBuffer == null) {
                     charArrayBuffer = new GenBuffer();
@@ -1967,20 +2020,44 @@ class Generator {
                     } else {
                         len = textLength - textIndex;
                     }
+                    if (len > 1 && Character.isHighSurrogate(
+                            text.charAt(textIndex + len - 1))) {
+                        // Keep surrogate pairs whole, each block is
+                        // encoded on its own
+                        len--;
+                    }
                     String output = text.substring(textIndex, textIndex + len);
-                    String charArrayName = textMap.get(output);
+                    HashMap<String,String> names =
+                        encoded ? encodedTextMap : textMap;
+                    String charArrayName = names.get(output);
                     if (charArrayName == null) {
-                        charArrayName = "_jspx_char_array_" + charArrayCount++;
-                        textMap.put(output, charArrayName);
-                        caOut.printin("static char[] ");
-                        caOut.print(charArrayName);
-                        caOut.print(" = ");
-                        caOut.print(quote(output));
-                        caOut.println(".toCharArray();");
+                        if (encoded) {
+                            // Encoded when the class is initialized
+                            charArrayName = "_jspx_text_" + charArrayCount++;
+                            caOut.printin("static final org.apache.jasper.runtime.EncodedText ");
+                            caOut.print(charArrayName);
+                            caOut.print(" = new org.apache.jasper.runtime.EncodedText(");
+                            caOut.print(quote(output));
+                            caOut.print(", ");
+                            caOut.print(quote(textEncoding));
+                            caOut.println(");");
+                        } else {
+                            charArrayName = "_jspx_char_array_" + charArrayCount++;
+                            caOut.printin("static char[] ");
+                            caOut.print(charArrayName);
+                            caOut.print(" = ");
+                            caOut.print(quote(output));
+                            caOut.println(".toCharArray();");
+                        }
+                        names.put(output, charArrayName);
                     }
     
                     n.setBeginJavaLine(out.getJavaLine());
-                    out.printil("out.write(" + charArrayName + ");");
+                    if (encoded) {
+                        out.printil(charArrayName + ".write(out);");
+                    } else {
+                        out.printil("out.write(" + charArrayName + ");");
+                    }
                     n.setEndJavaLine(out.getJavaLine());
                     
                     textIndex = textIndex + len;                }
@@ -3400,6 +3477,13 @@ class Generator {
         fragmentHelperClass = new FragmentHelperClass("Helper");
         pageInfo = compiler.getPageInfo();
 
+        // Text is encoded for the charset of the page, which tag files do
+        // not have
+        textEncoding = null;
+        if (ctxt.getOptions().genStringAsByteArray() && !ctxt.isTagFile()) {
+            textEncoding = getCharset(pageInfo.getContentType());
+        }
+
         /*
          * Temporary hack. If a JSP page uses the "extends" attribute of the
          * page directive, the _jspInit() method of the generated servlet class
@@ -30,11 +30,14 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.StringTokenizer;
 
 import org.apache.jasper.JasperException;
+import org.apache.jasper.JspCompilationContext;
+import org.apache.jasper.Options;
 import org.eclipse.jdt.core.compiler.IProblem;
 import org.eclipse.jdt.internal.compiler.ClassFile;
 import org.eclipse.jdt.internal.compiler.CompilationResult;
@@ -67,21 +70,58 @@ public class JDTCompiler extends org.apache.jasper.compiler.Compiler {
     protected void generateClass(String[] smap)
         throws FileNotFoundException, JasperException, Exception {
 
+        this.smap = smap;
+        JasperException[] errors = new JasperException[1];
+        try {
+            generateClasses(new JDTCompiler[] { this }, errors);
+        } finally {
+            this.smap = null;
+        }
+        if (errors[0] != null) {
+            throw errors[0];
+        }
+    }
+
+
+    /**
+     * Compile the servlets of several pages, from their .java files to
+     * .class files, with a single compilation. The pages share the options
+     * and the class loader of the first one.
+     *
+     * @param compilers The compilers of the pages, with their .java files
+     *                  generated
+     * @param errors The errors of the pages which did not compile
+     */
+    protected static void generateClasses(final JDTCompiler[] compilers,
+            final JasperException[] errors) {
+
+        final JDTCompiler first = compilers[0];
+        final org.apache.juli.logging.Log log = first.log;
         long t1 = 0;
         if (log.isDebugEnabled()) {
             t1 = System.currentTimeMillis();
         }
-        
-        final String sourceFile = ctxt.getServletJavaFileName();
-        final String outputDir = ctxt.getOptions().getScratchDir().getAbsolutePath();
-        String packageName = ctxt.getServletPackageName();
-        final String targetClassName = 
-            ((packageName.length() != 0) ? (packageName + ".") : "") 
+
+        final Options options = first.ctxt.getOptions();
+        final String outputDir = options.getScratchDir().getAbsolutePath();
+        final String javaEncoding = options.getJavaEncoding();
+        final ClassLoader classLoader = first.ctxt.getJspLoader();
+        String[] fileNames = new String[compilers.length];
+        String[] classNames = new String[compilers.length];
+        final Map<String, String> units = new HashMap<String, String>();
+        final Map<String, Integer> sources = new HashMap<String, Integer>();
+        final List<List<JavacErrorDetail>> problemLists =
+            new ArrayList<List<JavacErrorDetail>>(compilers.length);
+        for (int i = 0; i < compilers.length; i++) {
+            JspCompilationContext ctxt = compilers[i].ctxt;
+            String packageName = ctxt.getServletPackageName();
+            fileNames[i] = ctxt.getServletJavaFileName();
+            classNames[i] = ((packageName.length() != 0) ? (packageName + ".") : "") 
                     + ctxt.getServletClassName();
-        final ClassLoader classLoader = ctxt.getJspLoader();
-        String[] fileNames = new String[] {sourceFile};
-        String[] classNames = new String[] {targetClassName};
-        final ArrayList problemList = new ArrayList();
+            units.put(classNames[i], fileNames[i]);
+            sources.put(fileNames[i], Integer.valueOf(i));
+            problemLists.add(new ArrayList<JavacErrorDetail>());
+        }
         
         class CompilationUnit implements ICompilationUnit {
 
@@ -103,7 +143,7 @@ public class JDTCompiler extends org.apache.jasper.compiler.Compiler {
                 try {
                     is = new FileInputStream(sourceFile);
                     Reader reader = 
-                        new BufferedReader(new InputStreamReader(is, ctxt.getOptions().getJavaEncoding()));
+                        new BufferedReader(new InputStreamReader(is, javaEncoding));
                     if (reader != null) {
                         char[] chars = new char[8192];
                         StringBuffer buf = new StringBuffer();
@@ -186,7 +226,8 @@ public class JDTCompiler extends org.apache.jasper.compiler.Compiler {
 
                     InputStream is = null;
                     try {
-                        if (className.equals(targetClassName)) {
+                        String sourceFile = units.get(className);
+                        if (sourceFile != null) {
                             ICompilationUnit compilationUnit = 
                                 new CompilationUnit(sourceFile, className);
                             return 
@@ -230,7 +271,7 @@ public class JDTCompiler extends org.apache.jasper.compiler.Compiler {
                 }
 
                 private boolean isPackage(String result) {
-                    if (result.equals(targetClassName)) {
+                    if (units.containsKey(result)) {
                         return false;
                     }
                     String resourceName = result.replace('.', '/') + ".class";
@@ -270,25 +311,25 @@ public class JDTCompiler extends org.apache.jasper.compiler.Compiler {
         final IErrorHandlingPolicy policy = 
             DefaultErrorHandlingPolicies.proceedWithAllProblems();
 
-        final Map settings = new HashMap();
+        final Map<String, String> settings = new HashMap<String, String>();
         settings.put(CompilerOptions.OPTION_LineNumberAttribute,
                      CompilerOptions.GENERATE);
         settings.put(CompilerOptions.OPTION_SourceFileAttribute,
                      CompilerOptions.GENERATE);
         settings.put(CompilerOptions.OPTION_ReportDeprecation,
                      CompilerOptions.IGNORE);
-        if (ctxt.getOptions().getJavaEncoding() != null) {
+        if (options.getJavaEncoding() != null) {
             settings.put(CompilerOptions.OPTION_Encoding,
-                    ctxt.getOptions().getJavaEncoding());
+                    options.getJavaEncoding());
         }
-        if (ctxt.getOptions().getClassDebugInfo()) {
+        if (options.getClassDebugInfo()) {
             settings.put(CompilerOptions.OPTION_LocalVariableAttribute,
                          CompilerOptions.GENERATE);
         }
 
         // Source JVM
-        if(ctxt.getOptions().getCompilerSourceVM() != null) {
-            String opt = ctxt.getOptions().getCompilerSourceVM();
+        if(options.getCompilerSourceVM() != null) {
+            String opt = options.getCompilerSourceVM();
             if(opt.equals("1.1")) {
                 settings.put(CompilerOptions.OPTION_Source,
                              CompilerOptions.VERSION_1_1);
@@ -322,8 +363,8 @@ public class JDTCompiler extends org.apache.jasper.compiler.Compiler {
         }
         
         // Target JVM
-        if(ctxt.getOptions().getCompilerTargetVM() != null) {
-            String opt = ctxt.getOptions().getCompilerTargetVM();
+        if(options.getCompilerTargetVM() != null) {
+            String opt = options.getCompilerTargetVM();
             if(opt.equals("1.1")) {
                 settings.put(CompilerOptions.OPTION_TargetPlatform,
                              CompilerOptions.VERSION_1_1);
@@ -370,6 +411,11 @@ public class JDTCompiler extends org.apache.jasper.compiler.Compiler {
         final ICompilerRequestor requestor = new ICompilerRequestor() {
                 public void acceptResult(CompilationResult result) {
                     try {
+                        Integer index = sources.get(
+                                new String(result.getFileName()));
+                        JDTCompiler compiler = compilers[index.intValue()];
+                        List<JavacErrorDetail> problemList =
+                            problemLists.get(index.intValue());
                         if (result.hasProblems()) {
                             IProblem[] problems = result.getProblems();
                             for (int i = 0; i < problems.length; i++) {
@@ -379,8 +425,8 @@ public class JDTCompiler extends org.apache.jasper.compiler.Compiler {
                                         new String(problems[i].getOriginatingFileName());
                                     try {
                                         problemList.add(ErrorDispatcher.createJavacError
-                                                (name, pageNodes, new StringBuffer(problem.getMessage()), 
-                                                        problem.getSourceLineNumber(), ctxt));
+                                                (name, compiler.pageNodes, new StringBuffer(problem.getMessage()), 
+                                                        problem.getSourceLineNumber(), compiler.ctxt));
                                     } catch (JasperException e) {
                                         log.error("Error visiting node", e);
                                     }
@@ -432,32 +478,44 @@ public class JDTCompiler extends org.apache.jasper.compiler.Compiler {
                                          true);
         compiler.compile(compilationUnits);
 
-        if (!ctxt.keepGenerated()) {
-            File javaFile = new File(ctxt.getServletJavaFileName());
-            javaFile.delete();
-        }
-    
-        if (!problemList.isEmpty()) {
-            JavacErrorDetail[] jeds = 
-                (JavacErrorDetail[]) problemList.toArray(new JavacErrorDetail[0]);
-            errDispatcher.javacError(jeds);
+        for (int i = 0; i < compilers.length; i++) {
+            JDTCompiler jdtCompiler = compilers[i];
+            JspCompilationContext ctxt = jdtCompiler.ctxt;
+            if (!ctxt.keepGenerated()) {
+                File javaFile = new File(ctxt.getServletJavaFileName());
+                javaFile.delete();
+            }
+
+            try {
+                if (!problemLists.get(i).isEmpty()) {
+                    JavacErrorDetail[] jeds =
+                        problemLists.get(i).toArray(new JavacErrorDetail[0]);
+                    jdtCompiler.errDispatcher.javacError(jeds);
+                }
+
+                if (ctxt.isPrototypeMode()) {
+                    continue;
+                }
+
+                // JSR45 Support
+                if (! options.isSmapSuppressed()) {
+                    SmapUtil.installSmap(jdtCompiler.smap);
+                }
+            } catch (JasperException e) {
+                errors[i] = e;
+            } catch (Exception e) {
+                errors[i] = new JasperException(e);
+            }
         }
         
         if( log.isDebugEnabled() ) {
             long t2=System.currentTimeMillis();
-            log.debug("Compiled " + ctxt.getServletJavaFileName() + " "
+            log.debug("Compiled " + ((compilers.length == 1)
+                    ? first.ctxt.getServletJavaFileName()
+                    : (compilers.length + " pages")) + " "
                       + (t2-t1) + "ms");
         }
 
-        if (ctxt.isPrototypeMode()) {
-            return;
-        }
-
-        // JSR45 Support
-        if (! options.isSmapSuppressed()) {
-            SmapUtil.installSmap(smap);
-        }
-        
     }
     
     
@@ -20,13 +20,17 @@ package org.apache.jasper.compiler;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FilePermission;
+import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.net.URLConnection;
 import java.security.CodeSource;
 import java.security.PermissionCollection;
 import java.security.Policy;
 import java.security.cert.Certificate;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -146,6 +150,13 @@ public final class JspRuntimeContext {
                 && options.getCheckInterval() > 0) {
             lastCheck = System.currentTimeMillis();
         }                                            
+
+        // In development mode, the background thread may instead check the
+        // modifications, which are then compiled on next access
+        if (options.getDevelopment()
+                && options.getBackgroundModificationTest()) {
+            lastCheck = System.currentTimeMillis();
+        }
     }
 
     // ----------------------------------------------------- Instance Variables
@@ -284,12 +295,20 @@ public final class JspRuntimeContext {
             return;
         }
         long now = System.currentTimeMillis();
-        if (now > (lastCheck + (options.getCheckInterval() * 1000L))) {
+        int interval = options.getDevelopment()
+            ? options.getModificationTestInterval()
+            : options.getCheckInterval();
+        if (now > (lastCheck + (interval * 1000L))) {
             lastCheck = now;
         } else {
             return;
         }
         
+        if (options.getDevelopment()) {
+            checkModifications();
+            return;
+        }
+
         Object [] wrappers = jsps.values().toArray();
         for (int i = 0; i < wrappers.length; i++ ) {
             JspServletWrapper jsw = (JspServletWrapper)wrappers[i];
@@ -321,6 +340,94 @@ public final class JspRuntimeContext {
     // -------------------------------------------------------- Private Methods
 
 
+    /**
+     * Flag the JSPs which are outdated, as the compiler would find them,
+     * without compiling them. The modification time of each file is
+     * fetched once, even if several JSPs depend on it.
+     */
+    private void checkModifications() {
+
+        Map<String, Long> lastModified = new HashMap<String, Long>();
+        Object [] wrappers = jsps.values().toArray();
+        for (int i = 0; i < wrappers.length; i++ ) {
+            JspServletWrapper jsw = (JspServletWrapper)wrappers[i];
+            if (jsw.isStale()) {
+                continue;
+            }
+            JspCompilationContext ctxt = jsw.getJspEngineContext();
+            if (isOutDated(jsw, ctxt, lastModified)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Outdated: " + ctxt.getJspFile());
+                }
+                jsw.setStale(true);
+            }
+        }
+
+    }
+
+    private boolean isOutDated(JspServletWrapper jsw,
+            JspCompilationContext ctxt, Map<String, Long> lastModified) {
+
+        long targetLastModified = new File(ctxt.getClassFileName()).lastModified();
+        if (targetLastModified == 0L) {
+            // Not compiled yet, or compilation failed
+            return true;
+        }
+        if (getLastModified(ctxt, ctxt.getJspFile(), lastModified)
+                > targetLastModified) {
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<String> depends = jsw.getDependants();
+        if (depends == null) {
+            return false;
+        }
+        Iterator<String> it = depends.iterator();
+        while (it.hasNext()) {
+            String include = it.next();
+            if (getLastModified(ctxt, include, lastModified)
+                    > targetLastModified) {
+                return true;
+            }
+        }
+        return false;
+
+    }
+
+    /**
+     * Return the modification time of a resource, or
+     * <code>Long.MAX_VALUE</code> if it cannot be accessed.
+     */
+    private long getLastModified(JspCompilationContext ctxt, String resource,
+            Map<String, Long> lastModified) {
+
+        Long cached = lastModified.get(resource);
+        if (cached != null) {
+            return cached.longValue();
+        }
+        long result = Long.MAX_VALUE;
+        try {
+            URL url = ctxt.getResource(resource);
+            if (url != null) {
+                URLConnection uc = url.openConnection();
+                if (uc instanceof JarURLConnection) {
+                    result = ((JarURLConnection) uc).getJarEntry().getTime();
+                } else {
+                    result = uc.getLastModified();
+                }
+                uc.getInputStream().close();
+            }
+        } catch (Exception e) {
+            if (log.isDebugEnabled())
+                log.debug("Problem accessing resource. Treat as outdated.", e);
+        }
+        lastModified.put(resource, Long.valueOf(result));
+        return result;
+
+    }
+
+
     /**
      * Method used to initialize classpath for compiles.
      */
@@ -584,9 +584,12 @@ class TagFileProcessor {
         JspCompilationContext ctxt = compiler.getCompilationContext();
         JspRuntimeContext rctxt = ctxt.getRuntimeContext();
         String wrapperUri = tagFileJarPath + tagFilePath;
-        JspServletWrapper wrapper = rctxt.getWrapper(wrapperUri);
 
         synchronized (rctxt) {
+            // Looked up under the lock: with JspC threads, another page may
+            // have just created the wrapper, and a second one would compile
+            // the tag file again while the first class file is being read
+            JspServletWrapper wrapper = rctxt.getWrapper(wrapperUri);
             if (wrapper == null) {
                 wrapper = new JspServletWrapper(ctxt.getServletContext(), ctxt
                         .getOptions(), tagFilePath, tagInfo, ctxt
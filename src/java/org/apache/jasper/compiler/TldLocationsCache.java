@@ -103,7 +103,7 @@ public class TldLocationsCache {
      */
     private Hashtable mappings;
 
-    private boolean initialized;
+    private volatile boolean initialized;
     private ServletContext ctxt;
     private boolean redeployMode;
 
@@ -241,7 +241,7 @@ public class TldLocationsCache {
         }
     }
 
-    private void init() throws JasperException {
+    private synchronized void init() throws JasperException {
         if (initialized) return;
         try {
             processWebDotXml();
@@ -0,0 +1,338 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.tagext.Tag;
+
+import org.apache.AnnotationProcessor;
+import org.apache.jasper.Constants;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Pool of tag handlers that can be reused, without locks.
+ * <p>
+ * Each thread first uses a few handlers of its own, and the other handlers
+ * are kept in a stack shared by the threads, of at most
+ * <code>tagpoolMaxSize</code> handlers. The handlers of the threads which
+ * ended are moved to the shared stack, and all the handlers are released
+ * when the page is destroyed. Select it with
+ * <code>tagpoolClassName=org.apache.jasper.runtime.ConcurrentTagHandlerPool</code>.
+ *
+ * @version $Revision$
+ */
+public class ConcurrentTagHandlerPool extends TagHandlerPool {
+
+    private static Log log = LogFactory.getLog(ConcurrentTagHandlerPool.class);
+
+    /**
+     * Most handlers kept by a thread.
+     */
+    public static final int LOCAL_SIZE = 2;
+
+    private int maxSize;
+
+    private int localSize;
+
+    /**
+     * Handlers of each thread.
+     */
+    private ThreadLocal<Slot> perThread = new ThreadLocal<Slot>();
+
+    /**
+     * Slots of the threads, to release their handlers.
+     */
+    private ConcurrentLinkedQueue<Slot> slots = new ConcurrentLinkedQueue<Slot>();
+
+    /**
+     * Top of the shared stack, and its size.
+     */
+    private AtomicReference<Node> top = new AtomicReference<Node>();
+    private AtomicInteger size = new AtomicInteger(0);
+
+    private volatile boolean released = false;
+
+
+    private static final class Node {
+        final Tag handler;
+        Node next;
+        Node(Tag handler) {
+            this.handler = handler;
+        }
+    }
+
+
+    private static final class Slot {
+        final WeakReference<Thread> owner =
+            new WeakReference<Thread>(Thread.currentThread());
+        /**
+         * Set by the owner while it uses the slot, and by the pool while it
+         * empties it.
+         */
+        final AtomicBoolean busy = new AtomicBoolean(false);
+        final Tag[] handlers;
+        int current = -1;
+        Slot(int size) {
+            handlers = new Tag[size];
+        }
+        boolean isAlive() {
+            Thread thread = owner.get();
+            return (thread != null) && thread.isAlive();
+        }
+    }
+
+
+    /**
+     * Constructs a tag handler pool with the default capacity.
+     */
+    public ConcurrentTagHandlerPool() {
+        super();
+    }
+
+    protected void init(ServletConfig config) {
+        maxSize = Constants.MAX_POOL_SIZE;
+        String maxSizeS = getOption(config, OPTION_MAXSIZE, null);
+        if (maxSizeS != null) {
+            try {
+                maxSize = Integer.parseInt(maxSizeS);
+            } catch (NumberFormatException e) {
+                maxSize = -1;
+            }
+            if (maxSize < 0) {
+                maxSize = Constants.MAX_POOL_SIZE;
+            }
+        }
+        localSize = Math.min(maxSize, LOCAL_SIZE);
+        if (config != null && config.getServletContext() != null) {
+            this.annotationProcessor = (AnnotationProcessor) config
+                .getServletContext().getAttribute(AnnotationProcessor.class.getName());
+        }
+    }
+
+    /**
+     * Gets the next available tag handler from this tag handler pool,
+     * instantiating one if this tag handler pool is empty.
+     *
+     * @param handlerClass Tag handler class
+     *
+     * @return Reused or newly instantiated tag handler
+     *
+     * @throws JspException if a tag handler cannot be instantiated
+     */
+    public Tag get(Class handlerClass) throws JspException {
+        Slot slot = getSlot();
+        if (slot != null && slot.busy.compareAndSet(false, true)) {
+            try {
+                if (slot.current >= 0) {
+                    Tag handler = slot.handlers[slot.current];
+                    slot.handlers[slot.current--] = null;
+                    return handler;
+                }
+            } finally {
+                slot.busy.set(false);
+            }
+        }
+
+        Node node = pop();
+        if (node != null) {
+            return node.handler;
+        }
+
+        try {
+            Tag instance = (Tag) handlerClass.newInstance();
+            AnnotationHelper.postConstruct(annotationProcessor, instance);
+            return instance;
+        } catch (Exception e) {
+            throw new JspException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Adds the given tag handler to this tag handler pool, unless this tag
+     * handler pool has already reached its capacity, in which case the tag
+     * handler's release() method is called.
+     *
+     * @param handler Tag handler to add to this tag handler pool
+     */
+    public void reuse(Tag handler) {
+        Slot slot = getSlot();
+        if (slot != null && slot.busy.compareAndSet(false, true)) {
+            try {
+                if (slot.current < (slot.handlers.length - 1)) {
+                    slot.handlers[++slot.current] = handler;
+                    return;
+                }
+            } finally {
+                slot.busy.set(false);
+            }
+        }
+        if (!push(handler)) {
+            releaseHandler(handler);
+        }
+    }
+
+    /**
+     * Calls the release() method of all available tag handlers in this tag
+     * handler pool, of the shared stack and of all the threads. The handlers
+     * returned afterwards are released at once.
+     */
+    public void release() {
+        released = true;
+        perThread.remove();
+        Iterator<Slot> iterator = slots.iterator();
+        while (iterator.hasNext()) {
+            Slot slot = iterator.next();
+            iterator.remove();
+            empty(slot, false);
+        }
+        drain();
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Return the slot of the current thread, or null when the handlers may
+     * not be kept.
+     */
+    private Slot getSlot() {
+        if (localSize == 0) {
+            return null;
+        }
+        Slot slot = perThread.get();
+        if (slot == null) {
+            if (released) {
+                return null;
+            }
+            expunge();
+            slot = new Slot(localSize);
+            perThread.set(slot);
+            slots.offer(slot);
+            if (released) {
+                // Raced with release()
+                slots.remove(slot);
+                perThread.remove();
+                return null;
+            }
+        } else if (released) {
+            perThread.remove();
+            empty(slot, false);
+            return null;
+        }
+        return slot;
+    }
+
+    /**
+     * Move the handlers of the threads which ended to the shared stack, as
+     * nothing would reuse them.
+     */
+    private void expunge() {
+        Iterator<Slot> iterator = slots.iterator();
+        while (iterator.hasNext()) {
+            Slot slot = iterator.next();
+            if (!slot.isAlive()) {
+                iterator.remove();
+                empty(slot, true);
+            }
+        }
+    }
+
+    /**
+     * Take the handlers of a slot, which may still be used by its thread.
+     */
+    private void empty(Slot slot, boolean keep) {
+        while (!slot.busy.compareAndSet(false, true)) {
+            Thread.yield();
+        }
+        try {
+            for (int i = slot.current; i >= 0; i--) {
+                Tag handler = slot.handlers[i];
+                slot.handlers[i] = null;
+                if (!keep || !push(handler)) {
+                    releaseHandler(handler);
+                }
+            }
+            slot.current = -1;
+        } finally {
+            slot.busy.set(false);
+        }
+    }
+
+    private boolean push(Tag handler) {
+        if (released) {
+            return false;
+        }
+        if (size.incrementAndGet() > maxSize) {
+            size.decrementAndGet();
+            return false;
+        }
+        Node node = new Node(handler);
+        Node head;
+        do {
+            head = top.get();
+            node.next = head;
+        } while (!top.compareAndSet(head, node));
+        if (released) {
+            // Raced with release()
+            drain();
+        }
+        return true;
+    }
+
+    private void drain() {
+        Node node;
+        while ((node = pop()) != null) {
+            releaseHandler(node.handler);
+        }
+    }
+
+    private Node pop() {
+        Node head;
+        do {
+            head = top.get();
+            if (head == null) {
+                return null;
+            }
+        } while (!top.compareAndSet(head, head.next));
+        size.decrementAndGet();
+        return head;
+    }
+
+    private void releaseHandler(Tag handler) {
+        handler.release();
+        if (annotationProcessor != null) {
+            try {
+                AnnotationHelper.preDestroy(annotationProcessor, handler);
+            } catch (Exception e) {
+                log.warn("Error processing preDestroy on tag instance of "
+                        + handler.getClass().getName(), e);
+            }
+        }
+    }
+
+}
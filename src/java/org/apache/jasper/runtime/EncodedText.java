@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import javax.servlet.jsp.JspWriter;
+
+/**
+ * Static template text of a JSP page, encoded once with the character
+ * encoding of the page when its class is initialized. The bytes are written
+ * when the response uses the same encoding and they would not be buffered
+ * by the JspWriter, otherwise the characters are.
+ *
+ * @version $Revision$
+ */
+public final class EncodedText {
+
+    private final char[] chars;
+    private final byte[] bytes;
+    private final String encoding;
+
+
+    public EncodedText(String text, String encoding) {
+        this.chars = text.toCharArray();
+        byte[] bytes = null;
+        try {
+            bytes = text.getBytes(encoding);
+        } catch (UnsupportedEncodingException e) {
+            // Characters only
+        }
+        this.bytes = bytes;
+        this.encoding = encoding;
+    }
+
+
+    /**
+     * Write the text to the given writer.
+     *
+     * @param out Writer of the page
+     */
+    public void write(JspWriter out) throws IOException {
+        if (bytes == null || !(out instanceof JspWriterImpl)
+                || !((JspWriterImpl) out).writeEncoded(bytes, chars.length,
+                        encoding)) {
+            out.write(chars);
+        }
+    }
+
+}
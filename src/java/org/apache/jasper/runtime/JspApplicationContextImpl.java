@@ -39,6 +39,7 @@ import javax.servlet.jsp.el.ImplicitObjectELResolver;
 import javax.servlet.jsp.el.ScopedAttributeELResolver;
 
 import org.apache.el.ExpressionFactoryImpl;
+import org.apache.el.lang.StandardResolverChain;
 import org.apache.jasper.Constants;
 import org.apache.jasper.el.ELContextImpl;
 
@@ -118,7 +119,13 @@ public class JspApplicationContextImpl implements JspApplicationContext {
 	private ELResolver createELResolver() {
 		this.instantiated = true;
 		if (this.resolver == null) {
-			CompositeELResolver r = new CompositeELResolver();
+			CompositeELResolver r;
+			if (this.resolvers.isEmpty()) {
+				// Bean properties may be read without the resolver
+				r = new StandardCompositeELResolver();
+			} else {
+				r = new CompositeELResolver();
+			}
 			r.add(new ImplicitObjectELResolver());
 			for (Iterator itr = this.resolvers.iterator(); itr.hasNext();) {
 				r.add((ELResolver) itr.next());
@@ -149,4 +156,12 @@ public class JspApplicationContextImpl implements JspApplicationContext {
 		return expressionFactory;
 	}
 
+	/**
+	 * Resolver chain without application resolvers, which resolves the
+	 * properties of beans with its BeanELResolver.
+	 */
+	private static final class StandardCompositeELResolver extends
+			CompositeELResolver implements StandardResolverChain {
+	}
+
 }
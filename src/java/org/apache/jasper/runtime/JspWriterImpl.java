@@ -25,6 +25,7 @@ import java.security.PrivilegedAction;
 import javax.servlet.ServletResponse;
 import javax.servlet.jsp.JspWriter;
 
+import org.apache.EncodedWriter;
 import org.apache.jasper.Constants;
 import org.apache.jasper.compiler.Localizer;
 import org.apache.jasper.security.SecurityUtil;
@@ -42,7 +43,7 @@ import org.apache.jasper.security.SecurityUtil;
  *
  * @author Anil K. Vijendran
  */
-public class JspWriterImpl extends JspWriter {
+public class JspWriterImpl extends JspWriter implements EncodedWriter {
     
     private Writer out;
     private ServletResponse response;    
@@ -343,6 +344,47 @@ public class JspWriterImpl extends JspWriter {
         }
     }
     
+    /**
+     * Write encoded text straight to the underlying stream, when it would
+     * not be buffered: if this writer is unbuffered, or if the text is at
+     * least as long as the buffer, as {@link #write(char[], int, int)} does.
+     * The buffer is flushed first.
+     *
+     * @param b Bytes of the encoded text
+     * @param charCount Number of characters of the text
+     * @param encoding Character encoding of the text
+     *
+     * @return <code>false</code> if nothing was written
+     */
+    boolean writeEncoded(byte[] b, int charCount, String encoding)
+        throws IOException {
+        ensureOpen();
+        if (bufferSize != 0) {
+            if (charCount < bufferSize || !autoFlush) {
+                return false;
+            }
+            flushBuffer();
+        }
+        initOut();
+        return (out instanceof EncodedWriter)
+            && ((EncodedWriter) out).writeEncoded(b, 0, b.length, encoding);
+    }
+    
+    /**
+     * Write encoded text, when this writer is unbuffered, such as the
+     * output of a page included by an unbuffered page.
+     */
+    public boolean writeEncoded(byte[] b, int off, int len, String encoding)
+        throws IOException {
+        ensureOpen();
+        if (bufferSize != 0) {
+            return false;
+        }
+        initOut();
+        return (out instanceof EncodedWriter)
+            && ((EncodedWriter) out).writeEncoded(b, off, len, encoding);
+    }
+    
     
     static String lineSeparator = System.getProperty("line.separator");
     
@@ -26,6 +26,8 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 import javax.servlet.jsp.JspWriter;
 
+import org.apache.EncodedWriter;
+
 /**
  * ServletResponseWrapper used by the JSP 'include' action.
  *
@@ -48,7 +50,7 @@ public class ServletResponseWrapperInclude extends HttpServletResponseWrapper {
     public ServletResponseWrapperInclude(ServletResponse response, 
 					 JspWriter jspWriter) {
 	super((HttpServletResponse)response);
-	this.printWriter = new PrintWriter(jspWriter);
+	this.printWriter = new IncludeWriter(jspWriter);
 	this.jspWriter = jspWriter;
     }
 
@@ -73,4 +75,27 @@ public class ServletResponseWrapperInclude extends HttpServletResponseWrapper {
 	} catch (IOException ioe) {
 	}
     }
+
+
+    /**
+     * PrintWriter which also passes the encoded text of the included page
+     * to the JspWriter of the including page.
+     */
+    private static class IncludeWriter extends PrintWriter
+        implements EncodedWriter {
+
+        private JspWriter jspWriter;
+
+        public IncludeWriter(JspWriter jspWriter) {
+            super(jspWriter);
+            this.jspWriter = jspWriter;
+        }
+
+        public boolean writeEncoded(byte[] b, int off, int len,
+                String encoding) throws IOException {
+            return (jspWriter instanceof EncodedWriter)
+                && ((EncodedWriter) jspWriter).writeEncoded(b, off, len,
+                        encoding);
+        }
+    }
 }
@@ -83,6 +83,8 @@ public class JspServletWrapper {
     /** Timestamp of last time servlet resource was modified */
     private volatile long servletClassLastModifiedTime;
     private long lastModificationTest = 0L;
+    /** Whether the background check found the JSP or its dependants modified */
+    private volatile boolean stale = false;
 
     /*
      * JspServletWrapper for JSP pages.
@@ -129,6 +131,18 @@ public class JspServletWrapper {
         this.reload = reload;
     }
 
+    /**
+     * Flag the JSP as modified, so that it is compiled on next access when
+     * its modifications are checked in the background.
+     */
+    public void setStale(boolean stale) {
+        this.stale = stale;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
     public Servlet getServlet()
         throws ServletException, IOException, FileNotFoundException
     {
@@ -320,9 +334,16 @@ public class JspServletWrapper {
             /*
              * (1) Compile
              */
-            if (options.getDevelopment() || firstTime ) {
+            boolean checkOnAccess = options.getDevelopment()
+                && !options.getBackgroundModificationTest();
+            if (checkOnAccess || firstTime || stale) {
                 synchronized (this) {
                     firstTime = false;
+                    if (stale) {
+                        // Modified since the last background check
+                        stale = false;
+                        lastModificationTest = 0;
+                    }
 
                     // The following sets reload to true, if necessary
                     ctxt.compile();
@@ -116,6 +116,13 @@ public abstract class BaseDirContext implements DirContext {
     protected int cacheObjectMaxSize = 512; // 512 K
 
 
+    /**
+     * Class name of the cache implementation, or <code>null</code> for the
+     * default one.
+     */
+    protected String cacheClassName = null;
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -214,6 +221,23 @@ public abstract class BaseDirContext implements DirContext {
     }
 
 
+    /**
+     * Return the class name of the cache implementation.
+     */
+    public String getCacheClassName() {
+        return cacheClassName;
+    }
+
+
+    /**
+     * Set the class name of the cache implementation, which must extend
+     * {@link ResourceCache}.
+     */
+    public void setCacheClassName(String cacheClassName) {
+        this.cacheClassName = cacheClassName;
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
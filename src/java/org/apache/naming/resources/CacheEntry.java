@@ -39,6 +39,8 @@ public class CacheEntry {
     public boolean exists = true;
     public long accessCount = 0;
     public int size = 1;
+    // Gzip compressed variant of the content, if it was computed
+    public CacheEntry gzipVariant = null;
 
 
     // ----------------------------------------------------- Public Methods
@@ -53,6 +55,7 @@ public class CacheEntry {
         exists = true;
         accessCount = 0;
         size = 1;
+        gzipVariant = null;
     }
 
 
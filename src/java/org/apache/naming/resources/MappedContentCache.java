@@ -0,0 +1,327 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.naming.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Off-heap content cache, holding read-only memory mappings of static
+ * files.
+ * <p>
+ * Entries are keyed by the canonical path of the file, and are only
+ * returned while the last modification date and length of the file match
+ * the ones they were mapped with. As the resources only refresh these
+ * attributes every cache TTL, the actual length of the file is also
+ * checked, at most once per check interval, to drop the mapping of a file
+ * truncated in place. The content lives in the page cache
+ * instead of in byte arrays of the Java heap, and the buffers returned can
+ * be written to a channel without being copied through the heap first.
+ * <p>
+ * The capacity bounds the total length of the mappings held, least
+ * recently used mappings being dropped first. A dropped mapping is
+ * released once the buffers handed out for it have been garbage collected,
+ * as mappings cannot be released explicitly.
+ *
+ * @version $Revision$
+ */
+public class MappedContentCache {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param maxSize Maximum total length of the mappings, in bytes
+     * @param objectMinSize Minimum length of a file to be mapped, in bytes
+     * @param checkInterval Minimum interval between two checks of the
+     *  length of a mapped file, in milliseconds
+     */
+    public MappedContentCache(long maxSize, long objectMinSize,
+            long checkInterval) {
+        this.maxSize = maxSize;
+        this.objectMinSize = objectMinSize;
+        this.checkInterval = checkInterval;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Maximum total length of the mappings, in bytes.
+     */
+    protected final long maxSize;
+
+
+    /**
+     * Minimum length of a file to be mapped, in bytes. Smaller files are
+     * better served from the heap cache.
+     */
+    protected final long objectMinSize;
+
+
+    /**
+     * Minimum interval between two checks of the length of a mapped file,
+     * in milliseconds.
+     */
+    protected final long checkInterval;
+
+
+    /**
+     * Mappings, least recently used first.
+     * Canonical path -> Mapping.
+     */
+    protected final LinkedHashMap<String, Mapping> mappings =
+        new LinkedHashMap<String, Mapping>(16, 0.75f, true);
+
+
+    /**
+     * Current total length of the mappings, in bytes.
+     */
+    protected long size = 0;
+
+
+    /**
+     * Number of lookups which found a valid mapping.
+     */
+    protected long hitsCount = 0;
+
+
+    /**
+     * Number of lookups.
+     */
+    protected long accessCount = 0;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the maximum total length of the mappings, in bytes.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+
+    /**
+     * Return the current total length of the mappings, in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+
+    public synchronized long getHitsCount() {
+        return hitsCount;
+    }
+
+
+    public synchronized long getAccessCount() {
+        return accessCount;
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return a read-only buffer holding the content of the given file,
+     * positioned at its beginning, mapping the file if needed and if it
+     * fits in the cache.
+     *
+     * @param canonicalPath Canonical path of the file
+     * @param lastModified Last modification date of the file, as currently
+     *  known by the resources
+     * @param length Length of the file, as currently known by the
+     *  resources
+     * @return the content, or <code>null</code> if the file is not cached
+     */
+    public ByteBuffer get(String canonicalPath, long lastModified,
+            long length) {
+
+        if (canonicalPath == null || length < objectMinSize
+                || length > maxSize || length > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        Mapping hit = null;
+        synchronized (this) {
+            accessCount++;
+            Mapping mapping = mappings.get(canonicalPath);
+            if (mapping != null) {
+                if (mapping.lastModified == lastModified
+                        && mapping.buffer.capacity() == length) {
+                    hit = mapping;
+                } else {
+                    mappings.remove(canonicalPath);
+                    size -= mapping.buffer.capacity();
+                }
+            }
+        }
+
+        if (hit != null) {
+            // The attributes of the resources are only refreshed every
+            // cache TTL, and accessing the mapping of a file truncated in
+            // place since then faults: check the actual length, as often
+            // as the resources revalidate their entries
+            long now = System.currentTimeMillis();
+            if (now < hit.timestamp) {
+                synchronized (this) {
+                    hitsCount++;
+                }
+                return hit.buffer.duplicate();
+            }
+            if (new File(canonicalPath).length() >= length) {
+                hit.timestamp = now + checkInterval;
+                synchronized (this) {
+                    hitsCount++;
+                }
+                return hit.buffer.duplicate();
+            }
+            remove(canonicalPath, hit);
+            return null;
+        }
+
+        // Map outside of the lock, the file system may be slow
+        ByteBuffer buffer = map(canonicalPath, lastModified, length);
+        if (buffer == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            Mapping mapping = mappings.get(canonicalPath);
+            if (mapping != null) {
+                // Mapped concurrently
+                return mapping.buffer.duplicate();
+            }
+            Iterator<Mapping> iterator = mappings.values().iterator();
+            while (size + length > maxSize && iterator.hasNext()) {
+                Mapping eldest = iterator.next();
+                iterator.remove();
+                size -= eldest.buffer.capacity();
+            }
+            mappings.put(canonicalPath, new Mapping(buffer, lastModified,
+                    System.currentTimeMillis() + checkInterval));
+            size += length;
+        }
+        return buffer.duplicate();
+
+    }
+
+
+    /**
+     * Remove the mapping of the given file, if any.
+     */
+    public synchronized void remove(String canonicalPath) {
+        Mapping mapping = mappings.remove(canonicalPath);
+        if (mapping != null) {
+            size -= mapping.buffer.capacity();
+        }
+    }
+
+
+    /**
+     * Remove the mapping of the given file, unless it was mapped again
+     * concurrently.
+     */
+    protected synchronized void remove(String canonicalPath, Mapping mapping) {
+        if (mappings.get(canonicalPath) == mapping) {
+            mappings.remove(canonicalPath);
+            size -= mapping.buffer.capacity();
+        }
+    }
+
+
+    /**
+     * Remove all mappings.
+     */
+    public synchronized void clear() {
+        mappings.clear();
+        size = 0;
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Map the given file, checking that it was not modified since the
+     * resources looked at it.
+     *
+     * @return the mapping, or <code>null</code> if it could not be done
+     */
+    protected ByteBuffer map(String canonicalPath, long lastModified,
+            long length) {
+        File file = new File(canonicalPath);
+        if (file.lastModified() != lastModified || file.length() != length) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            MappedByteBuffer buffer =
+                raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            return buffer.asReadOnlyBuffer();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // Ignore, the mapping stays valid
+                }
+            }
+        }
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    protected static class Mapping {
+
+        protected final ByteBuffer buffer;
+        protected final long lastModified;
+
+        /**
+         * Time of the next check of the file length.
+         */
+        protected volatile long timestamp;
+
+        protected Mapping(ByteBuffer buffer, long lastModified,
+                long timestamp) {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+            this.timestamp = timestamp;
+        }
+
+    }
+
+
+}
@@ -67,6 +67,9 @@ public class ProxyDirContext implements DirContext {
             // the caching policy.
             BaseDirContext baseDirContext = (BaseDirContext) dirContext;
             if (baseDirContext.isCached()) {
+                if (baseDirContext.getCacheClassName() != null) {
+                    cacheClassName = baseDirContext.getCacheClassName();
+                }
                 try {
                     cache = (ResourceCache) 
                         Class.forName(cacheClassName).newInstance();
@@ -198,6 +201,14 @@ public class ProxyDirContext implements DirContext {
     // --------------------------------------------------------- Public Methods
 
 
+    /**
+     * Return the time to live of the cache entries, in milliseconds.
+     */
+    public int getCacheTTL() {
+        return cacheTTL;
+    }
+
+
     /**
      * Get the cache used for this context.
      */
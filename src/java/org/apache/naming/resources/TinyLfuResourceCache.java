@@ -0,0 +1,560 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.naming.resources;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Resource cache using the W-TinyLFU admission and eviction policy.
+ * <p>
+ * Entries are found through a concurrent hash map, so lookups neither copy
+ * nor lock anything. Newly loaded entries go to a small LRU window; entries
+ * leaving the window are only admitted into the main segmented LRU
+ * (probation and protected segments) if their estimated access frequency
+ * is higher than the one of the entry they would evict. Frequencies are
+ * estimated with a count-min sketch of 4 bit counters which is halved
+ * periodically, so that one-off requests for large files no longer flush
+ * the frequently used resources out of the cache.
+ * <p>
+ * The capacity is weighted by the size in bytes of the cached content.
+ * Not found entries are kept in a separate LRU bounded to
+ * <code>spareNotFoundEntries</code> entries, instead of being cleared all
+ * at once.
+ * <p>
+ * Reordering an entry on a hit needs the policy lock: when it is busy the
+ * reordering is skipped, the access still being counted in the sketch.
+ *
+ * @version $Revision$
+ */
+public class TinyLfuResourceCache extends ResourceCache {
+
+
+    /**
+     * Weight of an entry, on top of the size of its content.
+     */
+    protected static final int ENTRY_OVERHEAD = 1024;
+
+
+    /**
+     * Percentage of the capacity used by the admission window.
+     */
+    protected static final int WINDOW_PERCENT = 1;
+
+
+    /**
+     * Percentage of the main space used by the protected segment.
+     */
+    protected static final int PROTECTED_PERCENT = 80;
+
+
+    // Queues an entry can be in
+    protected static final int WINDOW = 0;
+    protected static final int PROBATION = 1;
+    protected static final int PROTECTED = 2;
+    protected static final int NOT_FOUND = 3;
+    protected static final int REMOVED = -1;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    public TinyLfuResourceCache() {
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Entries, found and not found.
+     * Path -> Node.
+     */
+    protected ConcurrentHashMap<String, Node> data =
+        new ConcurrentHashMap<String, Node>();
+
+
+    /**
+     * Lock guarding the queues and the weights.
+     */
+    protected ReentrantLock policyLock = new ReentrantLock();
+
+
+    protected Queue window = new Queue();
+    protected Queue probation = new Queue();
+    protected Queue protectedQueue = new Queue();
+    protected Queue notFound = new Queue();
+
+
+    /**
+     * Access frequency estimates, created on first load, once the maximum
+     * size is known.
+     */
+    protected volatile FrequencySketch sketch = null;
+
+
+    /**
+     * Current weight of the cache in bytes.
+     */
+    protected volatile long weightedSize = 0;
+
+
+    /**
+     * Number of entries evicted to make space.
+     */
+    protected volatile long evictionCount = 0;
+
+
+    /**
+     * Number of entries which were not admitted in the cache.
+     */
+    protected volatile long rejectionCount = 0;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the current cache size in KB.
+     */
+    public int getCacheSize() {
+        return (int) (weightedSize / 1024);
+    }
+
+
+    /**
+     * Return the number of cache misses.
+     * Note: Update is not synced, so the number may not be completely
+     * accurate.
+     */
+    public long getMissCount() {
+        return accessCount - hitsCount;
+    }
+
+
+    /**
+     * Return the number of entries evicted to make space.
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+
+    /**
+     * Return the number of loaded entries the admission policy did not keep.
+     */
+    public long getRejectionCount() {
+        return rejectionCount;
+    }
+
+
+    /**
+     * Return the number of cached existing resources.
+     */
+    public int getEntryCount() {
+        return data.size() - notFound.count;
+    }
+
+
+    /**
+     * Return the number of cached not found entries.
+     */
+    public int getNotFoundCount() {
+        return notFound.count;
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Space is made by {@link #load(CacheEntry)}, which decides whether the
+     * new entry is worth keeping.
+     */
+    public boolean allocate(int space) {
+        return true;
+    }
+
+
+    public CacheEntry lookup(String name) {
+
+        accessCount++;
+        FrequencySketch currentSketch = sketch;
+        if (currentSketch != null) {
+            currentSketch.increment(name);
+        }
+        Node node = data.get(name);
+        if (node == null) {
+            return null;
+        }
+        hitsCount++;
+        if (policyLock.tryLock()) {
+            try {
+                onHit(node);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        return node.entry;
+
+    }
+
+
+    public void load(CacheEntry entry) {
+        policyLock.lock();
+        try {
+            if (data.containsKey(entry.name)) {
+                return;
+            }
+            if (!entry.exists) {
+                Node node = new Node(entry, 0);
+                data.put(entry.name, node);
+                notFound.addLast(node, NOT_FOUND);
+                while (notFound.count > Math.max(spareNotFoundEntries, 0)) {
+                    remove(notFound.head);
+                    evictionCount++;
+                }
+                return;
+            }
+            long maximum = cacheMaxSize * 1024L;
+            int weight = weigh(entry);
+            if (weight > maximum) {
+                rejectionCount++;
+                return;
+            }
+            if (sketch == null) {
+                sketch = new FrequencySketch(cacheMaxSize);
+            }
+            Node node = new Node(entry, weight);
+            data.put(entry.name, node);
+            window.addLast(node, WINDOW);
+            weightedSize += weight;
+            evict(maximum);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+
+    public boolean unload(String name) {
+        policyLock.lock();
+        try {
+            Node node = data.get(name);
+            if (node == null) {
+                return false;
+            }
+            remove(node);
+            return true;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Return the weight of the given entry in bytes.
+     */
+    protected int weigh(CacheEntry entry) {
+        int weight = ENTRY_OVERHEAD;
+        if (entry.resource != null) {
+            byte[] content = entry.resource.getContent();
+            if (content != null) {
+                weight += content.length;
+            }
+        }
+        return weight;
+    }
+
+
+    /**
+     * Move the given entry after a hit. Called with the policy lock held.
+     */
+    protected void onHit(Node node) {
+        switch (node.queue) {
+        case WINDOW:
+        case PROTECTED:
+        case NOT_FOUND:
+            queueOf(node).moveToLast(node);
+            break;
+        case PROBATION:
+            probation.remove(node);
+            protectedQueue.addLast(node, PROTECTED);
+            long protectedMaximum = (mainMaximum(cacheMaxSize * 1024L)
+                * PROTECTED_PERCENT) / 100;
+            while (protectedQueue.weight > protectedMaximum) {
+                Node demoted = protectedQueue.head;
+                protectedQueue.remove(demoted);
+                probation.addLast(demoted, PROBATION);
+            }
+            break;
+        default:
+            // Removed while we were waiting for the lock
+        }
+    }
+
+
+    /**
+     * Move the entries which overflow the window to the probation segment,
+     * then evict entries until the cache fits in the given weight, each
+     * entry coming from the window competing with the least recently used
+     * entry of the probation segment. Called with the policy lock held.
+     */
+    protected void evict(long maximum) {
+
+        Node candidate = null;
+        long windowMaximum = Math.max((maximum * WINDOW_PERCENT) / 100,
+                ENTRY_OVERHEAD);
+        while (window.weight > windowMaximum && window.head != null) {
+            Node node = window.head;
+            window.remove(node);
+            probation.addLast(node, PROBATION);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+
+        while (weightedSize > maximum) {
+            Node victim = probation.head;
+            if (victim == null) {
+                victim = (protectedQueue.head != null) ? protectedQueue.head
+                    : window.head;
+                if (victim == null) {
+                    break;
+                }
+                remove(victim);
+                evictionCount++;
+                continue;
+            }
+            if (candidate == null || candidate == victim) {
+                if (candidate == victim) {
+                    candidate = victim.next;
+                }
+                remove(victim);
+                evictionCount++;
+            } else if (sketch.frequency(candidate.entry.name)
+                       > sketch.frequency(victim.entry.name)) {
+                remove(victim);
+                evictionCount++;
+            } else {
+                Node next = candidate.next;
+                remove(candidate);
+                rejectionCount++;
+                candidate = next;
+            }
+        }
+
+    }
+
+
+    /**
+     * Return the weight available to the probation and protected segments.
+     */
+    protected long mainMaximum(long maximum) {
+        return maximum - Math.max((maximum * WINDOW_PERCENT) / 100,
+                ENTRY_OVERHEAD);
+    }
+
+
+    /**
+     * Remove the given entry from the cache. Called with the policy lock
+     * held.
+     */
+    protected void remove(Node node) {
+        Queue queue = queueOf(node);
+        if (queue == null) {
+            return;
+        }
+        data.remove(node.entry.name);
+        if (node.queue != NOT_FOUND) {
+            weightedSize -= node.weight;
+        }
+        queue.remove(node);
+        node.queue = REMOVED;
+    }
+
+
+    protected Queue queueOf(Node node) {
+        switch (node.queue) {
+        case WINDOW:
+            return window;
+        case PROBATION:
+            return probation;
+        case PROTECTED:
+            return protectedQueue;
+        case NOT_FOUND:
+            return notFound;
+        default:
+            return null;
+        }
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * Cache entry, linked in one of the queues.
+     */
+    protected static class Node {
+
+        protected final CacheEntry entry;
+        protected final int weight;
+        protected int queue = REMOVED;
+        protected Node prev;
+        protected Node next;
+
+        protected Node(CacheEntry entry, int weight) {
+            this.entry = entry;
+            this.weight = weight;
+        }
+
+    }
+
+
+    /**
+     * Doubly linked LRU list of nodes, least recently used first.
+     */
+    protected static class Queue {
+
+        protected Node head;
+        protected Node tail;
+        protected long weight;
+        protected int count;
+
+        protected void addLast(Node node, int queue) {
+            node.queue = queue;
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+            count++;
+        }
+
+        protected void remove(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+            count--;
+        }
+
+        protected void moveToLast(Node node) {
+            if (node != tail) {
+                int queue = node.queue;
+                remove(node);
+                addLast(node, queue);
+            }
+        }
+
+    }
+
+
+    /**
+     * Count-min sketch of 4 rows of 4 bit counters estimating how often
+     * names were looked up. All counters are halved once the number of
+     * increments reaches ten times the width, so that old popularity fades.
+     * Updates are not synced: a lost increment only makes an estimate
+     * slightly lower.
+     */
+    protected static class FrequencySketch {
+
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {
+            0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F
+        };
+
+        private final byte[] table;
+        private final int width;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        /**
+         * @param expectedEntries Number of entries the cache may hold
+         */
+        protected FrequencySketch(int expectedEntries) {
+            int width = 16;
+            while (width < expectedEntries && width < (1 << 20)) {
+                width <<= 1;
+            }
+            this.width = width;
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+            this.table = new byte[DEPTH * width];
+        }
+
+        protected int frequency(String name) {
+            int hash = name.hashCode();
+            int result = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                result = Math.min(result, table[index(hash, i)]);
+            }
+            return result;
+        }
+
+        protected void increment(String name) {
+            int hash = name.hashCode();
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(hash, i);
+                if (table[index] < MAX_COUNT) {
+                    table[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return row * width + (h & mask);
+        }
+
+        private void reset() {
+            additions = additions / 2;
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (byte) (table[i] >> 1);
+            }
+        }
+
+    }
+
+
+}
@@ -19,8 +19,12 @@ package org.apache.tomcat.util.http;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.Enumeration;
 
+import org.apache.tomcat.util.buf.Ascii;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.CharChunk;
 import org.apache.tomcat.util.buf.MessageBytes;
 import org.apache.tomcat.util.res.StringManager;
 
@@ -58,9 +62,11 @@ import org.apache.tomcat.util.res.StringManager;
    Apache seems to be using a similar method for storing and manipulating
    headers.
        
+   The names are hashed the first time a header is requested, from the
+   bytes they were parsed into, and lookups compare the names only when
+   the hashes match.
+
    Future enhancements:
-   - hash the headers the first time a header is requested ( i.e. if the
-   servlet needs direct access to headers).
    - scan "common" values ( length, cookies, etc ) during the parse
    ( addHeader hook )
    
@@ -99,6 +105,13 @@ public class MimeHeaders {
      */
     public static final int DEFAULT_HEADER_SIZE=8;
 
+    /**
+     * Number of header fields above which lookups by name go through the
+     * hash index rather than a scan of the name hashes. Below it, building
+     * the index costs more than the few lookups of a request it saves.
+     */
+    public static final int INDEX_THRESHOLD = 64;
+
     private static final StringManager sm =
             StringManager.getManager("org.apache.tomcat.util.http");
 
@@ -121,6 +134,33 @@ public class MimeHeaders {
      */
     private int limit = -1;
 
+    /**
+     * Case insensitive hashes of the names of the fields, computed on the
+     * first lookup after the fields are added: the names are only hashed
+     * from the bytes they were parsed into.
+     * 每个header名称的hash值,在添加后第一次查找时才计算
+     */
+    private int[] hashes = new int[DEFAULT_HEADER_SIZE];
+
+    /**
+     * Number of fields with a hash in hashes.
+     */
+    private int hashed;
+
+    /**
+     * Hash index of the fields, with more than INDEX_THRESHOLD fields:
+     * buckets holds the position + 1 of the first field of each bucket,
+     * and chain the position + 1 of the next field of the same bucket, in
+     * the order of the fields.
+     */
+    private int[] buckets;
+    private int[] chain;
+
+    /**
+     * Number of fields in the hash index.
+     */
+    private int indexed;
+
     /**
      * Creates a new MimeHeaders object using a default buffer size.
      */
@@ -157,6 +197,8 @@ public class MimeHeaders {
             headers[i].recycle();
         }
         count = 0;
+        hashed = 0;
+        clearIndex();
     }
 
     /**
@@ -211,21 +253,145 @@ public class MimeHeaders {
      * 从starting位置开始寻找每一个header
      */
     public int findHeader( String name, int starting ) {
-        // We can use a hash - but it's not clear how much
-        // benefit you can get - there is an  overhead 
-        // and the number of headers is small (4-5 ?)
-        // Another problem is that we'll pay the overhead
-        // of constructing the hashtable
-
-        // A custom search tree may be better
+        // The names are compared only when their hashes match, and with
+        // very many headers the hash index avoids the scan
+        hash();
+        int h = hash(name);
+        if (count > INDEX_THRESHOLD) {
+            index();
+            for (int i = buckets[h & (buckets.length - 1)]; i != 0; i = chain[i - 1]) {
+                int n = i - 1;
+                if (n >= starting && hashes[n] == h
+                    && headers[n].getName().equalsIgnoreCase(name)) {
+                    return n;
+                }
+            }
+            return -1;
+        }
         for (int i = starting; i < count; i++) {//从starting位置开始寻找每一个header
-            if (headers[i].getName().equalsIgnoreCase(name)) {//确定name相同,则返回该name对应的下标
+            if (hashes[i] == h && headers[i].getName().equalsIgnoreCase(name)) {//确定name相同,则返回该name对应的下标
                 return i;
             }
         }
         return -1;
     }
-    
+
+    /**
+     * Compute the hashes of the names of the fields added since the last
+     * lookup.
+     */
+    private void hash() {
+        if (hashed == count) {
+            return;
+        }
+        if (hashes.length < count) {
+            int[] tmp = new int[headers.length];
+            System.arraycopy(hashes, 0, tmp, 0, hashed);
+            hashes = tmp;
+        }
+        for (int i = hashed; i < count; i++) {
+            hashes[i] = hash(headers[i].getName());
+        }
+        hashed = count;
+    }
+
+    /**
+     * Add the fields added since the last lookup to the hash index, which
+     * is sized to keep the buckets short.
+     */
+    private void index() {
+        if (indexed == count) {
+            return;
+        }
+        if (buckets == null || buckets.length < count * 2) {
+            int size = (buckets == null) ? 32 : buckets.length;
+            while (size < count * 2) {
+                size <<= 1;
+            }
+            buckets = new int[size];
+            chain = new int[size];
+            indexed = 0;
+        }
+        int mask = buckets.length - 1;
+        for (int n = indexed; n < count; n++) {
+            // Appended to the bucket, which keeps the fields in order
+            chain[n] = 0;
+            int b = hashes[n] & mask;
+            int i = buckets[b];
+            if (i == 0) {
+                buckets[b] = n + 1;
+            } else {
+                while (chain[i - 1] != 0) {
+                    i = chain[i - 1];
+                }
+                chain[i - 1] = n + 1;
+            }
+        }
+        indexed = count;
+    }
+
+    private void clearIndex() {
+        if (indexed > 0) {
+            Arrays.fill(buckets, 0);
+            indexed = 0;
+        }
+    }
+
+    /**
+     * Case insensitive hash of a name, the same for the bytes, the chars
+     * or the String of the name. Only the length and a few characters are
+     * hashed, which tells most names apart at a constant cost; the names
+     * with the same hash are compared.
+     */
+    static int hash(String name) {
+        int len = name.length();
+        if (len == 0) {
+            return 0;
+        }
+        return hash(len, name.charAt(0), name.charAt(len >> 1),
+                    name.charAt(len - 1));
+    }
+
+    static int hash(MessageBytes name) {
+        switch (name.getType()) {
+        case MessageBytes.T_BYTES: {
+            ByteChunk bc = name.getByteChunk();
+            int len = bc.getLength();
+            if (len == 0) {
+                return 0;
+            }
+            byte[] b = bc.getBuffer();
+            int start = bc.getStart();
+            return hash(len, b[start], b[start + (len >> 1)],
+                        b[start + len - 1]);
+        }
+        case MessageBytes.T_CHARS: {
+            CharChunk cc = name.getCharChunk();
+            int len = cc.getLength();
+            if (len == 0) {
+                return 0;
+            }
+            char[] c = cc.getBuffer();
+            int start = cc.getStart();
+            return hash(len, c[start], c[start + (len >> 1)],
+                        c[start + len - 1]);
+        }
+        case MessageBytes.T_STR:
+            return hash(name.getString());
+        default:
+            return 0;
+        }
+    }
+
+    private static int hash(int len, int first, int middle, int last) {
+        int h = len;
+        h = 31 * h + Ascii.toLower(first);
+        h = 31 * h + Ascii.toLower(middle);
+        h = 31 * h + Ascii.toLower(last);
+        // Spread the bits over the low ones used for the buckets
+        return h ^ (h >>> 7) ^ (h >>> 13);
+    }
+
     // -------------------- --------------------
 
     /**
@@ -315,15 +481,13 @@ public class MimeHeaders {
    添加一个key对应的value,因此要先获取该name对应的value对象
     */
     public MessageBytes setValue( String name ) {
-        for ( int i = 0; i < count; i++ ) {//循环每一个header
-            if(headers[i].getName().equalsIgnoreCase(name)) {//说明有该name存在
-                for ( int j=i+1; j < count; j++ ) {//循环后期是否还有该name
-                    if(headers[j].getName().equalsIgnoreCase(name)) {//说明还依然存在该name
-                        removeHeader(j--);//则移除该name
-                    }
-                }
-                return headers[i].getValue();//获取该name对应的value对象
+        int i = findHeader(name, 0);
+        if (i >= 0) {//说明有该name存在
+            int j;
+            while ((j = findHeader(name, i + 1)) >= 0) {//循环后期是否还有该name
+                removeHeader(j);//则移除该name
             }
+            return headers[i].getValue();//获取该name对应的value对象
         }
         MimeHeaderField mh = createHeader();
         mh.getName().setString(name);
@@ -338,12 +502,8 @@ public class MimeHeaders {
      * 获取该name对应的value
      */
     public MessageBytes getValue(String name) {
-        for (int i = 0; i < count; i++) {
-            if (headers[i].getName().equalsIgnoreCase(name)) {
-                return headers[i].getValue();
-            }
-        }
-        return null;
+        int i = findHeader(name, 0);
+        return i >= 0 ? headers[i].getValue() : null;
     }
 
     /**
@@ -353,17 +513,14 @@ public class MimeHeaders {
      * unique then an {@link IllegalArgumentException} is thrown. 
      */
     public MessageBytes getUniqueValue(String name) {
-        MessageBytes result = null;
-        for (int i = 0; i < count; i++) {
-            if (headers[i].getName().equalsIgnoreCase(name)) {//说明找到该name了
-                if (result == null) {
-                    result = headers[i].getValue();//获取该name对应的value对象
-                } else {
-                    throw new IllegalArgumentException();
-                }
-            }
+        int i = findHeader(name, 0);
+        if (i < 0) {
+            return null;
         }
-        return result;
+        if (findHeader(name, i + 1) >= 0) {//说明该name存在多份
+            throw new IllegalArgumentException();
+        }
+        return headers[i].getValue();//获取该name对应的value对象
     }
 
     // bad shortcut - it'll convert to string ( too early probably,
@@ -384,10 +541,9 @@ public class MimeHeaders {
         // XXX
         // warning: rather sticky code; heavily tuned
 
-        for (int i = 0; i < count; i++) {
-            if (headers[i].getName().equalsIgnoreCase(name)) {//删除同名的header
-                removeHeader(i--);
-            }
+        int i;
+        while ((i = findHeader(name, 0)) >= 0) {//删除同名的header
+            removeHeader(i);
         }
     }
 
@@ -401,7 +557,16 @@ public class MimeHeaders {
         mh.recycle();
         headers[idx] = headers[count - 1];//将最后一个header添加到该位置,优化移动方式
         headers[count - 1] = mh;
+        if (hashed == count) {
+            hashes[idx] = hashes[count - 1];
+            hashed--;
+        } else {
+            hashed = Math.min(hashed, idx);
+        }
         count--;
+        // The index keeps the fields in order, it is rebuilt on the next
+        // lookup
+        clearIndex();
     }
 
 }
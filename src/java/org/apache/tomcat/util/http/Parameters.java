@@ -20,7 +20,7 @@ package org.apache.tomcat.util.http;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -34,7 +34,14 @@ import org.apache.tomcat.util.log.UserDataHelper;
 import org.apache.tomcat.util.res.StringManager;
 
 /**
- * 
+ * The request parameters, from the query string and the form posts.
+ * <p>
+ * The names are decoded while parsing, but the values are only recorded as
+ * ranges of the parsed bytes - URL decoded in place - and converted to
+ * strings with their charset the first time they are requested. Parameters
+ * which are never read cost no string, and the holders of the values are
+ * reused between the requests.
+ *
  * @author Costin Manolache
  */
 public final class Parameters {
@@ -51,7 +58,28 @@ public final class Parameters {
 	/**
 	 * key是字符串，value是集合
 	 */
-    private final HashMap<String,ArrayList<String>> paramHashValues = new HashMap<String,ArrayList<String>>();
+    private final HashMap<String,Values> paramHashValues = new HashMap<String,Values>();
+
+    /**
+     * Holders of the values, kept for the next requests.
+     */
+    private Values[] valuesPool = new Values[16];
+    private int valuesPoolSize = 0;
+    private int valuesUsed = 0;
+
+    /**
+     * Values not yet converted to strings: for each of them the index of its
+     * buffer, its start and its length.
+     */
+    private int[] pending = new int[3 * 64];
+    private int pendingCount = 0;
+
+    /**
+     * Buffers of the pending values, and their charsets.
+     */
+    private byte[][] buffers = new byte[2][];
+    private Charset[] charsets = new Charset[2];
+    private int bufferCount = 0;
 
     private boolean didQueryParameters=false;
 
@@ -117,6 +145,14 @@ public final class Parameters {
     public void recycle() {
         parameterCount = 0;
         paramHashValues.clear();
+        for (int i = 0; i < valuesUsed; i++) {
+            valuesPool[i].recycle();
+        }
+        valuesUsed = 0;
+        pendingCount = 0;
+        Arrays.fill(buffers, 0, bufferCount, null);
+        Arrays.fill(charsets, 0, bufferCount, null);
+        bufferCount = 0;
         didQueryParameters=false;
         encoding=null;
         decodedQuery.recycle();
@@ -131,26 +167,24 @@ public final class Parameters {
         if (key == null) {
             return;
         }
-        ArrayList<String> values = paramHashValues.get(key);
-        if (values == null) {
-            values = new ArrayList<String>(newValues.length);
-            paramHashValues.put(key, values);
-        } else {
-            values.ensureCapacity(values.size() + newValues.length);
-        }
+        Values values = getValues(key);
         for (String newValue : newValues) {
-            values.add(newValue);
+            values.add(newValue, -1);
         }
     }
 
     public String[] getParameterValues(String name) {
         handleQueryParameters();
         // no "facade"
-        ArrayList<String> values = paramHashValues.get(name);
+        Values values = paramHashValues.get(name);
         if (values == null) {
             return null;
         }
-        return values.toArray(new String[values.size()]);
+        String[] result = new String[values.size];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = getValue(values, i);
+        }
+        return result;
     }
  
     public Enumeration<String> getParameterNames() {
@@ -161,12 +195,12 @@ public final class Parameters {
     // Shortcut.
     public String getParameter(String name ) {
         handleQueryParameters();
-        ArrayList<String> values = paramHashValues.get(name);
+        Values values = paramHashValues.get(name);
         if (values != null) {
-            if(values.size() == 0) {
+            if(values.size == 0) {
                 return "";
             }
-            return values.get(0);
+            return getValue(values, 0);
         } else {
             return null;
         }
@@ -198,14 +232,92 @@ public final class Parameters {
     }
 
 
-    private void addParam( String key, String value ) {
-        if( key==null ) return;
-        ArrayList<String> values = paramHashValues.get(key);
+    /**
+     * Add a value of the bytes of a buffer, converted when it is requested.
+     */
+    private void addParam(String key, int buffer, int start, int length) {
+        if (key == null) return;
+        if (length == 0) {
+            getValues(key).add("", -1);
+            return;
+        }
+        int n = pendingCount * 3;
+        if (n == pending.length) {
+            int[] tmp = new int[n * 2];
+            System.arraycopy(pending, 0, tmp, 0, n);
+            pending = tmp;
+        }
+        pending[n] = buffer;
+        pending[n + 1] = start;
+        pending[n + 2] = length;
+        getValues(key).add(null, pendingCount++);
+    }
+
+
+    /**
+     * Return the values of a name, with a holder of the pool for a new name.
+     */
+    private Values getValues(String key) {
+        Values values = paramHashValues.get(key);
         if (values == null) {
-            values = new ArrayList<String>(1);
+            if (valuesUsed == valuesPoolSize) {
+                if (valuesPoolSize == valuesPool.length) {
+                    Values[] tmp = new Values[valuesPoolSize * 2];
+                    System.arraycopy(valuesPool, 0, tmp, 0, valuesPoolSize);
+                    valuesPool = tmp;
+                }
+                valuesPool[valuesPoolSize++] = new Values();
+            }
+            values = valuesPool[valuesUsed++];
             paramHashValues.put(key, values);
         }
-        values.add(value);
+        return values;
+    }
+
+
+    /**
+     * Return a value, converting it the first time it is requested. The
+     * application may request the parameters from several threads once
+     * they are parsed, so the conversion is done under the lock of the
+     * holder, with a chunk of its own.
+     */
+    private String getValue(Values values, int i) {
+        synchronized (values) {
+            String value = values.strings[i];
+            // A null value added explicitly has no pending value
+            if (value == null && values.pending[i] >= 0) {
+                int n = values.pending[i] * 3;
+                ByteChunk bc = new ByteChunk();
+                bc.setBytes(buffers[pending[n]], pending[n + 1], pending[n + 2]);
+                bc.setCharset(charsets[pending[n]]);
+                value = bc.toString();
+                values.strings[i] = value;
+            }
+            return value;
+        }
+    }
+
+
+    /**
+     * Register a buffer of the pending values, which must not be modified
+     * until the parameters are recycled.
+     */
+    private int addBuffer(byte[] bytes, Charset charset) {
+        if (bufferCount > 0 && buffers[bufferCount - 1] == bytes
+                && charsets[bufferCount - 1] == charset) {
+            return bufferCount - 1;
+        }
+        if (bufferCount == buffers.length) {
+            byte[][] tmp = new byte[bufferCount * 2][];
+            System.arraycopy(buffers, 0, tmp, 0, bufferCount);
+            buffers = tmp;
+            Charset[] tmp2 = new Charset[bufferCount * 2];
+            System.arraycopy(charsets, 0, tmp2, 0, bufferCount);
+            charsets = tmp2;
+        }
+        buffers[bufferCount] = bytes;
+        charsets[bufferCount] = charset;
+        return bufferCount++;
     }
 
     public void setURLDecoder( UDecoder u ) {
@@ -225,6 +337,9 @@ public final class Parameters {
     
     /**
      * 解析body中key=value参数信息
+     * <p>
+     * The values are decoded in place and converted when they are requested,
+     * so the bytes must not be modified until the parameters are recycled.
      */
     public void processParameters( byte bytes[], int start, int len ) {
         processParameters(bytes, start, len, getCharset(encoding));
@@ -242,6 +357,8 @@ public final class Parameters {
 
         //解析key=value属性失败的次数
         int decodeFailCount = 0;
+
+        int buffer = -1;
             
         int pos = start;
         int end = start + len;
@@ -409,7 +526,6 @@ public final class Parameters {
             
             try {
                 String name;
-                String value;
                 //如果key有编码,则对key的字节内容进行编码
                 if (decodeName) {
                     urlDecode(tmpName);
@@ -417,18 +533,16 @@ public final class Parameters {
                 tmpName.setCharset(charset);
                 name = tmpName.toString();
 
-                //如果value有编码,则对value的字节内容进行编码
-                if (valueStart >= 0) {
-                    if (decodeValue) {
-                        urlDecode(tmpValue);
-                    }
-                    tmpValue.setCharset(charset);
-                    value = tmpValue.toString();
-                } else {
-                    value = "";
+                //如果value有编码,则对value的字节内容进行编码,
+                //转换为字符串则等到第一次获取时
+                if (decodeValue) {
+                    urlDecode(tmpValue);
+                }
+                if (buffer == -1) {
+                    buffer = addBuffer(bytes, charset);
                 }
                 //添加解码后的key和value
-                addParam(name, value);
+                addParam(name, buffer, tmpValue.getStart(), tmpValue.getLength());
             } catch (IOException e) {
                 parseFailed = true;
                 decodeFailCount++;
@@ -521,15 +635,51 @@ public final class Parameters {
      */
     public String paramsAsString() {
         StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, ArrayList<String>> e : paramHashValues.entrySet()) {
+        for (Map.Entry<String, Values> e : paramHashValues.entrySet()) {
             sb.append(e.getKey()).append('=');
-            ArrayList<String> values = e.getValue();
-            for (String value : values) {
-                sb.append(value).append(',');
+            Values values = e.getValue();
+            for (int i = 0; i < values.size; i++) {
+                sb.append(getValue(values, i)).append(',');
             }
             sb.append('\n');
         }
         return sb.toString();
     }
 
+
+
+    // -------------------- Values --------------------
+
+
+    /**
+     * The values of a name: the strings, or the index of the pending value
+     * when it has not been converted yet.
+     */
+    private static final class Values {
+
+        String[] strings = new String[2];
+        int[] pending = new int[2];
+        int size = 0;
+
+        void add(String value, int pendingIndex) {
+            if (size == strings.length) {
+                String[] tmp = new String[size * 2];
+                System.arraycopy(strings, 0, tmp, 0, size);
+                strings = tmp;
+                int[] tmp2 = new int[size * 2];
+                System.arraycopy(pending, 0, tmp2, 0, size);
+                pending = tmp2;
+            }
+            strings[size] = value;
+            pending[size] = pendingIndex;
+            size++;
+        }
+
+        void recycle() {
+            Arrays.fill(strings, 0, size, null);
+            size = 0;
+        }
+
+    }
+
 }
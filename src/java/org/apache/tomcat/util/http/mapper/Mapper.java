@@ -25,6 +25,7 @@ import org.apache.tomcat.util.buf.MessageBytes;
 import org.apache.tomcat.util.buf.Ascii;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Locale;
 
 /**
  * Mapper, which implements the servlet API mapping rules (which are derived
@@ -60,6 +61,20 @@ public final class Mapper {
     protected Context context = new Context();
 
 
+    /**
+     * Use tries rather than binary searches over the sorted arrays to map
+     * requests.
+     */
+    protected volatile boolean trieMapping = false;
+
+
+    /**
+     * Trie of the hosts, keyed by lower case name, or <code>null</code> if
+     * trie mapping is disabled.
+     */
+    protected MappingTrie hostTrie = null;
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -82,6 +97,54 @@ public final class Mapper {
         this.defaultHostName = defaultHostName;
     }
 
+
+    /**
+     * Is trie mapping enabled?
+     */
+    public boolean getTrieMapping() {
+        return trieMapping;
+    }
+
+
+    /**
+     * Enable or disable trie mapping. Enabling it builds the tries of all
+     * the hosts, contexts and wrappers currently known, which are then kept
+     * up to date by the add and remove methods: each update builds a new
+     * immutable trie sharing the unchanged nodes and publishes it with a
+     * single assignment, so that mapping never locks and always sees either
+     * the old or the new mappings.
+     *
+     * @param trieMapping <code>true</code> to map using tries
+     */
+    public synchronized void setTrieMapping(boolean trieMapping) {
+        if (this.trieMapping == trieMapping) {
+            return;
+        }
+        // Set first, so that items added during the build get their tries
+        this.trieMapping = trieMapping;
+        Host[] hosts = this.hosts;
+        for (int i = 0; i < hosts.length; i++) {
+            Host host = hosts[i];
+            synchronized (host) {
+                Context[] contexts = host.contextList.contexts;
+                MappingTrie contextTrie = null;
+                if (trieMapping) {
+                    contextTrie = MappingTrie.EMPTY;
+                    for (int j = 0; j < contexts.length; j++) {
+                        contextTrie = contextTrie.put(contexts[j].name,
+                                contexts[j]);
+                    }
+                }
+                for (int j = 0; j < contexts.length; j++) {
+                    buildWrapperTries(contexts[j], trieMapping);
+                }
+                host.contextList.contextTrie = contextTrie;
+            }
+        }
+        buildWrapperTries(context, trieMapping);
+        updateHostTrie();
+    }
+
     /**
      * Add a new host to the mapper.
      *
@@ -94,6 +157,9 @@ public final class Mapper {
         Host[] newHosts = new Host[hosts.length + 1];
         Host newHost = new Host();
         ContextList contextList = new ContextList();
+        if (trieMapping) {
+            contextList.contextTrie = MappingTrie.EMPTY;
+        }
         newHost.name = name;
         newHost.contextList = contextList;
         newHost.object = host;
@@ -110,6 +176,7 @@ public final class Mapper {
                 hosts = newHosts;
             }
         }
+        updateHostTrie();
     }
 
 
@@ -140,6 +207,7 @@ public final class Mapper {
                 }
             }
         }
+        updateHostTrie();
     }
 
     /**
@@ -165,6 +233,7 @@ public final class Mapper {
         if (insertMap(hosts, newHosts, newHost)) {
             hosts = newHosts;
         }
+        updateHostTrie();
     }
 
     /**
@@ -182,6 +251,7 @@ public final class Mapper {
         if (removeMap(hosts, newHosts, alias)) {
             hosts = newHosts;
         }
+        updateHostTrie();
 
     }
 /**
@@ -252,8 +322,15 @@ public final class Mapper {
                 newContext.object = context;
                 newContext.welcomeResources = welcomeResources;
                 newContext.resources = resources;
+                if (trieMapping) {
+                    buildWrapperTries(newContext, true);
+                }
                 if (insertMap(contexts, newContexts, newContext)) {
                     host.contextList.contexts = newContexts;
+                    if (host.contextList.contextTrie != null) {
+                        host.contextList.contextTrie =
+                            host.contextList.contextTrie.put(path, newContext);
+                    }
                 }
             }
         }
@@ -286,6 +363,10 @@ public final class Mapper {
                 Context[] newContexts = new Context[contexts.length - 1];
                 if (removeMap(contexts, newContexts, path)) {
                     host.contextList.contexts = newContexts;
+                    if (host.contextList.contextTrie != null) {
+                        host.contextList.contextTrie =
+                            host.contextList.contextTrie.remove(path);
+                    }
                     // Recalculate nesting
                     host.contextList.nesting = 0;
                     for (int i = 0; i < newContexts.length; i++) {
@@ -415,6 +496,10 @@ public final class Mapper {
                     new Wrapper[oldWrappers.length + 1];
                 if (insertMap(oldWrappers, newWrappers, newWrapper)) {
                     context.wildcardWrappers = newWrappers;
+                    if (context.wildcardTrie != null) {
+                        context.wildcardTrie = context.wildcardTrie.put
+                            (newWrapper.name, newWrapper);
+                    }
                     int slashCount = slashCount(newWrapper.name);
                     if (slashCount > context.nesting) {
                         context.nesting = slashCount;
@@ -428,6 +513,10 @@ public final class Mapper {
                     new Wrapper[oldWrappers.length + 1];
                 if (insertMap(oldWrappers, newWrappers, newWrapper)) {
                     context.extensionWrappers = newWrappers;
+                    if (context.extensionTrie != null) {
+                        context.extensionTrie = context.extensionTrie.put
+                            (newWrapper.name, newWrapper);
+                    }
                 }
             } else if (path.equals("/")) {
                 // Default wrapper
@@ -441,6 +530,10 @@ public final class Mapper {
                     new Wrapper[oldWrappers.length + 1];
                 if (insertMap(oldWrappers, newWrappers, newWrapper)) {
                     context.exactWrappers = newWrappers;
+                    if (context.exactTrie != null) {
+                        context.exactTrie = context.exactTrie.put
+                            (newWrapper.name, newWrapper);
+                    }
                 }
             }
         }
@@ -510,6 +603,9 @@ public final class Mapper {
                         }
                     }
                     context.wildcardWrappers = newWrappers;
+                    if (context.wildcardTrie != null) {
+                        context.wildcardTrie = context.wildcardTrie.remove(name);
+                    }
                 }
             } else if (path.startsWith("*.")) {
                 // Extension wrapper
@@ -519,6 +615,9 @@ public final class Mapper {
                     new Wrapper[oldWrappers.length - 1];
                 if (removeMap(oldWrappers, newWrappers, name)) {
                     context.extensionWrappers = newWrappers;
+                    if (context.extensionTrie != null) {
+                        context.extensionTrie = context.extensionTrie.remove(name);
+                    }
                 }
             } else if (path.equals("/")) {
                 // Default wrapper
@@ -531,6 +630,9 @@ public final class Mapper {
                     new Wrapper[oldWrappers.length - 1];
                 if (removeMap(oldWrappers, newWrappers, name)) {
                     context.exactWrappers = newWrappers;
+                    if (context.exactTrie != null) {
+                        context.exactTrie = context.exactTrie.remove(name);
+                    }
                 }
             }
         }
@@ -646,34 +748,51 @@ public final class Mapper {
         uri.setLimit(-1);
 
         Context[] contexts = null;
+        MappingTrie contextTrie = null;
         Context context = null;
         int nesting = 0;
 
         // Virtual host mapping
         if (mappingData.host == null) {
             Host[] hosts = this.hosts;
-            int pos = findIgnoreCase(hosts, host);
-            if ((pos != -1) && (host.equalsIgnoreCase(hosts[pos].name))) {
-                mappingData.host = hosts[pos].object;
-                contexts = hosts[pos].contextList.contexts;
-                nesting = hosts[pos].contextList.nesting;
+            MappingTrie hostTrie = this.hostTrie;
+            Host mappedHost = null;
+            if (hostTrie != null) {
+                mappedHost = (Host) hostTrie.findIgnoreCase
+                    (host.getBuffer(), host.getStart(), host.getEnd());
             } else {
+                int pos = findIgnoreCase(hosts, host);
+                if ((pos != -1) && (host.equalsIgnoreCase(hosts[pos].name))) {
+                    mappedHost = hosts[pos];
+                }
+            }
+            if (mappedHost == null) {
                 if (defaultHostName == null) {
                     return;
                 }
-                pos = find(hosts, defaultHostName);
+                int pos = find(hosts, defaultHostName);
                 if ((pos != -1) && (defaultHostName.equals(hosts[pos].name))) {
-                    mappingData.host = hosts[pos].object;
-                    contexts = hosts[pos].contextList.contexts;
-                    nesting = hosts[pos].contextList.nesting;
+                    mappedHost = hosts[pos];
                 } else {
                     return;
                 }
             }
+            mappingData.host = mappedHost.object;
+            contexts = mappedHost.contextList.contexts;
+            contextTrie = mappedHost.contextList.contextTrie;
+            nesting = mappedHost.contextList.nesting;
         }
 
         // Context mapping
-        if (mappingData.context == null) {
+        if (mappingData.context == null && contextTrie != null) {
+            context = (Context) contextTrie.findPrefix
+                (uri.getBuffer(), uri.getStart(), uri.getEnd());
+            if (context == null) {
+                return;
+            }
+            mappingData.context = context.object;
+            mappingData.contextPath.setString(context.name);
+        } else if (mappingData.context == null) {
             int pos = find(contexts, uri);
             if (pos == -1) {
                 return;
@@ -752,14 +871,16 @@ public final class Mapper {
 
         // Rule 1 -- Exact Match
         Wrapper[] exactWrappers = context.exactWrappers;
-        internalMapExactWrapper(exactWrappers, path, mappingData);
+        MappingTrie exactTrie = context.exactTrie;
+        internalMapExactWrapper(exactWrappers, exactTrie, path, mappingData);
 
         // Rule 2 -- Prefix Match
         boolean checkJspWelcomeFiles = false;
         Wrapper[] wildcardWrappers = context.wildcardWrappers;
+        MappingTrie wildcardTrie = context.wildcardTrie;
         if (mappingData.wrapper == null) {
-            internalMapWildcardWrapper(wildcardWrappers, context.nesting, 
-                                       path, mappingData);
+            internalMapWildcardWrapper(wildcardWrappers, wildcardTrie,
+                                       context.nesting, path, mappingData);
             if (mappingData.wrapper != null && mappingData.jspWildCard) {
                 char[] buf = path.getBuffer();
                 if (buf[pathEnd - 1] == '/') {
@@ -792,8 +913,10 @@ public final class Mapper {
 
         // Rule 3 -- Extension Match
         Wrapper[] extensionWrappers = context.extensionWrappers;
+        MappingTrie extensionTrie = context.extensionTrie;
         if (mappingData.wrapper == null && !checkJspWelcomeFiles) {
-            internalMapExtensionWrapper(extensionWrappers, path, mappingData);
+            internalMapExtensionWrapper(extensionWrappers, extensionTrie,
+                                        path, mappingData);
         }
 
         // Rule 4 -- Welcome resources processing for servlets
@@ -813,12 +936,13 @@ public final class Mapper {
                     path.setOffset(servletPath);
 
                     // Rule 4a -- Welcome resources processing for exact macth
-                    internalMapExactWrapper(exactWrappers, path, mappingData);
+                    internalMapExactWrapper(exactWrappers, exactTrie,
+                                            path, mappingData);
 
                     // Rule 4b -- Welcome resources processing for prefix match
                     if (mappingData.wrapper == null) {
                         internalMapWildcardWrapper
-                            (wildcardWrappers, context.nesting, 
+                            (wildcardWrappers, wildcardTrie, context.nesting,
                              path, mappingData);
                     }
 
@@ -835,6 +959,7 @@ public final class Mapper {
                         }
                         if (file != null && !(file instanceof DirContext) ) {
                             internalMapExtensionWrapper(extensionWrappers,
+                                                        extensionTrie,
                                                         path, mappingData);
                             if (mappingData.wrapper == null
                                 && context.defaultWrapper != null) {
@@ -904,12 +1029,22 @@ public final class Mapper {
      * Exact mapping.
      */
     private final void internalMapExactWrapper
-        (Wrapper[] wrappers, CharChunk path, MappingData mappingData) {
-        int pos = find(wrappers, path);
-        if ((pos != -1) && (path.equals(wrappers[pos].name))) {
-            mappingData.requestPath.setString(wrappers[pos].name);
-            mappingData.wrapperPath.setString(wrappers[pos].name);
-            mappingData.wrapper = wrappers[pos].object;
+        (Wrapper[] wrappers, MappingTrie trie, CharChunk path,
+         MappingData mappingData) {
+        Wrapper wrapper = null;
+        if (trie != null) {
+            wrapper = (Wrapper) trie.find
+                (path.getBuffer(), path.getStart(), path.getEnd());
+        } else {
+            int pos = find(wrappers, path);
+            if ((pos != -1) && (path.equals(wrappers[pos].name))) {
+                wrapper = wrappers[pos];
+            }
+        }
+        if (wrapper != null) {
+            mappingData.requestPath.setString(wrapper.name);
+            mappingData.wrapperPath.setString(wrapper.name);
+            mappingData.wrapper = wrapper.object;
         }
     }
 
@@ -918,9 +1053,29 @@ public final class Mapper {
      * Wildcard mapping.
      */
     private final void internalMapWildcardWrapper
-        (Wrapper[] wrappers, int nesting, CharChunk path, 
+        (Wrapper[] wrappers, MappingTrie trie, int nesting, CharChunk path,
          MappingData mappingData) {
 
+        if (trie != null) {
+            Wrapper wrapper = (Wrapper) trie.findPrefix
+                (path.getBuffer(), path.getStart(), path.getEnd());
+            if (wrapper != null) {
+                int length = wrapper.name.length();
+                mappingData.wrapperPath.setString(wrapper.name);
+                if (path.getLength() > length) {
+                    mappingData.pathInfo.setChars
+                        (path.getBuffer(),
+                         path.getOffset() + length,
+                         path.getLength() - length);
+                }
+                mappingData.requestPath.setChars
+                    (path.getBuffer(), path.getOffset(), path.getLength());
+                mappingData.wrapper = wrapper.object;
+                mappingData.jspWildCard = wrapper.jspWildCard;
+            }
+            return;
+        }
+
         int pathEnd = path.getEnd();
         int pathOffset = path.getOffset();
 
@@ -970,7 +1125,8 @@ public final class Mapper {
      * Extension mappings.
      */
     private final void internalMapExtensionWrapper
-        (Wrapper[] wrappers, CharChunk path, MappingData mappingData) {
+        (Wrapper[] wrappers, MappingTrie trie, CharChunk path,
+         MappingData mappingData) {
         char[] buf = path.getBuffer();
         int pathEnd = path.getEnd();
         int servletPath = path.getOffset();
@@ -992,14 +1148,22 @@ public final class Mapper {
             if (period >= 0) {
                 path.setOffset(period + 1);
                 path.setEnd(pathEnd);
-                int pos = find(wrappers, path);
-                if ((pos != -1)
-                    && (path.equals(wrappers[pos].name))) {
+                Wrapper wrapper = null;
+                if (trie != null) {
+                    wrapper = (Wrapper) trie.find(buf, period + 1, pathEnd);
+                } else {
+                    int pos = find(wrappers, path);
+                    if ((pos != -1)
+                        && (path.equals(wrappers[pos].name))) {
+                        wrapper = wrappers[pos];
+                    }
+                }
+                if (wrapper != null) {
                     mappingData.wrapperPath.setChars
                         (buf, servletPath, pathEnd - servletPath);
                     mappingData.requestPath.setChars
                         (buf, servletPath, pathEnd - servletPath);
-                    mappingData.wrapper = wrappers[pos].object;
+                    mappingData.wrapper = wrapper.object;
                 }
                 path.setOffset(servletPath);
                 path.setEnd(pathEnd);
@@ -1008,6 +1172,53 @@ public final class Mapper {
     }
 
 
+    /**
+     * Rebuild the host trie from the host array, if trie mapping is enabled.
+     * Host names are case insensitive, and are therefore added in lower case.
+     */
+    private void updateHostTrie() {
+        if (!trieMapping) {
+            hostTrie = null;
+            return;
+        }
+        Host[] hosts = this.hosts;
+        MappingTrie trie = MappingTrie.EMPTY;
+        for (int i = 0; i < hosts.length; i++) {
+            trie = trie.put(hosts[i].name.toLowerCase(Locale.ENGLISH),
+                            hosts[i]);
+        }
+        hostTrie = trie;
+    }
+
+
+    /**
+     * Build the wrapper tries of the given context from its wrapper arrays,
+     * or drop them.
+     */
+    private static void buildWrapperTries(Context context, boolean build) {
+        synchronized (context) {
+            if (!build) {
+                context.exactTrie = null;
+                context.wildcardTrie = null;
+                context.extensionTrie = null;
+                return;
+            }
+            context.exactTrie = buildTrie(context.exactWrappers);
+            context.wildcardTrie = buildTrie(context.wildcardWrappers);
+            context.extensionTrie = buildTrie(context.extensionWrappers);
+        }
+    }
+
+
+    private static MappingTrie buildTrie(MapElement[] map) {
+        MappingTrie trie = MappingTrie.EMPTY;
+        for (int i = 0; i < map.length; i++) {
+            trie = trie.put(map[i].name, map[i]);
+        }
+        return trie;
+    }
+
+
     /**
      * Find a map elemnt given its name in a sorted array of map elements.
      * This will return the index for the closest inferior or equal item in the
@@ -1358,6 +1569,7 @@ public final class Mapper {
     protected static final class ContextList {
 
         public Context[] contexts = new Context[0];
+        public MappingTrie contextTrie = null;
         public int nesting = 0;
 
     }
@@ -1376,6 +1588,9 @@ public final class Mapper {
         public Wrapper[] exactWrappers = new Wrapper[0];
         public Wrapper[] wildcardWrappers = new Wrapper[0];
         public Wrapper[] extensionWrappers = new Wrapper[0];
+        public MappingTrie exactTrie = null;
+        public MappingTrie wildcardTrie = null;
+        public MappingTrie extensionTrie = null;
         public int nesting = 0;
 
     }
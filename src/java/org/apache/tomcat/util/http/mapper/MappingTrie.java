@@ -0,0 +1,352 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.tomcat.util.http.mapper;
+
+import org.apache.tomcat.util.buf.Ascii;
+
+/**
+ * Immutable radix trie mapping names to objects, used by the Mapper as an
+ * alternative to binary searches over sorted arrays.
+ * <p>
+ * Updates never modify a trie: {@link #put(String, Object)} and
+ * {@link #remove(String)} return a new trie sharing all the nodes which are
+ * not on the path of the updated key. A trie can therefore be published
+ * with a single reference assignment and read without any locking.
+ * Lookups work on a range of a char array (the buffer of a CharChunk), do
+ * not allocate, and cost one step per character of the looked up name.
+ *
+ * @author The Apache Software Foundation
+ */
+public final class MappingTrie {
+
+
+    /**
+     * The empty trie.
+     */
+    public static final MappingTrie EMPTY =
+        new MappingTrie(new Node(new char[0], null, new char[0], new Node[0]));
+
+
+    private final Node root;
+
+
+    private MappingTrie(Node root) {
+        this.root = root;
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return a trie containing the mappings of this trie and the given one,
+     * replacing any previous mapping of the name.
+     */
+    public MappingTrie put(String name, Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value");
+        }
+        return new MappingTrie(put(root, name.toCharArray(), 0, value));
+    }
+
+
+    /**
+     * Return a trie containing the mappings of this trie except the given
+     * name, or this trie if the name is not mapped.
+     */
+    public MappingTrie remove(String name) {
+        Node newRoot = remove(root, name.toCharArray(), 0);
+        if (newRoot == root) {
+            return this;
+        }
+        if (newRoot == null) {
+            return EMPTY;
+        }
+        return new MappingTrie(newRoot);
+    }
+
+
+    /**
+     * Return the object mapped to the given name, or <code>null</code>.
+     */
+    public Object get(String name) {
+        char[] c = name.toCharArray();
+        return find(c, 0, c.length);
+    }
+
+
+    /**
+     * Return the object mapped to the name formed by the given characters,
+     * or <code>null</code>.
+     */
+    public Object find(char[] buf, int start, int end) {
+        Node node = root;
+        int pos = start;
+        while (pos < end) {
+            node = node.child(buf[pos]);
+            if (node == null) {
+                return null;
+            }
+            int length = node.label.length;
+            if (end - pos < length) {
+                return null;
+            }
+            for (int i = 1; i < length; i++) {
+                if (buf[pos + i] != node.label[i]) {
+                    return null;
+                }
+            }
+            pos += length;
+        }
+        return node.value;
+    }
+
+
+    /**
+     * Same as {@link #find(char[], int, int)}, ignoring the case of the
+     * looked up characters. Names must have been added in lower case.
+     */
+    public Object findIgnoreCase(char[] buf, int start, int end) {
+        Node node = root;
+        int pos = start;
+        while (pos < end) {
+            node = node.child((char) Ascii.toLower(buf[pos]));
+            if (node == null) {
+                return null;
+            }
+            int length = node.label.length;
+            if (end - pos < length) {
+                return null;
+            }
+            for (int i = 1; i < length; i++) {
+                if (Ascii.toLower(buf[pos + i]) != node.label[i]) {
+                    return null;
+                }
+            }
+            pos += length;
+        }
+        return node.value;
+    }
+
+
+    /**
+     * Return the object mapped to the longest name which is a prefix of the
+     * given characters ending on a path segment boundary, that is followed
+     * either by the end of the characters or by a '/'. The empty name, if
+     * mapped, matches any path starting with '/'.
+     */
+    public Object findPrefix(char[] buf, int start, int end) {
+        Node node = root;
+        int pos = start;
+        Object best = null;
+        while (true) {
+            if (node.value != null && (pos == end || buf[pos] == '/')) {
+                best = node.value;
+            }
+            if (pos == end) {
+                return best;
+            }
+            node = node.child(buf[pos]);
+            if (node == null) {
+                return best;
+            }
+            int length = node.label.length;
+            if (end - pos < length) {
+                return best;
+            }
+            for (int i = 1; i < length; i++) {
+                if (buf[pos + i] != node.label[i]) {
+                    return best;
+                }
+            }
+            pos += length;
+        }
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    private static Node put(Node node, char[] key, int pos, Object value) {
+        if (pos == key.length) {
+            return new Node(node.label, value, node.keys, node.children);
+        }
+        int index = node.indexOf(key[pos]);
+        if (index < 0) {
+            Node leaf = new Node(copy(key, pos, key.length), value,
+                    new char[0], new Node[0]);
+            return node.withChild(-index - 1, leaf, true);
+        }
+        Node child = node.children[index];
+        int common = 1;
+        while (common < child.label.length && pos + common < key.length
+                && child.label[common] == key[pos + common]) {
+            common++;
+        }
+        if (common == child.label.length) {
+            return node.withChild(index, put(child, key, pos + common, value),
+                    false);
+        }
+        // Split the edge leading to the child
+        Node tail = new Node(copy(child.label, common, child.label.length),
+                child.value, child.keys, child.children);
+        Node split = new Node(copy(child.label, 0, common), null,
+                new char[] {tail.label[0]}, new Node[] {tail});
+        return node.withChild(index, put(split, key, pos + common, value),
+                false);
+    }
+
+
+    private static Node remove(Node node, char[] key, int pos) {
+        if (pos == key.length) {
+            if (node.value == null) {
+                return node;
+            }
+            return compact(new Node(node.label, null, node.keys, node.children));
+        }
+        int index = node.indexOf(key[pos]);
+        if (index < 0) {
+            return node;
+        }
+        Node child = node.children[index];
+        if (key.length - pos < child.label.length) {
+            return node;
+        }
+        for (int i = 1; i < child.label.length; i++) {
+            if (child.label[i] != key[pos + i]) {
+                return node;
+            }
+        }
+        Node newChild = remove(child, key, pos + child.label.length);
+        if (newChild == child) {
+            return node;
+        }
+        if (newChild != null) {
+            return node.withChild(index, newChild, false);
+        }
+        char[] keys = new char[node.keys.length - 1];
+        Node[] children = new Node[node.children.length - 1];
+        System.arraycopy(node.keys, 0, keys, 0, index);
+        System.arraycopy(node.keys, index + 1, keys, index, keys.length - index);
+        System.arraycopy(node.children, 0, children, 0, index);
+        System.arraycopy(node.children, index + 1, children, index,
+                children.length - index);
+        return compact(new Node(node.label, node.value, keys, children));
+    }
+
+
+    /**
+     * Drop a node which maps nothing, or merge it with its only child.
+     * The root, which has an empty label, is kept as it is.
+     */
+    private static Node compact(Node node) {
+        if (node.value != null || node.label.length == 0) {
+            return node;
+        }
+        if (node.children.length == 0) {
+            return null;
+        }
+        if (node.children.length == 1) {
+            Node child = node.children[0];
+            char[] label = new char[node.label.length + child.label.length];
+            System.arraycopy(node.label, 0, label, 0, node.label.length);
+            System.arraycopy(child.label, 0, label, node.label.length,
+                    child.label.length);
+            return new Node(label, child.value, child.keys, child.children);
+        }
+        return node;
+    }
+
+
+    private static char[] copy(char[] c, int start, int end) {
+        char[] result = new char[end - start];
+        System.arraycopy(c, start, result, 0, end - start);
+        return result;
+    }
+
+
+    // ------------------------------------------------------ Node Inner Class
+
+
+    private static final class Node {
+
+        /**
+         * Characters of the edge leading to this node.
+         */
+        final char[] label;
+        final Object value;
+
+        /**
+         * First character of the label of each child, sorted.
+         */
+        final char[] keys;
+        final Node[] children;
+
+        Node(char[] label, Object value, char[] keys, Node[] children) {
+            this.label = label;
+            this.value = value;
+            this.keys = keys;
+            this.children = children;
+        }
+
+        int indexOf(char c) {
+            int a = 0;
+            int b = keys.length - 1;
+            while (a <= b) {
+                int i = (a + b) >>> 1;
+                if (keys[i] < c) {
+                    a = i + 1;
+                } else if (keys[i] > c) {
+                    b = i - 1;
+                } else {
+                    return i;
+                }
+            }
+            return -(a + 1);
+        }
+
+        Node child(char c) {
+            int index = indexOf(c);
+            return (index < 0) ? null : children[index];
+        }
+
+        Node withChild(int index, Node child, boolean insert) {
+            char[] newKeys;
+            Node[] newChildren;
+            if (insert) {
+                newKeys = new char[keys.length + 1];
+                newChildren = new Node[children.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, index);
+                System.arraycopy(keys, index, newKeys, index + 1,
+                        keys.length - index);
+                System.arraycopy(children, 0, newChildren, 0, index);
+                System.arraycopy(children, index, newChildren, index + 1,
+                        children.length - index);
+            } else {
+                newKeys = keys.clone();
+                newChildren = children.clone();
+            }
+            newKeys[index] = child.label[0];
+            newChildren[index] = child;
+            return new Node(label, value, newKeys, newChildren);
+        }
+
+    }
+
+
+}
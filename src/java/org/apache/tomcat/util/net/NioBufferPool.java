@@ -0,0 +1,172 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.tomcat.util.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Slab allocator of direct buffers shared by the channels of an endpoint.
+ * <p>
+ * Buffer sizes are rounded up to a power of two size class. Buffers of a
+ * class are cut from slabs, large direct buffers allocated once and never
+ * released, and go back to the free list of their class when released.
+ * The total size of the slabs is bounded by a byte budget; once it is
+ * reached, requests which cannot be served from a free list get a heap
+ * buffer which is simply garbage collected when released.
+ *
+ * @version $Id$
+ */
+public class NioBufferPool {
+
+    /**
+     * Smallest size class, as a power of two.
+     */
+    protected static final int MIN_CLASS_BITS = 10;
+
+    /**
+     * Size of a slab in bytes; larger size classes get a slab of their own.
+     */
+    protected static final int SLAB_SIZE = 1024 * 1024;
+
+    /**
+     * Free buffers, indexed by size class.
+     */
+    protected final ConcurrentLinkedQueue<ByteBuffer>[] free;
+
+    /**
+     * Maximum total size of the slabs in bytes, -1 for unlimited.
+     */
+    protected final long budget;
+
+    protected final AtomicLong allocated = new AtomicLong(0);
+    protected final AtomicLong inUse = new AtomicLong(0);
+    protected final AtomicLong overflow = new AtomicLong(0);
+
+    /**
+     * @param budget Maximum total size of the slabs in bytes, -1 for
+     *  unlimited
+     */
+    @SuppressWarnings("unchecked")
+    public NioBufferPool(long budget) {
+        this.budget = budget;
+        this.free = new ConcurrentLinkedQueue[31 - MIN_CLASS_BITS];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+
+    /**
+     * Return the total size of the slabs in bytes.
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Return the size in bytes of the slab buffers held by channels.
+     */
+    public long getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * Return the number of heap buffers handed out because the budget was
+     * exhausted.
+     */
+    public long getOverflow() {
+        return overflow.get();
+    }
+
+
+    /**
+     * Return a cleared buffer of at least the given capacity.
+     */
+    public ByteBuffer allocate(int size) {
+        int index = sizeClass(size);
+        int capacity = 1 << (index + MIN_CLASS_BITS);
+        ByteBuffer buffer = free[index].poll();
+        if (buffer == null) {
+            buffer = carve(index, capacity);
+        }
+        if (buffer == null) {
+            overflow.incrementAndGet();
+            return ByteBuffer.allocate(capacity);
+        }
+        inUse.addAndGet(capacity);
+        buffer.clear();
+        return buffer;
+    }
+
+
+    /**
+     * Give back a buffer obtained from {@link #allocate(int)}.
+     */
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            // Overflow buffer
+            return;
+        }
+        inUse.addAndGet(-buffer.capacity());
+        free[sizeClass(buffer.capacity())].offer(buffer);
+    }
+
+
+    /**
+     * Allocate a new slab for the given size class, keep one buffer and
+     * put the others in the free list.
+     *
+     * @return the buffer, or <code>null</code> if over budget
+     */
+    protected synchronized ByteBuffer carve(int index, int capacity) {
+        // Another thread may have carved a slab meanwhile
+        ByteBuffer buffer = free[index].poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        int slabSize = Math.max(SLAB_SIZE, capacity);
+        if (budget >= 0 && allocated.get() + slabSize > budget) {
+            if (budget - allocated.get() < capacity) {
+                return null;
+            }
+            slabSize = (int) ((budget - allocated.get()) / capacity) * capacity;
+        }
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        allocated.addAndGet(slabSize);
+        for (int pos = capacity; pos + capacity <= slabSize; pos += capacity) {
+            slab.limit(pos + capacity);
+            slab.position(pos);
+            free[index].offer(slab.slice());
+        }
+        slab.limit(capacity);
+        slab.position(0);
+        return slab.slice();
+    }
+
+
+    protected static int sizeClass(int size) {
+        int index = 0;
+        while ((1 << (index + MIN_CLASS_BITS)) < size) {
+            index++;
+        }
+        return index;
+    }
+
+}
@@ -56,13 +56,31 @@ public class NioChannel implements ByteChannel{
     }
 
     public void reset() throws IOException {
-        bufHandler.getReadBuffer().clear();
-        bufHandler.getWriteBuffer().clear();
+        if (bufHandler instanceof NioEndpoint.SlabBufferHandler) {
+            releaseBuffers();
+        } else {
+            bufHandler.getReadBuffer().clear();
+            bufHandler.getWriteBuffer().clear();
+        }
         this.sendFile = false;
     }
     
+    /**
+     * Give the application buffers back to the shared pool while the
+     * connection is idle, if they come from one. They are taken again
+     * when first used.
+     */
+    public void releaseBuffers() {
+        if (bufHandler instanceof NioEndpoint.SlabBufferHandler) {
+            ((NioEndpoint.SlabBufferHandler) bufHandler).release();
+        }
+    }
+
     public int getBufferSize() {
         if ( bufHandler == null ) return 0;
+        if (bufHandler instanceof NioEndpoint.SlabBufferHandler) {
+            return ((NioEndpoint.SlabBufferHandler) bufHandler).getBufferSize();
+        }
         int size = 0;
         size += bufHandler.getReadBuffer()!=null?bufHandler.getReadBuffer().capacity():0;
         size += bufHandler.getWriteBuffer()!=null?bufHandler.getWriteBuffer().capacity():0;
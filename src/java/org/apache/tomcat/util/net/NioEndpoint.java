@@ -20,6 +20,7 @@ package org.apache.tomcat.util.net;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -35,6 +36,7 @@ import java.nio.channels.WritableByteChannel;
 import java.security.KeyStore;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -163,6 +165,13 @@ public class NioEndpoint extends AbstractEndpoint {
      * Server socket "pointer".
      */
     protected ServerSocketChannel serverSock = null;
+
+
+    /**
+     * Server sockets, one per acceptor, when they share the port with
+     * SO_REUSEPORT. The first one is also the serverSock.
+     */
+    protected ServerSocketChannel[] serverSocks = null;
     
     /**
      * use send file
@@ -310,6 +319,8 @@ public class NioEndpoint extends AbstractEndpoint {
         protected AtomicInteger size = new AtomicInteger(0);
         protected AtomicInteger bytes = new AtomicInteger(0);
         public boolean offer(NioChannel socket) {
+            // Pooled buffers go back to the pool even if the channel is dropped
+            socket.releaseBuffers();
             boolean offer = socketProperties.getBufferPool()==-1?true:size.get()<socketProperties.getBufferPool();
             offer = offer && (socketProperties.getBufferPoolSize()==-1?true:(bytes.get()+socket.getBufferSize())<socketProperties.getBufferPoolSize());
             //avoid over growing our cache or add after we have stopped
@@ -443,6 +454,33 @@ public class NioEndpoint extends AbstractEndpoint {
 
     protected SocketProperties socketProperties = new SocketProperties();
 
+    /**
+     * Shared pool of application buffers, when slab buffers are enabled.
+     */
+    protected NioBufferPool bufferPool = null;
+
+    /**
+     * Total size in bytes of the slabs of the shared buffer pool.
+     */
+    public long getBufferPoolAllocated() {
+        return (bufferPool == null) ? 0 : bufferPool.getAllocated();
+    }
+
+    /**
+     * Size in bytes of the shared pool buffers held by connections.
+     */
+    public long getBufferPoolInUse() {
+        return (bufferPool == null) ? 0 : bufferPool.getInUse();
+    }
+
+    /**
+     * Number of heap buffers allocated because the shared buffer pool was
+     * over its budget.
+     */
+    public long getBufferPoolOverflow() {
+        return (bufferPool == null) ? 0 : bufferPool.getOverflow();
+    }
+
     /**
      * Socket TCP no delay.
      */
@@ -501,6 +539,17 @@ public class NioEndpoint extends AbstractEndpoint {
     public int getAcceptorThreadCount() { return acceptorThreadCount; }
 
 
+    /**
+     * Open one server socket per acceptor thread with SO_REUSEPORT, letting
+     * the kernel spread the incoming connections across them, and pin each
+     * acceptor to its own poller. Falls back to a single shared server
+     * socket where the option is not supported.
+     */
+    protected boolean reusePort = false;
+    public void setReusePort(boolean reusePort) { this.reusePort = reusePort; }
+    public boolean getReusePort() { return reusePort; }
+
+
 
     /**
      * Poller thread count.
@@ -526,6 +575,29 @@ public class NioEndpoint extends AbstractEndpoint {
         return pollers[idx];
     }
 
+    /**
+     * Return the indexes of the pollers an acceptor with its own server
+     * socket spreads its connections over. The pollers are split in
+     * disjoint sets, so that all of them get connections; when there are
+     * fewer pollers than acceptors, acceptors share a single poller.
+     *
+     * @param acceptor Index of the acceptor
+     * @param acceptorCount Number of acceptors
+     * @param pollerCount Number of pollers
+     */
+    protected static int[] getPollerIndexes(int acceptor, int acceptorCount,
+            int pollerCount) {
+        if (pollerCount <= acceptorCount) {
+            return new int[] { acceptor % pollerCount };
+        }
+        int[] indexes =
+            new int[(pollerCount - acceptor + acceptorCount - 1) / acceptorCount];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = acceptor + i * acceptorCount;
+        }
+        return indexes;
+    }
+
     /**
      * Dummy maxSpareThreads property.
      */
@@ -801,20 +873,13 @@ public class NioEndpoint extends AbstractEndpoint {
         if (initialized)
             return;
 
-        serverSock = ServerSocketChannel.open();
-        serverSock.socket().setPerformancePreferences(socketProperties.getPerformanceConnectionTime(),
-                                                      socketProperties.getPerformanceLatency(),
-                                                      socketProperties.getPerformanceBandwidth());
-        InetSocketAddress addr = (address!=null?new InetSocketAddress(address,port):new InetSocketAddress(port));
-        serverSock.socket().bind(addr,backlog); 
-        serverSock.configureBlocking(true); //mimic APR behavior
-        serverSock.socket().setSoTimeout(getSocketProperties().getSoTimeout());
-
         // Initialize thread count defaults for acceptor, poller
         if (acceptorThreadCount == 0) {
             // FIXME: Doesn't seem to work that well with multiple accept threads
             acceptorThreadCount = 1;
         }
+
+        bind();
         if (pollerThreadCount <= 0) {
             //minimum one poller thread
             pollerThreadCount = 1;
@@ -861,6 +926,130 @@ public class NioEndpoint extends AbstractEndpoint {
 
     }
     
+    /**
+     * Open the server socket, or one server socket per acceptor sharing
+     * the port when SO_REUSEPORT is used.
+     */
+    protected void bind()
+        throws IOException {
+        serverSocks = null;
+        if (reusePort && acceptorThreadCount > 1) {
+            ServerSocketChannel first = openServerSocket(true);
+            if (first == null) {
+                log.warn(sm.getString("endpoint.warn.noReusePort", "" + port));
+            } else {
+                ServerSocketChannel[] socks =
+                    new ServerSocketChannel[acceptorThreadCount];
+                socks[0] = first;
+                // With an ephemeral port, the other sockets join the port
+                // the first one got
+                int boundPort = first.socket().getLocalPort();
+                try {
+                    for (int i = 1; i < socks.length; i++) {
+                        socks[i] = openServerSocket(true, boundPort);
+                        if (socks[i] == null) {
+                            throw new IOException(sm.getString(
+                                    "endpoint.warn.noReusePort", "" + boundPort));
+                        }
+                    }
+                } catch (IOException e) {
+                    closeServerSockets(socks);
+                    throw e;
+                }
+                serverSocks = socks;
+            }
+        }
+        if (serverSocks == null) {
+            serverSock = openServerSocket(false);
+        } else {
+            serverSock = serverSocks[0];
+        }
+    }
+
+
+    /**
+     * Close the given server sockets, skipping the <code>null</code> ones.
+     */
+    protected void closeServerSockets(ServerSocketChannel[] socks) {
+        for (int i = 0; i < socks.length; i++) {
+            if (socks[i] == null) {
+                continue;
+            }
+            try {
+                socks[i].socket().close();
+                socks[i].close();
+            } catch (IOException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug(sm.getString("endpoint.err.close"), e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Open and bind a server socket.
+     *
+     * @param reusePort Set SO_REUSEPORT before binding
+     * @return the server socket, or <code>null</code> if SO_REUSEPORT was
+     *  asked for and is not supported
+     */
+    protected ServerSocketChannel openServerSocket(boolean reusePort)
+        throws IOException {
+        return openServerSocket(reusePort, port);
+    }
+
+
+    /**
+     * Open and bind a server socket to the given port.
+     *
+     * @param reusePort Set SO_REUSEPORT before binding
+     * @param port Port to bind to
+     * @return the server socket, or <code>null</code> if SO_REUSEPORT was
+     *  asked for and is not supported
+     */
+    protected ServerSocketChannel openServerSocket(boolean reusePort, int port)
+        throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        if (reusePort && !setReusePort(channel)) {
+            channel.close();
+            return null;
+        }
+        channel.socket().setPerformancePreferences(socketProperties.getPerformanceConnectionTime(),
+                                                   socketProperties.getPerformanceLatency(),
+                                                   socketProperties.getPerformanceBandwidth());
+        InetSocketAddress addr = (address!=null?new InetSocketAddress(address,port):new InetSocketAddress(port));
+        channel.socket().bind(addr,backlog); 
+        channel.configureBlocking(true); //mimic APR behavior
+        channel.socket().setSoTimeout(getSocketProperties().getSoTimeout());
+        return channel;
+    }
+
+
+    /**
+     * Set SO_REUSEPORT on the given server socket. The option only exists
+     * in recent JREs, so it is looked up by reflection.
+     *
+     * @return <code>true</code> if the option was set
+     */
+    protected boolean setReusePort(ServerSocketChannel channel) {
+        try {
+            Class<?> optionClass = Class.forName("java.net.SocketOption");
+            Object option = Class.forName("java.net.StandardSocketOptions")
+                .getField("SO_REUSEPORT").get(null);
+            Method setOption = ServerSocketChannel.class.getMethod("setOption",
+                    new Class<?>[] {optionClass, Object.class});
+            setOption.invoke(channel, new Object[] {option, Boolean.TRUE});
+            return true;
+        } catch (Throwable t) {
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("endpoint.warn.noReusePort", "" + port), t);
+            }
+            return false;
+        }
+    }
+
+
     public KeyManager[] wrap(KeyManager[] managers) {
         if (managers==null) return null;
         KeyManager[] result = new KeyManager[managers.length];
@@ -883,10 +1072,17 @@ public class NioEndpoint extends AbstractEndpoint {
         // Initialize socket if not done before
         if (!initialized) {
             init();
+        } else if (serverSock == null) {
+            // The server sockets of the acceptors were closed by stop
+            bind();
         }
         if (!running) {
             running = true;
             paused = false;
+
+            if (socketProperties.getSlabBuffers() && bufferPool == null) {
+                bufferPool = new NioBufferPool(socketProperties.getSlabPoolSize());
+            }
             
             // Create worker collection
             if (getUseExecutor()) {
@@ -912,7 +1108,18 @@ public class NioEndpoint extends AbstractEndpoint {
 
             // Start acceptor threads
             for (int i = 0; i < acceptorThreadCount; i++) {
-                Thread acceptorThread = new Thread(new Acceptor(), getName() + "-Acceptor-" + i);
+                Acceptor acceptor = null;
+                if (serverSocks != null) {
+                    int[] indexes = getPollerIndexes(i, acceptorThreadCount, pollers.length);
+                    Poller[] acceptorPollers = new Poller[indexes.length];
+                    for (int j = 0; j < indexes.length; j++) {
+                        acceptorPollers[j] = pollers[indexes[j]];
+                    }
+                    acceptor = new Acceptor(serverSocks[i], acceptorPollers);
+                } else {
+                    acceptor = new Acceptor();
+                }
+                Thread acceptorThread = new Thread(acceptor, getName() + "-Acceptor-" + i);
                 acceptorThread.setPriority(threadPriority);
                 acceptorThread.setDaemon(daemon);
                 acceptorThread.start();
@@ -950,6 +1157,14 @@ public class NioEndpoint extends AbstractEndpoint {
         if (running) {
             running = false;
             unlockAccept();
+            if (serverSocks != null) {
+                // Unlocking is best effort when the kernel picks the server
+                // socket, and accept ignores soTimeout: closing the server
+                // sockets makes sure all the acceptors wake up
+                closeServerSockets(serverSocks);
+                serverSocks = null;
+                serverSock = null;
+            }
             for (int i=0; pollers!=null && i<pollers.length; i++) {
                 if (pollers[i]==null) continue;
                 pollers[i].destroy();
@@ -986,8 +1201,13 @@ public class NioEndpoint extends AbstractEndpoint {
             stop();
         }
         // Close server socket
-        serverSock.socket().close();
-        serverSock.close();
+        if (serverSocks != null) {
+            closeServerSockets(serverSocks);
+            serverSocks = null;
+        } else if (serverSock != null) {
+            serverSock.socket().close();
+            serverSock.close();
+        }
         serverSock = null;
         sslContext = null;
         initialized = false;
@@ -1042,6 +1262,16 @@ public class NioEndpoint extends AbstractEndpoint {
      * Unlock the server socket accept using a bogus connection.
      */
     protected void unlockAccept() {
+        // With SO_REUSEPORT the kernel picks the server socket, so try once
+        // per acceptor, hoping to reach each of them
+        int count = (serverSocks != null) ? serverSocks.length : 1;
+        for (int i = 0; i < count; i++) {
+            unlockAccept0();
+        }
+    }
+
+
+    protected void unlockAccept0() {
         java.net.Socket s = null;
         InetSocketAddress saddr = null;
         try {
@@ -1081,6 +1311,15 @@ public class NioEndpoint extends AbstractEndpoint {
      * Process the specified connection.
      */
     protected boolean setSocketOptions(SocketChannel socket) {
+        return setSocketOptions(socket, null);
+    }
+
+
+    /**
+     * Process the specified connection, registering it with the given
+     * poller, or with the next one in turn if <code>null</code>.
+     */
+    protected boolean setSocketOptions(SocketChannel socket, Poller poller) {
         // Process the connection
         try {
             //disable blocking, APR style, we are gonna be polling it
@@ -1098,6 +1337,11 @@ public class NioEndpoint extends AbstractEndpoint {
                                                                        Math.max(appbufsize,socketProperties.getAppWriteBufSize()),
                                                                        socketProperties.getDirectBuffer());
                     channel = new SecureNioChannel(socket, engine, bufhandler, selectorPool);
+                } else if (bufferPool != null) {
+                    // buffers taken from the shared pool when needed
+                    SlabBufferHandler bufhandler = new SlabBufferHandler(socketProperties.getAppReadBufSize(),
+                                                                         socketProperties.getAppWriteBufSize());
+                    channel = new NioChannel(socket, bufhandler);
                 } else {
                     // normal tcp setup
                     NioBufferHandler bufhandler = new NioBufferHandler(socketProperties.getAppReadBufSize(),
@@ -1115,7 +1359,10 @@ public class NioEndpoint extends AbstractEndpoint {
                     channel.reset();
                 }
             }
-            getPoller0().register(channel);
+            if (poller == null) {
+                poller = getPoller0();
+            }
+            poller.register(channel);
         } catch (Throwable t) {
             try {
                 log.error("",t);
@@ -1288,6 +1535,41 @@ public class NioEndpoint extends AbstractEndpoint {
      * Server socket acceptor thread.
      */
     protected class Acceptor implements Runnable {
+
+        /**
+         * Server socket of this acceptor, <code>null</code> for the shared
+         * one.
+         */
+        protected ServerSocketChannel acceptorSock = null;
+
+        /**
+         * Pollers this acceptor spreads its connections over in turn,
+         * <code>null</code> to use all the pollers of the endpoint.
+         */
+        protected Poller[] acceptorPollers = null;
+        protected int acceptorPollerRotater = 0;
+
+        public Acceptor() {
+        }
+
+        public Acceptor(ServerSocketChannel acceptorSock, Poller[] acceptorPollers) {
+            this.acceptorSock = acceptorSock;
+            this.acceptorPollers = acceptorPollers;
+        }
+
+        /**
+         * Return the poller for the next connection, or <code>null</code>
+         * to let the endpoint pick one.
+         */
+        protected Poller getPoller() {
+            if (acceptorPollers == null) {
+                return null;
+            }
+            // Only used by the thread of this acceptor
+            acceptorPollerRotater = (acceptorPollerRotater + 1) % acceptorPollers.length;
+            return acceptorPollers[acceptorPollerRotater];
+        }
+
         /**
          * The background thread that listens for incoming TCP/IP connections and
          * hands them off to an appropriate processor.
@@ -1305,13 +1587,14 @@ public class NioEndpoint extends AbstractEndpoint {
                 }
                 try {
                     // Accept the next incoming connection from the server socket
-                    SocketChannel socket = serverSock.accept();
+                    SocketChannel socket = (acceptorSock != null) ?
+                            acceptorSock.accept() : serverSock.accept();
                     // Hand this socket off to an appropriate processor
                     //TODO FIXME - this is currently a blocking call, meaning we will be blocking
                     //further accepts until there is a thread available.
                     if ( running && (!paused) && socket != null ) {
                         //processSocket(socket);
-                        if (!setSocketOptions(socket)) {
+                        if (!setSocketOptions(socket, getPoller())) {
                             try {
                                 socket.socket().close();
                                 socket.close();
@@ -1374,7 +1657,8 @@ public class NioEndpoint extends AbstractEndpoint {
         public void run() {
             if ( interestOps == OP_REGISTER ) {
                 try {
-                    socket.getIOChannel().register(socket.getPoller().getSelector(), SelectionKey.OP_READ, key);
+                    SelectionKey sk = socket.getIOChannel().register(socket.getPoller().getSelector(), SelectionKey.OP_READ, key);
+                    socket.getPoller().schedule(sk, key);
                 } catch (Exception x) {
                     log.error("", x);
                 }
@@ -1388,11 +1672,13 @@ public class NioEndpoint extends AbstractEndpoint {
                             //handle callback flag
                             if (att.getComet() && (interestOps & OP_CALLBACK) == OP_CALLBACK ) {
                                 att.setCometNotify(true);
+                                socket.getPoller().addCallback(key);
                             } else {
                                 att.setCometNotify(false);
                             }
                             interestOps = (interestOps & (~OP_CALLBACK));//remove the callback flag
                             att.access();//to prevent timeout
+                            socket.getPoller().reschedule(key, att);
                             //we are registering the key to start with, reset the fairness counter.
                             int ops = key.interestOps() | interestOps;
                             att.interestOps(ops);
@@ -1433,10 +1719,31 @@ public class NioEndpoint extends AbstractEndpoint {
         
         protected CountDownLatch stopLatch = new CountDownLatch(1);
 
+        /**
+         * Timing wheel, a circular array of lists of the keys whose timeout
+         * should be checked during the corresponding tick, or
+         * <code>null</code> if all the keys are scanned instead.
+         * Only used by the poller thread.
+         */
+        protected TimeoutEntry[] wheel = null;
+
+        /**
+         * Last tick of the timing wheel processed.
+         */
+        protected long wheelTick = 0;
+
+        /**
+         * Keys with a pending comet callback.
+         */
+        protected LinkedList<SelectionKey> notifyKeys = new LinkedList<SelectionKey>();
 
 
         public Poller() throws IOException {
             this.selector = Selector.open();
+            if (socketProperties.getTimeoutWheel()) {
+                wheel = new TimeoutEntry[TIMEOUT_WHEEL_SIZE];
+                wheelTick = System.currentTimeMillis() / getWheelResolution();
+            }
         }
         
         public Selector getSelector() { return selector;}
@@ -1471,6 +1778,89 @@ public class NioEndpoint extends AbstractEndpoint {
             selector.wakeup();
         }
 
+        protected long getWheelResolution() {
+            return Math.max(1, socketProperties.getTimeoutWheelResolution());
+        }
+
+        /**
+         * Start tracking the timeout of a newly registered key. The key
+         * then stays in the wheel, being moved along as it is used, until
+         * it is cancelled.
+         */
+        protected void schedule(SelectionKey key, KeyAttachment ka) {
+            if (wheel == null || key == null || ka == null) return;
+            TimeoutEntry entry = new TimeoutEntry(key, ka);
+            ka.timeoutEntry = entry;
+            schedule(entry, System.currentTimeMillis() + getTimeout(ka));
+        }
+
+        /**
+         * Check that the timeout of a key which was just used will not be
+         * noticed late, as its timeout may have been shortened since it was
+         * scheduled. If so, the key gets a new entry, and the previous one is
+         * dropped when its tick comes.
+         */
+        protected void reschedule(SelectionKey key, KeyAttachment ka) {
+            if (wheel == null) return;
+            TimeoutEntry entry = ka.timeoutEntry;
+            if (entry == null || entry.key != key) return;
+            long expiration = ka.getLastAccess() + getTimeout(ka);
+            if (getTick(expiration) < entry.tick) {
+                entry = new TimeoutEntry(key, ka);
+                ka.timeoutEntry = entry;
+                schedule(entry, expiration);
+            }
+        }
+
+        protected void schedule(TimeoutEntry entry, long expiration) {
+            long tick = getTick(expiration);
+            int bucket = (int) (tick & (wheel.length - 1));
+            entry.tick = tick;
+            entry.next = wheel[bucket];
+            wheel[bucket] = entry;
+        }
+
+        /**
+         * Return the tick at which to check the given expiration: rounded
+         * up, and never later than one turn of the wheel.
+         */
+        protected long getTick(long expiration) {
+            long resolution = getWheelResolution();
+            long tick = (expiration + resolution - 1) / resolution;
+            return Math.max(wheelTick + 1, Math.min(tick, wheelTick + wheel.length));
+        }
+
+        protected long getTimeout(KeyAttachment ka) {
+            return (ka.getTimeout()==-1)?((long) socketProperties.getSoTimeout()):(ka.getTimeout());
+        }
+
+        /**
+         * Remember a key with a pending comet callback, so that it gets
+         * processed at the next loop without scanning all the keys.
+         */
+        protected void addCallback(SelectionKey key) {
+            notifyKeys.add(key);
+        }
+
+        /**
+         * Process the pending comet callbacks.
+         */
+        protected void callbacks() {
+            while (!notifyKeys.isEmpty()) {
+                SelectionKey key = notifyKeys.removeFirst();
+                try {
+                    KeyAttachment ka = (KeyAttachment) key.attachment();
+                    if (ka != null && ka.getComet() && ka.getCometNotify()) {
+                        ka.setCometNotify(false);
+                        reg(key,ka,0);//avoid multiple calls, this gets reregistered after invokation
+                        if (!processSocket(ka.getChannel(), SocketStatus.OPEN)) processSocket(ka.getChannel(), SocketStatus.DISCONNECT);
+                    }
+                } catch (CancelledKeyException ckx) {
+                    cancelledKey(key, SocketStatus.ERROR,false);
+                }
+            }
+        }
+
         /**
          * Add specified socket and associated pool to the poller. The socket will
          * be added to a temporary array, and polled first after a maximum amount
@@ -1588,7 +1978,8 @@ public class NioEndpoint extends AbstractEndpoint {
                                 //do a non blocking select
                                 keyCount = selector.selectNow();
                             } else {
-                                keyCount = selector.select(selectorTimeout);
+                                keyCount = selector.select((wheel != null) ? 
+                                        Math.min(selectorTimeout, getWheelResolution()) : selectorTimeout);
                             }
                             wakeupCounter.set(0);
                         }
@@ -1720,8 +2111,8 @@ public class NioEndpoint extends AbstractEndpoint {
                     log.trace("Processing send file for: " + sd.fileName);
                 }
 
-                //setup the file channel
-                if ( sd.fchannel == null ) {
+                //setup the file channel, unless the content is already mapped
+                if ( sd.fchannel == null && sd.buffer == null ) {
                     File f = new File(sd.fileName);
                     if ( !f.exists() ) {
                         cancelledKey(sk,SocketStatus.ERROR,false);
@@ -1742,26 +2133,60 @@ public class NioEndpoint extends AbstractEndpoint {
                         attachment.access();
                     }
                 } else {
-                    long written = sd.fchannel.transferTo(sd.pos,sd.length,wc);
-                    if ( written > 0 ) {
-                        sd.pos += written;
-                        sd.length -= written;
-                        attachment.access();
-                    } else {
-                        // Unusual not to be able to transfer any bytes
-                        // Check the length was set correctly
-                        if (sd.fchannel.size() <= sd.pos) {
-                            throw new IOException("Sendfile configured to " +
-                                    "send more data than was available");
+                    // Keep writing while the socket accepts data, so that
+                    // the boundaries of multi-range transfers do not each
+                    // cost a trip through the selector
+                    long written;
+                    do {
+                        ByteBuffer boundary = sd.getBoundary();
+                        if (boundary != null) {
+                            written = wc.write(boundary);
+                        } else if (sd.length <= 0) {
+                            written = 0;
+                        } else {
+                            if (sd.buffer != null) {
+                                try {
+                                    written = wc.write(sd.buffer);
+                                } catch (InternalError e) {
+                                    // Accessing the mapping of a truncated
+                                    // file faults, rethrow any other error
+                                    if (new File(sd.fileName).length() >= sd.buffer.limit()) {
+                                        throw e;
+                                    }
+                                    IOException ioe = new IOException("Mapped content of " +
+                                            sd.fileName + " is not available");
+                                    ioe.initCause(e);
+                                    throw ioe;
+                                }
+                            } else {
+                                written = sd.fchannel.transferTo(sd.pos,sd.length,wc);
+                            }
+                            if ( written > 0 ) {
+                                sd.pos += written;
+                                sd.length -= written;
+                            } else if (sd.fchannel != null) {
+                                // Unusual not to be able to transfer any bytes
+                                // Check the length was set correctly
+                                if (sd.fchannel.size() <= sd.pos) {
+                                    throw new IOException("Sendfile configured to " +
+                                            "send more data than was available");
+                                }
+                            }
                         }
-                    }
+                        if ( written > 0 ) {
+                            attachment.access();
+                        }
+                        sd.nextPart();
+                    } while (written > 0 && sd.boundaries != null && !sd.isComplete());
                 }
-                if ( sd.length <= 0 && sc.getOutboundRemaining()<=0) {
+                if ( sd.isComplete() && sc.getOutboundRemaining()<=0) {
                     if (log.isDebugEnabled()) {
                         log.debug("Send file complete for:"+sd.fileName);
                     }
                     attachment.setSendfileData(null);
-                    try {sd.fchannel.close();}catch(Exception ignore){}
+                    if (sd.fchannel != null) {
+                        try {sd.fchannel.close();}catch(Exception ignore){}
+                    }
                     if ( sd.keepAlive ) {
                         if (log.isDebugEnabled()) {
                             log.debug("Connection is keep alive, registering back for OP_READ");
@@ -1814,6 +2239,13 @@ public class NioEndpoint extends AbstractEndpoint {
         }
 
         protected void timeout(int keyCount, boolean hasEvents) {
+            if (!close) {
+                callbacks();
+            }
+            if (wheel != null && !close) {
+                wheelTimeout();
+                return;
+            }
             long now = System.currentTimeMillis();
             //don't process timeouts too frequently, but if the selector simply timed out
             //then we can check timeouts to avoid gaps
@@ -1866,6 +2298,81 @@ public class NioEndpoint extends AbstractEndpoint {
                                                   "keyCount="+keyCount+"; hasEvents="+hasEvents +"; eval="+( (now < prevExp) && (keyCount>0 || hasEvents) && (!close) ));
 
         }
+
+        /**
+         * Process the keys of the timing wheel ticks elapsed since the last
+         * call. Keys which were used since they were scheduled are not timed
+         * out but moved further along the wheel.
+         */
+        protected void wheelTimeout() {
+            long now = System.currentTimeMillis();
+            long tick = now / getWheelResolution();
+            if (tick <= wheelTick) return;
+            // When late by more than a turn, each bucket is processed once
+            long first = Math.max(wheelTick + 1, tick - wheel.length + 1);
+            wheelTick = tick;
+            int keycount = 0;
+            for (long t = first; t <= tick; t++) {
+                int bucket = (int) (t & (wheel.length - 1));
+                TimeoutEntry entry = wheel[bucket];
+                wheel[bucket] = null;
+                while (entry != null) {
+                    TimeoutEntry next = entry.next;
+                    keycount++;
+                    SelectionKey key = entry.key;
+                    KeyAttachment ka = entry.ka;
+                    // Drop keys which were cancelled, their attachment may
+                    // already be used by another connection, and entries
+                    // replaced by an earlier one
+                    if (key.isValid() && key.attachment() == ka && ka.timeoutEntry == entry) {
+                        try {
+                            long timeout = getTimeout(ka);
+                            long expiration = ka.getLastAccess() + timeout;
+                            if ((ka.interestOps()&SelectionKey.OP_READ) != SelectionKey.OP_READ &&
+                                (ka.interestOps()&SelectionKey.OP_WRITE) != SelectionKey.OP_WRITE) {
+                                //being processed, check again later
+                                schedule(entry, now + timeout);
+                            } else if (expiration < now) {
+                                key.interestOps(0); 
+                                ka.interestOps(0); //avoid duplicate timeout calls
+                                cancelledKey(key, SocketStatus.TIMEOUT,true);
+                                // A comet timeout does not close the key
+                                if (key.isValid() && key.attachment() == ka) {
+                                    schedule(entry, now + timeout);
+                                }
+                            } else {
+                                schedule(entry, expiration);
+                            }
+                        } catch (CancelledKeyException ckx) {
+                            cancelledKey(key, SocketStatus.ERROR,false);
+                        }
+                    }
+                    entry = next;
+                }
+            }
+            if ( log.isDebugEnabled() ) log.debug("wheel timeout completed: keys processed="+keycount+"; now="+now);
+        }
+    }
+
+// ----------------------------------------------------- Timing Wheel Entry Class
+
+    /**
+     * Number of ticks in a turn of the timing wheels, a power of two.
+     */
+    protected static final int TIMEOUT_WHEEL_SIZE = 512;
+
+    /**
+     * Key tracked by the timing wheel of a poller.
+     */
+    protected static class TimeoutEntry {
+        protected final SelectionKey key;
+        protected final KeyAttachment ka;
+        protected long tick = 0;
+        protected TimeoutEntry next = null;
+        public TimeoutEntry(SelectionKey key, KeyAttachment ka) {
+            this.key = key;
+            this.ka = ka;
+        }
     }
 
 // ----------------------------------------------------- Key Attachment Class   
@@ -1891,6 +2398,7 @@ public class NioEndpoint extends AbstractEndpoint {
             cometNotify = false;
             cometOps = SelectionKey.OP_READ;
             sendfileData = null;
+            timeoutEntry = null;
         }
         
         public void reset() {
@@ -1964,6 +2472,7 @@ public class NioEndpoint extends AbstractEndpoint {
         protected CountDownLatch writeLatch = null;
         protected long lastRegistered = 0;
         protected SendfileData sendfileData = null;
+        protected TimeoutEntry timeoutEntry = null;
     }
     // ----------------------------------------------------- Worker Inner Class
 
@@ -2143,6 +2652,54 @@ public class NioEndpoint extends AbstractEndpoint {
 
     }
 
+    /**
+     * Buffer handler taking its buffers from the shared pool on first use,
+     * and giving them back when the connection goes idle, so that the
+     * memory used scales with the active connections rather than with the
+     * open ones.
+     */
+    public class SlabBufferHandler implements ApplicationBufferHandler {
+        protected int readsize;
+        protected int writesize;
+        protected ByteBuffer readbuf = null;
+        protected ByteBuffer writebuf = null;
+
+        public SlabBufferHandler(int readsize, int writesize) {
+            this.readsize = readsize;
+            this.writesize = writesize;
+        }
+
+        public ByteBuffer expand(ByteBuffer buffer, int remaining) {return buffer;}
+
+        public ByteBuffer getReadBuffer() {
+            if (readbuf == null) readbuf = bufferPool.allocate(readsize);
+            return readbuf;
+        }
+
+        public ByteBuffer getWriteBuffer() {
+            if (writebuf == null) writebuf = bufferPool.allocate(writesize);
+            return writebuf;
+        }
+
+        public int getBufferSize() {
+            int size = 0;
+            size += readbuf!=null?readbuf.capacity():0;
+            size += writebuf!=null?writebuf.capacity():0;
+            return size;
+        }
+
+        public void release() {
+            if (readbuf != null) {
+                bufferPool.release(readbuf);
+                readbuf = null;
+            }
+            if (writebuf != null) {
+                bufferPool.release(writebuf);
+                writebuf = null;
+            }
+        }
+    }
+
     // ------------------------------------------------ Handler Inner Interface
 
 
@@ -2153,7 +2710,7 @@ public class NioEndpoint extends AbstractEndpoint {
      */
     public interface Handler {
         public enum SocketState {
-            OPEN, CLOSED, LONG
+            OPEN, CLOSED, LONG, UPGRADED
         }
         public SocketState process(NioChannel socket);
         public SocketState event(NioChannel socket, SocketStatus status);
@@ -2411,10 +2968,53 @@ public class NioEndpoint extends AbstractEndpoint {
         // File
         public String fileName;
         public FileChannel fchannel;
+        // Content already mapped in memory, written instead of the file
+        public ByteBuffer buffer;
         public long pos;
         public long length;
+        // Multi-range transfers: start and end of each range, and the
+        // boundaries written before each range and after the last one
+        public long[] ranges;
+        public ByteBuffer[] boundaries;
+        public int part = 0;
         // KeepAlive flag
         public boolean keepAlive;
+
+        /**
+         * Return the boundary which must be written before the current
+         * range, or <code>null</code> if there is none left to write.
+         */
+        public ByteBuffer getBoundary() {
+            if (boundaries == null || !boundaries[part].hasRemaining()) {
+                return null;
+            }
+            return boundaries[part];
+        }
+
+        /**
+         * Move to the next range once the current one and its boundary
+         * have been sent.
+         */
+        public void nextPart() {
+            if (boundaries != null && length <= 0
+                    && !boundaries[part].hasRemaining()
+                    && part < boundaries.length - 1) {
+                part++;
+                if (2 * part < ranges.length) {
+                    pos = ranges[2 * part];
+                    length = ranges[2 * part + 1] - pos;
+                }
+            }
+        }
+
+        /**
+         * Return <code>true</code> once everything has been sent.
+         */
+        public boolean isComplete() {
+            return length <= 0 && (boundaries == null
+                    || (part == boundaries.length - 1
+                        && !boundaries[part].hasRemaining()));
+        }
     }
 
 }
@@ -101,6 +101,21 @@ public class SocketProperties {
      */
     protected int bufferPoolSize = 1024*1024*100;
 
+    /**
+     * Take the application buffers of plain channels from a shared slab
+     * pool of direct buffers, bounded by slabPoolSize, and give them back
+     * while the connection is idle between requests.
+     * Default is false
+     */
+    protected boolean slabBuffers = false;
+
+    /**
+     * Total size in bytes of the slabs of the shared buffer pool
+     * -1 means unlimited
+     * Default value is 100MB (1024*1024*100 bytes)
+     */
+    protected int slabPoolSize = 1024*1024*100;
+
     /**
      * TCP_NO_DELAY option, default is true
      */
@@ -162,6 +177,20 @@ public class SocketProperties {
      * poller going boinkers during high traffic
      */
     protected long timeoutInterval = 1000;
+
+    /**
+     * Track socket timeouts with a timing wheel per poller, updated as the
+     * sockets are used, instead of scanning all the keys of the selector
+     * every timeoutInterval.
+     * Default is false
+     */
+    protected boolean timeoutWheel = false;
+
+    /**
+     * Duration in milliseconds of a tick of the timing wheel, which is the
+     * resolution of the timeouts when it is used.
+     */
+    protected long timeoutWheelResolution = 1000;
     
     /**
      * Timeout in milliseconds for an unlock to take place.
@@ -248,6 +277,14 @@ public class SocketProperties {
         return bufferPoolSize;
     }
 
+    public boolean getSlabBuffers() {
+        return slabBuffers;
+    }
+
+    public int getSlabPoolSize() {
+        return slabPoolSize;
+    }
+
     public int getEventCache() {
         return eventCache;
     }
@@ -276,6 +313,14 @@ public class SocketProperties {
         return timeoutInterval;
     }
 
+    public boolean getTimeoutWheel() {
+        return timeoutWheel;
+    }
+
+    public long getTimeoutWheelResolution() {
+        return timeoutWheelResolution;
+    }
+
     public int getDirectBufferPool() {
         return bufferPool;
     }
@@ -344,6 +389,14 @@ public class SocketProperties {
         this.bufferPoolSize = bufferPoolSize;
     }
 
+    public void setSlabBuffers(boolean slabBuffers) {
+        this.slabBuffers = slabBuffers;
+    }
+
+    public void setSlabPoolSize(int slabPoolSize) {
+        this.slabPoolSize = slabPoolSize;
+    }
+
     public void setEventCache(int eventCache) {
         this.eventCache = eventCache;
     }
@@ -368,6 +421,14 @@ public class SocketProperties {
         this.timeoutInterval = timeoutInterval;
     }
 
+    public void setTimeoutWheel(boolean timeoutWheel) {
+        this.timeoutWheel = timeoutWheel;
+    }
+
+    public void setTimeoutWheelResolution(long timeoutWheelResolution) {
+        this.timeoutWheelResolution = timeoutWheelResolution;
+    }
+
     public void setDirectBufferPool(int directBufferPool) {
         this.bufferPool = directBufferPool;
     }
@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.connector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.apache.catalina.AsyncContext;
+import org.apache.catalina.AsyncListener;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.startup.Embedded;
+
+/**
+ * Asynchronous processing on the NIO connector: completion and dispatch
+ * from another thread, and expiry of the timeout.
+ */
+public class TestAsyncContext extends TestCase {
+
+    /**
+     * Starts an asynchronous processing, which the mode parameter tells
+     * how to end.
+     */
+    public static class AsyncServlet extends HttpServlet {
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+            String mode = req.getParameter("mode");
+            if (req.getAttribute("dispatched") != null) {
+                resp.getWriter().print("dispatched");
+                return;
+            }
+            final AsyncContext ctx = ((RequestFacade) req).startAsync();
+            if ("complete".equals(mode)) {
+                new Thread() {
+                    public void run() {
+                        try {
+                            Thread.sleep(200);
+                            ctx.getResponse().getWriter().print("completed");
+                        } catch (Exception e) {
+                            // The response is checked by the client
+                        }
+                        ctx.complete();
+                    }
+                }.start();
+            } else if ("dispatch".equals(mode)) {
+                req.setAttribute("dispatched", Boolean.TRUE);
+                new Thread() {
+                    public void run() {
+                        try {
+                            Thread.sleep(200);
+                        } catch (InterruptedException e) {
+                            // Dispatch now
+                        }
+                        ctx.dispatch();
+                    }
+                }.start();
+            } else {
+                ctx.setTimeout(1000);
+                if ("timeout".equals(mode)) {
+                    ctx.addListener(new AsyncListener() {
+                        public void onComplete(AsyncContext context) {
+                        }
+                        public void onTimeout(AsyncContext context)
+                            throws IOException {
+                            context.getResponse().getWriter().print("timeout");
+                            context.complete();
+                        }
+                        public void onError(AsyncContext context, Throwable t) {
+                        }
+                        public void onStartAsync(AsyncContext context) {
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+
+    protected Embedded embedded;
+    protected int port;
+    protected File docBase;
+
+
+    public void setUp() throws Exception {
+        ServerSocket ss = new ServerSocket(0);
+        port = ss.getLocalPort();
+        ss.close();
+        docBase = new File(System.getProperty("java.io.tmpdir"),
+                "async-" + port);
+        docBase.mkdirs();
+
+        embedded = new Embedded();
+        embedded.setCatalinaBase(docBase.getAbsolutePath());
+        embedded.setCatalinaHome(docBase.getAbsolutePath());
+        StandardEngine engine = (StandardEngine) embedded.createEngine();
+        engine.setName("test");
+        engine.setDefaultHost("localhost");
+        StandardHost host = (StandardHost)
+            embedded.createHost("localhost", docBase.getAbsolutePath());
+        engine.addChild(host);
+        final StandardContext context = new StandardContext();
+        context.setPath("");
+        context.setDocBase(docBase.getAbsolutePath());
+        context.addLifecycleListener(new LifecycleListener() {
+            public void lifecycleEvent(LifecycleEvent event) {
+                if (Lifecycle.START_EVENT.equals(event.getType())) {
+                    context.setConfigured(true);
+                }
+            }
+        });
+        host.addChild(context);
+        Wrapper wrapper = context.createWrapper();
+        wrapper.setName("async");
+        wrapper.setServletClass(AsyncServlet.class.getName());
+        context.addChild(wrapper);
+        context.addServletMapping("/async", "async");
+        embedded.addEngine(engine);
+
+        Connector connector = new Connector(
+                "org.apache.coyote.http11.Http11NioProtocol");
+        connector.setPort(port);
+        connector.setAttribute("address", "127.0.0.1");
+        embedded.addConnector(connector);
+        embedded.start();
+    }
+
+
+    public void tearDown() throws Exception {
+        embedded.stop();
+        delete(docBase);
+    }
+
+
+    protected static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+        file.delete();
+    }
+
+
+    public void testComplete() throws Exception {
+        String response = get("complete");
+        assertTrue(response, response.startsWith("HTTP/1.1 200"));
+        assertTrue(response, response.endsWith("completed"));
+    }
+
+
+    public void testDispatch() throws Exception {
+        String response = get("dispatch");
+        assertTrue(response, response.startsWith("HTTP/1.1 200"));
+        assertTrue(response, response.endsWith("dispatched"));
+    }
+
+
+    public void testTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        String response = get("timeout");
+        assertTrue(response, response.startsWith("HTTP/1.1 200"));
+        assertTrue(response, response.endsWith("timeout"));
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+    }
+
+
+    public void testTimeoutWithoutListener() throws Exception {
+        String response = get("none");
+        assertTrue(response, response.startsWith("HTTP/1.1 500"));
+    }
+
+
+    /**
+     * Send a request in the given mode, and return the whole response.
+     */
+    protected String get(String mode) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            // Well below the connection timeout
+            socket.setSoTimeout(10000);
+            OutputStream os = socket.getOutputStream();
+            os.write(("GET /async?mode=" + mode + " HTTP/1.1\r\n"
+                    + "Host: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes("ISO-8859-1"));
+            os.flush();
+            InputStream is = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                response.write(buf, 0, n);
+            }
+            return response.toString("ISO-8859-1");
+        } finally {
+            socket.close();
+        }
+    }
+
+}
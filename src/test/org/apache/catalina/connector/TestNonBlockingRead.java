@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.connector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.apache.catalina.AsyncContext;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.ReadListener;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.startup.Embedded;
+
+/**
+ * Slow uploads to the non blocking reads of the NIO connector: the request
+ * body is read as it arrives, without holding a container thread while
+ * the client is idle.
+ */
+public class TestNonBlockingRead extends TestCase {
+
+    protected static final int CHUNKS = 5;
+
+    protected static final int CHUNK = 1000;
+
+    /**
+     * Container threads currently running the servlet or a listener.
+     */
+    protected static AtomicInteger active = new AtomicInteger();
+
+    protected static AtomicInteger dataAvailable = new AtomicInteger();
+
+    protected static AtomicInteger allDataRead = new AtomicInteger();
+
+    protected static AtomicInteger errors = new AtomicInteger();
+
+
+    /**
+     * Reads the request body as long as the input is ready, and answers
+     * with its length once it was all read.
+     */
+    public static class NonBlockingServlet extends HttpServlet {
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+            active.incrementAndGet();
+            try {
+                final AsyncContext ctx = ((RequestFacade) req).startAsync();
+                ctx.setTimeout(60000);
+                final CoyoteInputStream is =
+                    (CoyoteInputStream) req.getInputStream();
+                is.setReadListener(new ReadListener() {
+                    int total = 0;
+                    byte[] buf = new byte[CHUNK];
+                    public void onDataAvailable() throws IOException {
+                        active.incrementAndGet();
+                        try {
+                            dataAvailable.incrementAndGet();
+                            while (is.isReady()) {
+                                int n = is.read(buf);
+                                if (n < 0) {
+                                    break;
+                                }
+                                total += n;
+                            }
+                        } finally {
+                            active.decrementAndGet();
+                        }
+                    }
+                    public void onAllDataRead() throws IOException {
+                        active.incrementAndGet();
+                        try {
+                            allDataRead.incrementAndGet();
+                            ctx.getResponse().getWriter().print("read " + total);
+                            ctx.complete();
+                        } finally {
+                            active.decrementAndGet();
+                        }
+                    }
+                    public void onError(Throwable t) {
+                        errors.incrementAndGet();
+                        ctx.complete();
+                    }
+                });
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+
+    protected Embedded embedded;
+    protected int port;
+    protected File docBase;
+
+
+    public void setUp() throws Exception {
+        ServerSocket ss = new ServerSocket(0);
+        port = ss.getLocalPort();
+        ss.close();
+        docBase = new File(System.getProperty("java.io.tmpdir"),
+                "nbread-" + port);
+        docBase.mkdirs();
+
+        embedded = new Embedded();
+        embedded.setCatalinaBase(docBase.getAbsolutePath());
+        embedded.setCatalinaHome(docBase.getAbsolutePath());
+        StandardEngine engine = (StandardEngine) embedded.createEngine();
+        engine.setName("test");
+        engine.setDefaultHost("localhost");
+        StandardHost host = (StandardHost)
+            embedded.createHost("localhost", docBase.getAbsolutePath());
+        engine.addChild(host);
+        final StandardContext context = new StandardContext();
+        context.setPath("");
+        context.setDocBase(docBase.getAbsolutePath());
+        context.addLifecycleListener(new LifecycleListener() {
+            public void lifecycleEvent(LifecycleEvent event) {
+                if (Lifecycle.START_EVENT.equals(event.getType())) {
+                    context.setConfigured(true);
+                }
+            }
+        });
+        host.addChild(context);
+        Wrapper wrapper = context.createWrapper();
+        wrapper.setName("nb");
+        wrapper.setServletClass(NonBlockingServlet.class.getName());
+        context.addChild(wrapper);
+        context.addServletMapping("/nb", "nb");
+        embedded.addEngine(engine);
+
+        Connector connector = new Connector(
+                "org.apache.coyote.http11.Http11NioProtocol");
+        connector.setPort(port);
+        connector.setAttribute("address", "127.0.0.1");
+        embedded.addConnector(connector);
+        embedded.start();
+
+        active.set(0);
+        dataAvailable.set(0);
+        allDataRead.set(0);
+        errors.set(0);
+    }
+
+
+    public void tearDown() throws Exception {
+        embedded.stop();
+        delete(docBase);
+    }
+
+
+    protected static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+        file.delete();
+    }
+
+
+    public void testSlowChunkedUpload() throws Exception {
+        doTestSlowUpload(true);
+    }
+
+
+    public void testSlowUpload() throws Exception {
+        doTestSlowUpload(false);
+    }
+
+
+    protected void doTestSlowUpload(boolean chunked) throws Exception {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            socket.setSoTimeout(10000);
+            OutputStream os = socket.getOutputStream();
+            os.write(("POST /nb HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Connection: close\r\n"
+                    + (chunked ? "Transfer-Encoding: chunked\r\n"
+                            : "Content-Length: " + (CHUNKS * CHUNK) + "\r\n")
+                    + "\r\n").getBytes("ISO-8859-1"));
+            os.flush();
+            byte[] chunk = new byte[CHUNK];
+            for (int i = 0; i < CHUNKS; i++) {
+                if (chunked) {
+                    os.write((Integer.toHexString(CHUNK) + "\r\n")
+                            .getBytes("ISO-8859-1"));
+                }
+                os.write(chunk);
+                if (chunked) {
+                    os.write("\r\n".getBytes("ISO-8859-1"));
+                }
+                os.flush();
+                Thread.sleep(300);
+                // The body is read as it arrives, and no thread waits
+                // for the next chunk
+                assertEquals(0, active.get());
+                assertTrue(dataAvailable.get() > i);
+                if (chunked || i < CHUNKS - 1) {
+                    assertEquals(0, allDataRead.get());
+                }
+            }
+            if (chunked) {
+                os.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+                os.flush();
+            }
+
+            InputStream is = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                response.write(buf, 0, n);
+            }
+            String text = response.toString("ISO-8859-1");
+            assertTrue(text, text.startsWith("HTTP/1.1 200"));
+            assertTrue(text, text.endsWith("read " + (CHUNKS * CHUNK)));
+            assertEquals(1, allDataRead.get());
+            assertEquals(0, errors.get());
+        } finally {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.connector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.apache.catalina.AsyncContext;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.WriteListener;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.startup.Embedded;
+
+/**
+ * Slow client harness for the non blocking writes of the NIO connector:
+ * clients which do not read their response must not hold a container
+ * thread each, and writing while the output is not ready is refused.
+ */
+public class TestNonBlockingWrite extends TestCase {
+
+    /**
+     * Length of each response, well over what the socket buffers hold.
+     */
+    protected static final int LENGTH = 8 * 1024 * 1024;
+
+    protected static final int CHUNK = 8192;
+
+    /**
+     * Container threads currently running the servlet or a listener.
+     */
+    protected static AtomicInteger active = new AtomicInteger();
+
+    /**
+     * Writes refused while the output was not ready.
+     */
+    protected static AtomicInteger refused = new AtomicInteger();
+
+    protected static AtomicInteger started = new AtomicInteger();
+
+
+    /**
+     * Writes the response as long as the output is ready.
+     */
+    public static class NonBlockingServlet extends HttpServlet {
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+            active.incrementAndGet();
+            try {
+                started.incrementAndGet();
+                resp.setContentType("application/octet-stream");
+                resp.setContentLength(LENGTH);
+                final AsyncContext ctx = ((RequestFacade) req).startAsync();
+                ctx.setTimeout(60000);
+                final CoyoteOutputStream os =
+                    (CoyoteOutputStream) resp.getOutputStream();
+                os.setWriteListener(new WriteListener() {
+                    int written = 0;
+                    byte[] chunk = new byte[CHUNK];
+                    public void onWritePossible() throws IOException {
+                        active.incrementAndGet();
+                        try {
+                            while (written < LENGTH && os.isReady()) {
+                                os.write(chunk);
+                                written += chunk.length;
+                            }
+                            if (written >= LENGTH) {
+                                ctx.complete();
+                            } else {
+                                try {
+                                    os.write(chunk);
+                                } catch (IllegalStateException e) {
+                                    refused.incrementAndGet();
+                                }
+                            }
+                        } finally {
+                            active.decrementAndGet();
+                        }
+                    }
+                    public void onError(Throwable t) {
+                        ctx.complete();
+                    }
+                });
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+
+    protected Embedded embedded;
+    protected int port;
+    protected File docBase;
+
+
+    public void setUp() throws Exception {
+        ServerSocket ss = new ServerSocket(0);
+        port = ss.getLocalPort();
+        ss.close();
+        docBase = new File(System.getProperty("java.io.tmpdir"),
+                "nbwrite-" + port);
+        docBase.mkdirs();
+
+        embedded = new Embedded();
+        embedded.setCatalinaBase(docBase.getAbsolutePath());
+        embedded.setCatalinaHome(docBase.getAbsolutePath());
+        StandardEngine engine = (StandardEngine) embedded.createEngine();
+        engine.setName("test");
+        engine.setDefaultHost("localhost");
+        StandardHost host = (StandardHost)
+            embedded.createHost("localhost", docBase.getAbsolutePath());
+        engine.addChild(host);
+        final StandardContext context = new StandardContext();
+        context.setPath("");
+        context.setDocBase(docBase.getAbsolutePath());
+        context.addLifecycleListener(new LifecycleListener() {
+            public void lifecycleEvent(LifecycleEvent event) {
+                if (Lifecycle.START_EVENT.equals(event.getType())) {
+                    context.setConfigured(true);
+                }
+            }
+        });
+        host.addChild(context);
+        Wrapper wrapper = context.createWrapper();
+        wrapper.setName("nb");
+        wrapper.setServletClass(NonBlockingServlet.class.getName());
+        context.addChild(wrapper);
+        context.addServletMapping("/nb", "nb");
+        embedded.addEngine(engine);
+
+        Connector connector = new Connector(
+                "org.apache.coyote.http11.Http11NioProtocol");
+        connector.setPort(port);
+        connector.setAttribute("address", "127.0.0.1");
+        embedded.addConnector(connector);
+        embedded.start();
+
+        active.set(0);
+        refused.set(0);
+        started.set(0);
+    }
+
+
+    public void tearDown() throws Exception {
+        embedded.stop();
+        delete(docBase);
+    }
+
+
+    protected static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+        file.delete();
+    }
+
+
+    public void testSlowClients() throws Exception {
+        int[] counts = new int[] { 4, 16 };
+        for (int n = 0; n < counts.length; n++) {
+            int clients = counts[n];
+            started.set(0);
+            Socket[] sockets = new Socket[clients];
+            for (int i = 0; i < clients; i++) {
+                sockets[i] = new Socket();
+                sockets[i].setReceiveBufferSize(4096);
+                sockets[i].connect(new java.net.InetSocketAddress(
+                        "127.0.0.1", port));
+                OutputStream os = sockets[i].getOutputStream();
+                os.write(("GET /nb HTTP/1.1\r\nHost: localhost\r\n"
+                        + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+                os.flush();
+            }
+            // None of the clients reads: all the responses are stalled
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((started.get() < clients || active.get() > 0)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Thread.sleep(500);
+            assertEquals(clients, started.get());
+            // No thread is held by the stalled responses
+            assertEquals(0, active.get());
+            assertTrue(refused.get() >= clients);
+
+            // The clients read their whole response, slowly
+            for (int i = 0; i < clients; i++) {
+                assertEquals(LENGTH, readBody(sockets[i].getInputStream()));
+                sockets[i].close();
+            }
+        }
+    }
+
+
+    /**
+     * Read the response, and return the length of its body.
+     */
+    protected static int readBody(InputStream is) throws IOException {
+        byte[] buf = new byte[65536];
+        int total = 0;
+        int headerEnd = -1;
+        int matched = 0;
+        int n;
+        while ((n = is.read(buf)) > 0) {
+            for (int i = 0; i < n && headerEnd < 0; i++) {
+                byte b = buf[i];
+                if ((matched % 2 == 0 && b == '\r')
+                        || (matched % 2 == 1 && b == '\n')) {
+                    matched++;
+                } else {
+                    matched = (b == '\r') ? 1 : 0;
+                }
+                if (matched == 4) {
+                    headerEnd = total + i + 1;
+                }
+            }
+            total += n;
+        }
+        return total - headerEnd;
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class TestVirtualThreadExecutor extends TestCase {
+
+    protected static class Blocked implements Runnable {
+        protected final CountDownLatch release;
+        protected final CountDownLatch done;
+        public Blocked(CountDownLatch release, CountDownLatch done) {
+            this.release = release;
+            this.done = done;
+        }
+        public void run() {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+            done.countDown();
+        }
+    }
+
+
+    public void testQueueBound() throws Exception {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor();
+        executor.setMaxThreads(2);
+        executor.setMaxQueueSize(3);
+        executor.start();
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(5);
+            for (int i = 0; i < 5; i++) {
+                executor.execute(new Blocked(release, done));
+            }
+            if (executor.isVirtual()) {
+                assertEquals(3, executor.getQueueSize());
+                try {
+                    executor.execute(new Blocked(release, done));
+                    fail();
+                } catch (RejectedExecutionException e) {
+                    // Expected
+                }
+            }
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            while (executor.getPoolSize() > 0) {
+                Thread.sleep(10);
+            }
+            assertEquals(5, executor.getCompletedTaskCount());
+            assertEquals(0, executor.getQueueSize());
+            assertEquals(0, executor.getActiveCount());
+        } finally {
+            executor.stop();
+        }
+    }
+
+
+    public void testConcurrentAdmission() throws Exception {
+        final VirtualThreadExecutor executor = new VirtualThreadExecutor();
+        executor.setMaxThreads(1);
+        executor.setMaxQueueSize(50);
+        executor.start();
+        if (!executor.isVirtual()) {
+            executor.stop();
+            return;
+        }
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(51);
+        final AtomicInteger accepted = new AtomicInteger();
+        try {
+            // Holds the only permit
+            executor.execute(new Blocked(release, done));
+            Thread[] threads = new Thread[8];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    public void run() {
+                        for (int j = 0; j < 100; j++) {
+                            try {
+                                executor.execute(new Blocked(release, done));
+                                accepted.incrementAndGet();
+                            } catch (RejectedExecutionException e) {
+                                // Expected once full
+                            }
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (int i = 0; i < threads.length; i++) {
+                threads[i].join();
+            }
+            assertEquals(50, accepted.get());
+            assertEquals(50, executor.getQueueSize());
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.stop();
+        }
+    }
+
+
+    public void testPlatformSizes() throws Exception {
+        StandardThreadExecutor defaults = new StandardThreadExecutor();
+        StandardThreadExecutor platform = new StandardThreadExecutor();
+        VirtualThreadExecutor.setPlatformMaxThreads(platform, 10000);
+        assertEquals(defaults.getMaxThreads(), platform.getMaxThreads());
+        assertEquals(defaults.getMinSpareThreads(), platform.getMinSpareThreads());
+        VirtualThreadExecutor.setPlatformMaxThreads(platform, 10);
+        assertEquals(10, platform.getMaxThreads());
+        assertEquals(10, platform.getMinSpareThreads());
+    }
+
+}
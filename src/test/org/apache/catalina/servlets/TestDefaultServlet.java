@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.servlets;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.TestCase;
+
+public class TestDefaultServlet extends TestCase {
+
+    public void testAcceptsGzip() {
+        DefaultServlet servlet = new DefaultServlet();
+        assertTrue(servlet.acceptsGzip(request(new String[] {"gzip"})));
+        assertTrue(servlet.acceptsGzip(request(new String[] {"deflate, x-gzip;q=0.5"})));
+        assertTrue(servlet.acceptsGzip(request(new String[] {"*"})));
+        assertFalse(servlet.acceptsGzip(request(new String[] {})));
+        assertFalse(servlet.acceptsGzip(request(new String[] {"deflate"})));
+        assertFalse(servlet.acceptsGzip(request(new String[] {"gzip;q=0"})));
+        assertFalse(servlet.acceptsGzip(request(new String[] {"gzip;q=x"})));
+        assertFalse(servlet.acceptsGzip(request(new String[] {"*;q=0"})));
+        // An explicit gzip entry takes precedence over the wildcard
+        assertFalse(servlet.acceptsGzip(request(new String[] {"*, gzip;q=0"})));
+        assertFalse(servlet.acceptsGzip(request(new String[] {"gzip;q=0", "*"})));
+        assertTrue(servlet.acceptsGzip(request(new String[] {"*;q=0, gzip"})));
+    }
+
+
+    /**
+     * Return a request with the given Accept-Encoding headers.
+     */
+    protected static HttpServletRequest request(final String[] headers) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                TestDefaultServlet.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("getHeaders")
+                                && "Accept-Encoding".equals(args[0])) {
+                            return Collections.enumeration(
+                                    Arrays.asList(headers));
+                        }
+                        throw new UnsupportedOperationException(
+                                method.getName());
+                    }
+                });
+    }
+
+}
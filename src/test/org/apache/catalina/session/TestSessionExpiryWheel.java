@@ -0,0 +1,138 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.catalina.session;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.catalina.Session;
+import org.apache.catalina.core.StandardContext;
+
+public class TestSessionExpiryWheel extends TestCase {
+
+    private StandardManager manager = new StandardManager();
+
+    private StandardSession newSession(long accessed, int maxInactiveInterval) {
+        StandardSession session = new StandardSession(manager);
+        session.setCreationTime(accessed);
+        session.maxInactiveInterval = maxInactiveInterval;
+        return session;
+    }
+
+    public void testShortInterval() {
+        long now = System.currentTimeMillis();
+        SessionExpiryWheel wheel = new SessionExpiryWheel(1000);
+        Session session = newSession(now, 10);
+        wheel.schedule(session);
+        assertEquals(1, wheel.getSize());
+
+        assertTrue(wheel.advance(now + 5000).isEmpty());
+        List<Session> due = wheel.advance(now + 11000);
+        assertEquals(1, due.size());
+        assertSame(session, due.get(0));
+        assertEquals(0, wheel.getSize());
+    }
+
+    public void testCascade() {
+        long now = System.currentTimeMillis();
+        SessionExpiryWheel wheel = new SessionExpiryWheel(1000);
+        // Two hours lands on the third level
+        Session session = newSession(now, 7200);
+        wheel.schedule(session);
+        for (long t = now; t < now + 7199000; t += 60000) {
+            assertTrue(wheel.advance(t).isEmpty());
+        }
+        assertEquals(1, wheel.advance(now + 7201000).size());
+    }
+
+    public void testBeyondWheel() {
+        long now = System.currentTimeMillis();
+        SessionExpiryWheel wheel = new SessionExpiryWheel(1000);
+        Session session = newSession(now, 400 * 86400);
+        wheel.schedule(session);
+        assertTrue(wheel.advance(now + 100 * 86400000L).isEmpty());
+        assertTrue(wheel.advance(now + 399 * 86400000L).isEmpty());
+        assertEquals(1, wheel.advance(now + 401 * 86400000L).size());
+    }
+
+    public void testCancelAndNeverExpire() {
+        long now = System.currentTimeMillis();
+        SessionExpiryWheel wheel = new SessionExpiryWheel(1000);
+        Session cancelled = newSession(now, 10);
+        Session eternal = newSession(now, -1);
+        wheel.schedule(cancelled);
+        wheel.schedule(eternal);
+        assertEquals(1, wheel.getSize());
+        wheel.cancel(cancelled);
+        assertEquals(0, wheel.getSize());
+        assertTrue(wheel.advance(now + 60000).isEmpty());
+    }
+
+    public void testTouch() {
+        long now = System.currentTimeMillis();
+        SessionExpiryWheel wheel = new SessionExpiryWheel(1000);
+        StandardSession session = newSession(now, 600);
+        wheel.schedule(session);
+        // Lowering the interval moves the deadline earlier
+        session.maxInactiveInterval = 30;
+        wheel.touch(session);
+        assertEquals(1, wheel.advance(now + 31000).size());
+        // Sessions which are not in the wheel are ignored
+        wheel.touch(session);
+        assertEquals(0, wheel.getSize());
+    }
+
+    public void testUnloadAndLoad() throws Exception {
+        File file = File.createTempFile("sessions", ".ser");
+        try {
+            StandardManager manager = new StandardManager();
+            manager.setContainer(new StandardContext());
+            manager.setPathname(file.getAbsolutePath());
+            manager.setExpiryWheel(true);
+            StandardSession session = new StandardSession(manager);
+            session.setValid(true);
+            session.setCreationTime(System.currentTimeMillis());
+            session.setMaxInactiveInterval(1);
+            session.setId("restored");
+            assertEquals(1, manager.getExpiryWheelDepth());
+
+            manager.unload();
+            assertEquals(0, manager.getActiveSessions());
+            assertEquals(0, manager.getExpiryWheelDepth());
+            manager.load();
+            assertEquals(1, manager.getActiveSessions());
+            assertEquals(1, manager.getExpiryWheelDepth());
+
+            // Reloading does not leave the previous sessions in the wheel
+            manager.unload();
+            manager.load();
+            assertEquals(1, manager.getExpiryWheelDepth());
+
+            // The restored session still expires
+            Thread.sleep(3000);
+            manager.processExpires();
+            assertEquals(0, manager.getActiveSessions());
+            assertEquals(0, manager.getExpiryWheelDepth());
+        } finally {
+            file.delete();
+        }
+    }
+
+}
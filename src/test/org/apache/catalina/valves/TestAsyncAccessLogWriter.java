@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.valves;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Lines logged while the writer thread of an asynchronous access log is
+ * stopping.
+ */
+public class TestAsyncAccessLogWriter extends TestCase {
+
+    protected static final int THREADS = 4;
+
+    protected File dir;
+    protected AccessLogValve valve;
+
+
+    public void setUp() throws Exception {
+        dir = File.createTempFile("accesslog", "");
+        dir.delete();
+        dir.mkdirs();
+        valve = new AccessLogValve();
+        valve.setDirectory(dir.getAbsolutePath());
+        valve.setRotatable(false);
+        valve.setAsyncLogging(true);
+        valve.setAsyncQueueSize(64);
+        valve.start();
+    }
+
+
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+
+    public void testLogAfterStop() throws Exception {
+        AsyncAccessLogWriter writer = valve.asyncWriter;
+        valve.log("before");
+        writer.stop();
+        valve.log("after");
+        valve.stop();
+        assertEquals(2, countLines());
+    }
+
+
+    public void testLogDuringStop() throws Exception {
+        AsyncAccessLogWriter writer = valve.asyncWriter;
+        final AtomicInteger logged = new AtomicInteger();
+        final boolean[] done = new boolean[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    while (true) {
+                        synchronized (done) {
+                            if (done[0]) {
+                                return;
+                            }
+                        }
+                        valve.log("line");
+                        logged.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        Thread.sleep(100);
+        writer.stop();
+        Thread.sleep(100);
+        synchronized (done) {
+            done[0] = true;
+        }
+        for (int i = 0; i < THREADS; i++) {
+            threads[i].join();
+        }
+        valve.stop();
+        assertEquals(logged.get(), countLines());
+    }
+
+
+    protected int countLines() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(
+                new File(dir, valve.getPrefix() + valve.getSuffix())));
+        try {
+            int count = 0;
+            while (reader.readLine() != null) {
+                count++;
+            }
+            return count;
+        } finally {
+            reader.close();
+        }
+    }
+
+}
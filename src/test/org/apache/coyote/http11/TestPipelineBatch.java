@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.coyote.http11;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.startup.Embedded;
+
+/**
+ * Responses to pipelined requests batched by the NIO connector must not
+ * wait longer than pipelineBatchDelay for the next requests.
+ */
+public class TestPipelineBatch extends TestCase {
+
+    /**
+     * Time taken by the slow requests.
+     */
+    protected static final long SLOW = 3000;
+
+
+    /**
+     * Answers at once, or after SLOW milliseconds for the slow requests.
+     */
+    public static class PipelineServlet extends HttpServlet {
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+            if (req.getParameter("slow") != null) {
+                try {
+                    Thread.sleep(SLOW);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+            }
+            resp.setContentType("text/plain");
+            resp.setContentLength(2);
+            resp.getOutputStream().write("OK".getBytes("ISO-8859-1"));
+        }
+    }
+
+
+    protected Embedded embedded;
+    protected int port;
+    protected File docBase;
+
+
+    public void setUp() throws Exception {
+        ServerSocket ss = new ServerSocket(0);
+        port = ss.getLocalPort();
+        ss.close();
+        docBase = new File(System.getProperty("java.io.tmpdir"),
+                "pipeline-" + port);
+        docBase.mkdirs();
+
+        embedded = new Embedded();
+        embedded.setCatalinaBase(docBase.getAbsolutePath());
+        embedded.setCatalinaHome(docBase.getAbsolutePath());
+        StandardEngine engine = (StandardEngine) embedded.createEngine();
+        engine.setName("test");
+        engine.setDefaultHost("localhost");
+        StandardHost host = (StandardHost)
+            embedded.createHost("localhost", docBase.getAbsolutePath());
+        engine.addChild(host);
+        final StandardContext context = new StandardContext();
+        context.setPath("");
+        context.setDocBase(docBase.getAbsolutePath());
+        context.addLifecycleListener(new LifecycleListener() {
+            public void lifecycleEvent(LifecycleEvent event) {
+                if (Lifecycle.START_EVENT.equals(event.getType())) {
+                    context.setConfigured(true);
+                }
+            }
+        });
+        host.addChild(context);
+        Wrapper wrapper = context.createWrapper();
+        wrapper.setName("pipeline");
+        wrapper.setServletClass(PipelineServlet.class.getName());
+        context.addChild(wrapper);
+        context.addServletMapping("/pipeline", "pipeline");
+        embedded.addEngine(engine);
+
+        Connector connector = new Connector(
+                "org.apache.coyote.http11.Http11NioProtocol");
+        connector.setPort(port);
+        connector.setAttribute("address", "127.0.0.1");
+        connector.setAttribute("pipelineBatchSize", "8");
+        connector.setAttribute("pipelineBatchDelay", "50");
+        embedded.addConnector(connector);
+        embedded.start();
+    }
+
+
+    public void tearDown() throws Exception {
+        embedded.stop();
+        delete(docBase);
+    }
+
+
+    protected static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+        file.delete();
+    }
+
+
+    public void testSlowNextRequest() throws Exception {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress("127.0.0.1", port));
+        try {
+            socket.setSoTimeout((int) SLOW * 3);
+            OutputStream os = socket.getOutputStream();
+            String request = "GET /pipeline HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            os.write((request + request
+                    + "GET /pipeline?slow=true HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+            os.flush();
+            long start = System.currentTimeMillis();
+            InputStream is = socket.getInputStream();
+            // The first responses are written once the delay expired,
+            // not with the response of the slow request
+            assertTrue(is.read() != -1);
+            assertTrue(System.currentTimeMillis() - start < SLOW / 2);
+            int responses = 0;
+            StringBuffer sb = new StringBuffer("H");
+            int c;
+            while ((c = is.read()) != -1) {
+                sb.append((char) c);
+            }
+            int i = 0;
+            while ((i = sb.indexOf("HTTP/1.1 200", i)) != -1) {
+                responses++;
+                i++;
+            }
+            assertEquals(3, responses);
+            assertTrue(System.currentTimeMillis() - start >= SLOW);
+        } finally {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+
+
+/**
+ * HPACK encoding and decoding, checked against the examples of RFC 7541.
+ */
+public class TestHpack extends TestCase {
+
+    public static void main(String args[]) {
+        TestRunner.run(suite());
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite();
+        suite.addTest(new TestSuite(TestHpack.class));
+        return suite;
+    }
+
+
+    public void testHuffman() throws Exception {
+        byte[] s = "www.example.com".getBytes("ISO-8859-1");
+        ByteChunk out = new ByteChunk();
+        out.allocate(32, -1);
+        HpackHuffman.encode(s, 0, s.length, out);
+        assertEquals("f1e3c2e5f23a6ba0ab90f4ff", hex(out));
+        assertEquals(12, HpackHuffman.encodedLength(s, 0, s.length));
+
+        ByteChunk decoded = new ByteChunk();
+        decoded.allocate(32, -1);
+        HpackHuffman.decode(out.getBuffer(), 0, out.getLength(), decoded);
+        assertEquals("www.example.com", decoded.toString());
+    }
+
+
+    public void testHuffmanPadding() throws Exception {
+        // More than 7 bits of padding
+        byte[] b = { (byte) 0xff, (byte) 0xff };
+        ByteChunk decoded = new ByteChunk();
+        decoded.allocate(32, -1);
+        try {
+            HpackHuffman.decode(b, 0, b.length, decoded);
+            fail();
+        } catch (HpackException e) {
+            // Expected
+        }
+    }
+
+
+    public void testDecodeRequests() throws Exception {
+        HpackDecoder decoder = new HpackDecoder(4096);
+        assertEquals("[:method: GET, :scheme: http, :path: /, "
+                + ":authority: www.example.com]",
+                decode(decoder, "828684410f7777772e6578616d706c652e636f6d"));
+        assertEquals(57, decoder.getTable().getSize());
+        assertEquals("[:method: GET, :scheme: http, :path: /, "
+                + ":authority: www.example.com, cache-control: no-cache]",
+                decode(decoder, "828684be58086e6f2d6361636865"));
+        assertEquals(110, decoder.getTable().getSize());
+        assertEquals("[:method: GET, :scheme: https, :path: /index.html, "
+                + ":authority: www.example.com, custom-key: custom-value]",
+                decode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"));
+        assertEquals(164, decoder.getTable().getSize());
+    }
+
+
+    public void testRoundTrip() throws Exception {
+        HpackEncoder encoder = new HpackEncoder(256);
+        HpackDecoder decoder = new HpackDecoder(256);
+        ByteChunk out = new ByteChunk();
+        out.allocate(256, -1);
+        int first = 0;
+        for (int i = 0; i < 10; i++) {
+            out.recycle();
+            encoder.begin(out);
+            encoder.encodeStatus(200, out);
+            encoder.encodeHeader("content-type", "text/html;charset=UTF-8", out);
+            encoder.encodeHeader("x-request", "request-" + i, out);
+            encoder.encodeHeader("set-cookie", "JSESSIONID=" + i, out);
+            if (i == 0) {
+                first = out.getLength();
+            } else {
+                // The repeated fields are sent as indexes
+                assertTrue(out.getLength() < first);
+            }
+            assertEquals("[:status: 200, content-type: text/html;charset=UTF-8, "
+                    + "x-request: request-" + i + ", set-cookie: JSESSIONID=" + i + "]",
+                    decode(decoder, hex(out)));
+        }
+        // The tables evict the same entries
+        assertTrue(encoder.table.getSize() <= 256);
+        assertEquals(encoder.table.getSize(), decoder.getTable().getSize());
+    }
+
+
+    public void testSizeUpdate() throws Exception {
+        HpackEncoder encoder = new HpackEncoder(4096);
+        HpackDecoder decoder = new HpackDecoder(4096);
+        ByteChunk out = new ByteChunk();
+        out.allocate(256, -1);
+        encoder.begin(out);
+        encoder.encodeHeader("x-a", "1", out);
+        decode(decoder, hex(out));
+        encoder.setMaxTableSize(0);
+        out.recycle();
+        encoder.begin(out);
+        encoder.encodeHeader("x-a", "1", out);
+        assertEquals("[x-a: 1]", decode(decoder, hex(out)));
+        assertEquals(0, decoder.getTable().getSize());
+    }
+
+
+    // --------------------------------------------------------- Helpers
+
+
+    protected static String decode(HpackDecoder decoder, String hex)
+        throws Exception {
+        byte[] b = new byte[hex.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        final List<String> fields = new ArrayList<String>();
+        ByteChunk storage = new ByteChunk();
+        storage.allocate(64, -1);
+        decoder.decode(b, 0, b.length, storage,
+            new HpackDecoder.HeaderEmitter() {
+                public void emitHeader(byte[] buf, int nameStart,
+                        int nameLength, int valueStart, int valueLength) {
+                    fields.add(new String(buf, nameStart, nameLength) + ": "
+                            + new String(buf, valueStart, valueLength));
+                }
+            });
+        return fields.toString();
+    }
+
+
+    protected static String hex(ByteChunk bc) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = bc.getStart(); i < bc.getEnd(); i++) {
+            int v = bc.getBuffer()[i] & 0xff;
+            sb.append(Character.forDigit(v >> 4, 16));
+            sb.append(Character.forDigit(v & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+
+}
@@ -0,0 +1,397 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.coyote.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.startup.Embedded;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+
+/**
+ * HTTP/2 connections with prior knowledge, from the connection preface to
+ * the flow control of the responses.
+ */
+public class TestHttp2Connection extends TestCase {
+
+    public static void main(String args[]) {
+        TestRunner.run(suite());
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite();
+        suite.addTest(new TestSuite(TestHttp2Connection.class));
+        return suite;
+    }
+
+
+    protected static final int BODY = 100;
+
+    protected static final int LARGE = 100000;
+
+
+    /**
+     * Writes a body of BODY bytes, or LARGE bytes for the large requests.
+     */
+    public static class BodyServlet extends HttpServlet {
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+            int length = (req.getParameter("large") != null) ? LARGE : BODY;
+            byte[] body = new byte[length];
+            for (int i = 0; i < length; i++) {
+                body[i] = (byte) ('a' + i % 26);
+            }
+            resp.setContentType("application/octet-stream");
+            resp.setContentLength(length);
+            resp.getOutputStream().write(body);
+        }
+    }
+
+
+    /**
+     * A frame read from the server.
+     */
+    protected static class Frame {
+        int type;
+        int flags;
+        int streamId;
+        byte[] payload;
+    }
+
+
+    protected Embedded embedded;
+    protected Connector connector;
+    protected int port;
+    protected File docBase;
+    protected Socket socket;
+    protected DataInputStream in;
+    protected OutputStream out;
+
+
+    public void setUp() throws Exception {
+        ServerSocket ss = new ServerSocket(0);
+        port = ss.getLocalPort();
+        ss.close();
+        docBase = new File(System.getProperty("java.io.tmpdir"),
+                "h2-" + port);
+        docBase.mkdirs();
+
+        embedded = new Embedded();
+        embedded.setCatalinaBase(docBase.getAbsolutePath());
+        embedded.setCatalinaHome(docBase.getAbsolutePath());
+        StandardEngine engine = (StandardEngine) embedded.createEngine();
+        engine.setName("test");
+        engine.setDefaultHost("localhost");
+        StandardHost host = (StandardHost)
+            embedded.createHost("localhost", docBase.getAbsolutePath());
+        engine.addChild(host);
+        final StandardContext context = new StandardContext();
+        context.setPath("");
+        context.setDocBase(docBase.getAbsolutePath());
+        context.addLifecycleListener(new LifecycleListener() {
+            public void lifecycleEvent(LifecycleEvent event) {
+                if (Lifecycle.START_EVENT.equals(event.getType())) {
+                    context.setConfigured(true);
+                }
+            }
+        });
+        host.addChild(context);
+        Wrapper wrapper = context.createWrapper();
+        wrapper.setName("body");
+        wrapper.setServletClass(BodyServlet.class.getName());
+        context.addChild(wrapper);
+        context.addServletMapping("/h2", "body");
+        embedded.addEngine(engine);
+
+        connector = new Connector(
+                "org.apache.coyote.http2.Http2NioProtocol");
+        connector.setPort(port);
+        connector.setAttribute("address", "127.0.0.1");
+        embedded.addConnector(connector);
+        embedded.start();
+
+        socket = new Socket();
+        socket.connect(new InetSocketAddress("127.0.0.1", port));
+        socket.setSoTimeout(10000);
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+    }
+
+
+    public void tearDown() throws Exception {
+        socket.close();
+        embedded.stop();
+        delete(docBase);
+    }
+
+
+    protected static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+        file.delete();
+    }
+
+
+    public void testStream() throws Exception {
+        connect(16);
+
+        writeFrame(Constants.FRAME_HEADERS,
+                Constants.FLAG_END_HEADERS | Constants.FLAG_END_STREAM, 1,
+                request("/h2"));
+        Frame headers = readFrame(1);
+        assertEquals(Constants.FRAME_HEADERS, headers.type);
+        assertTrue(decode(headers.payload).contains(":status: 200"));
+
+        // The body stops at the initial window of the stream
+        Frame data = readFrame(1);
+        assertEquals(Constants.FRAME_DATA, data.type);
+        assertEquals(16, data.payload.length);
+        assertEquals(0, data.flags & Constants.FLAG_END_STREAM);
+        socket.setSoTimeout(500);
+        try {
+            readFrame(1);
+            fail();
+        } catch (SocketTimeoutException e) {
+            // Expected, the window is empty
+        }
+        socket.setSoTimeout(10000);
+
+        // The rest follows the window update
+        writeFrame(Constants.FRAME_WINDOW_UPDATE, 0, 1, int32(1000));
+        int length = data.payload.length;
+        do {
+            data = readFrame(1);
+            assertEquals(Constants.FRAME_DATA, data.type);
+            length += data.payload.length;
+        } while ((data.flags & Constants.FLAG_END_STREAM) == 0);
+        assertEquals(BODY, length);
+    }
+
+
+    public void testInitialWindowOverflow() throws Exception {
+        connect(0);
+
+        writeFrame(Constants.FRAME_HEADERS,
+                Constants.FLAG_END_HEADERS | Constants.FLAG_END_STREAM, 1,
+                request("/h2?large=true"));
+        Frame headers = readFrame(1);
+        assertEquals(Constants.FRAME_HEADERS, headers.type);
+
+        // The stream window gets close to the maximum, and the body stops
+        // at the connection window
+        writeFrame(Constants.FRAME_WINDOW_UPDATE, 0, 1,
+                int32(Constants.MAX_WINDOW_SIZE - 10));
+        int length = 0;
+        while (length < Constants.DEFAULT_WINDOW_SIZE) {
+            Frame data = readFrame(1);
+            assertEquals(Constants.FRAME_DATA, data.type);
+            length += data.payload.length;
+        }
+        assertEquals(Constants.DEFAULT_WINDOW_SIZE, length);
+
+        // Raising the initial window takes the stream window past the
+        // maximum
+        writeFrame(Constants.FRAME_SETTINGS, 0, 0,
+                setting(Constants.SETTINGS_INITIAL_WINDOW_SIZE, LARGE));
+        Frame goAway = readFrame(0);
+        while (goAway.type != Constants.FRAME_GOAWAY) {
+            goAway = readFrame(0);
+        }
+        assertEquals(Constants.FLOW_CONTROL_ERROR,
+                Http2Connection.readInt(goAway.payload, 4));
+    }
+
+
+    public void testIgnoredHeadersSize() throws Exception {
+        // Every stream is refused, its header fields are decoded and ignored
+        ((Http2NioProtocol) connector.getProtocolHandler())
+            .setMaxConcurrentStreams(0);
+        connect(Constants.DEFAULT_WINDOW_SIZE);
+
+        // A field added to the dynamic table, then referenced over and over
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(0x40);
+        block.write(1);
+        block.write('x');
+        block.write(0x7f);
+        block.write(0xa1);
+        block.write(0x1e);
+        for (int i = 0; i < 4000; i++) {
+            block.write('a');
+        }
+        for (int i = 0; i < 1000; i++) {
+            block.write(0x80 | 62);
+        }
+        writeFrame(Constants.FRAME_HEADERS,
+                Constants.FLAG_END_HEADERS | Constants.FLAG_END_STREAM, 1,
+                block.toByteArray());
+        Frame goAway = readFrame(0);
+        while (goAway.type != Constants.FRAME_GOAWAY) {
+            goAway = readFrame(0);
+        }
+        assertEquals(Constants.ENHANCE_YOUR_CALM,
+                Http2Connection.readInt(goAway.payload, 4));
+    }
+
+
+    /**
+     * Send the connection preface with the given initial window size, and
+     * acknowledge the settings of the server.
+     */
+    protected void connect(int initialWindowSize) throws IOException {
+        out.write(Constants.PREFACE);
+        writeFrame(Constants.FRAME_SETTINGS, 0, 0, setting(
+                Constants.SETTINGS_INITIAL_WINDOW_SIZE, initialWindowSize));
+        boolean settings = false;
+        boolean ack = false;
+        while (!settings || !ack) {
+            Frame frame = readFrame(0);
+            assertEquals(Constants.FRAME_SETTINGS, frame.type);
+            if ((frame.flags & Constants.FLAG_ACK) != 0) {
+                ack = true;
+            } else {
+                settings = true;
+                writeFrame(Constants.FRAME_SETTINGS, Constants.FLAG_ACK, 0,
+                        new byte[0]);
+            }
+        }
+    }
+
+
+    /**
+     * Header block of a GET request for the given path.
+     */
+    protected static byte[] request(String path) throws IOException {
+        ByteChunk block = new ByteChunk();
+        block.allocate(64, -1);
+        HpackEncoder encoder =
+            new HpackEncoder(Constants.DEFAULT_HEADER_TABLE_SIZE);
+        encoder.begin(block);
+        encoder.encodeHeader(":method", "GET", block);
+        encoder.encodeHeader(":scheme", "http", block);
+        encoder.encodeHeader(":path", path, block);
+        encoder.encodeHeader(":authority", "localhost", block);
+        byte[] b = new byte[block.getLength()];
+        System.arraycopy(block.getBuffer(), block.getStart(), b, 0, b.length);
+        return b;
+    }
+
+
+    protected static String decode(byte[] block) throws IOException {
+        final List<String> fields = new ArrayList<String>();
+        ByteChunk storage = new ByteChunk();
+        storage.allocate(64, -1);
+        new HpackDecoder(Constants.DEFAULT_HEADER_TABLE_SIZE).decode(
+            block, 0, block.length, storage,
+            new HpackDecoder.HeaderEmitter() {
+                public void emitHeader(byte[] buf, int nameStart,
+                        int nameLength, int valueStart, int valueLength) {
+                    fields.add(new String(buf, nameStart, nameLength) + ": "
+                            + new String(buf, valueStart, valueLength));
+                }
+            });
+        return fields.toString();
+    }
+
+
+    protected static byte[] setting(int id, int value) {
+        byte[] b = new byte[6];
+        b[0] = (byte) (id >> 8);
+        b[1] = (byte) id;
+        System.arraycopy(int32(value), 0, b, 2, 4);
+        return b;
+    }
+
+
+    protected static byte[] int32(int value) {
+        return new byte[] { (byte) (value >> 24), (byte) (value >> 16),
+                (byte) (value >> 8), (byte) value };
+    }
+
+
+    protected void writeFrame(int type, int flags, int streamId,
+            byte[] payload) throws IOException {
+        byte[] header = new byte[Constants.FRAME_HEADER_SIZE];
+        header[0] = (byte) (payload.length >> 16);
+        header[1] = (byte) (payload.length >> 8);
+        header[2] = (byte) payload.length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        System.arraycopy(int32(streamId), 0, header, 5, 4);
+        out.write(header);
+        out.write(payload);
+        out.flush();
+    }
+
+
+    /**
+     * Read the next frame of the given stream, skipping the frames of the
+     * other streams.
+     */
+    protected Frame readFrame(int streamId) throws IOException {
+        while (true) {
+            byte[] header = new byte[Constants.FRAME_HEADER_SIZE];
+            in.readFully(header);
+            Frame frame = new Frame();
+            int length = ((header[0] & 0xff) << 16)
+                | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            frame.type = header[3] & 0xff;
+            frame.flags = header[4] & 0xff;
+            frame.streamId = Http2Connection.readInt(header, 5) & 0x7fffffff;
+            frame.payload = new byte[length];
+            in.readFully(frame.payload);
+            if (frame.streamId == streamId
+                    || frame.type == Constants.FRAME_GOAWAY) {
+                return frame;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.el.parser;
+
+import java.beans.FeatureDescriptor;
+import java.beans.Introspector;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.el.ArrayELResolver;
+import javax.el.BeanELResolver;
+import javax.el.CompositeELResolver;
+import javax.el.ELContext;
+import javax.el.ELException;
+import javax.el.ELResolver;
+import javax.el.ListELResolver;
+import javax.el.MapELResolver;
+import javax.el.PropertyNotFoundException;
+import javax.el.ResourceBundleELResolver;
+import javax.el.ValueExpression;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+import org.apache.el.ExpressionFactoryImpl;
+import org.apache.el.lang.StandardResolverChain;
+import org.apache.jasper.el.ELContextImpl;
+
+
+public class TestPropertyCache extends TestCase {
+
+    static {
+        System.setProperty("org.apache.el.parser.CACHE_PROPERTIES", "true");
+    }
+
+    public static void main(String args[]) {
+        TestRunner.run(suite());
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite();
+        suite.addTest(new TestSuite(TestPropertyCache.class));
+        return suite;
+    }
+
+
+    public interface Named {
+        public String getName();
+    }
+
+    public static class Bean implements Named {
+        protected String name;
+        protected Bean child;
+        public Bean(String name, Bean child) {
+            this.name = name;
+            this.child = child;
+        }
+        public String getName() {
+            return name;
+        }
+        public Bean getChild() {
+            return child;
+        }
+        public String getFailure() {
+            throw new IllegalStateException();
+        }
+    }
+
+    static class HiddenBean implements Named {
+        public String getName() {
+            return "hidden";
+        }
+    }
+
+
+    /**
+     * Standard resolver chain, with the beans of the tests as variables.
+     */
+    protected static class Resolver extends CompositeELResolver
+        implements StandardResolverChain {
+        protected Map<String, Object> variables = new HashMap<String, Object>();
+        public Resolver() {
+            add(new ELResolver() {
+                public Object getValue(ELContext context, Object base,
+                        Object property) {
+                    if (base == null) {
+                        context.setPropertyResolved(true);
+                        return variables.get(property);
+                    }
+                    return null;
+                }
+                public Class<?> getType(ELContext context, Object base,
+                        Object property) {
+                    return null;
+                }
+                public void setValue(ELContext context, Object base,
+                        Object property, Object value) {
+                }
+                public boolean isReadOnly(ELContext context, Object base,
+                        Object property) {
+                    return true;
+                }
+                public Iterator<FeatureDescriptor> getFeatureDescriptors(
+                        ELContext context, Object base) {
+                    return null;
+                }
+                public Class<?> getCommonPropertyType(ELContext context,
+                        Object base) {
+                    return null;
+                }
+            });
+            add(new MapELResolver());
+            add(new ResourceBundleELResolver());
+            add(new ListELResolver());
+            add(new ArrayELResolver());
+            add(new BeanELResolver());
+        }
+    }
+
+
+    public void testReadMethod() throws Exception {
+        PropertyCache cache = new PropertyCache("name");
+        Method read = cache.getReadMethod(new Bean("a", null));
+        assertEquals("getName", read.getName());
+        assertSame(read, cache.getReadMethod(new Bean("b", null)));
+
+        // Read through the public interface
+        read = cache.getReadMethod(new HiddenBean());
+        assertEquals(Named.class, read.getDeclaringClass());
+        assertEquals("hidden", cache.invoke(read, new HiddenBean()));
+
+        // Left to the resolvers
+        assertNull(cache.getReadMethod(new HashMap<String, Object>()));
+        assertNull(cache.getReadMethod(new String[0]));
+        assertNull(new PropertyCache("missing").getReadMethod(
+                new Bean("a", null)));
+    }
+
+
+    public void testUnstable() throws Exception {
+        PropertyCache cache = new PropertyCache("name");
+        Object[] bases = new Object[] { new Bean("a", null), new HiddenBean() };
+        for (int i = 0; i < PropertyCache.MAX_MISSES; i++) {
+            assertNotNull(cache.getReadMethod(bases[i % 2]));
+        }
+        assertNull(cache.getReadMethod(bases[0]));
+        assertNull(cache.getReadMethod(bases[1]));
+    }
+
+
+    public void testClassLoaderRelease() throws Exception {
+        PropertyCache cache = new PropertyCache("name");
+        WeakReference<ClassLoader> loader = fill(cache);
+        // As the class loader of a stopped application does
+        Introspector.flushCaches();
+        for (int i = 0; i < 50 && loader.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(loader.get());
+        assertNotNull(cache.getReadMethod(new Bean("a", null)));
+    }
+
+
+    /**
+     * Fill the given cache for a bean class loaded by a class loader of its
+     * own, which is only weakly referenced once this returns.
+     */
+    protected WeakReference<ClassLoader> fill(PropertyCache cache)
+        throws Exception {
+        URL classes = Bean.class.getProtectionDomain().getCodeSource()
+            .getLocation();
+        ClassLoader loader = new URLClassLoader(new URL[] { classes }, null);
+        Class<?> type = loader.loadClass(Bean.class.getName());
+        assertNotSame(Bean.class, type);
+        Object bean = type.getConstructor(String.class, type).newInstance(
+                "a", null);
+        assertNotNull(cache.getReadMethod(bean));
+        return new WeakReference<ClassLoader>(loader);
+    }
+
+
+    public void testEvaluation() throws Exception {
+        Resolver resolver = new Resolver();
+        ELContextImpl ctx = new ELContextImpl(resolver);
+        ExpressionFactoryImpl factory = new ExpressionFactoryImpl();
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "map");
+        resolver.variables.put("bean", new Bean("a", new Bean("b", null)));
+        resolver.variables.put("map", map);
+        ValueExpression ve = factory.createValueExpression(ctx,
+                "${bean.name}${bean.child.name}${bean['name']}${map.name}",
+                String.class);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("abamap", ve.getValue(ctx));
+        }
+
+        // Same expression, other classes
+        resolver.variables.put("bean", map);
+        assertEquals("map", factory.createValueExpression(ctx,
+                "${bean.name}", String.class).getValue(ctx));
+        resolver.variables.put("bean", new HiddenBean());
+        assertEquals("hidden", factory.createValueExpression(ctx,
+                "${bean.name}", String.class).getValue(ctx));
+
+        resolver.variables.put("bean", new Bean("a", null));
+        try {
+            factory.createValueExpression(ctx, "${bean.missing}",
+                    String.class).getValue(ctx);
+            fail();
+        } catch (PropertyNotFoundException e) {
+            // Expected
+        }
+        try {
+            factory.createValueExpression(ctx, "${bean.failure}",
+                    String.class).getValue(ctx);
+            fail();
+        } catch (ELException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals("", factory.createValueExpression(ctx,
+                "${bean.child.name}", String.class).getValue(ctx));
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Generation of the pages of a web application with several threads, and
+ * the compile cache of JspC.
+ */
+public class TestJspC extends TestCase {
+
+    protected static final int PAGES = 12;
+
+    protected static final String MARKER = "// From the compile cache";
+
+    protected File base;
+    protected File webapp;
+
+
+    public void setUp() throws Exception {
+        base = File.createTempFile("jspc", "");
+        base.delete();
+        webapp = new File(base, "webapp");
+        write(new File(webapp, "WEB-INF/web.xml"),
+                "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n"
+                + "<web-app xmlns=\"http://java.sun.com/xml/ns/javaee\""
+                + " version=\"2.5\">\n</web-app>\n");
+        write(new File(webapp, "WEB-INF/tags/hello.tag"),
+                "<%@ attribute name=\"who\" required=\"true\" %>Hello ${who}!");
+        write(new File(webapp, "inc/header.jspf"), "<p>header</p>");
+        write(new File(webapp, "inc/odd.jspf"), "<p>odd</p>");
+        for (int i = 0; i < PAGES; i++) {
+            StringBuffer page = new StringBuffer();
+            page.append("<%@ taglib prefix=\"t\" tagdir=\"/WEB-INF/tags\" %>\n");
+            page.append("<%@ include file=\"/inc/header.jspf\" %>\n");
+            if (i % 2 == 1) {
+                page.append("<%@ include file=\"/inc/odd.jspf\" %>\n");
+            }
+            page.append("<html><body><t:hello who=\"page " + i + "\"/>\n");
+            page.append("<% for (int i = 0; i < " + i
+                    + "; i++) { out.print(i); } %>\n");
+            page.append("</body></html>\n");
+            write(new File(webapp, "page" + i + ".jsp"), page.toString());
+        }
+    }
+
+
+    public void tearDown() throws Exception {
+        delete(base);
+    }
+
+
+    public void testParallelGeneration() throws Exception {
+        File sequential = new File(base, "sequential");
+        File parallel = new File(base, "parallel");
+        jspc(sequential, 1, null);
+        jspc(parallel, 4, null);
+
+        String[] files = list(sequential);
+        assertEquals(Arrays.asList(files), Arrays.asList(list(parallel)));
+        int classes = 0;
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].endsWith(".class")) {
+                classes++;
+            }
+            assertTrue(files[i], Arrays.equals(
+                    read(new File(sequential, files[i])),
+                    read(new File(parallel, files[i]))));
+        }
+        // The pages and the tag file
+        assertEquals(PAGES + 1, classes);
+    }
+
+
+    public void testCompileCache() throws Exception {
+        File cache = new File(base, "cache");
+        File output = new File(base, "output");
+        jspc(output, 4, cache);
+        String[] files = list(output);
+
+        // The pages come from the cache as long as nothing changed
+        mark(cache);
+        delete(output);
+        jspc(output, 4, cache);
+        assertEquals(Arrays.asList(files), Arrays.asList(list(output)));
+        for (int i = 0; i < PAGES; i++) {
+            assertTrue(isMarked(output, i));
+        }
+
+        // Changing a file included by some of the pages invalidates them
+        Thread.sleep(1000);
+        write(new File(webapp, "inc/odd.jspf"), "<p>odd, changed</p>");
+        delete(output);
+        jspc(output, 4, cache);
+        for (int i = 0; i < PAGES; i++) {
+            assertEquals("page" + i, i % 2 == 0, isMarked(output, i));
+        }
+        assertTrue(new String(read(new File(output,
+                "org/apache/jsp/page1_jsp.java")), "UTF-8").indexOf(
+                "odd, changed") >= 0);
+    }
+
+
+    public void testEncodedText() throws Exception {
+        String[] charsets = new String[] { "UTF-8", "ISO-8859-1", "UTF-16",
+                "ISO-2022-JP" };
+        for (int i = 0; i < charsets.length; i++) {
+            write(new File(webapp, "text/page" + i + ".jsp"),
+                    "<%@ page contentType=\"text/html;charset=" + charsets[i]
+                    + "\" pageEncoding=\"ISO-8859-1\" buffer=\"none\" %>\n"
+                    + "<html><body>text</body></html>\n");
+        }
+        File output = new File(base, "output");
+        JspC jspc = new JspC();
+        jspc.setArgs(new String[] { "-webapp", webapp.getAbsolutePath(),
+                "-d", output.getAbsolutePath() });
+        jspc.setGenStringAsByteArray(true);
+        jspc.execute();
+
+        // Only the charsets which can encode the text block by block
+        for (int i = 0; i < charsets.length; i++) {
+            String source = new String(read(new File(output,
+                    "org/apache/jsp/text/page" + i + "_jsp.java")), "UTF-8");
+            assertEquals(charsets[i], i < 2,
+                    source.indexOf("EncodedText") >= 0);
+        }
+    }
+
+
+    protected void jspc(File output, int threadCount, File cache)
+        throws Exception {
+        List<String> args = new ArrayList<String>();
+        args.add("-webapp");
+        args.add(webapp.getAbsolutePath());
+        args.add("-d");
+        args.add(output.getAbsolutePath());
+        args.add("-compile");
+        args.add("-threadCount");
+        args.add(String.valueOf(threadCount));
+        if (cache != null) {
+            args.add("-compileCache");
+            args.add(cache.getAbsolutePath());
+        }
+        JspC jspc = new JspC();
+        jspc.setArgs(args.toArray(new String[args.size()]));
+        jspc.execute();
+    }
+
+
+    /**
+     * Mark the generated sources stored in the cache, to tell the pages
+     * restored from it.
+     */
+    protected static void mark(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                mark(children[i]);
+            }
+        } else if (file.getName().endsWith(".java")) {
+            String source = new String(read(file), "UTF-8");
+            write(file, source + MARKER + "\n");
+        }
+    }
+
+
+    protected static boolean isMarked(File output, int page)
+        throws IOException {
+        File source = new File(output, "org/apache/jsp/page" + page + "_jsp.java");
+        return new String(read(source), "UTF-8").indexOf(MARKER) >= 0;
+    }
+
+
+    /**
+     * The paths of the files under a directory, sorted.
+     */
+    protected static String[] list(File dir) {
+        List<String> files = new ArrayList<String>();
+        list(dir, "", files);
+        String[] result = files.toArray(new String[files.size()]);
+        Arrays.sort(result);
+        return result;
+    }
+
+
+    protected static void list(File dir, String path, List<String> files) {
+        File[] children = dir.listFiles();
+        for (int i = 0; i < children.length; i++) {
+            String name = path + children[i].getName();
+            if (children[i].isDirectory()) {
+                list(children[i], name + "/", files);
+            } else {
+                files.add(name);
+            }
+        }
+    }
+
+
+    protected static byte[] read(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] b = new byte[(int) file.length()];
+            int n = 0;
+            while (n < b.length) {
+                int r = is.read(b, n, b.length - n);
+                if (r < 0) {
+                    throw new IOException(file.getPath());
+                }
+                n += r;
+            }
+            return b;
+        } finally {
+            is.close();
+        }
+    }
+
+
+    protected static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+
+    protected static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.compiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+import junit.framework.TestCase;
+
+import org.apache.jasper.EmbeddedServletOptions;
+import org.apache.jasper.JasperException;
+import org.apache.jasper.Options;
+import org.apache.jasper.servlet.JspCServletContext;
+import org.apache.jasper.servlet.JspServletWrapper;
+
+/**
+ * Background check of the JSP modifications in development mode.
+ */
+public class TestJspRuntimeContext extends TestCase {
+
+    /**
+     * Wrapper of a JSP with the given dependants, which is never loaded.
+     */
+    protected static class Wrapper extends JspServletWrapper {
+        protected List<String> dependants;
+
+        public Wrapper(ServletConfig config, Options options, String jspUri,
+                JspRuntimeContext rctxt, List<String> dependants)
+            throws JasperException {
+            super(config, options, jspUri, false, rctxt);
+            this.dependants = dependants;
+        }
+
+        public List<String> getDependants() {
+            return dependants;
+        }
+    }
+
+
+    protected File dir;
+    protected File scratch;
+    protected ClassLoader loader;
+
+    /**
+     * Number of lookups of each resource of the web application.
+     */
+    protected Map<String, Integer> lookups = new HashMap<String, Integer>();
+
+
+    public void setUp() throws Exception {
+        dir = File.createTempFile("jsprc", "");
+        dir.delete();
+        dir.mkdirs();
+        scratch = new File(dir, "work");
+        scratch.mkdirs();
+        loader = Thread.currentThread().getContextClassLoader();
+        // Jasper builds its class path from the context class loader
+        Thread.currentThread().setContextClassLoader(
+                new URLClassLoader(new URL[0], getClass().getClassLoader()));
+    }
+
+
+    public void tearDown() throws Exception {
+        Thread.currentThread().setContextClassLoader(loader);
+        delete(dir);
+    }
+
+
+    protected static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+        file.delete();
+    }
+
+
+    public void testCheckModifications() throws Exception {
+        long past = System.currentTimeMillis() - 60000;
+        touch("a.jsp", past);
+        touch("b.jsp", past);
+        touch("c.jsp", past);
+        touch("header.jspf", past);
+
+        final ServletContext context = createContext();
+        final Properties params = new Properties();
+        params.setProperty("development", "true");
+        params.setProperty("backgroundModificationTest", "true");
+        params.setProperty("modificationTestInterval", "0");
+        params.setProperty("scratchdir", scratch.getAbsolutePath());
+        ServletConfig config = new ServletConfig() {
+            public String getServletName() {
+                return "jsp";
+            }
+            public ServletContext getServletContext() {
+                return context;
+            }
+            public String getInitParameter(String name) {
+                return params.getProperty(name);
+            }
+            public Enumeration getInitParameterNames() {
+                return params.propertyNames();
+            }
+        };
+        Options options = new EmbeddedServletOptions(config, context);
+        JspRuntimeContext rctxt = new JspRuntimeContext(context, options);
+        List<String> header = Arrays.asList(new String[] {"/header.jspf"});
+        Wrapper a = new Wrapper(config, options, "/a.jsp", rctxt, header);
+        Wrapper b = new Wrapper(config, options, "/b.jsp", rctxt, header);
+        Wrapper c = new Wrapper(config, options, "/c.jsp", rctxt, null);
+        rctxt.addWrapper("/a.jsp", a);
+        rctxt.addWrapper("/b.jsp", b);
+        rctxt.addWrapper("/c.jsp", c);
+        long compiled = past + 10000;
+        compile(a, compiled);
+        compile(b, compiled);
+        compile(c, compiled);
+
+        check(rctxt);
+        assertFalse(a.isStale());
+        assertFalse(b.isStale());
+        assertFalse(c.isStale());
+        // The shared include is looked up once per check
+        assertEquals(Integer.valueOf(1), lookups.get("/header.jspf"));
+
+        // Modified include: only the pages depending on it are outdated
+        touch("header.jspf", compiled + 10000);
+        check(rctxt);
+        assertTrue(a.isStale());
+        assertTrue(b.isStale());
+        assertFalse(c.isStale());
+        assertEquals(Integer.valueOf(1), lookups.get("/header.jspf"));
+    }
+
+
+    /**
+     * Run the background check, once its interval elapsed.
+     */
+    protected void check(JspRuntimeContext rctxt) throws Exception {
+        Thread.sleep(10);
+        lookups.clear();
+        rctxt.checkCompile();
+    }
+
+
+    protected void touch(String name, long time) throws Exception {
+        File file = new File(dir, name);
+        if (!file.exists()) {
+            new FileOutputStream(file).close();
+        }
+        file.setLastModified(time);
+    }
+
+
+    protected void compile(JspServletWrapper jsw, long time) throws Exception {
+        File classFile = new File(jsw.getJspEngineContext().getClassFileName());
+        classFile.getParentFile().mkdirs();
+        new FileOutputStream(classFile).close();
+        classFile.setLastModified(time);
+    }
+
+
+    /**
+     * Return a context serving the test directory, which counts the
+     * lookups of its resources.
+     */
+    protected ServletContext createContext() throws Exception {
+        final ServletContext context = new JspCServletContext(
+                new PrintWriter(new StringWriter()), dir.toURI().toURL());
+        return (ServletContext) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] {ServletContext.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if (method.getName().equals("getResource")) {
+                            String path = (String) args[0];
+                            Integer count = lookups.get(path);
+                            lookups.put(path, Integer.valueOf(
+                                    (count == null) ? 1 : count.intValue() + 1));
+                        }
+                        try {
+                            return method.invoke(context, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+}
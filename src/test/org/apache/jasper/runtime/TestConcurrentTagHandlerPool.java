@@ -0,0 +1,128 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.jsp.tagext.Tag;
+import javax.servlet.jsp.tagext.TagSupport;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+
+public class TestConcurrentTagHandlerPool extends TestCase {
+
+    public static void main(String args[]) {
+        TestRunner.run(suite());
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite();
+        suite.addTest(new TestSuite(TestConcurrentTagHandlerPool.class));
+        return suite;
+    }
+
+
+    protected static AtomicInteger created = new AtomicInteger();
+    protected static AtomicInteger released = new AtomicInteger();
+
+    public static class CountingTag extends TagSupport {
+        public CountingTag() {
+            created.incrementAndGet();
+        }
+        public void release() {
+            released.incrementAndGet();
+        }
+    }
+
+
+    public void setUp() {
+        created.set(0);
+        released.set(0);
+    }
+
+
+    public void testReuse() throws Exception {
+        ConcurrentTagHandlerPool pool = new ConcurrentTagHandlerPool();
+        pool.init(null);
+        Tag[] tags = new Tag[10];
+        for (int n = 0; n < 2; n++) {
+            for (int i = 0; i < tags.length; i++) {
+                tags[i] = pool.get(CountingTag.class);
+            }
+            for (int i = 0; i < tags.length; i++) {
+                pool.reuse(tags[i]);
+            }
+        }
+        // Kept by the thread and the shared stack, the others released
+        int kept = ConcurrentTagHandlerPool.LOCAL_SIZE
+            + org.apache.jasper.Constants.MAX_POOL_SIZE;
+        assertEquals(2 * tags.length - kept, created.get());
+        assertEquals(2 * (tags.length - kept), released.get());
+
+        pool.release();
+        assertEquals(created.get(), released.get());
+        // Handlers returned after the release are not kept
+        Tag tag = pool.get(CountingTag.class);
+        pool.reuse(tag);
+        assertEquals(created.get(), released.get());
+    }
+
+
+    public void testEndedThreads() throws Exception {
+        final ConcurrentTagHandlerPool pool = new ConcurrentTagHandlerPool();
+        pool.init(null);
+        final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[20];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        Tag tag = pool.get(CountingTag.class);
+                        pool.reuse(tag);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads[i].start();
+            threads[i].join();
+        }
+        // Rethrow the failure of a thread in the test thread
+        Throwable t = failure.get();
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        // The handlers of the ended threads went to the shared stack, and
+        // were reused by the next threads
+        Tag tag = pool.get(CountingTag.class);
+        pool.reuse(tag);
+        assertEquals(1, created.get());
+        assertEquals(0, released.get());
+        pool.release();
+        assertEquals(created.get(), released.get());
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+import org.apache.EncodedWriter;
+
+
+public class TestEncodedText extends TestCase {
+
+    public static void main(String args[]) {
+        TestRunner.run(suite());
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite();
+        suite.addTest(new TestSuite(TestEncodedText.class));
+        return suite;
+    }
+
+
+    /**
+     * Writer of a response, which records the order of the chars and bytes
+     * written to it.
+     */
+    protected static class ResponseWriter extends PrintWriter
+        implements EncodedWriter {
+
+        protected String encoding;
+        protected StringWriter chars = new StringWriter();
+        protected ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        protected StringBuilder order = new StringBuilder();
+
+        public ResponseWriter(String encoding) {
+            super(new StringWriter());
+            this.encoding = encoding;
+        }
+
+        public void write(char buf[], int off, int len) {
+            chars.write(buf, off, len);
+            order.append('c');
+        }
+
+        public void write(String s, int off, int len) {
+            chars.write(s, off, len);
+            order.append('c');
+        }
+
+        public boolean writeEncoded(byte[] b, int off, int len,
+                String encoding) {
+            if (!encoding.equalsIgnoreCase(this.encoding)) {
+                return false;
+            }
+            bytes.write(b, off, len);
+            order.append('b');
+            return true;
+        }
+    }
+
+
+    protected static ServletResponse getResponse(final PrintWriter writer) {
+        return (ServletResponse) Proxy.newProxyInstance(
+                TestEncodedText.class.getClassLoader(),
+                new Class[] { ServletResponse.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("getWriter")) {
+                            return writer;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+
+    public void testUnbuffered() throws Exception {
+        ResponseWriter writer = new ResponseWriter("utf-8");
+        JspWriterImpl out = new JspWriterImpl(getResponse(writer), 0, true);
+        new EncodedText("h\u00e9llo", "UTF-8").write(out);
+        out.write("!");
+        assertEquals("bc", writer.order.toString());
+        assertEquals("h\u00e9llo", new String(writer.bytes.toByteArray(),
+                "UTF-8"));
+
+        // The response uses another encoding
+        writer = new ResponseWriter("ISO-8859-1");
+        out = new JspWriterImpl(getResponse(writer), 0, true);
+        new EncodedText("h\u00e9llo", "UTF-8").write(out);
+        assertEquals("c", writer.order.toString());
+        assertEquals("h\u00e9llo", writer.chars.toString());
+    }
+
+
+    public void testBuffered() throws Exception {
+        ResponseWriter writer = new ResponseWriter("ISO-8859-1");
+        JspWriterImpl out = new JspWriterImpl(getResponse(writer), 8, true);
+        out.write("ab");
+        // Buffered as characters
+        new EncodedText("cd", "ISO-8859-1").write(out);
+        assertEquals("", writer.order.toString());
+        // The buffer is flushed before the bytes are written
+        new EncodedText("0123456789", "ISO-8859-1").write(out);
+        out.flush();
+        assertEquals("cb", writer.order.toString());
+        assertEquals("abcd", writer.chars.toString());
+        assertEquals("0123456789", new String(writer.bytes.toByteArray(),
+                "ISO-8859-1"));
+
+        // The buffer overflows as before
+        out = new JspWriterImpl(getResponse(writer), 8, false);
+        try {
+            new EncodedText("0123456789", "ISO-8859-1").write(out);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+
+    public void testInclude() throws Exception {
+        ResponseWriter writer = new ResponseWriter("UTF-8");
+        JspWriterImpl out = new JspWriterImpl(getResponse(writer), 0, true);
+        ServletResponseWrapperInclude included =
+            new ServletResponseWrapperInclude(
+                    (ServletResponse) Proxy.newProxyInstance(
+                            TestEncodedText.class.getClassLoader(),
+                            new Class[] { HttpServletResponse.class },
+                            new InvocationHandler() {
+                                public Object invoke(Object proxy,
+                                        Method method, Object[] args) {
+                                    return null;
+                                }
+                            }), out);
+        JspWriterImpl includedOut =
+            new JspWriterImpl(included, 0, true);
+        new EncodedText("included", "UTF-8").write(includedOut);
+        assertEquals("b", writer.order.toString());
+
+        // Not when the including page is buffered
+        writer = new ResponseWriter("UTF-8");
+        out = new JspWriterImpl(getResponse(writer), 8, true);
+        includedOut = new JspWriterImpl(
+                new ServletResponseWrapperInclude(included.getResponse(), out),
+                0, true);
+        new EncodedText("included", "UTF-8").write(includedOut);
+        out.flush();
+        assertEquals("c", writer.order.toString());
+        assertEquals("included", writer.chars.toString());
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.naming.resources;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class TestMappedContentCache extends TestCase {
+
+    protected File file;
+
+
+    public void setUp() throws Exception {
+        file = File.createTempFile("mapped", ".bin");
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(new byte[8192]);
+        fos.close();
+    }
+
+
+    public void tearDown() {
+        file.delete();
+    }
+
+
+    public void testHit() {
+        MappedContentCache cache = new MappedContentCache(65536, 1024, 0);
+        String path = file.getAbsolutePath();
+        ByteBuffer buffer = cache.get(path, file.lastModified(), 8192);
+        assertNotNull(buffer);
+        assertEquals(8192, buffer.remaining());
+        assertNotNull(cache.get(path, file.lastModified(), 8192));
+        assertEquals(1, cache.getHitsCount());
+        assertEquals(8192, cache.getSize());
+        // Stale attributes
+        assertNull(cache.get(path, file.lastModified() + 1000, 8192));
+    }
+
+
+    public void testTruncatedInPlace() throws Exception {
+        MappedContentCache cache = new MappedContentCache(65536, 1024, 0);
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        assertNotNull(cache.get(path, lastModified, 8192));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(100);
+        raf.close();
+        file.setLastModified(lastModified);
+
+        // The resources still report the old attributes until the cache TTL
+        assertNull(cache.get(path, lastModified, 8192));
+        assertEquals(0, cache.getSize());
+    }
+
+
+    public void testCheckInterval() throws Exception {
+        MappedContentCache cache = new MappedContentCache(65536, 1024, 60000);
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        assertNotNull(cache.get(path, lastModified, 8192));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(100);
+        raf.close();
+        file.setLastModified(lastModified);
+
+        // The length is not checked again before the interval elapsed
+        assertNotNull(cache.get(path, lastModified, 8192));
+        assertEquals(1, cache.getHitsCount());
+        cache.mappings.get(path).timestamp = 0;
+        assertNull(cache.get(path, lastModified, 8192));
+        assertEquals(0, cache.getSize());
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.naming.resources;
+
+import junit.framework.TestCase;
+
+public class TestTinyLfuResourceCache extends TestCase {
+
+    public void testScanDoesNotFlushHotEntries() {
+        TinyLfuResourceCache cache = new TinyLfuResourceCache();
+        cache.setCacheMaxSize(100);
+        for (int i = 0; i < 20; i++) {
+            load(cache, "/hot" + i, 2048, true);
+        }
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 20; i++) {
+                assertNotNull(cache.lookup("/hot" + i));
+            }
+        }
+        // One-off requests for more than the whole capacity
+        for (int i = 0; i < 200; i++) {
+            if (cache.lookup("/cold" + i) == null) {
+                load(cache, "/cold" + i, 4096, true);
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            assertNotNull("/hot" + i, cache.lookup("/hot" + i));
+        }
+        assertTrue(cache.getCacheSize() <= 100);
+        assertTrue(cache.getEvictionCount() + cache.getRejectionCount() > 0);
+    }
+
+
+    public void testNotFoundEntriesAreBounded() {
+        TinyLfuResourceCache cache = new TinyLfuResourceCache();
+        cache.setSpareNotFoundEntries(10);
+        for (int i = 0; i < 100; i++) {
+            load(cache, "/missing" + i, 0, false);
+        }
+        assertEquals(10, cache.getNotFoundCount());
+        assertNotNull(cache.lookup("/missing99"));
+        assertNull(cache.lookup("/missing0"));
+        assertEquals(0, cache.getCacheSize());
+    }
+
+
+    public void testUnload() {
+        TinyLfuResourceCache cache = new TinyLfuResourceCache();
+        load(cache, "/a", 10240, true);
+        assertEquals(11, cache.getCacheSize());
+        assertTrue(cache.unload("/a"));
+        assertFalse(cache.unload("/a"));
+        assertNull(cache.lookup("/a"));
+        assertEquals(0, cache.getCacheSize());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+
+    private void load(ResourceCache cache, String name, int length,
+            boolean exists) {
+        CacheEntry entry = new CacheEntry();
+        entry.name = name;
+        entry.exists = exists;
+        if (exists) {
+            entry.resource = new Resource(new byte[length]);
+            entry.size += length / 1024;
+        }
+        if (cache.allocate(entry.size)) {
+            cache.load(entry);
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.tomcat.util.http;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+
+public class TestMimeHeaders extends TestCase {
+
+    public static void main(String args[]) {
+        TestRunner.run(suite());
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite();
+        suite.addTest(new TestSuite(TestMimeHeaders.class));
+        return suite;
+    }
+
+
+    public void testFewHeaders() throws Exception {
+        doTestLookups(3);
+    }
+
+
+    public void testManyHeaders() throws Exception {
+        doTestLookups(MimeHeaders.INDEX_THRESHOLD / 2);
+    }
+
+
+    public void testIndexedHeaders() throws Exception {
+        doTestLookups(MimeHeaders.INDEX_THRESHOLD * 2);
+    }
+
+
+    public void testRecycle() throws Exception {
+        MimeHeaders headers = new MimeHeaders();
+        for (int n = 0; n < 3; n++) {
+            int size = (n == 1) ? 10 : MimeHeaders.INDEX_THRESHOLD + 1;
+            addBytes(headers, size);
+            assertEquals("value-7", headers.getHeader("X-HEADER-7"));
+            assertNull(headers.getHeader("x-header-" + size));
+            headers.recycle();
+            assertNull(headers.getHeader("x-header-7"));
+        }
+    }
+
+
+    protected void doTestLookups(int size) throws Exception {
+        MimeHeaders headers = new MimeHeaders();
+        addBytes(headers, size);
+        // Names as chars and Strings, and a repeated name
+        char[] c = "Cookie".toCharArray();
+        headers.addValue(c, 0, c.length).setString("a=1");
+        headers.addValue("cookie").setString("b=2");
+
+        for (int i = 0; i < size; i++) {
+            assertEquals("value-" + i, headers.getHeader("X-Header-" + i));
+        }
+        assertNull(headers.getHeader("x-header-" + size));
+
+        int first = headers.findHeader("COOKIE", 0);
+        assertEquals(size, first);
+        assertEquals(size + 1, headers.findHeader("cookie", first + 1));
+        assertEquals(-1, headers.findHeader("cookie", size + 2));
+        try {
+            headers.getUniqueValue("cookie");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // The last field moves in place of the removed one
+        headers.removeHeader("x-header-0");
+        assertNull(headers.getHeader("x-header-0"));
+        assertEquals(size + 1, headers.size());
+        assertEquals("b=2", headers.getHeader("cookie"));
+        assertEquals("a=1", headers.getValue(size).toString());
+
+        headers.setValue("Cookie").setString("c=3");
+        assertEquals(size, headers.size());
+        assertEquals("c=3", headers.getUniqueValue("cookie").toString());
+        for (int i = 1; i < size; i++) {
+            assertEquals("value-" + i, headers.getHeader("x-header-" + i));
+        }
+    }
+
+
+    protected static void addBytes(MimeHeaders headers, int size) {
+        for (int i = 0; i < size; i++) {
+            byte[] b = ("x-header-" + i).getBytes();
+            headers.addValue(b, 0, b.length).setString("value-" + i);
+        }
+    }
+
+}
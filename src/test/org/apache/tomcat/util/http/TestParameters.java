@@ -0,0 +1,169 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.tomcat.util.http;
+
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+
+import org.apache.tomcat.util.buf.MessageBytes;
+
+
+public class TestParameters extends TestCase {
+
+    public static void main(String args[]) {
+        TestRunner.run(suite());
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite();
+        suite.addTest(new TestSuite(TestParameters.class));
+        return suite;
+    }
+
+
+    public void testQueryAndBody() throws Exception {
+        Parameters p = new Parameters();
+        MessageBytes query = MessageBytes.newInstance();
+        query.setString("a=1&b=x+y&c=%E2%82%AC&a=2&empty=&flag&&=bad");
+        p.setQuery(query);
+        p.setQueryStringEncoding("UTF-8");
+        p.handleQueryParameters();
+        assertTrue(p.isParseFailed());
+
+        byte[] body = "a=3&d=%41%42".getBytes("ISO-8859-1");
+        p.processParameters(body, 0, body.length);
+
+        assertEquals("1", p.getParameter("a"));
+        assertEquals("x y", p.getParameter("b"));
+        assertEquals("\u20ac", p.getParameter("c"));
+        assertEquals("", p.getParameter("empty"));
+        assertEquals("", p.getParameter("flag"));
+        assertEquals("AB", p.getParameter("d"));
+        assertNull(p.getParameter("e"));
+        String[] a = p.getParameterValues("a");
+        assertEquals(3, a.length);
+        assertEquals("2", a[1]);
+        assertEquals("3", a[2]);
+
+        p.addParameterValues("a", new String[] { "4" });
+        assertEquals("4", p.getParameterValues("a")[3]);
+
+        int count = 0;
+        for (Enumeration<String> e = p.getParameterNames(); e.hasMoreElements(); e.nextElement()) {
+            count++;
+        }
+        assertEquals(6, count);
+    }
+
+
+    public void testDecodeFailure() throws Exception {
+        Parameters p = new Parameters();
+        byte[] body = "a=%zz&b=%4&c=ok".getBytes("ISO-8859-1");
+        p.processParameters(body, 0, body.length);
+        assertTrue(p.isParseFailed());
+        assertNull(p.getParameter("a"));
+        assertNull(p.getParameter("b"));
+        assertEquals("ok", p.getParameter("c"));
+    }
+
+
+    public void testAddNullValue() throws Exception {
+        Parameters p = new Parameters();
+        p.addParameterValues("a", new String[] { null, "1" });
+        String[] a = p.getParameterValues("a");
+        assertEquals(2, a.length);
+        assertNull(a[0]);
+        assertEquals("1", a[1]);
+        assertNull(p.getParameter("a"));
+    }
+
+
+    public void testRecycle() throws Exception {
+        Parameters p = new Parameters();
+        for (int n = 0; n < 3; n++) {
+            byte[] body = buildForm(300, n).getBytes("ISO-8859-1");
+            p.setLimit(n == 1 ? 100 : -1);
+            p.processParameters(body, 0, body.length);
+            assertEquals("value " + n + "-7", p.getParameter("key7"));
+            if (n == 1) {
+                assertTrue(p.isParseFailed());
+                assertNull(p.getParameter("key100"));
+            } else {
+                assertEquals("value " + n + "-299", p.getParameter("key299"));
+            }
+            p.recycle();
+            assertNull(p.getParameter("key7"));
+            assertFalse(p.isParseFailed());
+        }
+    }
+
+
+    /**
+     * Parse forms and query strings with hundreds of keys, reading only
+     * some of them, as most applications do.
+     */
+    public void testConcurrentValues() throws Exception {
+        final Parameters p = new Parameters();
+        byte[] body = buildForm(500, 1).getBytes("ISO-8859-1");
+        p.processParameters(body, 0, body.length);
+
+        // Values converted on their first access by several threads
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 7;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        int key = (i + offset) % 500;
+                        if (!("value 1-" + key).equals(
+                                p.getParameter("key" + key))) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+        assertEquals(0, failures.get());
+    }
+
+
+    protected static String buildForm(int size, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append('&');
+            }
+            sb.append("key").append(i).append("=value+").append(n);
+            sb.append("%2D").append(i);
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.tomcat.util.http.mapper;
+
+import junit.framework.TestCase;
+
+import org.apache.tomcat.util.buf.MessageBytes;
+
+public class TestMapper extends TestCase {
+
+    private static final String[] URIS = {
+        "/", "/index.jsp", "/foo", "/foo/", "/foo/bar", "/foo/bar/x.jsp",
+        "/foo/barbaz", "/foo/bar/baz/x", "/foo/bar/baz/x.do", "/foobar",
+        "/foobar/a.jsp", "/foo/servlet", "/foo/servlet/x", "/foo/servlets",
+        "/a/b/c/d", "/a/b/c", "/a/b", "/a/b/d.jsp", "/x.do", "/nothing/y"
+    };
+
+    private static final String[] HOSTS = {
+        "localhost", "LOCALHOST", "alias", "iowejoiejfoiew", "other"
+    };
+
+
+    public void testTrie() {
+        MappingTrie trie = MappingTrie.EMPTY;
+        trie = trie.put("/foo", "a").put("/foobar", "b").put("/f", "c")
+            .put("", "root");
+        assertEquals("a", trie.get("/foo"));
+        assertEquals("b", trie.get("/foobar"));
+        assertEquals("c", trie.get("/f"));
+        assertNull(trie.get("/fo"));
+        char[] uri = "/foo/bar".toCharArray();
+        assertEquals("a", trie.findPrefix(uri, 0, uri.length));
+        uri = "/foob/x".toCharArray();
+        assertEquals("root", trie.findPrefix(uri, 0, uri.length));
+        MappingTrie removed = trie.remove("/foo");
+        assertNull(removed.get("/foo"));
+        assertEquals("b", removed.get("/foobar"));
+        assertEquals("a", trie.get("/foo"));
+        assertSame(removed, removed.remove("/foo"));
+        assertNull(removed.remove("/foobar").remove("/f").remove("")
+                .get("/foobar"));
+    }
+
+
+    public void testTrieMappingMatchesArrayMapping() throws Exception {
+        Mapper arrays = createMapper();
+        Mapper tries = createMapper();
+        tries.setTrieMapping(true);
+        assertMappingsEqual(arrays, tries);
+
+        // Updates after the tries were built
+        arrays.removeWrapper("localhost", "/foo", "/bar/*");
+        tries.removeWrapper("localhost", "/foo", "/bar/*");
+        arrays.addContext("localhost", "/foo/bar/baz", "context4",
+                new String[0], null);
+        tries.addContext("localhost", "/foo/bar/baz", "context4",
+                new String[0], null);
+        arrays.addWrapper("localhost", "/foo/bar/baz", "/x", "wrapper9");
+        tries.addWrapper("localhost", "/foo/bar/baz", "/x", "wrapper9");
+        arrays.removeHostAlias("alias");
+        tries.removeHostAlias("alias");
+        assertMappingsEqual(arrays, tries);
+
+        tries.setTrieMapping(false);
+        assertMappingsEqual(arrays, tries);
+    }
+
+
+    private Mapper createMapper() {
+        Mapper mapper = new Mapper();
+        mapper.setDefaultHostName("localhost");
+        mapper.addHost("localhost", new String[] {"alias"}, "host0");
+        mapper.addHost("other", new String[0], "host1");
+        mapper.addContext("localhost", "", "context0", new String[0], null);
+        mapper.addContext("localhost", "/foo", "context1", new String[0], null);
+        mapper.addContext("localhost", "/foobar", "context2", new String[0],
+                null);
+        mapper.addContext("localhost", "/a/b/c", "context3", new String[0],
+                null);
+        mapper.addContext("other", "/foo", "context5", new String[0], null);
+        mapper.addWrapper("localhost", "", "/", "wrapper0");
+        mapper.addWrapper("localhost", "", "*.do", "wrapper1");
+        mapper.addWrapper("localhost", "/foo", "/bar/*", "wrapper2");
+        mapper.addWrapper("localhost", "/foo", "/bar/baz/*", "wrapper3");
+        mapper.addWrapper("localhost", "/foo", "/servlet", "wrapper4");
+        mapper.addWrapper("localhost", "/foo", "*.jsp", "wrapper5", true);
+        mapper.addWrapper("localhost", "/foo", "/", "wrapper6");
+        mapper.addWrapper("localhost", "/foobar", "/*", "wrapper7");
+        mapper.addWrapper("localhost", "/a/b/c", "*.jsp", "wrapper8");
+        mapper.addWrapper("other", "/foo", "/*", "wrapper10");
+        return mapper;
+    }
+
+
+    private void assertMappingsEqual(Mapper expected, Mapper actual)
+        throws Exception {
+        for (int i = 0; i < HOSTS.length; i++) {
+            for (int j = 0; j < URIS.length; j++) {
+                String message = HOSTS[i] + URIS[j];
+                MappingData data1 = map(expected, HOSTS[i], URIS[j]);
+                MappingData data2 = map(actual, HOSTS[i], URIS[j]);
+                assertEquals(message, data1.host, data2.host);
+                assertEquals(message, data1.context, data2.context);
+                assertEquals(message, data1.wrapper, data2.wrapper);
+                assertEquals(message, data1.jspWildCard, data2.jspWildCard);
+                assertEquals(message, data1.contextPath.toString(),
+                        data2.contextPath.toString());
+                assertEquals(message, data1.wrapperPath.toString(),
+                        data2.wrapperPath.toString());
+                assertEquals(message, data1.pathInfo.toString(),
+                        data2.pathInfo.toString());
+                assertEquals(message, data1.redirectPath.toString(),
+                        data2.redirectPath.toString());
+            }
+        }
+    }
+
+
+    private MappingData map(Mapper mapper, String host, String uri)
+        throws Exception {
+        MessageBytes hostMB = MessageBytes.newInstance();
+        MessageBytes uriMB = MessageBytes.newInstance();
+        hostMB.setString(host);
+        uriMB.setString(uri);
+        MappingData mappingData = new MappingData();
+        mapper.map(hostMB, uriMB, mappingData);
+        return mappingData;
+    }
+
+}
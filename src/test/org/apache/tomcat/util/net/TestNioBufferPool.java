@@ -0,0 +1,74 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.tomcat.util.net;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class TestNioBufferPool extends TestCase {
+
+    public void testAllocateRelease() {
+        NioBufferPool pool = new NioBufferPool(-1);
+        ByteBuffer buffer = pool.allocate(3000);
+        assertTrue(buffer.isDirect());
+        assertEquals(4096, buffer.capacity());
+        assertEquals(4096, buffer.remaining());
+        assertEquals(NioBufferPool.SLAB_SIZE, pool.getAllocated());
+        assertEquals(4096, pool.getInUse());
+
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        assertEquals(0, pool.getInUse());
+
+        // Buffers of a slab do not overlap
+        ByteBuffer first = pool.allocate(4096);
+        ByteBuffer second = pool.allocate(4096);
+        first.put(0, (byte) 2);
+        second.put(0, (byte) 3);
+        assertEquals(2, first.get(0));
+        assertEquals(0, first.position());
+        assertEquals(NioBufferPool.SLAB_SIZE, pool.getAllocated());
+    }
+
+
+    public void testExhausted() {
+        NioBufferPool pool = new NioBufferPool(8192);
+        ByteBuffer first = pool.allocate(4096);
+        ByteBuffer second = pool.allocate(4096);
+        assertTrue(first.isDirect());
+        assertTrue(second.isDirect());
+        assertEquals(8192, pool.getAllocated());
+
+        // Over budget, a heap buffer
+        ByteBuffer third = pool.allocate(4096);
+        assertFalse(third.isDirect());
+        assertEquals(4096, third.capacity());
+        assertEquals(1, pool.getOverflow());
+        pool.release(third);
+        assertEquals(8192, pool.getInUse());
+
+        // Released slab buffers are lent again
+        pool.release(first);
+        ByteBuffer fourth = pool.allocate(2048 + 1);
+        assertTrue(fourth.isDirect());
+        assertEquals(1, pool.getOverflow());
+        assertEquals(8192, pool.getAllocated());
+    }
+
+}
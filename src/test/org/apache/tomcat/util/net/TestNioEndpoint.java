@@ -0,0 +1,154 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.tomcat.util.net;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestNioEndpoint extends TestCase {
+
+    public void testPollerIndexes() {
+        // More pollers than acceptors: disjoint sets covering all pollers
+        boolean[] used = new boolean[8];
+        for (int i = 0; i < 3; i++) {
+            int[] indexes = NioEndpoint.getPollerIndexes(i, 3, 8);
+            for (int j = 0; j < indexes.length; j++) {
+                assertFalse(used[indexes[j]]);
+                used[indexes[j]] = true;
+            }
+        }
+        for (int i = 0; i < used.length; i++) {
+            assertTrue("poller " + i, used[i]);
+        }
+        assertTrue(Arrays.equals(new int[] {0, 3, 6},
+                NioEndpoint.getPollerIndexes(0, 3, 8)));
+
+        // Fewer pollers than acceptors: shared pollers
+        assertTrue(Arrays.equals(new int[] {1},
+                NioEndpoint.getPollerIndexes(3, 4, 2)));
+        assertTrue(Arrays.equals(new int[] {0},
+                NioEndpoint.getPollerIndexes(0, 1, 1)));
+    }
+
+
+    public void testReusePort() throws Exception {
+        NioEndpoint endpoint = new NioEndpoint();
+        endpoint.setPort(0);
+        endpoint.setAcceptorThreadCount(2);
+        endpoint.setReusePort(true);
+        endpoint.init();
+        try {
+            ServerSocketChannel[] socks = endpoint.serverSocks;
+            if (socks == null) {
+                // SO_REUSEPORT is not available, single shared socket
+                assertNotNull(endpoint.serverSock);
+                return;
+            }
+            assertEquals(2, socks.length);
+            assertSame(socks[0], endpoint.serverSock);
+            assertTrue(socks[0].socket().getLocalPort() > 0);
+            assertEquals(socks[0].socket().getLocalPort(),
+                    socks[1].socket().getLocalPort());
+        } finally {
+            endpoint.destroy();
+        }
+    }
+
+
+    public void testBindFailure() throws Exception {
+        final List<ServerSocketChannel> opened =
+            new ArrayList<ServerSocketChannel>();
+        NioEndpoint endpoint = new NioEndpoint() {
+            protected ServerSocketChannel openServerSocket(boolean reusePort,
+                    int port) throws IOException {
+                if (opened.size() == 2) {
+                    throw new IOException("bind");
+                }
+                ServerSocketChannel channel =
+                    super.openServerSocket(reusePort, port);
+                opened.add(channel);
+                return channel;
+            }
+        };
+        endpoint.setPort(0);
+        endpoint.setAcceptorThreadCount(3);
+        endpoint.setReusePort(true);
+        try {
+            endpoint.init();
+        } catch (IOException e) {
+            assertEquals(2, opened.size());
+            for (int i = 0; i < opened.size(); i++) {
+                assertFalse(opened.get(i).isOpen());
+            }
+            assertNull(endpoint.serverSocks);
+            return;
+        }
+        // SO_REUSEPORT is not available, single shared socket
+        assertNull(opened.get(0));
+        endpoint.destroy();
+    }
+
+
+    public void testStopWakesAcceptors() throws Exception {
+        NioEndpoint endpoint = new NioEndpoint();
+        endpoint.setName("testStop");
+        endpoint.setPort(0);
+        endpoint.setAcceptorThreadCount(4);
+        endpoint.setReusePort(true);
+        endpoint.init();
+        if (endpoint.serverSocks == null) {
+            // SO_REUSEPORT is not available
+            endpoint.destroy();
+            return;
+        }
+        try {
+            for (int i = 0; i < 2; i++) {
+                endpoint.start();
+                assertEquals(4, countAcceptors("testStop"));
+                endpoint.stop();
+                long deadline = System.currentTimeMillis() + 5000;
+                while (countAcceptors("testStop") > 0
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(0, countAcceptors("testStop"));
+            }
+        } finally {
+            endpoint.destroy();
+        }
+    }
+
+
+    protected static int countAcceptors(String name) {
+        int count = 0;
+        Thread[] threads = new Thread[Thread.activeCount() * 2];
+        int n = Thread.enumerate(threads);
+        for (int i = 0; i < n; i++) {
+            if (threads[i].getName().startsWith(name + "-Acceptor-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}